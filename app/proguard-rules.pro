@@ -14,4 +14,14 @@
 
 -keepclassmembers class * implements javax.net.ssl.SSLSocketFactory {
     private final javax.net.ssl.SSLSocketFactory delegate;
-}
\ No newline at end of file
+}
+# Verbose logging is compiled out through BuildConfig.VERBOSE_LOGS; if minification
+# is turned on, also drop the remaining calls and their argument evaluation
+-assumenosideeffects class com.whatsberry.xmpp.AppLog {
+    public static void d(...);
+    public static void i(...);
+}
+-assumenosideeffects class android.util.Log {
+    public static int v(...);
+    public static int d(...);
+}
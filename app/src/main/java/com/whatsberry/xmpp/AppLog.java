@@ -0,0 +1,83 @@
+package com.whatsberry.xmpp;
+
+import android.util.Log;
+
+/**
+ * App Log
+ * Thin facade over android.util.Log for debug/info output on hot paths. Messages are
+ * patterns with "{}" placeholders and the arguments are only turned into strings when
+ * the level is enabled, so a disabled call costs no concatenation. VERBOSE is a
+ * compile-time constant from the build type: in release javac drops the bodies below.
+ * Warnings and errors always go through android.util.Log directly.
+ */
+public final class AppLog {
+
+    /**
+     * True in debug builds; guard anything expensive to compute with it
+     */
+    public static final boolean VERBOSE = BuildConfig.VERBOSE_LOGS;
+
+    private AppLog() {
+    }
+
+    public static void d(String tag, String message) {
+        if (VERBOSE) {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void d(String tag, String pattern, Object arg) {
+        if (VERBOSE) {
+            Log.d(tag, format(pattern, arg, null, null, 1));
+        }
+    }
+
+    public static void d(String tag, String pattern, Object arg1, Object arg2) {
+        if (VERBOSE) {
+            Log.d(tag, format(pattern, arg1, arg2, null, 2));
+        }
+    }
+
+    public static void d(String tag, String pattern, Object arg1, Object arg2, Object arg3) {
+        if (VERBOSE) {
+            Log.d(tag, format(pattern, arg1, arg2, arg3, 3));
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (VERBOSE) {
+            Log.i(tag, message);
+        }
+    }
+
+    public static void i(String tag, String pattern, Object arg) {
+        if (VERBOSE) {
+            Log.i(tag, format(pattern, arg, null, null, 1));
+        }
+    }
+
+    public static void i(String tag, String pattern, Object arg1, Object arg2) {
+        if (VERBOSE) {
+            Log.i(tag, format(pattern, arg1, arg2, null, 2));
+        }
+    }
+
+    /**
+     * Substitute up to three "{}" placeholders in order; extra placeholders stay as they are
+     */
+    static String format(String pattern, Object arg1, Object arg2, Object arg3, int count) {
+        StringBuilder sb = new StringBuilder(pattern.length() + 32);
+        int from = 0;
+        for (int n = 0; n < count; n++) {
+            int at = pattern.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            sb.append(pattern, from, at);
+            sb.append(n == 0 ? arg1 : n == 1 ? arg2 : arg3);
+            from = at + 2;
+        }
+        sb.append(pattern, from, pattern.length());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package com.whatsberry.xmpp;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Audio Prefetcher
+ * Downloads the MP3 transcodes of recent voice notes into MediaCache in the background,
+ * so tapping play reads a local file instead of waiting for convert_audio.php.
+ * Prefetches run one at a time on a single worker through AudioStreamProxy, so a tap on play
+ * while a voice note is still prefetching streams from that same download.
+ */
+public class AudioPrefetcher {
+    private static final String TAG = "AudioPrefetcher";
+
+    private static final int MAX_PREFETCH = 5;          // Most recent voice notes per chat
+    private static final int MAX_PREFETCH_METERED = 2;  // Be gentle on mobile data
+
+    private static AudioPrefetcher instance;
+
+    private final Context context;
+    private final Handler workerHandler;
+    private final Set<String> queued = new HashSet<>();
+
+    private AudioPrefetcher(Context context) {
+        this.context = context.getApplicationContext();
+        HandlerThread thread = new HandlerThread("AudioPrefetcher");
+        thread.start();
+        this.workerHandler = new Handler(thread.getLooper());
+    }
+
+    public static synchronized AudioPrefetcher getInstance(Context context) {
+        if (instance == null) {
+            instance = new AudioPrefetcher(context);
+        }
+        return instance;
+    }
+
+    /**
+     * URL to play a voice note from
+     * WhatsApp sends ogg/opus which BB10 can't decode, so the server transcodes on ?format=mp3
+     */
+    public static String playbackUrl(String fileUrl) {
+        String lowerUrl = fileUrl.toLowerCase();
+        if (lowerUrl.contains("format=mp3")) {
+            return fileUrl;
+        }
+        if (lowerUrl.endsWith(".mp3") || lowerUrl.endsWith(".ogg") ||
+            lowerUrl.endsWith(".m4a") || lowerUrl.endsWith(".opus")) {
+            return fileUrl + (fileUrl.contains("?") ? "&" : "?") + "format=mp3";
+        }
+        return fileUrl;
+    }
+
+    /**
+     * Queue the most recent voice notes of a chat for download
+     * @param fileUrls voice note URLs in chat order (oldest first)
+     */
+    public void prefetch(List<String> fileUrls) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm.getActiveNetworkInfo();
+        if (network == null || !network.isConnected()) {
+            Log.d(TAG, "Offline, skipping prefetch");
+            return;
+        }
+
+        int limit = cm.isActiveNetworkMetered() ? MAX_PREFETCH_METERED : MAX_PREFETCH;
+
+        MediaCache cache = MediaCache.getInstance(context);
+        int considered = 0;
+        for (int i = fileUrls.size() - 1; i >= 0 && considered < limit; i--) {
+            final String url = playbackUrl(fileUrls.get(i));
+            considered++;
+
+            if (cache.getCachedFile(url) != null) {
+                continue;
+            }
+            synchronized (queued) {
+                if (!queued.add(url)) {
+                    continue;
+                }
+            }
+
+            workerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        AudioStreamProxy.getInstance(context).fetch(url);
+                        Log.d(TAG, "Prefetched " + url);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Prefetch failed for " + url + ": " + e.getMessage());
+                    } finally {
+                        synchronized (queued) {
+                            queued.remove(url);
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
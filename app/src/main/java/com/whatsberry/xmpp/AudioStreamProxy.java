@@ -0,0 +1,601 @@
+package com.whatsberry.xmpp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Audio Stream Proxy
+ * Loopback HTTP server that MediaPlayer (voice notes, VideoView) streams from instead of the remote URL.
+ * The remote file is downloaded once, progressively, into a file next to MediaCache:
+ * the player starts as soon as the first bytes arrive, seeks inside the downloaded part
+ * are served from disk, and seeks far ahead are fetched with an upstream Range request.
+ * When the download completes the file is handed to MediaCache, so the next play is a cache hit.
+ * Downloads are claimed in MediaCache, so the prefetcher, the player and MediaCache.get()
+ * callers always share one download per URL.
+ */
+public class AudioStreamProxy {
+    private static final String TAG = "AudioStreamProxy";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long SEEK_AHEAD_BYTES = 256 * 1024; // Closer than this: just wait for the download
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int CLIENT_TIMEOUT_MS = 60000;
+    private static final String DEFAULT_CONTENT_TYPE = "audio/mpeg";
+    private static final int CLIENT_THREADS = 4;    // MediaPlayer rarely holds more than two connections
+    private static final int DOWNLOAD_THREADS = 2;
+    private static final int MAX_REMOTE_URLS = 32;  // Proxy URLs handed out but not played yet
+
+    private static AudioStreamProxy instance;
+
+    private final Context context;
+    private ServerSocket serverSocket;
+    private final Map<String, StreamDownload> downloads = new HashMap<>(); // cache key -> running download
+    private final ExecutorService clientExecutor = newPool(CLIENT_THREADS);
+    private final ExecutorService downloadExecutor = newPool(DOWNLOAD_THREADS);
+
+    // cache key -> remote URL, until its download completes (after that the cache serves the key)
+    private final Map<String, String> remoteUrls = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_REMOTE_URLS;
+        }
+    };
+
+    private AudioStreamProxy(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Bounded pool whose idle threads exit, so the proxy costs nothing between voice notes
+     */
+    private static ExecutorService newPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public static synchronized AudioStreamProxy getInstance(Context context) {
+        if (instance == null) {
+            instance = new AudioStreamProxy(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Get a loopback URL that streams (and caches) the given remote URL
+     */
+    public synchronized String getProxyUrl(String remoteUrl) throws IOException {
+        if (serverSocket == null || serverSocket.isClosed()) {
+            startServer();
+        }
+        String key = MediaCache.keyFor(remoteUrl);
+        remoteUrls.put(key, remoteUrl);
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + key;
+    }
+
+    /**
+     * Download a URL into MediaCache (blocking - call from a background thread)
+     * Starts or joins the same download a player streams from, so a prefetch and a tap on
+     * play never fetch the file twice.
+     */
+    public File fetch(String remoteUrl) throws IOException {
+        MediaCache cache = MediaCache.getInstance(context);
+        File cached = cache.getCachedFile(remoteUrl);
+        if (cached != null) {
+            return cached;
+        }
+        StreamDownload download = startDownload(MediaCache.keyFor(remoteUrl), remoteUrl);
+        if (download == null) {
+            return cache.get(remoteUrl);
+        }
+        try {
+            return download.awaitFile();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for " + remoteUrl);
+        }
+    }
+
+    private void startServer() throws IOException {
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        final ServerSocket server = serverSocket;
+        Log.d(TAG, "Listening on port " + server.getLocalPort());
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        final Socket client = server.accept();
+                        clientExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handleClient(client);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!server.isClosed()) {
+                            Log.e(TAG, "Accept failed", e);
+                        }
+                    }
+                }
+            }
+        }, "AudioStreamProxy");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    // ===== Request handling =====
+
+    private void handleClient(Socket client) {
+        try {
+            client.setSoTimeout(CLIENT_TIMEOUT_MS);
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            long rangeStart = -1;
+            long rangeEnd = -1;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("range:")) {
+                    long[] range = parseRange(line.substring(6).trim());
+                    if (range != null) {
+                        rangeStart = range[0];
+                        rangeEnd = range[1];
+                    }
+                }
+            }
+
+            // "GET /<key> HTTP/1.1"
+            String[] parts = requestLine.split(" ");
+            String key = parts.length > 1 ? parts[1].substring(1) : "";
+            Log.d(TAG, "Request " + key + " range " + rangeStart + "-" + rangeEnd);
+
+            MediaCache cache = MediaCache.getInstance(context);
+            File cached = cache.getCachedFileForKey(key);
+            if (cached != null) {
+                serveFile(out, cached, rangeStart, rangeEnd);
+                return;
+            }
+
+            String remoteUrl;
+            synchronized (this) {
+                remoteUrl = remoteUrls.get(key);
+            }
+            if (remoteUrl == null) {
+                writeHeaders(out, "404 Not Found", null, 0, -1, -1, -1);
+                return;
+            }
+
+            StreamDownload download = startDownload(key, remoteUrl);
+            if (download == null) {
+                // MediaCache.get() is already downloading it - wait for that rather than fetch twice
+                serveFile(out, cache.get(remoteUrl), rangeStart, rangeEnd);
+                return;
+            }
+            download.awaitHeaders();
+            if (download.error != null) {
+                writeHeaders(out, "502 Bad Gateway", null, 0, -1, -1, -1);
+                return;
+            }
+
+            if (rangeStart > download.getWritten() + SEEK_AHEAD_BYTES && download.acceptsRanges) {
+                // Far seek - don't make the player wait for everything in between
+                if (serveRemoteRange(out, remoteUrl, rangeStart, rangeEnd, download)) {
+                    return;
+                }
+            }
+            serveProgressive(out, download, rangeStart, rangeEnd);
+
+        } catch (IOException e) {
+            // MediaPlayer drops connections on every seek, this is normal
+            Log.d(TAG, "Client closed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted while streaming");
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Serve a complete local file, honoring the requested range
+     */
+    private void serveFile(OutputStream out, File file, long start, long end) throws IOException {
+        long total = file.length();
+        boolean partial = start >= 0;
+        if (start < 0) {
+            start = 0;
+        }
+        if (end < 0 || end >= total) {
+            end = total - 1;
+        }
+        if (start > end && total > 0) {
+            writeHeaders(out, "416 Range Not Satisfiable", null, 0, -1, -1, total);
+            return;
+        }
+
+        writeHeaders(out, partial ? "206 Partial Content" : "200 OK", DEFAULT_CONTENT_TYPE,
+                end - start + 1, partial ? start : -1, end, total);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(start);
+            copy(raf, out, end - start + 1);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Serve bytes from the file that is still being downloaded, waiting for data as needed
+     */
+    private void serveProgressive(OutputStream out, StreamDownload download, long start, long end)
+            throws IOException, InterruptedException {
+        boolean partial = start >= 0;
+        if (start < 0) {
+            start = 0;
+        }
+
+        long total = download.totalLength;
+        if (total < 0 && partial && start > 0) {
+            // Unknown length (chunked transcode) - a range answer needs the total, so wait for it
+            download.awaitBytes(Long.MAX_VALUE);
+            total = download.getWritten();
+        }
+
+        if (total >= 0) {
+            if (end < 0 || end >= total) {
+                end = total - 1;
+            }
+            if (start > end) {
+                writeHeaders(out, "416 Range Not Satisfiable", null, 0, -1, -1, total);
+                return;
+            }
+            writeHeaders(out, partial ? "206 Partial Content" : "200 OK", download.contentType,
+                    end - start + 1, partial ? start : -1, end, total);
+        } else {
+            // Stream until the download ends; Connection: close marks the end of the body
+            writeHeaders(out, "200 OK", download.contentType, -1, -1, -1, -1);
+            end = Long.MAX_VALUE - 1;
+        }
+
+        RandomAccessFile raf = download.openForReading();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            while (position <= end) {
+                long available = download.awaitBytes(position + 1);
+                if (available <= position) {
+                    if (download.error != null) {
+                        throw new IOException("Upstream failed: " + download.error.getMessage());
+                    }
+                    break; // Download finished
+                }
+                raf.seek(position);
+                int toRead = (int) Math.min(buffer.length, Math.min(available, end + 1) - position);
+                int read = raf.read(buffer, 0, toRead);
+                if (read <= 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+            out.flush();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Pass a ranged request straight through to the server (not cached)
+     * @return false if the server ignored the range, so the caller should fall back
+     */
+    private boolean serveRemoteRange(OutputStream out, String remoteUrl, long start, long end,
+                                     StreamDownload download) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(remoteUrl).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                return false;
+            }
+
+            long length = connection.getContentLength();
+            long total = download.totalLength;
+            long last = length >= 0 ? start + length - 1 : (total >= 0 ? total - 1 : -1);
+            writeHeaders(out, "206 Partial Content", download.contentType, length, start, last, total);
+
+            InputStream in = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                out.flush();
+            } finally {
+                in.close();
+            }
+            return true;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Join the running stream download for a key, or start one
+     * @return null if MediaCache.get() already owns the download of this URL
+     */
+    private synchronized StreamDownload startDownload(String key, String remoteUrl) {
+        StreamDownload download = downloads.get(key);
+        if (download == null) {
+            MediaCache.InFlight claim = MediaCache.getInstance(context).beginDownload(remoteUrl);
+            if (claim == null) {
+                return null;
+            }
+            download = new StreamDownload(key, remoteUrl, claim);
+            downloads.put(key, download);
+            downloadExecutor.execute(download);
+        }
+        return download;
+    }
+
+    private synchronized void finishDownload(String key) {
+        downloads.remove(key);
+        remoteUrls.remove(key);
+    }
+
+    // ===== HTTP helpers =====
+
+    private static void writeHeaders(OutputStream out, String status, String contentType,
+                                     long contentLength, long rangeStart, long rangeEnd, long total)
+            throws IOException {
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (contentType != null) {
+            headers.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            headers.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (rangeStart >= 0) {
+            headers.append("Content-Range: bytes ").append(rangeStart).append("-").append(rangeEnd)
+                   .append("/").append(total >= 0 ? String.valueOf(total) : "*").append("\r\n");
+        } else if (status.startsWith("416")) {
+            headers.append("Content-Range: bytes */").append(total).append("\r\n");
+        }
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+    }
+
+    /**
+     * Parse "bytes=START-" or "bytes=START-END" (suffix ranges are not used by MediaPlayer)
+     */
+    private static long[] parseRange(String value) {
+        if (!value.startsWith("bytes=")) {
+            return null;
+        }
+        String spec = value.substring(6);
+        int dash = spec.indexOf('-');
+        if (dash <= 0) {
+            return null;
+        }
+        try {
+            long start = Long.parseLong(spec.substring(0, dash).trim());
+            String endPart = spec.substring(dash + 1).trim();
+            long end = endPart.isEmpty() ? -1 : Long.parseLong(endPart);
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        if (c == -1 && line.length() == 0) {
+            return null;
+        }
+        return line.toString();
+    }
+
+    private static void copy(RandomAccessFile raf, OutputStream out, long count) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (count > 0) {
+            int read = raf.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read == -1) {
+                break;
+            }
+            out.write(buffer, 0, read);
+            count -= read;
+        }
+        out.flush();
+    }
+
+    // ===== Progressive download =====
+
+    /**
+     * One background download per URL, shared by every player connection
+     */
+    private class StreamDownload implements Runnable {
+        final String key;
+        final String remoteUrl;
+        final MediaCache.InFlight claim;
+        File file;
+
+        // Set once headers arrive
+        volatile long totalLength = -1;
+        volatile boolean acceptsRanges = false;
+        volatile String contentType = DEFAULT_CONTENT_TYPE;
+        volatile IOException error;
+
+        private long written = 0;
+        private boolean headersReady = false;
+        private boolean complete = false;
+
+        StreamDownload(String key, String remoteUrl, MediaCache.InFlight claim) {
+            this.key = key;
+            this.remoteUrl = remoteUrl;
+            this.claim = claim;
+            this.file = new File(MediaCache.getInstance(context).getDirectory(), key + ".stream");
+        }
+
+        @Override
+        public void run() {
+            HttpURLConnection connection = null;
+            RandomAccessFile raf = null;
+            MediaCache cache = MediaCache.getInstance(context);
+            try {
+                connection = (HttpURLConnection) new URL(remoteUrl).openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                connection.setReadTimeout(READ_TIMEOUT_MS);
+
+                int code = connection.getResponseCode();
+                if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP " + code);
+                }
+                totalLength = connection.getContentLength();
+                acceptsRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+                if (connection.getContentType() != null) {
+                    contentType = connection.getContentType();
+                }
+
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(0);
+                synchronized (this) {
+                    headersReady = true;
+                    notifyAll();
+                }
+
+                InputStream in = connection.getInputStream();
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        raf.write(buffer, 0, read);
+                        synchronized (this) {
+                            written += read;
+                            notifyAll();
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+                raf.close();
+                raf = null;
+
+                // Hand the finished file to the cache; open readers keep their descriptors
+                synchronized (this) {
+                    file = cache.commitDownload(remoteUrl, file,
+                            connection.getHeaderField("ETag"), connection.getLastModified());
+                    complete = true;
+                    notifyAll();
+                }
+                Log.d(TAG, "Stream cached: " + key + " (" + written + " bytes)");
+                cache.endDownload(remoteUrl, claim, file, null);
+
+            } catch (IOException e) {
+                Log.e(TAG, "Stream download failed: " + e.getMessage());
+                synchronized (this) {
+                    error = e;
+                    headersReady = true;
+                    complete = true;
+                    notifyAll();
+                }
+                file.delete();
+                cache.endDownload(remoteUrl, claim, null, e);
+            } finally {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                finishDownload(key);
+            }
+        }
+
+        synchronized void awaitHeaders() throws InterruptedException {
+            while (!headersReady) {
+                wait();
+            }
+        }
+
+        /**
+         * Block until at least minBytes are on disk or the download ended
+         * @return bytes available
+         */
+        synchronized long awaitBytes(long minBytes) throws InterruptedException {
+            while (written < minBytes && !complete) {
+                wait();
+            }
+            return written;
+        }
+
+        /**
+         * Block until the download ended
+         * @return the file inside MediaCache
+         */
+        synchronized File awaitFile() throws InterruptedException, IOException {
+            while (!complete) {
+                wait();
+            }
+            if (error != null) {
+                throw error;
+            }
+            return file;
+        }
+
+        synchronized long getWritten() {
+            return written;
+        }
+
+        /**
+         * Open the file under the lock so we never race the rename into the cache
+         */
+        synchronized RandomAccessFile openForReading() throws IOException {
+            return new RandomAccessFile(file, "r");
+        }
+    }
+}
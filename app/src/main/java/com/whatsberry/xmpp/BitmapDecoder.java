@@ -0,0 +1,109 @@
+package com.whatsberry.xmpp;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Memory-bounded bitmap decoding
+ * Reads image bounds first, then decodes with an inSampleSize that fits the target size,
+ * so full-resolution WhatsApp photos never land on the small API 18 heap
+ */
+public class BitmapDecoder {
+    private static final String TAG = "BitmapDecoder";
+
+    // Decoded bitmaps never exceed this many pixels times the requested area
+    private static final int MAX_PIXEL_FACTOR = 2;
+
+    /**
+     * Result of a subsampled decode
+     */
+    public static class SampledBitmap {
+        public Bitmap bitmap;
+        public int sampleSize;   // Source pixels per decoded pixel (power of two)
+        public int sourceWidth;  // Full-resolution width
+        public int sourceHeight; // Full-resolution height
+    }
+
+    /**
+     * Read image dimensions without allocating pixels
+     * @return options with outWidth/outHeight set (both -1 if the file is not an image)
+     */
+    public static BitmapFactory.Options readBounds(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        return options;
+    }
+
+    /**
+     * Largest power-of-two sample size that still keeps the image at least as
+     * large as it will be displayed when fitted into reqWidth x reqHeight
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        if (width <= 0 || height <= 0 || reqWidth <= 0 || reqHeight <= 0) {
+            return 1;
+        }
+
+        float fitScale = Math.min((float) reqWidth / width, (float) reqHeight / height);
+        int inSampleSize = 1;
+        while (inSampleSize * 2 * fitScale <= 1.0f) {
+            inSampleSize *= 2;
+        }
+
+        // Hard cap on decoded pixels (very long panoramas, screenshots, etc.)
+        long maxPixels = (long) reqWidth * reqHeight * MAX_PIXEL_FACTOR;
+        while ((long) (width / inSampleSize) * (height / inSampleSize) > maxPixels) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Two-pass decode: bounds first, then pixels at the computed sample size
+     * @return decoded bitmap with its sample size, or null if the file could not be decoded
+     */
+    public static SampledBitmap decodeSampledBitmap(String path, int reqWidth, int reqHeight, Bitmap.Config config) {
+        BitmapFactory.Options bounds = readBounds(path);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            Log.w(TAG, "Could not read image bounds: " + path);
+            return null;
+        }
+
+        int sampleSize = calculateInSampleSize(bounds.outWidth, bounds.outHeight, reqWidth, reqHeight);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        options.inSampleSize = sampleSize;
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (OutOfMemoryError e) {
+            // Heap is fragmented - try once more at half the resolution
+            Log.w(TAG, "OOM decoding at sample size " + sampleSize + ", retrying smaller");
+            sampleSize *= 2;
+            options.inSampleSize = sampleSize;
+            try {
+                bitmap = BitmapFactory.decodeFile(path, options);
+            } catch (OutOfMemoryError e2) {
+                Log.e(TAG, "OOM decoding image: " + path);
+                return null;
+            }
+        }
+
+        if (bitmap == null) {
+            return null;
+        }
+
+        Log.d(TAG, "Decoded " + bounds.outWidth + "x" + bounds.outHeight + " at 1/" + sampleSize +
+                " -> " + bitmap.getWidth() + "x" + bitmap.getHeight());
+
+        SampledBitmap result = new SampledBitmap();
+        result.bitmap = bitmap;
+        result.sampleSize = sampleSize;
+        result.sourceWidth = bounds.outWidth;
+        result.sourceHeight = bounds.outHeight;
+        return result;
+    }
+}
@@ -12,6 +12,7 @@ import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -33,6 +34,8 @@ public class ChatActivity extends Activity {
     private static final int CAMERA_VIDEO_REQUEST = 3;
     private static final int PICK_CONTACT_REQUEST = 4;
 
+    private static final Metrics.Histogram BIND_TIME = Metrics.histogram("ui.bind_message");
+
     private ListView lvMessages;
     private EditText etMessage;
     private TextView tvContactName;
@@ -212,18 +215,18 @@ public class ChatActivity extends Activity {
                         xmppManager.sendTypingState(contactJid, true);
                     }
 
-                    // Reset typing timeout
-                    if (typingTimeoutRunnable != null) {
-                        typingHandler.removeCallbacks(typingTimeoutRunnable);
+                    // Reset typing timeout (one reusable Runnable instead of one per keystroke)
+                    if (typingTimeoutRunnable == null) {
+                        typingTimeoutRunnable = new Runnable() {
+                            @Override
+                            public void run() {
+                                // Send "paused" state after 3 seconds of inactivity
+                                isUserTyping = false;
+                                xmppManager.sendTypingState(contactJid, false);
+                            }
+                        };
                     }
-                    typingTimeoutRunnable = new Runnable() {
-                        @Override
-                        public void run() {
-                            // Send "paused" state after 3 seconds of inactivity
-                            isUserTyping = false;
-                            xmppManager.sendTypingState(contactJid, false);
-                        }
-                    };
+                    typingHandler.removeCallbacks(typingTimeoutRunnable);
                     typingHandler.postDelayed(typingTimeoutRunnable, 3000);
                 } else {
                     btnAudioOrSend.setText("🎤");
@@ -527,7 +530,7 @@ public class ChatActivity extends Activity {
 
         xmppManager.sendMessage(contactJid, "📍 Location: " + locationUrl, new XMPPManager.MessageCallback() {
             @Override
-            public void onMessageReceived(String from, String message, boolean isSent) {
+            public void onMessageReceived(String from, String message, MessageContent content, boolean isSent) {
                 // Not used for sending
             }
 
@@ -706,13 +709,14 @@ public class ChatActivity extends Activity {
 
             isRecording = false;
             recordingHandler.removeCallbacksAndMessages(null);
+            long duration = System.currentTimeMillis() - recordingStartTime;
 
             // Upload the recorded audio
             if (audioFilePath != null) {
                 File audioFile = new File(audioFilePath);
                 if (audioFile.exists()) {
                     Toast.makeText(this, "Uploading audio...", Toast.LENGTH_SHORT).show();
-                    uploadAndSendFile(audioFile);
+                    uploadAndSendFile(audioFile, duration);
                 } else {
                     Toast.makeText(this, "Audio file not found", Toast.LENGTH_SHORT).show();
                 }
@@ -740,12 +744,28 @@ public class ChatActivity extends Activity {
             // Stop any currently playing audio
             stopAudio();
 
+            // Play the cached copy, or stream through the local proxy (which caches it)
+            File cached = MediaCache.getInstance(this).getCachedFile(audioUrl);
+            if (cached != null) {
+                playAudioSource(audioUrl, cached.getAbsolutePath());
+            } else {
+                playAudioSource(audioUrl, AudioStreamProxy.getInstance(this).getProxyUrl(audioUrl));
+            }
+
+        } catch (Exception e) {
+            Toast.makeText(this, "Failed to play audio: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            stopAudio();
+        }
+    }
+
+    private void playAudioSource(final String audioUrl, String dataSource) {
+        try {
             // Initialize MediaPlayer
             mediaPlayer = new android.media.MediaPlayer();
             mediaPlayer.setAudioStreamType(android.media.AudioManager.STREAM_MUSIC);
 
-            // Set data source (URL)
-            mediaPlayer.setDataSource(audioUrl);
+            // Set data source (cached file or proxy URL)
+            mediaPlayer.setDataSource(dataSource);
 
             // Prepare async
             mediaPlayer.setOnPreparedListener(new android.media.MediaPlayer.OnPreparedListener() {
@@ -798,38 +818,25 @@ public class ChatActivity extends Activity {
         currentlyPlayingUrl = null;
     }
 
-    private void openFile(String fileUrl) {
+    private void openFile(String fileUrl, int kind) {
         try {
-            String lowerUrl = fileUrl.toLowerCase();
             Intent intent;
 
-            if (lowerUrl.endsWith(".jpg") || lowerUrl.endsWith(".jpeg") ||
-                lowerUrl.endsWith(".png") || lowerUrl.endsWith(".gif")) {
+            if (kind == MessageContent.KIND_IMAGE) {
                 // Open image in ImageViewerActivity
                 intent = new Intent(this, ImageViewerActivity.class);
                 intent.putExtra("IMAGE_URL", fileUrl);
                 startActivity(intent);
 
-            } else if (lowerUrl.endsWith(".mp4") || lowerUrl.endsWith(".3gp") ||
-                      lowerUrl.endsWith(".webm")) {
+            } else if (kind == MessageContent.KIND_VIDEO) {
                 // Open video in VideoPlayerActivity
                 intent = new Intent(this, VideoPlayerActivity.class);
                 intent.putExtra("VIDEO_URL", fileUrl);
                 startActivity(intent);
 
-            } else if (lowerUrl.endsWith(".mp3") || lowerUrl.endsWith(".ogg") ||
-                      lowerUrl.endsWith(".m4a") || lowerUrl.endsWith(".opus") ||
-                      lowerUrl.contains("format=mp3")) {
-                // Open audio in VoicePlayerActivity
-                // Add ?format=mp3 for opus/ogg conversion (BB10 compatibility)
-                String audioUrl = fileUrl;
-                if (!audioUrl.contains("format=mp3")) {
-                    if (audioUrl.contains("?")) {
-                        audioUrl += "&format=mp3";
-                    } else {
-                        audioUrl += "?format=mp3";
-                    }
-                }
+            } else if (kind == MessageContent.KIND_AUDIO) {
+                // Open audio in VoicePlayerActivity (MP3 transcode for BB10 compatibility)
+                String audioUrl = AudioPrefetcher.playbackUrl(fileUrl);
                 intent = new Intent(this, VoicePlayerActivity.class);
                 intent.putExtra("AUDIO_URL", audioUrl);
                 startActivity(intent);
@@ -856,7 +863,7 @@ public class ChatActivity extends Activity {
                 String filePath = getFilePathFromUri(fileUri);
                 if (filePath != null) {
                     File file = new File(filePath);
-                    uploadAndSendFile(file);
+                    uploadAndSendFile(file, -1);
                 } else {
                     Toast.makeText(this, "Could not access file", Toast.LENGTH_SHORT).show();
                 }
@@ -868,7 +875,7 @@ public class ChatActivity extends Activity {
                 if (filePath != null) {
                     File photoFile = new File(filePath);
                     if (photoFile.exists()) {
-                        uploadAndSendFile(photoFile);
+                        uploadAndSendFile(photoFile, -1);
                     } else {
                         Toast.makeText(this, "Photo file not found", Toast.LENGTH_SHORT).show();
                     }
@@ -883,7 +890,7 @@ public class ChatActivity extends Activity {
                 if (filePath != null) {
                     File videoFile = new File(filePath);
                     if (videoFile.exists()) {
-                        uploadAndSendFile(videoFile);
+                        uploadAndSendFile(videoFile, -1);
                     } else {
                         Toast.makeText(this, "Video file not found", Toast.LENGTH_SHORT).show();
                     }
@@ -914,7 +921,7 @@ public class ChatActivity extends Activity {
 
                     xmppManager.sendMessage(contactJid, "👤 Contact: " + contactName + "\n" + contactNumber, new XMPPManager.MessageCallback() {
                         @Override
-                        public void onMessageReceived(String from, String message, boolean isSent) {
+                        public void onMessageReceived(String from, String message, MessageContent content, boolean isSent) {
                             // Not used for sending
                         }
 
@@ -960,16 +967,20 @@ public class ChatActivity extends Activity {
         return filePath;
     }
 
-    private void uploadAndSendFile(final File file) {
+    /**
+     * @param duration recording length in ms, -1 if unknown
+     */
+    private void uploadAndSendFile(final File file, final long duration) {
         Toast.makeText(this, "Uploading " + file.getName() + "...", Toast.LENGTH_SHORT).show();
 
         fileUploadManager.uploadFile(file, new FileUploadManager.UploadCallback() {
             @Override
             public void onUploadSuccess(String downloadUrl) {
                 // Send file via XMPP with OOB (Out of Band Data)
-                xmppManager.sendFileMessage(contactJid, downloadUrl, file.getName(), new XMPPManager.MessageCallback() {
+                final MessageContent content = MessageContent.forUpload(downloadUrl, file.getName(), file.length(), duration);
+                xmppManager.sendFileMessage(contactJid, downloadUrl, file.getName(), content.mediaSize, duration, new XMPPManager.MessageCallback() {
                     @Override
-                    public void onMessageReceived(String from, String message, boolean isSent) {
+                    public void onMessageReceived(String from, String message, MessageContent content, boolean isSent) {
                         // Not used
                     }
 
@@ -981,11 +992,9 @@ public class ChatActivity extends Activity {
                                 Toast.makeText(ChatActivity.this, "File sent!", Toast.LENGTH_SHORT).show();
                                 // Add file message to chat
                                 ChatMessage msg = new ChatMessage();
-                                msg.text = file.getName();
+                                setContent(msg, file.getName(), content);
                                 msg.isSent = true;
                                 msg.timestamp = System.currentTimeMillis();
-                                msg.fileUrl = downloadUrl;
-                                msg.isFile = true;
                                 msg.status = MessageStatus.DELIVERED;
                                 messages.add(msg);
                                 adapter.notifyDataSetChanged();
@@ -1016,14 +1025,15 @@ public class ChatActivity extends Activity {
     private void setupMessageListener() {
         xmppManager.setMessageCallback(new XMPPManager.MessageCallback() {
             @Override
-            public void onMessageReceived(String from, String message, boolean isSent) {
-                // Log all incoming messages for debugging
-                Log.d("ChatActivity", "MESSAGE RECEIVED - From: " + from + ", Contact: " + contactJid + ", Message: " + message);
+            public void onMessageReceived(String from, String message, MessageContent content, boolean isSent) {
+                // Bodies never go to logcat, only their size
+                AppLog.d("ChatActivity", "Message received from {} for {} ({} chars)", from, contactJid,
+                        message != null ? message.length() : 0);
 
                 // Check if message is from/to current contact
                 if (from.contains(contactJid) || from.startsWith(contactJid)) {
                     Log.d("ChatActivity", "Message matches current contact, adding to UI");
-                    addMessage(message, isSent); // isSent = true for carbon copies of sent messages
+                    addMessage(message, content, isSent); // isSent = true for carbon copies of sent messages
                 } else {
                     Log.w("ChatActivity", "Message doesn't match current contact, ignoring");
                 }
@@ -1091,23 +1101,19 @@ public class ChatActivity extends Activity {
                     ChatMessage msg = new ChatMessage();
                     msg.databaseId = histMsg.databaseId; // Assign database ID for edit/delete
                     msg.stanzaId = histMsg.stanzaId; // Assign stanza ID for retraction
-                    msg.text = histMsg.body;
+                    setContent(msg, histMsg.body, histMsg.content);
                     msg.isSent = histMsg.isSent;
                     msg.timestamp = histMsg.timestamp;
                     msg.status = histMsg.isSent ? MessageStatus.DELIVERED : null;
 
-                    // Set file fields if this is a multimedia message
-                    if (histMsg.fileUrl != null && !histMsg.fileUrl.isEmpty()) {
-                        msg.fileUrl = histMsg.fileUrl;
-                        msg.isFile = true;
-                    }
-
                     messages.add(msg);
                 }
 
                 // Update UI
                 adapter.notifyDataSetChanged();
 
+                prefetchVoiceNotes();
+
                 // Scroll to bottom
                 lvMessages.post(new Runnable() {
                     @Override
@@ -1132,6 +1138,21 @@ public class ChatActivity extends Activity {
         });
     }
 
+    /**
+     * Download the latest voice notes in the background so they play instantly
+     */
+    private void prefetchVoiceNotes() {
+        List<String> audioUrls = new ArrayList<>();
+        for (ChatMessage msg : messages) {
+            if (msg.kind == MessageContent.KIND_AUDIO) {
+                audioUrls.add(msg.fileUrl);
+            }
+        }
+        if (!audioUrls.isEmpty()) {
+            AudioPrefetcher.getInstance(this).prefetch(audioUrls);
+        }
+    }
+
     /**
      * Mark all messages from this contact as read
      */
@@ -1159,13 +1180,13 @@ public class ChatActivity extends Activity {
         etMessage.setText("");
 
         // Add to local list
-        addMessage(messageText, true);
+        addMessage(messageText, MessageContent.fromStanza(messageText, null, null), true);
         final int messageIndex = messages.size() - 1;
 
         // Send via XMPP
         xmppManager.sendMessage(contactJid, messageText, new XMPPManager.MessageCallback() {
             @Override
-            public void onMessageReceived(String from, String message, boolean isSent) {
+            public void onMessageReceived(String from, String message, MessageContent content, boolean isSent) {
                 // Not used here
             }
 
@@ -1196,86 +1217,12 @@ public class ChatActivity extends Activity {
         });
     }
 
-    /**
-     * Detect if a message is a call notification
-     * Returns MessageType based on message content
-     */
-    private MessageType detectCallNotification(String text) {
-        if (text == null) {
-            return MessageType.NORMAL;
-        }
-
-        String lowerText = text.toLowerCase();
-
-        // Check for incoming call notification
-        if (lowerText.contains("incoming call from")) {
-            return MessageType.CALL_INCOMING;
-        }
-
-        // Check for missed call notification
-        if (lowerText.contains("missed call from")) {
-            return MessageType.CALL_MISSED;
-        }
-
-        return MessageType.NORMAL;
-    }
-
-    /**
-     * Extract contact name from call notification message
-     * Format: "Incoming call from Kevin Morán (xmpp:+5213141720100@whatsapp.localhost) at 2025-12-07 19:23:10+00:00"
-     */
-    private String extractContactNameFromCallMessage(String text) {
-        if (text == null) {
-            return null;
-        }
-
-        try {
-            // Look for "from " followed by contact name, ending with " ("
-            int fromIndex = text.toLowerCase().indexOf("from ");
-            if (fromIndex != -1) {
-                int startIndex = fromIndex + 5; // Skip "from "
-                int endIndex = text.indexOf(" (", startIndex);
-                if (endIndex != -1) {
-                    return text.substring(startIndex, endIndex).trim();
-                }
-            }
-        } catch (Exception e) {
-            Log.e("ChatActivity", "Error extracting contact name from call message", e);
-        }
-
-        return null;
-    }
-
-    private void addMessage(String text, boolean isSent) {
+    private void addMessage(String text, MessageContent content, boolean isSent) {
         ChatMessage msg = new ChatMessage();
         msg.isSent = isSent;
         msg.timestamp = System.currentTimeMillis();
         msg.status = isSent ? MessageStatus.SENDING : null; // Sent messages start as SENDING
-
-        // Detect if message is a call notification
-        msg.type = detectCallNotification(text);
-
-        // Detect if message is a file URL
-        boolean isUrl = text.startsWith("http://") || text.startsWith("https://");
-        boolean isMediaUrl = isUrl && (
-            text.contains("/attachments/") ||
-            text.endsWith(".jpg") || text.endsWith(".jpeg") || text.endsWith(".png") ||
-            text.endsWith(".gif") || text.endsWith(".mp4") || text.endsWith(".3gp") ||
-            text.endsWith(".mp3") || text.endsWith(".ogg") || text.endsWith(".m4a")
-        );
-
-        if (isMediaUrl) {
-            // This is a file URL
-            msg.fileUrl = text;
-            msg.isFile = true;
-            // Extract filename from URL
-            String filename = text.substring(text.lastIndexOf("/") + 1);
-            msg.text = filename;
-        } else {
-            // Regular text message
-            msg.text = text;
-            msg.isFile = false;
-        }
+        setContent(msg, text, content);
 
         messages.add(msg);
         adapter.notifyDataSetChanged();
@@ -1289,13 +1236,20 @@ public class ChatActivity extends Activity {
         });
     }
 
-    private boolean isAudioFile(String url) {
-        if (url == null) return false;
-        String lowerUrl = url.toLowerCase();
-        return lowerUrl.endsWith(".mp3") || lowerUrl.endsWith(".ogg") ||
-               lowerUrl.endsWith(".m4a") || lowerUrl.endsWith(".3gp") ||
-               lowerUrl.endsWith(".aac") || lowerUrl.endsWith(".opus") ||
-               lowerUrl.endsWith(".webm") || lowerUrl.contains("convert_audio");
+    /**
+     * Copy the content classified when the message was stored, so getView never looks at the body
+     */
+    private static void setContent(ChatMessage msg, String body, MessageContent content) {
+        msg.text = body;
+        msg.kind = content != null ? content.kind : MessageContent.KIND_TEXT;
+        if (MessageContent.isMedia(msg.kind)) {
+            msg.fileUrl = content.fileUrl;
+            if (body == null || body.equals(content.fileUrl)) {
+                msg.text = MediaTypes.fileName(content.fileUrl);
+            }
+        } else if (MessageContent.isCall(msg.kind)) {
+            msg.caller = MessageContent.callerName(body);
+        }
     }
 
     @Override
@@ -1303,6 +1257,7 @@ public class ChatActivity extends Activity {
         super.onResume();
         // Set this chat as currently open (prevent notifications)
         MainTabsActivity.currentOpenChatJid = contactJid;
+        NotificationHelper.getInstance(this).clearConversation(contactJid);
     }
 
     @Override
@@ -1338,16 +1293,9 @@ public class ChatActivity extends Activity {
         boolean isSent;
         long timestamp;
         String fileUrl; // URL for image/file attachments
-        boolean isFile; // true if this is a file/image message
+        int kind; // MessageContent.KIND_*, from the database or the incoming stanza
+        String caller; // Call notifications: who called, null if the notice has no name
         MessageStatus status; // Message delivery status (sent/delivered/read)
-        MessageType type; // Type of message (normal, call, etc.)
-    }
-
-    // Message type enum
-    private enum MessageType {
-        NORMAL,         // Regular text message
-        CALL_INCOMING,  // Incoming call notification
-        CALL_MISSED     // Missed call notification
     }
 
     // Message status enum
@@ -1366,6 +1314,7 @@ public class ChatActivity extends Activity {
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
+            long bindStart = Metrics.now();
             ChatMessage msg = messages.get(position);
 
             // Use different layouts for sent vs received messages
@@ -1388,20 +1337,23 @@ public class ChatActivity extends Activity {
             TextView tvMessageText = (TextView) view.findViewById(R.id.tvMessageText);
             TextView tvMessageTime = (TextView) view.findViewById(R.id.tvMessageTime);
             TextView tvMessageStatus = (TextView) view.findViewById(R.id.tvMessageStatus);
+            ImageView ivThumbnail = (ImageView) view.findViewById(R.id.ivThumbnail);
+            ThumbnailCache thumbnails = ThumbnailCache.getInstance(ChatActivity.this);
+            boolean hasThumbnail = false;
 
             // Handle call notifications first
-            if (msg.type != null && msg.type != MessageType.NORMAL) {
+            if (MessageContent.isCall(msg.kind)) {
                 View messageBubble = view.findViewById(R.id.messageBubble);
 
                 String displayText = "";
 
-                if (msg.type == MessageType.CALL_INCOMING) {
+                if (msg.kind == MessageContent.KIND_CALL_INCOMING) {
                     displayText = "📞 Incoming call";
                     // Light blue background for incoming calls
                     if (messageBubble != null) {
                         messageBubble.setBackgroundColor(0xFFE3F2FD);
                     }
-                } else if (msg.type == MessageType.CALL_MISSED) {
+                } else if (msg.kind == MessageContent.KIND_CALL_MISSED) {
                     displayText = "📞 Missed call";
                     // Light red background for missed calls
                     if (messageBubble != null) {
@@ -1409,62 +1361,62 @@ public class ChatActivity extends Activity {
                     }
                 }
 
-                // Extract contact name from message if present
-                // Format: "Incoming call from Kevin Morán (xmpp:+5213141720100@whatsapp.localhost) at 2025-12-07 19:23:10+00:00"
-                String contactNameExtracted = extractContactNameFromCallMessage(msg.text);
-                if (contactNameExtracted != null && !contactNameExtracted.isEmpty()) {
-                    displayText += " from " + contactNameExtracted;
+                // Caller name, extracted when the message was added
+                if (msg.caller != null && !msg.caller.isEmpty()) {
+                    displayText += " from " + msg.caller;
                 }
 
                 tvMessageText.setText(TwemojiParser.parseEmojis(ChatActivity.this, displayText));
                 view.setOnClickListener(null);
 
-            } else if (msg.isFile && msg.fileUrl != null) {
+            } else if (MessageContent.isMedia(msg.kind) && msg.fileUrl != null) {
                 // Handle different types of files
                 final String fileUrl = msg.fileUrl;
-                String lowerUrl = fileUrl.toLowerCase();
+                final int kind = msg.kind;
 
-                if (isAudioFile(fileUrl)) {
+                if (kind == MessageContent.KIND_AUDIO) {
                     // Audio file - make it clickable to play
                     view.setOnClickListener(new View.OnClickListener() {
                         @Override
                         public void onClick(View v) {
-                            playAudio(fileUrl);
+                            playAudio(AudioPrefetcher.playbackUrl(fileUrl));
                         }
                     });
                     String text = "🎵 " + msg.text + " (tap to play)";
                     tvMessageText.setText(TwemojiParser.parseEmojis(ChatActivity.this, text));
 
-                } else if (lowerUrl.endsWith(".jpg") || lowerUrl.endsWith(".jpeg") ||
-                          lowerUrl.endsWith(".png") || lowerUrl.endsWith(".gif")) {
+                } else if (kind == MessageContent.KIND_IMAGE) {
                     // Image file - show image icon and make clickable
                     view.setOnClickListener(new View.OnClickListener() {
                         @Override
                         public void onClick(View v) {
-                            openFile(fileUrl);
+                            openFile(fileUrl, kind);
                         }
                     });
                     String text = "🖼 " + msg.text + " (tap to view)";
                     tvMessageText.setText(TwemojiParser.parseEmojis(ChatActivity.this, text));
+                    thumbnails.bind(ivThumbnail, fileUrl, false);
+                    hasThumbnail = true;
 
-                } else if (lowerUrl.endsWith(".mp4") || lowerUrl.endsWith(".3gp") ||
-                          lowerUrl.endsWith(".webm")) {
+                } else if (kind == MessageContent.KIND_VIDEO) {
                     // Video file - show video icon and make clickable
                     view.setOnClickListener(new View.OnClickListener() {
                         @Override
                         public void onClick(View v) {
-                            openFile(fileUrl);
+                            openFile(fileUrl, kind);
                         }
                     });
                     String text = "🎬 " + msg.text + " (tap to view)";
                     tvMessageText.setText(TwemojiParser.parseEmojis(ChatActivity.this, text));
+                    thumbnails.bind(ivThumbnail, fileUrl, true);
+                    hasThumbnail = true;
 
                 } else {
                     // Other file - show document icon and make clickable
                     view.setOnClickListener(new View.OnClickListener() {
                         @Override
                         public void onClick(View v) {
-                            openFile(fileUrl);
+                            openFile(fileUrl, kind);
                         }
                     });
                     String text = "📎 " + msg.text + " (tap to open)";
@@ -1477,6 +1429,13 @@ public class ChatActivity extends Activity {
                 view.setOnClickListener(null);
             }
 
+            // Recycled row from a media message - drop its pending thumbnail
+            if (!hasThumbnail) {
+                thumbnails.cancel(ivThumbnail);
+                ivThumbnail.setImageDrawable(null);
+                ivThumbnail.setVisibility(View.GONE);
+            }
+
             String time = new SimpleDateFormat("HH:mm", Locale.getDefault()).format(new Date(msg.timestamp));
             tvMessageTime.setText(time);
 
@@ -1522,6 +1481,7 @@ public class ChatActivity extends Activity {
                 }
             });
 
+            BIND_TIME.recordSince(bindStart);
             return view;
         }
     }
@@ -1628,7 +1588,7 @@ public class ChatActivity extends Activity {
                         Log.d("ChatActivity", "Sending retraction for stanza ID: " + message.stanzaId);
                         xmppManager.retractMessage(contactJid, message.stanzaId, new XMPPManager.MessageCallback() {
                             @Override
-                            public void onMessageReceived(String from, String messageText, boolean isSent) {
+                            public void onMessageReceived(String from, String messageText, MessageContent content, boolean isSent) {
                                 // Not used
                             }
 
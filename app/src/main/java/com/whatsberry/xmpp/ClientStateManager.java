@@ -0,0 +1,198 @@
+package com.whatsberry.xmpp;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smackx.csi.ClientStateIndicationManager;
+
+/**
+ * Client State Manager
+ * Tells the server whether anybody is looking at the app (XEP-0352, Client State Indication).
+ * While we are inactive Prosody's mod_csi_simple holds back presence and chat-state updates
+ * and flushes them together with the next important stanza (a real message), so the radio
+ * wakes for messages instead of for every contact going online or typing.
+ * Active = an activity of ours is resumed and the screen is on.
+ */
+public class ClientStateManager {
+    private static final String TAG = "ClientStateManager";
+
+    // Grace period before going inactive: switching between our own activities briefly
+    // leaves none resumed, and a quick glance at the lock screen shouldn't flush the queue
+    private static final long INACTIVE_DELAY_MS = 5000;
+
+    private static ClientStateManager instance;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final PowerManager powerManager;
+
+    // Main thread only
+    private int resumedActivities = 0;
+    private boolean screenOn;
+    private XMPPConnection connection;
+    private Boolean sentActive; // Last state told to the server on this connection, null = none
+    private int indicationsSent = 0;
+
+    private ClientStateManager(Context context) {
+        Context appContext = context.getApplicationContext();
+        powerManager = (PowerManager) appContext.getSystemService(Context.POWER_SERVICE);
+        screenOn = powerManager.isScreenOn();
+
+        ((Application) appContext).registerActivityLifecycleCallbacks(lifecycleCallbacks);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        appContext.registerReceiver(screenReceiver, filter);
+    }
+
+    public static synchronized ClientStateManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new ClientStateManager(context);
+        }
+        return instance;
+    }
+
+    /**
+     * New session: the server starts every stream as active, so tell it if we're not
+     */
+    public void onAuthenticated(final XMPPConnection newConnection) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                connection = newConnection;
+                sentActive = Boolean.TRUE;
+                handler.removeCallbacks(goInactive);
+                if (!wantActive()) {
+                    send(false);
+                }
+            }
+        });
+    }
+
+    public void onDisconnected() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                handler.removeCallbacks(goInactive);
+                connection = null;
+                sentActive = null;
+            }
+        });
+    }
+
+    /**
+     * State last indicated to the server (true if nothing was sent yet)
+     */
+    public boolean isActive() {
+        return sentActive == null || sentActive;
+    }
+
+    public int getIndicationsSent() {
+        return indicationsSent;
+    }
+
+    private boolean wantActive() {
+        return resumedActivities > 0 && screenOn;
+    }
+
+    private void evaluate() {
+        if (wantActive()) {
+            handler.removeCallbacks(goInactive);
+            send(true); // Immediately: the user is waiting for fresh presence and typing
+        } else {
+            handler.removeCallbacks(goInactive);
+            handler.postDelayed(goInactive, INACTIVE_DELAY_MS);
+        }
+    }
+
+    private final Runnable goInactive = new Runnable() {
+        @Override
+        public void run() {
+            if (!wantActive()) {
+                send(false);
+            }
+        }
+    };
+
+    private void send(final boolean active) {
+        final XMPPConnection current = connection;
+        if (current == null || !current.isAuthenticated() || Boolean.valueOf(active).equals(sentActive)) {
+            return;
+        }
+        if (!ClientStateIndicationManager.isSupported(current)) {
+            Log.d(TAG, "Server does not support CSI");
+            sentActive = active; // Don't ask again for this connection
+            return;
+        }
+        sentActive = active;
+        indicationsSent++;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (active) {
+                        ClientStateIndicationManager.active(current);
+                    } else {
+                        ClientStateIndicationManager.inactive(current);
+                    }
+                    Log.d(TAG, "Client state: " + (active ? "active" : "inactive"));
+                } catch (Exception e) {
+                    Log.w(TAG, "Failed to send client state: " + e.getMessage());
+                }
+            }
+        }).start();
+    }
+
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            evaluate();
+        }
+    };
+
+    private final Application.ActivityLifecycleCallbacks lifecycleCallbacks = new Application.ActivityLifecycleCallbacks() {
+        @Override
+        public void onActivityResumed(Activity activity) {
+            resumedActivities++;
+            evaluate();
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+            resumedActivities = Math.max(0, resumedActivities - 1);
+            evaluate();
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    };
+}
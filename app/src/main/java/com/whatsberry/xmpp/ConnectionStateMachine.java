@@ -0,0 +1,396 @@
+package com.whatsberry.xmpp;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Connection State Machine
+ * Single owner of connect / login / reconnect for the saved account.
+ * Only one attempt runs at a time, failures retry with jittered exponential backoff,
+ * and nothing is attempted while there is no network - a CONNECTIVITY_ACTION broadcast
+ * triggers the next attempt immediately instead.
+ * All state lives on the main thread; listeners are notified there too.
+ */
+public class ConnectionStateMachine {
+    private static final String TAG = "ConnectionStateMachine";
+
+    private static final String PREFS_NAME = "WhatsberryPrefs";
+    private static final long BACKOFF_BASE_MS = 2000;
+    private static final long BACKOFF_MAX_MS = 5 * 60 * 1000;
+
+    public enum State {
+        IDLE,                // No saved account or logged out
+        WAITING_FOR_NETWORK, // Asleep until connectivity returns
+        CONNECTING,          // TCP + STARTTLS
+        AUTHENTICATING,      // SASL login
+        CONNECTED,
+        BACKOFF              // Waiting to retry after a failure
+    }
+
+    /**
+     * Observer for UI (status bars, login screen)
+     */
+    public interface StateListener {
+        void onStateChanged(State state, String detail);
+    }
+
+    private static ConnectionStateMachine instance;
+
+    private final Context context;
+    private final XMPPManager xmppManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+    private final List<StateListener> listeners = new ArrayList<>();
+
+    private State state = State.IDLE;
+    private String detail = "";
+    private boolean running = false;
+    private boolean receiverRegistered = false;
+    private int failedAttempts = 0;
+    private int attemptGeneration = 0; // Callbacks from older attempts are ignored
+    private long retryAt = 0;
+    private int lastNetworkType = -1;
+
+    private ConnectionStateMachine(Context context) {
+        this.context = context.getApplicationContext();
+        this.xmppManager = XMPPManager.getInstance();
+    }
+
+    public static synchronized ConnectionStateMachine getInstance(Context context) {
+        if (instance == null) {
+            instance = new ConnectionStateMachine(context);
+        }
+        return instance;
+    }
+
+    // ===== Public API (main thread) =====
+
+    /**
+     * Start keeping the saved account connected (no-op if already running)
+     */
+    public void start() {
+        if (!hasCredentials()) {
+            Log.d(TAG, "No saved credentials, staying idle");
+            return;
+        }
+        if (!receiverRegistered) {
+            context.registerReceiver(networkReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            receiverRegistered = true;
+        }
+        if (running) {
+            return;
+        }
+        running = true;
+        failedAttempts = 0;
+        lastNetworkType = activeNetworkType();
+        attemptNow();
+    }
+
+    /**
+     * Connect right away with the (possibly new) saved credentials, dropping any current session
+     * Used by the login screen.
+     */
+    public void connectNow() {
+        running = false;
+        attemptGeneration++;
+        handler.removeCallbacks(retryRunnable);
+        xmppManager.disconnect();
+        setState(State.IDLE, "");
+        start();
+    }
+
+    /**
+     * Take over a connection that was opened outside the state machine (account registration)
+     */
+    public void adoptCurrentConnection() {
+        if (!xmppManager.isAuthenticated()) {
+            start();
+            return;
+        }
+        if (!receiverRegistered) {
+            context.registerReceiver(networkReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            receiverRegistered = true;
+        }
+        running = true;
+        failedAttempts = 0;
+        lastNetworkType = activeNetworkType();
+        handler.removeCallbacks(retryRunnable);
+
+        final int generation = ++attemptGeneration;
+        xmppManager.setConnectionCallback(new XMPPManager.ConnectionCallback() {
+            @Override
+            public void onConnected() {
+            }
+
+            @Override
+            public void onAuthenticated() {
+            }
+
+            @Override
+            public void onDisconnected() {
+                onAttemptFailed(generation, "Disconnected");
+            }
+
+            @Override
+            public void onError(String error) {
+                onAttemptFailed(generation, error);
+            }
+        });
+        setState(State.CONNECTED, "");
+    }
+
+    /**
+     * Stop reconnecting and close the connection (logout)
+     */
+    public void stop() {
+        running = false;
+        attemptGeneration++;
+        handler.removeCallbacks(retryRunnable);
+        if (receiverRegistered) {
+            context.unregisterReceiver(networkReceiver);
+            receiverRegistered = false;
+        }
+        xmppManager.disconnect();
+        setState(State.IDLE, "");
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Last error or retry information for the current state
+     */
+    public String getDetail() {
+        return detail;
+    }
+
+    /**
+     * Milliseconds until the next retry (0 unless in BACKOFF)
+     */
+    public long getRetryDelay() {
+        return state == State.BACKOFF ? Math.max(0, retryAt - System.currentTimeMillis()) : 0;
+    }
+
+    public void addStateListener(StateListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeStateListener(StateListener listener) {
+        listeners.remove(listener);
+    }
+
+    // ===== Attempts =====
+
+    private void attemptNow() {
+        if (!running) {
+            return;
+        }
+        // Single flight: never start a second handshake while one is running or we're online
+        if (state == State.CONNECTING || state == State.AUTHENTICATING || state == State.CONNECTED) {
+            Log.d(TAG, "Attempt skipped, already " + state);
+            return;
+        }
+        handler.removeCallbacks(retryRunnable);
+
+        if (!isNetworkAvailable()) {
+            setState(State.WAITING_FOR_NETWORK, "");
+            return;
+        }
+
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        final String server = prefs.getString("server", "");
+        final String domain = prefs.getString("domain", server);
+        final String username = prefs.getString("username", "");
+        final String password = prefs.getString("password", "");
+        int port;
+        try {
+            port = Integer.parseInt(prefs.getString("port", "5222"));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid port number, using default 5222");
+            port = 5222;
+        }
+
+        final int generation = ++attemptGeneration;
+        setState(State.CONNECTING, server + ":" + port);
+
+        xmppManager.connect(server, port, domain, new XMPPManager.ConnectionCallback() {
+            @Override
+            public void onConnected() {
+                if (generation != attemptGeneration) {
+                    return;
+                }
+                setState(State.AUTHENTICATING, username);
+
+                xmppManager.login(username, password, new XMPPManager.ConnectionCallback() {
+                    @Override
+                    public void onConnected() {
+                    }
+
+                    @Override
+                    public void onAuthenticated() {
+                        if (generation != attemptGeneration) {
+                            return;
+                        }
+                        failedAttempts = 0;
+                        setState(State.CONNECTED, "");
+                    }
+
+                    @Override
+                    public void onDisconnected() {
+                        onAttemptFailed(generation, "Disconnected");
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        onAttemptFailed(generation, error);
+                    }
+                });
+            }
+
+            @Override
+            public void onAuthenticated() {
+            }
+
+            @Override
+            public void onDisconnected() {
+                onAttemptFailed(generation, "Disconnected");
+            }
+
+            @Override
+            public void onError(String error) {
+                onAttemptFailed(generation, error);
+            }
+        });
+    }
+
+    /**
+     * An attempt failed, or an established connection was lost
+     */
+    private void onAttemptFailed(int generation, String error) {
+        if (generation != attemptGeneration || !running) {
+            return; // Stale callback or we were stopped on purpose
+        }
+        // Invalidate this attempt so duplicate error callbacks don't schedule twice
+        attemptGeneration++;
+        if (error == null) {
+            error = "Unknown error";
+        }
+
+        if (!isNetworkAvailable()) {
+            Log.d(TAG, "Lost connection while offline: " + error);
+            setState(State.WAITING_FOR_NETWORK, error);
+            return;
+        }
+
+        long delay = nextBackoffDelay();
+        failedAttempts++;
+        retryAt = System.currentTimeMillis() + delay;
+        Log.d(TAG, "Attempt failed (" + error + "), retry #" + failedAttempts + " in " + delay + "ms");
+        setState(State.BACKOFF, error);
+        handler.postDelayed(retryRunnable, delay);
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": half the window is fixed, half random,
+     * so many clients behind one gateway don't reconnect in lockstep
+     */
+    private long nextBackoffDelay() {
+        long window = BACKOFF_BASE_MS << Math.min(failedAttempts, 16);
+        window = Math.min(window, BACKOFF_MAX_MS);
+        long half = window / 2;
+        return half + (long) (random.nextDouble() * half);
+    }
+
+    private final Runnable retryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (state == State.BACKOFF) {
+                setState(State.IDLE, "");
+            }
+            attemptNow();
+        }
+    };
+
+    // ===== Network awareness =====
+
+    private final BroadcastReceiver networkReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!running) {
+                return;
+            }
+            int networkType = activeNetworkType();
+            boolean changed = networkType != lastNetworkType;
+            lastNetworkType = networkType;
+            Log.d(TAG, "Connectivity changed: type=" + networkType + ", state=" + state);
+
+            if (networkType == -1) {
+                // Offline: stop retrying until a network shows up
+                handler.removeCallbacks(retryRunnable);
+                if (state == State.BACKOFF) {
+                    setState(State.WAITING_FOR_NETWORK, "");
+                }
+                return;
+            }
+
+            if (state == State.WAITING_FOR_NETWORK || state == State.BACKOFF) {
+                // Fresh network: don't wait out the backoff
+                failedAttempts = 0;
+                setState(State.IDLE, "");
+                attemptNow();
+            } else if (state == State.CONNECTED && changed) {
+                // Socket is bound to the old interface and will die silently - replace it now
+                Log.d(TAG, "Network switched while connected, reconnecting");
+                attemptGeneration++;
+                xmppManager.disconnect();
+                failedAttempts = 0;
+                setState(State.IDLE, "");
+                attemptNow();
+            }
+        }
+    };
+
+    private int activeNetworkType() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected() ? info.getType() : -1;
+    }
+
+    private boolean isNetworkAvailable() {
+        return activeNetworkType() != -1;
+    }
+
+    private boolean hasCredentials() {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return !prefs.getString("server", "").isEmpty() &&
+               !prefs.getString("username", "").isEmpty() &&
+               !prefs.getString("password", "").isEmpty();
+    }
+
+    private void setState(State newState, String newDetail) {
+        if (newState == state && newDetail.equals(detail)) {
+            return;
+        }
+        Log.d(TAG, state + " -> " + newState + (newDetail.isEmpty() ? "" : " (" + newDetail + ")"));
+        state = newState;
+        detail = newDetail;
+        for (StateListener listener : new ArrayList<>(listeners)) {
+            listener.onStateChanged(newState, newDetail);
+        }
+    }
+}
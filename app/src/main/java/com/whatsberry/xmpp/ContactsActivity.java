@@ -158,7 +158,7 @@ public class ContactsActivity extends Activity {
             @Override
             public void onLogoutSuccess() {
                 progressDialog.dismiss();
-                xmppManager.disconnect();
+                ConnectionStateMachine.getInstance(ContactsActivity.this).stop();
                 Toast.makeText(ContactsActivity.this, "Logged out", Toast.LENGTH_SHORT).show();
                 finish();
             }
@@ -5,12 +5,11 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -19,26 +18,54 @@ import java.util.List;
  * Database Helper for persistent message storage
  * Stores messages in SQLite directly on external SD card
  */
-public class DatabaseHelper extends SQLiteOpenHelper {
+public class DatabaseHelper extends SQLiteOpenHelper implements MessageBackup.Store {
     private static final String TAG = "DatabaseHelper";
 
     private static final String DATABASE_NAME = "whatsberry.db";
-    private static final int DATABASE_VERSION = 4; // Incremented for is_read column
+    private static final int DATABASE_VERSION = 10; // Incremented for the store id (store_info)
+
+    // Messages table, see MessageSchema for the layout and SQL
+    private static final String TABLE_MESSAGES = MessageSchema.TABLE;
+    private static final String COLUMN_ID = MessageSchema.ID;
+    private static final String COLUMN_CONTACT_JID = MessageSchema.CONTACT_JID;
+    private static final String COLUMN_BODY = MessageSchema.BODY;
+    private static final String COLUMN_IS_SENT = MessageSchema.IS_SENT;
+    private static final String COLUMN_TIMESTAMP = MessageSchema.TIMESTAMP;
+    private static final String COLUMN_FILE_URL = MessageSchema.FILE_URL;
+    private static final String COLUMN_STANZA_ID = MessageSchema.STANZA_ID;
+    private static final String COLUMN_IS_READ = MessageSchema.IS_READ;
+    private static final String COLUMN_KIND = MessageSchema.KIND;
+    private static final String COLUMN_MIME_TYPE = MessageSchema.MIME_TYPE;
+    private static final String COLUMN_MEDIA_SIZE = MessageSchema.MEDIA_SIZE;
+    private static final String COLUMN_DURATION = MessageSchema.DURATION;
+
+    // Roster table (persistent copy of the server roster, see RosterCache)
+    private static final String TABLE_ROSTER = "roster";
+    private static final String COLUMN_ROSTER_JID = "jid";
+    private static final String COLUMN_ROSTER_NAME = "name";
+    private static final String COLUMN_ROSTER_SUBSCRIPTION = "subscription";
+    private static final String COLUMN_ROSTER_ASK = "ask";
+    private static final String COLUMN_ROSTER_GROUPS = "groups"; // Newline separated
+
+    // Hot-path timings, see Metrics
+    private static final Metrics.Histogram INSERT_TIME = Metrics.histogram("db.insert");
+    private static final Metrics.Histogram ARCHIVE_PAGE_TIME = Metrics.histogram("db.insert_archive_page");
+    private static final Metrics.Histogram QUERY_MESSAGES_TIME = Metrics.histogram("db.query_messages");
+    private static final Metrics.Histogram QUERY_LAST_TIME = Metrics.histogram("db.query_last_per_contact");
+    private static final Metrics.Histogram QUERY_SEARCH_TIME = Metrics.histogram("db.query_search");
+    private static final Metrics.Histogram QUERY_UNREAD_TIME = Metrics.histogram("db.query_unread");
+    private static final Metrics.Histogram MARK_READ_TIME = Metrics.histogram("db.mark_read");
 
-    // Table name
-    private static final String TABLE_MESSAGES = "messages";
+    private Context context;
 
-    // Column names
-    private static final String COLUMN_ID = "id";
-    private static final String COLUMN_CONTACT_JID = "contact_jid";
-    private static final String COLUMN_BODY = "body";
-    private static final String COLUMN_IS_SENT = "is_sent";
-    private static final String COLUMN_TIMESTAMP = "timestamp";
-    private static final String COLUMN_FILE_URL = "file_url"; // New column for multimedia files
-    private static final String COLUMN_STANZA_ID = "stanza_id"; // XMPP message ID for retraction
-    private static final String COLUMN_IS_READ = "is_read"; // 1 if message has been read, 0 if unread
+    // Cold tier file, attached on open; false if it could not be attached (old messages
+    // then simply stay in the main table)
+    private static final String ARCHIVE_NAME = "whatsberry-archive.db";
+    private volatile boolean archiveAttached = false;
 
-    private Context context;
+    // Set when migrateDatabase moved the files away: this helper's path is stale, so calls
+    // that were waiting for the migration continue on the new database instead
+    private volatile DatabaseHelper replacement = null;
 
     public DatabaseHelper(Context context) {
         super(context, getDatabasePath(context), null, DATABASE_VERSION);
@@ -59,7 +86,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         String location = prefs.getString("db_location", LOCATION_EXTERNAL_STANDARD);
         String customPath = prefs.getString("db_custom_path", "");
 
-        Log.d(TAG, "Database location preference: " + location);
+        AppLog.d(TAG, "Database location preference: {}", location);
 
         switch (location) {
             case LOCATION_INTERNAL:
@@ -71,10 +98,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 File bb10Dir = new File("/mnt/sdcard/external_sd/Whatsberry");
                 if (!bb10Dir.exists()) {
                     bb10Dir.mkdirs();
-                    Log.d(TAG, "Created BB10 directory: " + bb10Dir.getAbsolutePath());
+                    AppLog.d(TAG, "Created BB10 directory: {}", bb10Dir);
                 }
                 File bb10DbFile = new File(bb10Dir, DATABASE_NAME);
-                Log.d(TAG, "Database path (BB10): " + bb10DbFile.getAbsolutePath());
+                AppLog.d(TAG, "Database path (BB10): {}", bb10DbFile);
                 return bb10DbFile.getAbsolutePath();
 
             case LOCATION_CUSTOM:
@@ -87,10 +114,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     File customDir = new File(customPath, "Whatsberry");
                     if (!customDir.exists()) {
                         customDir.mkdirs();
-                        Log.d(TAG, "Created custom directory: " + customDir.getAbsolutePath());
+                        AppLog.d(TAG, "Created custom directory: {}", customDir);
                     }
                     File customDbFile = new File(customDir, DATABASE_NAME);
-                    Log.d(TAG, "Database path (Custom): " + customDbFile.getAbsolutePath());
+                    AppLog.d(TAG, "Database path (Custom): {}", customDbFile);
                     return customDbFile.getAbsolutePath();
                 }
 
@@ -105,45 +132,45 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 File whatsberryDir = new File(Environment.getExternalStorageDirectory(), "Whatsberry");
                 if (!whatsberryDir.exists()) {
                     whatsberryDir.mkdirs();
-                    Log.d(TAG, "Created standard external directory: " + whatsberryDir.getAbsolutePath());
+                    AppLog.d(TAG, "Created standard external directory: {}", whatsberryDir);
                 }
 
                 File dbFile = new File(whatsberryDir, DATABASE_NAME);
-                Log.d(TAG, "Database path (Standard External): " + dbFile.getAbsolutePath());
+                AppLog.d(TAG, "Database path (Standard External): {}", dbFile);
                 return dbFile.getAbsolutePath();
         }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        String createTable = "CREATE TABLE " + TABLE_MESSAGES + " (" +
-                COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                COLUMN_CONTACT_JID + " TEXT NOT NULL, " +
-                COLUMN_BODY + " TEXT NOT NULL, " +
-                COLUMN_IS_SENT + " INTEGER NOT NULL, " +
-                COLUMN_TIMESTAMP + " INTEGER NOT NULL, " +
-                COLUMN_FILE_URL + " TEXT, " + // NULL for text-only messages
-                COLUMN_STANZA_ID + " TEXT, " + // XMPP message ID, NULL if not available
-                COLUMN_IS_READ + " INTEGER NOT NULL DEFAULT 0" + // 0 = unread, 1 = read
-                ")";
+        for (String statement : MessageSchema.createStatements()) {
+            db.execSQL(statement);
+        }
 
-        db.execSQL(createTable);
+        createRosterTable(db);
 
-        // Create index on contact_jid for faster queries
-        db.execSQL("CREATE INDEX idx_contact_jid ON " + TABLE_MESSAGES + "(" + COLUMN_CONTACT_JID + ")");
+        AppLog.d(TAG, "Database created");
+    }
 
-        Log.d(TAG, "Database created");
+    private void createRosterTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_ROSTER + " (" +
+                COLUMN_ROSTER_JID + " TEXT PRIMARY KEY, " +
+                COLUMN_ROSTER_NAME + " TEXT, " +
+                COLUMN_ROSTER_SUBSCRIPTION + " TEXT, " +
+                COLUMN_ROSTER_ASK + " TEXT, " +
+                COLUMN_ROSTER_GROUPS + " TEXT" +
+                ")");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        Log.d(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+        AppLog.d(TAG, "Upgrading database from version {} to {}", oldVersion, newVersion);
 
         // Handle migration from version 1 to 2 (add file_url column)
         if (oldVersion < 2) {
             try {
                 db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_FILE_URL + " TEXT");
-                Log.d(TAG, "Added file_url column to messages table");
+                AppLog.d(TAG, "Added file_url column to messages table");
             } catch (Exception e) {
                 Log.e(TAG, "Error adding file_url column", e);
                 // If column already exists, this is fine
@@ -154,7 +181,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         if (oldVersion < 3) {
             try {
                 db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_STANZA_ID + " TEXT");
-                Log.d(TAG, "Added stanza_id column to messages table");
+                AppLog.d(TAG, "Added stanza_id column to messages table");
             } catch (Exception e) {
                 Log.e(TAG, "Error adding stanza_id column", e);
                 // If column already exists, this is fine
@@ -165,25 +192,165 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         if (oldVersion < 4) {
             try {
                 db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_IS_READ + " INTEGER NOT NULL DEFAULT 0");
-                Log.d(TAG, "Added is_read column to messages table");
+                AppLog.d(TAG, "Added is_read column to messages table");
 
                 // Mark all sent messages as read (we only care about received messages)
                 db.execSQL("UPDATE " + TABLE_MESSAGES + " SET " + COLUMN_IS_READ + " = 1 WHERE " + COLUMN_IS_SENT + " = 1");
-                Log.d(TAG, "Marked all sent messages as read");
+                AppLog.d(TAG, "Marked all sent messages as read");
             } catch (Exception e) {
                 Log.e(TAG, "Error adding is_read column", e);
                 // If column already exists, this is fine
             }
         }
 
+        // Handle migration from version 4 to 5 (roster table)
+        if (oldVersion < 5) {
+            createRosterTable(db);
+            AppLog.d(TAG, "Created roster table");
+        }
+
+        // Handle migration from version 5 to 6 (stanza_id index)
+        if (oldVersion < 6) {
+            db.execSQL(MessageSchema.CREATE_INDEX_STANZA_ID);
+            AppLog.d(TAG, "Created stanza_id index");
+        }
+
+        // Handle migration from version 6 to 7 (contact_jid index becomes (contact_jid, timestamp))
+        if (oldVersion < 7) {
+            db.execSQL(MessageSchema.CREATE_INDEX_CONTACT_TIME);
+            db.execSQL(MessageSchema.DROP_INDEX_CONTACT);
+            AppLog.d(TAG, "Replaced contact_jid index with contact_jid, timestamp");
+        }
+
+        // Handle migration from version 7 to 8 (unread counters kept by triggers)
+        if (oldVersion < 8) {
+            for (String statement : MessageSchema.createConversationStatements()) {
+                db.execSQL(statement);
+            }
+            db.execSQL(MessageSchema.FILL_CONVERSATIONS);
+            AppLog.d(TAG, "Created conversations table with unread counters");
+        }
+
+        // Handle migration from version 8 to 9 (message kind, mime type, size, duration)
+        if (oldVersion < 9) {
+            for (String column : MessageSchema.CONTENT_COLUMNS) {
+                db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + column);
+            }
+            int classified = classifyStoredMessages(db);
+            AppLog.d(TAG, "Added message content columns, classified {} messages", classified);
+        }
+
+        // Handle migration from version 9 to 10 (store id for backups, made on first use)
+        if (oldVersion < 10) {
+            db.execSQL(MessageSchema.CREATE_STORE_INFO);
+            AppLog.d(TAG, "Created store_info table");
+        }
+
         // For future upgrades, add more conditions here
     }
 
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        return replacement != null ? replacement.getWritableDatabase() : super.getWritableDatabase();
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        return replacement != null ? replacement.getReadableDatabase() : super.getReadableDatabase();
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        attachArchive(db);
+    }
+
+    /**
+     * Fill the content columns of rows stored before they existed; everything else stays text
+     * @return number of rows that are media or call notices
+     */
+    private int classifyStoredMessages(SQLiteDatabase db) {
+        int classified = 0;
+        ContentValues values = new ContentValues();
+        String[] id = new String[1];
+        Cursor cursor = db.rawQuery(MessageSchema.SELECT_UNCLASSIFIED, null);
+        try {
+            while (cursor.moveToNext()) {
+                MessageContent content = MessageContent.fromStored(cursor.getString(1), cursor.getString(2));
+                if (content.kind == MessageContent.KIND_TEXT) {
+                    continue;
+                }
+                values.clear();
+                putContent(values, content);
+                id[0] = String.valueOf(cursor.getLong(0));
+                db.update(TABLE_MESSAGES, values, COLUMN_ID + " = ?", id);
+                classified++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return classified;
+    }
+
+    private static void putContent(ContentValues values, MessageContent content) {
+        values.put(COLUMN_KIND, content.kind);
+        if (content.fileUrl != null && !content.fileUrl.isEmpty()) {
+            values.put(COLUMN_FILE_URL, content.fileUrl);
+        }
+        if (content.mimeType != null) {
+            values.put(COLUMN_MIME_TYPE, content.mimeType);
+        }
+        if (content.mediaSize >= 0) {
+            values.put(COLUMN_MEDIA_SIZE, content.mediaSize);
+        }
+        if (content.duration >= 0) {
+            values.put(COLUMN_DURATION, content.duration);
+        }
+    }
+
+    /**
+     * Archive file that belongs to a main database file (same directory)
+     */
+    public static File getArchiveFile(File databaseFile) {
+        return new File(databaseFile.getAbsoluteFile().getParentFile(), ARCHIVE_NAME);
+    }
+
+    private void attachArchive(SQLiteDatabase db) {
+        File archiveFile = getArchiveFile(new File(db.getPath()));
+        try {
+            db.execSQL("ATTACH DATABASE ? AS " + MessageSchema.ARCHIVE, new Object[]{archiveFile.getAbsolutePath()});
+            // Takes effect on a new, empty file, so the archive never needs a full VACUUM
+            db.execSQL("PRAGMA " + MessageSchema.ARCHIVE + ".auto_vacuum = INCREMENTAL");
+            for (String statement : MessageSchema.createArchiveStatements()) {
+                db.execSQL(statement);
+            }
+            archiveAttached = true;
+            AppLog.d(TAG, "Archive attached: {}", archiveFile);
+            int indexed = new MessageStore(new SQLiteMessageDatabase(db), true).indexArchiveKeys();
+            if (indexed > 0) {
+                AppLog.d(TAG, "Indexed {} archived messages for deduplication", indexed);
+            }
+        } catch (Exception e) {
+            archiveAttached = false;
+            Log.w(TAG, "Could not attach message archive " + archiveFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Message steps (see MessageStore) on the current database
+     */
+    private MessageStore store() {
+        if (replacement != null) {
+            return replacement.store();
+        }
+        return new MessageStore(new SQLiteMessageDatabase(getWritableDatabase()), archiveAttached);
+    }
+
     /**
      * Insert a message into the database
      */
     public long insertMessage(String contactJid, String body, boolean isSent, long timestamp) {
-        return insertMessage(contactJid, body, isSent, timestamp, null, null);
+        return insertMessage(contactJid, body, isSent, timestamp, (String) null, null);
     }
 
     /**
@@ -197,87 +364,115 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * Insert a message into the database with stanza ID (for retraction)
      */
     public long insertMessage(String contactJid, String body, boolean isSent, long timestamp, String fileUrl, String stanzaId) {
-        SQLiteDatabase db = this.getWritableDatabase();
-
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_CONTACT_JID, contactJid);
-        values.put(COLUMN_BODY, body);
-        values.put(COLUMN_IS_SENT, isSent ? 1 : 0);
-        values.put(COLUMN_TIMESTAMP, timestamp);
-        // Sent messages are automatically marked as read, received messages are unread
-        values.put(COLUMN_IS_READ, isSent ? 1 : 0);
-        if (fileUrl != null && !fileUrl.isEmpty()) {
-            values.put(COLUMN_FILE_URL, fileUrl);
-        }
-        if (stanzaId != null && !stanzaId.isEmpty()) {
-            values.put(COLUMN_STANZA_ID, stanzaId);
-        }
+        return insertMessage(contactJid, body, isSent, timestamp, MessageContent.fromStored(body, fileUrl), stanzaId);
+    }
 
-        long id = db.insert(TABLE_MESSAGES, null, values);
+    /**
+     * Insert a message already classified by the caller (see MessageContent)
+     */
+    public long insertMessage(String contactJid, String body, boolean isSent, long timestamp, MessageContent content, String stanzaId) {
+        long start = Metrics.now();
+        // Same statement as the receive benchmark, so it measures what ships
+        long id = store().insertMessage(contactJid, body, isSent, timestamp, content, stanzaId);
+        INSERT_TIME.recordSince(start);
 
-        Log.d(TAG, "Inserted message: " + id + " for " + contactJid +
-              (fileUrl != null ? " (file)" : "") +
-              (stanzaId != null ? " [stanza:" + stanzaId + "]" : "") +
-              (!isSent ? " [UNREAD]" : ""));
+        AppLog.d(TAG, "Inserted message: {} for {} [stanza:{}]", id, contactJid, stanzaId);
 
         return id;
     }
 
     /**
-     * Get messages for a specific contact
+     * Insert a page of archived (MAM) messages in one transaction
+     * Messages already stored in either tier (seen live, or in an earlier page) are skipped:
+     * same stanza ID, or for messages without one, same contact, timestamp, direction and body.
+     * Received messages newer than what the user has seen of the chat are stored unread, older
+     * history read (see MessageStore.insertArchivedMessages).
+     * @return number of messages actually inserted
      */
-    public List<MessageRecord> getMessagesForContact(String contactJid, int limit) {
-        List<MessageRecord> messages = new ArrayList<>();
+    public int insertArchivedMessages(List<MessageRecord> records) {
+        long start = Metrics.now();
+        int inserted = store().insertArchivedMessages(records);
+        ARCHIVE_PAGE_TIME.recordSince(start);
 
-        SQLiteDatabase db = this.getReadableDatabase();
+        AppLog.d(TAG, "Archive page: {} new of {}", inserted, records.size());
+        return inserted;
+    }
 
-        String query = "SELECT * FROM " + TABLE_MESSAGES +
-                " WHERE " + COLUMN_CONTACT_JID + " = ?" +
-                " ORDER BY " + COLUMN_TIMESTAMP + " ASC" +
-                (limit > 0 ? " LIMIT " + limit : "");
+    /**
+     * Insert a batch of restored messages (see MessageBackup) in one transaction, keeping
+     * their read state. Skips messages already stored in either tier (same rules as
+     * insertArchivedMessages), so importing twice adds nothing.
+     * @return number of messages actually inserted
+     */
+    @Override
+    public int importMessages(List<MessageRecord> records) {
+        return store().importMessages(records);
+    }
 
-        Cursor cursor = db.rawQuery(query, new String[]{contactJid});
+    /**
+     * Random id of this database (see MessageSchema.STORE_INFO)
+     */
+    @Override
+    public long getStoreId() {
+        return store().getStoreId();
+    }
 
-        if (cursor.moveToFirst()) {
-            do {
-                MessageRecord msg = new MessageRecord();
-                msg.id = cursor.getLong(cursor.getColumnIndex(COLUMN_ID));
-                msg.contactJid = cursor.getString(cursor.getColumnIndex(COLUMN_CONTACT_JID));
-                msg.body = cursor.getString(cursor.getColumnIndex(COLUMN_BODY));
-                msg.isSent = cursor.getInt(cursor.getColumnIndex(COLUMN_IS_SENT)) == 1;
-                msg.timestamp = cursor.getLong(cursor.getColumnIndex(COLUMN_TIMESTAMP));
-
-                // Read file URL if present
-                int fileUrlIndex = cursor.getColumnIndex(COLUMN_FILE_URL);
-                if (fileUrlIndex != -1) {
-                    msg.fileUrl = cursor.getString(fileUrlIndex);
-                }
+    /**
+     * Highest message id in either tier, 0 if there are none
+     */
+    @Override
+    public long getMaxMessageId() {
+        return store().getMaxMessageId();
+    }
 
-                // Read stanza ID if present
-                int stanzaIdIndex = cursor.getColumnIndex(COLUMN_STANZA_ID);
-                if (stanzaIdIndex != -1) {
-                    msg.stanzaId = cursor.getString(stanzaIdIndex);
-                }
+    /**
+     * Hot-table messages with ids from firstId to lastId, in id order (primary key range)
+     */
+    @Override
+    public List<MessageRecord> getMessagesInIdRange(long firstId, long lastId) {
+        return store().getMessagesInIdRange(firstId, lastId);
+    }
 
-                // Read is_read status
-                int isReadIndex = cursor.getColumnIndex(COLUMN_IS_READ);
-                if (isReadIndex != -1) {
-                    msg.isRead = cursor.getInt(isReadIndex) == 1;
-                } else {
-                    msg.isRead = msg.isSent; // Fallback: sent messages are read
-                }
+    @Override
+    public List<MessageRecord> getArchivedBlocks(long afterId, long upToId, long minId) {
+        return store().getArchivedBlocks(afterId, upToId, minId);
+    }
 
-                messages.add(msg);
-            } while (cursor.moveToNext());
+    /**
+     * Timestamp of the newest stored message, 0 if there are none
+     */
+    public long getNewestMessageTimestamp() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT MAX(" + COLUMN_TIMESTAMP + ") FROM " + TABLE_MESSAGES, null);
+        long newest = 0;
+        if (cursor.moveToFirst()) {
+            newest = cursor.getLong(0);
         }
-
         cursor.close();
+        return newest;
+    }
 
-        Log.d(TAG, "Loaded " + messages.size() + " messages for " + contactJid);
+    /**
+     * Get messages for a specific contact
+     */
+    public List<MessageRecord> getMessagesForContact(String contactJid, int limit) {
+        long start = Metrics.now();
+        List<MessageRecord> messages = store().getMessagesForContact(contactJid, limit);
+        QUERY_MESSAGES_TIME.recordSince(start);
+
+        AppLog.d(TAG, "Loaded {} messages for {}", messages.size(), contactJid);
 
         return messages;
     }
 
+    /**
+     * Find a message of either tier by its stanza ID (retractions)
+     * @return null if none is stored
+     */
+    public MessageRecord findMessageByStanzaId(String stanzaId) {
+        return store().findMessageByStanzaId(stanzaId);
+    }
+
     /**
      * Get total number of messages
      */
@@ -296,92 +491,322 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     /**
      * Delete old messages (keep only last N messages per contact)
+     * Only contacts over the limit are touched, each with an index range delete in chunks.
+     * Background retention uses the same steps with pauses, see RetentionManager.
      */
     public void cleanOldMessages(int keepPerContact) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        int deleted = 0;
+        for (String contactJid : getContactsWithMoreThan(keepPerContact)) {
+            long cutoff = getRetentionCutoff(contactJid, keepPerContact);
+            int rows;
+            do {
+                rows = deleteMessagesBefore(contactJid, cutoff, RETENTION_CHUNK);
+                deleted += rows;
+            } while (rows == RETENTION_CHUNK);
+        }
 
-        // Get all unique contact JIDs
-        Cursor cursor = db.rawQuery("SELECT DISTINCT " + COLUMN_CONTACT_JID + " FROM " + TABLE_MESSAGES, null);
+        AppLog.d(TAG, "Cleaned {} old messages, keeping {} per contact", deleted, keepPerContact);
+    }
 
-        if (cursor.moveToFirst()) {
-            do {
-                String contactJid = cursor.getString(0);
+    // ===== Retention primitives (see RetentionManager) =====
+
+    /**
+     * Rows per delete statement; keeps each write transaction (and the lock it holds) short
+     */
+    public static final int RETENTION_CHUNK = 500;
+
+    /**
+     * All contacts that have stored messages
+     */
+    public List<String> getContactJids() {
+        return queryStrings(MessageSchema.SELECT_CONTACTS);
+    }
 
-                // Delete old messages for this contact, keeping only the last N
-                String deleteQuery = "DELETE FROM " + TABLE_MESSAGES +
-                        " WHERE " + COLUMN_CONTACT_JID + " = ?" +
-                        " AND " + COLUMN_ID + " NOT IN (" +
-                        "   SELECT " + COLUMN_ID + " FROM " + TABLE_MESSAGES +
-                        "   WHERE " + COLUMN_CONTACT_JID + " = ?" +
-                        "   ORDER BY " + COLUMN_TIMESTAMP + " DESC" +
-                        "   LIMIT " + keepPerContact +
-                        ")";
+    /**
+     * Contacts with more than {@code keep} stored messages
+     */
+    public List<String> getContactsWithMoreThan(int keep) {
+        return queryStrings(MessageSchema.selectContactsOver(keep));
+    }
 
-                db.execSQL(deleteQuery, new String[]{contactJid, contactJid});
-            } while (cursor.moveToNext());
+    private List<String> queryStrings(String sql) {
+        List<String> values = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().rawQuery(sql, null);
+        while (cursor.moveToNext()) {
+            values.add(cursor.getString(0));
         }
+        cursor.close();
+        return values;
+    }
 
+    // First column of the first row, 0 for no row or NULL (e.g. MAX over an empty table)
+    private long queryLong(String sql) {
+        Cursor cursor = getReadableDatabase().rawQuery(sql, null);
+        long value = cursor.moveToFirst() ? cursor.getLong(0) : 0;
         cursor.close();
+        return value;
+    }
 
-        Log.d(TAG, "Cleaned old messages, keeping " + keepPerContact + " per contact");
+    /**
+     * Timestamp of the contact's {@code keep}-th newest message; messages older than it
+     * are beyond the limit. Long.MIN_VALUE if the contact has fewer messages.
+     */
+    public long getRetentionCutoff(String contactJid, int keep) {
+        Cursor cursor = getReadableDatabase().rawQuery(MessageSchema.selectRetentionCutoff(keep),
+                new String[]{contactJid});
+        long cutoff = cursor.moveToFirst() ? cursor.getLong(0) : Long.MIN_VALUE;
+        cursor.close();
+        return cutoff;
     }
 
     /**
-     * Get last message for each contact (optimized for chat list)
-     * Returns map of contactJid -> last MessageRecord
+     * Delete up to {@code chunk} of the contact's messages older than {@code cutoff}
+     * @return rows deleted; fewer than chunk means the range is done
      */
-    public java.util.Map<String, MessageRecord> getLastMessagePerContact() {
-        java.util.Map<String, MessageRecord> lastMessages = new java.util.HashMap<>();
-        SQLiteDatabase db = this.getReadableDatabase();
+    public int deleteMessagesBefore(String contactJid, long cutoff, int chunk) {
+        SQLiteStatement statement = getWritableDatabase().compileStatement(
+                MessageSchema.deleteChunk(MessageSchema.CONTACT_OLDER_THAN_WHERE, chunk));
+        try {
+            statement.bindString(1, contactJid);
+            statement.bindLong(2, cutoff);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
 
-        // Optimized query to get last message per contact
-        String query = "SELECT m.* FROM " + TABLE_MESSAGES + " m " +
-                "INNER JOIN (" +
-                "   SELECT " + COLUMN_CONTACT_JID + ", MAX(" + COLUMN_TIMESTAMP + ") as max_time " +
-                "   FROM " + TABLE_MESSAGES + " " +
-                "   GROUP BY " + COLUMN_CONTACT_JID +
-                ") latest " +
-                "ON m." + COLUMN_CONTACT_JID + " = latest." + COLUMN_CONTACT_JID + " " +
-                "AND m." + COLUMN_TIMESTAMP + " = latest.max_time";
+    /**
+     * Delete the {@code chunk} first stored messages
+     */
+    public int deleteOldestMessages(int chunk) {
+        SQLiteStatement statement = getWritableDatabase().compileStatement(MessageSchema.deleteOldestChunk(chunk));
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
 
-        Cursor cursor = db.rawQuery(query, null);
+    /**
+     * Bytes in pages holding data (file size minus free pages)
+     */
+    public long getUsedBytes() {
+        long used = (pragmaLong("page_count") - pragmaLong("freelist_count")) * pragmaLong("page_size");
+        if (archiveAttached) {
+            used += (pragmaLong(MessageSchema.ARCHIVE + ".page_count") -
+                    pragmaLong(MessageSchema.ARCHIVE + ".freelist_count")) * pragmaLong(MessageSchema.ARCHIVE + ".page_size");
+        }
+        return used;
+    }
 
-        if (cursor.moveToFirst()) {
-            do {
-                MessageRecord msg = new MessageRecord();
-                msg.id = cursor.getLong(cursor.getColumnIndex(COLUMN_ID));
-                msg.contactJid = cursor.getString(cursor.getColumnIndex(COLUMN_CONTACT_JID));
-                msg.body = cursor.getString(cursor.getColumnIndex(COLUMN_BODY));
-                msg.isSent = cursor.getInt(cursor.getColumnIndex(COLUMN_IS_SENT)) == 1;
-                msg.timestamp = cursor.getLong(cursor.getColumnIndex(COLUMN_TIMESTAMP));
-
-                // Read file URL if present
-                int fileUrlIndex = cursor.getColumnIndex(COLUMN_FILE_URL);
-                if (fileUrlIndex != -1) {
-                    msg.fileUrl = cursor.getString(fileUrlIndex);
-                }
+    /**
+     * Bytes in free pages, returned to the file system by {@link #incrementalVacuum(int)}
+     */
+    public long getFreeBytes() {
+        long free = pragmaLong("freelist_count") * pragmaLong("page_size");
+        if (archiveAttached) {
+            free += pragmaLong(MessageSchema.ARCHIVE + ".freelist_count") * pragmaLong(MessageSchema.ARCHIVE + ".page_size");
+        }
+        return free;
+    }
 
-                // Read stanza ID if present
-                int stanzaIdIndex = cursor.getColumnIndex(COLUMN_STANZA_ID);
-                if (stanzaIdIndex != -1) {
-                    msg.stanzaId = cursor.getString(stanzaIdIndex);
-                }
+    private long pragmaLong(String pragma) {
+        Cursor cursor = getReadableDatabase().rawQuery("PRAGMA " + pragma, null);
+        long value = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        cursor.close();
+        return value;
+    }
 
-                // Read is_read status
-                int isReadIndex = cursor.getColumnIndex(COLUMN_IS_READ);
-                if (isReadIndex != -1) {
-                    msg.isRead = cursor.getInt(isReadIndex) == 1;
-                } else {
-                    msg.isRead = msg.isSent; // Fallback: sent messages are read
-                }
+    /**
+     * True if the main file already uses auto_vacuum=INCREMENTAL
+     */
+    public boolean isIncrementalVacuum() {
+        return pragmaLong("auto_vacuum") == 2;
+    }
+
+    /**
+     * Switch the file to auto_vacuum=INCREMENTAL. Existing files need a full VACUUM for that,
+     * which rewrites the whole database once; call it only while charging or when the user
+     * asks for it, never on battery.
+     * @return true if incremental vacuum is (now) available
+     */
+    public boolean ensureIncrementalVacuum() {
+        if (isIncrementalVacuum()) {
+            return true;
+        }
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            long start = Metrics.now();
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            Log.i(TAG, "Database converted to incremental vacuum in " +
+                    (Metrics.now() - start) / 1000000 + " ms");
+        } catch (Exception e) {
+            // Typically not enough free space for the copy VACUUM makes
+            Log.w(TAG, "Could not enable incremental vacuum: " + e.getMessage());
+        }
+        return isIncrementalVacuum();
+    }
 
-                lastMessages.put(msg.contactJid, msg);
-            } while (cursor.moveToNext());
+    /**
+     * Give up to {@code maxPages} free pages of each database file back to the file system
+     * @return pages released
+     */
+    public int incrementalVacuum(int maxPages) {
+        int released = incrementalVacuum("", maxPages);
+        if (archiveAttached) {
+            released += incrementalVacuum(MessageSchema.ARCHIVE + ".", maxPages);
         }
+        return released;
+    }
+
+    private int incrementalVacuum(String schema, int maxPages) {
+        long before = pragmaLong(schema + "freelist_count");
+        // Each step of this pragma frees one page and execSQL only steps once;
+        // a cursor steps it to the end when counting its rows
+        Cursor cursor = getWritableDatabase().rawQuery("PRAGMA " + schema + "incremental_vacuum(" + maxPages + ")", null);
+        cursor.getCount();
+        cursor.close();
+        return (int) (before - pragmaLong(schema + "freelist_count"));
+    }
+
+    // ===== Cold tier (see MessageArchive) =====
+
+    public boolean isArchiveAvailable() {
+        return archiveAttached;
+    }
+
+    /**
+     * Move the contact's oldest read messages before {@code cutoff} into one archive block
+     * (at most MessageArchive.BLOCK_SIZE). Insert and delete commit together.
+     * @return messages moved; fewer than the block size means the contact is done
+     */
+    public int archiveMessagesBefore(String contactJid, long cutoff) {
+        return store().archiveMessagesBefore(contactJid, cutoff);
+    }
+
+    /**
+     * Delete whole archive blocks matching {@code where}
+     * @return messages deleted
+     */
+    private int deleteArchivedBlocks(String where, String[] args) {
+        SQLiteDatabase db = getWritableDatabase();
+        int messages = 0;
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.rawQuery("SELECT SUM(" + MessageSchema.BLOCK_MESSAGE_COUNT + ") FROM " +
+                    MessageSchema.ARCHIVE_BLOCKS + " WHERE " + where, args);
+            if (cursor.moveToFirst()) {
+                messages = cursor.getInt(0);
+            }
+            cursor.close();
+            String deleteKeys = MessageSchema.deleteArchiveKeys(where);
+            if (args != null) {
+                db.execSQL(deleteKeys, args);
+            } else {
+                db.execSQL(deleteKeys);
+            }
+            db.delete(MessageSchema.ARCHIVE_BLOCKS, where, args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return messages;
+    }
+
+    /**
+     * Delete archive blocks whose newest message is older than {@code cutoff}
+     * (a block straddling the cutoff stays until all of it is older)
+     * @return messages deleted
+     */
+    public int deleteArchivedBefore(long cutoff) {
+        if (!archiveAttached) {
+            return 0;
+        }
+        return deleteArchivedBlocks(MessageSchema.BLOCK_LAST_TIMESTAMP + " < ?", new String[]{String.valueOf(cutoff)});
+    }
+
+    /**
+     * Drop a contact's archive blocks beyond {@code keep} messages counted over both tiers,
+     * newest first. Works on whole blocks, so up to one block more than the limit may stay.
+     * @return messages deleted
+     */
+    public int trimArchivedMessages(String contactJid, int keep) {
+        if (!archiveAttached) {
+            return 0;
+        }
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor count = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_MESSAGES + " WHERE " + COLUMN_CONTACT_JID + " = ?",
+                new String[]{contactJid});
+        long kept = count.moveToFirst() ? count.getLong(0) : 0;
+        count.close();
+
+        long oldestKeptEnd = Long.MAX_VALUE;
+        Cursor blocks = db.rawQuery("SELECT " + MessageSchema.BLOCK_MESSAGE_COUNT + ", " + MessageSchema.BLOCK_LAST_TIMESTAMP +
+                " FROM " + MessageSchema.ARCHIVE_BLOCKS + " WHERE " + MessageSchema.BLOCK_CONTACT_JID + " = ?" +
+                " ORDER BY " + MessageSchema.BLOCK_LAST_TIMESTAMP + " DESC", new String[]{contactJid});
+        while (kept < keep && blocks.moveToNext()) {
+            kept += blocks.getLong(0);
+            oldestKeptEnd = blocks.getLong(1);
+        }
+        blocks.close();
+
+        if (kept < keep) {
+            return 0; // Everything fits
+        }
+        return deleteArchivedBlocks(MessageSchema.BLOCK_CONTACT_JID + " = ? AND " + MessageSchema.BLOCK_LAST_TIMESTAMP + " < ?",
+                new String[]{contactJid, String.valueOf(oldestKeptEnd)});
+    }
+
+    /**
+     * Delete the {@code blocks} oldest archive blocks (size limit: the oldest data goes first)
+     * @return messages deleted
+     */
+    public int deleteOldestArchivedBlocks(int blocks) {
+        if (!archiveAttached) {
+            return 0;
+        }
+        return deleteArchivedBlocks(MessageSchema.BLOCK_ID + " IN (SELECT " + MessageSchema.BLOCK_ID + " FROM " +
+                MessageSchema.ARCHIVE_BLOCKS + " ORDER BY " + MessageSchema.BLOCK_LAST_TIMESTAMP + " LIMIT " + blocks + ")", null);
+    }
+
+    /**
+     * Contacts with archived messages
+     */
+    public List<String> getArchivedContactJids() {
+        return archiveAttached ? queryStrings(MessageSchema.SELECT_ARCHIVE_CONTACTS) : new ArrayList<String>();
+    }
 
+    /**
+     * Number of archived messages and size of the archive file, e.g. "12000 messages in 47 blocks, 830 KB"
+     */
+    public String getArchiveSummary() {
+        if (!archiveAttached) {
+            return "not available";
+        }
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*), SUM(" + MessageSchema.BLOCK_MESSAGE_COUNT + ") FROM " +
+                MessageSchema.ARCHIVE_BLOCKS, null);
+        long blocks = 0;
+        long messages = 0;
+        if (cursor.moveToFirst()) {
+            blocks = cursor.getLong(0);
+            messages = cursor.getLong(1);
+        }
         cursor.close();
+        File file = getArchiveFile(new File(getReadableDatabase().getPath()));
+        return messages + " messages in " + blocks + " blocks, " + (file.length() / 1024) + " KB";
+    }
 
-        Log.d(TAG, "Loaded last messages for " + lastMessages.size() + " contacts");
+    /**
+     * Get last message for each contact (optimized for chat list)
+     * Returns map of contactJid -> last MessageRecord
+     */
+    public java.util.Map<String, MessageRecord> getLastMessagePerContact() {
+        long start = Metrics.now();
+        java.util.Map<String, MessageRecord> lastMessages = store().getLastMessagePerContact();
+        QUERY_LAST_TIME.recordSince(start);
+
+        AppLog.d(TAG, "Loaded last messages for {} contacts", lastMessages.size());
 
         return lastMessages;
     }
@@ -407,35 +832,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return messages;
         }
 
+        long start = Metrics.now();
         SQLiteDatabase db = null;
         Cursor cursor = null;
 
         try {
             db = this.getReadableDatabase();
 
-            String selection;
-            String[] selectionArgs;
-
-            if (contactJid != null && !contactJid.isEmpty()) {
-                // Search in specific contact
-                selection = COLUMN_BODY + " LIKE ? AND " + COLUMN_CONTACT_JID + " = ?";
-                selectionArgs = new String[]{"%" + query + "%", contactJid};
-            } else {
-                // Search in all contacts
-                selection = COLUMN_BODY + " LIKE ?";
-                selectionArgs = new String[]{"%" + query + "%"};
-            }
+            boolean forContact = contactJid != null && !contactJid.isEmpty();
+            String[] selectionArgs = forContact
+                    ? new String[]{"%" + query + "%", contactJid} // Search in specific contact
+                    : new String[]{"%" + query + "%"};           // Search in all contacts
 
-            cursor = db.query(
-                TABLE_MESSAGES,
-                null, // all columns
-                selection,
-                selectionArgs,
-                null,
-                null,
-                COLUMN_TIMESTAMP + " DESC", // newest first
-                String.valueOf(limit)
-            );
+            cursor = db.rawQuery(MessageSchema.search(forContact, limit), selectionArgs);
 
             while (cursor.moveToNext()) {
                 MessageRecord record = new MessageRecord();
@@ -476,7 +885,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             }
         }
 
-        Log.d(TAG, "Search query '" + query + "' returned " + messages.size() + " results");
+        // Not enough recent hits: continue in the archive, which holds the older messages
+        if (messages.size() < limit) {
+            store().searchArchive(query, contactJid, limit, messages);
+        }
+        QUERY_SEARCH_TIME.recordSince(start);
+
+        AppLog.d(TAG, "Search returned {} results", messages.size());
         return messages;
     }
 
@@ -486,7 +901,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public boolean deleteMessage(long messageId) {
         SQLiteDatabase db = this.getWritableDatabase();
         int rows = db.delete(TABLE_MESSAGES, COLUMN_ID + " = ?", new String[]{String.valueOf(messageId)});
-        Log.d(TAG, "Deleted message ID " + messageId + " (" + rows + " rows affected)");
+        if (rows == 0) {
+            rows = store().rewriteArchivedMessage(messageId, null);
+        }
+        AppLog.d(TAG, "Deleted message ID {} ({} rows affected)", messageId, rows);
         return rows > 0;
     }
 
@@ -499,48 +917,73 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values.put(COLUMN_BODY, newBody);
 
         int rows = db.update(TABLE_MESSAGES, values, COLUMN_ID + " = ?", new String[]{String.valueOf(messageId)});
-        Log.d(TAG, "Updated message ID " + messageId + " (" + rows + " rows affected)");
+        if (rows == 0) {
+            rows = store().rewriteArchivedMessage(messageId, newBody);
+        }
+        AppLog.d(TAG, "Updated message ID {} ({} rows affected)", messageId, rows);
         return rows > 0;
     }
 
     /**
      * Mark all messages from a contact as read
+     * Only the conversation's watermark and counter change, whatever the size of the chat;
+     * the rows' is_read follows in applyReadWatermarks.
+     * @return number of messages that were unread
      */
     public int markMessagesAsRead(String contactJid) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_IS_READ, 1);
-
-        // Only mark received messages as read (not sent ones, they're already read)
-        int rows = db.update(TABLE_MESSAGES, values,
-                COLUMN_CONTACT_JID + " = ? AND " + COLUMN_IS_SENT + " = 0 AND " + COLUMN_IS_READ + " = 0",
-                new String[]{contactJid});
+        long start = Metrics.now();
+        int unread = countUnreadMessages(contactJid);
+        if (unread > 0) {
+            store().markConversationRead(contactJid);
+        }
+        MARK_READ_TIME.recordSince(start);
 
-        Log.d(TAG, "Marked " + rows + " messages as read for contact " + contactJid);
-        return rows;
+        AppLog.d(TAG, "Marked {} messages as read for contact {}", unread, contactJid);
+        return unread;
     }
 
     /**
-     * Count unread messages for a contact
+     * Count unread messages for a contact (maintained counter, no scan)
      */
     public int countUnreadMessages(String contactJid) {
-        SQLiteDatabase db = this.getReadableDatabase();
-
-        // Count received messages that are not read
-        String query = "SELECT COUNT(*) FROM " + TABLE_MESSAGES +
-                " WHERE " + COLUMN_CONTACT_JID + " = ?" +
-                " AND " + COLUMN_IS_SENT + " = 0" +
-                " AND " + COLUMN_IS_READ + " = 0";
-
-        Cursor cursor = db.rawQuery(query, new String[]{contactJid});
+        long start = Metrics.now();
+        int count = store().countUnreadMessages(contactJid);
+        QUERY_UNREAD_TIME.recordSince(start);
+        return count;
+    }
 
-        int count = 0;
-        if (cursor.moveToFirst()) {
-            count = cursor.getInt(0);
+    /**
+     * Unread counts of all contacts that have unread messages, in one query (chat list)
+     */
+    public java.util.Map<String, Integer> getUnreadCounts() {
+        long start = Metrics.now();
+        java.util.Map<String, Integer> counts = new java.util.HashMap<>();
+        Cursor cursor = getReadableDatabase().rawQuery(MessageSchema.SELECT_UNREAD_COUNTS, null);
+        while (cursor.moveToNext()) {
+            counts.put(cursor.getString(0), cursor.getInt(1));
         }
-
         cursor.close();
-        return count;
+        QUERY_UNREAD_TIME.recordSince(start);
+        return counts;
+    }
+
+    /**
+     * Unread messages over all conversations
+     */
+    public int getTotalUnreadCount() {
+        return (int) queryLong(MessageSchema.SELECT_TOTAL_UNREAD);
+    }
+
+    /**
+     * Bring is_read of the rows in line with the read watermarks, before anything that
+     * looks at single rows' read state (archiving, backup). Touches only unread rows.
+     * @return rows updated
+     */
+    @Override
+    public int applyReadWatermarks() {
+        int rows = store().applyReadWatermarks();
+        AppLog.d(TAG, "Applied read watermarks to {} messages", rows);
+        return rows;
     }
 
     /**
@@ -549,17 +992,83 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public int deleteAllMessagesForContact(String contactJid) {
         SQLiteDatabase db = this.getWritableDatabase();
         int rows = db.delete(TABLE_MESSAGES, COLUMN_CONTACT_JID + " = ?", new String[]{contactJid});
-        Log.d(TAG, "Deleted all messages for contact " + contactJid + " (" + rows + " rows affected)");
+        db.delete(MessageSchema.CONVERSATIONS, MessageSchema.CONVERSATION_CONTACT_JID + " = ?", new String[]{contactJid});
+        if (archiveAttached) {
+            rows += deleteArchivedBlocks(MessageSchema.BLOCK_CONTACT_JID + " = ?", new String[]{contactJid});
+        }
+        AppLog.d(TAG, "Deleted all messages for contact {} ({} rows affected)", contactJid, rows);
         return rows;
     }
 
+    /**
+     * Load the persisted roster
+     */
+    public List<RosterRecord> getRosterItems() {
+        List<RosterRecord> items = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+
+        Cursor cursor = db.query(TABLE_ROSTER, null, null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            RosterRecord record = new RosterRecord();
+            record.jid = cursor.getString(cursor.getColumnIndex(COLUMN_ROSTER_JID));
+            record.name = cursor.getString(cursor.getColumnIndex(COLUMN_ROSTER_NAME));
+            record.subscription = cursor.getString(cursor.getColumnIndex(COLUMN_ROSTER_SUBSCRIPTION));
+            record.ask = cursor.getString(cursor.getColumnIndex(COLUMN_ROSTER_ASK));
+            record.groups = cursor.getString(cursor.getColumnIndex(COLUMN_ROSTER_GROUPS));
+            items.add(record);
+        }
+        cursor.close();
+        return items;
+    }
+
+    /**
+     * Replace the whole roster (full roster result from the server) in one transaction
+     */
+    public void replaceRoster(List<RosterRecord> items) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_ROSTER, null, null);
+            for (RosterRecord record : items) {
+                db.insert(TABLE_ROSTER, null, rosterValues(record));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        AppLog.d(TAG, "Stored roster with {} entries", items.size());
+    }
+
+    /**
+     * Insert or update a single roster entry (roster push)
+     */
+    public void upsertRosterItem(RosterRecord record) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.insertWithOnConflict(TABLE_ROSTER, null, rosterValues(record), SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public void deleteRosterItem(String jid) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.delete(TABLE_ROSTER, COLUMN_ROSTER_JID + " = ?", new String[]{jid});
+    }
+
+    private ContentValues rosterValues(RosterRecord record) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ROSTER_JID, record.jid);
+        values.put(COLUMN_ROSTER_NAME, record.name);
+        values.put(COLUMN_ROSTER_SUBSCRIPTION, record.subscription);
+        values.put(COLUMN_ROSTER_ASK, record.ask);
+        values.put(COLUMN_ROSTER_GROUPS, record.groups);
+        return values;
+    }
+
     /**
      * Detect if running on BlackBerry 10
      */
     public static boolean isBlackBerry10() {
         File bb10Indicator = new File("/mnt/sdcard/external_sd");
         boolean isBB10 = bb10Indicator.exists() && bb10Indicator.isDirectory();
-        Log.d(TAG, "BB10 detection: " + isBB10);
+        AppLog.d(TAG, "BB10 detection: {}", isBB10);
         return isBB10;
     }
 
@@ -589,69 +1098,88 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Migrate database from current location to new location
-     * @return true if migration successful, false otherwise
+     * Progress of migrateDatabase, called on the migrating thread
+     */
+    public interface MigrationListener {
+        void onMigrationProgress(String step, int percent);
+    }
+
+    /**
+     * Migrate database (and message archive) from the current location to a new one
+     * The open helper is checkpointed and closed, and stays locked for the whole copy, so
+     * writers wait instead of changing the files underneath (see DatabaseMigration for the
+     * copy/verify/swap). The location preference only changes once the new files are in place.
+     * @param current helper on the current database, null if none is open
+     * @return helper on the migrated database (calls that waited on {@code current} are handed
+     *         to it), or null if the migration failed and the old location stays in use
      */
-    public static boolean migrateDatabase(Context context, String newLocation, String customPath) {
+    public static DatabaseHelper migrateDatabase(Context context, DatabaseHelper current, String newLocation,
+                                                 String customPath, MigrationListener listener) {
         android.content.SharedPreferences prefs = context.getSharedPreferences("WhatsberryPrefs", Context.MODE_PRIVATE);
         String oldLocation = prefs.getString("db_location", LOCATION_EXTERNAL_STANDARD);
         String oldCustomPath = prefs.getString("db_custom_path", "");
 
-        Log.d(TAG, "Migrating database from " + oldLocation + " to " + newLocation);
+        AppLog.d(TAG, "Migrating database from {} to {}", oldLocation, newLocation);
 
-        // Get old database path
-        String oldDbPath = getDatabasePathForLocation(context, oldLocation, oldCustomPath);
-        File oldDbFile = new File(oldDbPath);
-
-        // Save new preferences BEFORE getting new path
-        prefs.edit()
-            .putString("db_location", newLocation)
-            .putString("db_custom_path", customPath)
-            .apply();
-
-        // Get new database path
-        String newDbPath = getDatabasePathForLocation(context, newLocation, customPath);
-        File newDbFile = new File(newDbPath);
-
-        // If old database doesn't exist, nothing to migrate
-        if (!oldDbFile.exists()) {
-            Log.d(TAG, "No existing database to migrate");
-            return true;
-        }
+        File oldDbFile = new File(getDatabasePathForLocation(context, oldLocation, oldCustomPath));
+        File newDbFile = new File(getDatabasePathForLocation(context, newLocation, customPath));
 
         // If paths are the same, nothing to do
-        if (oldDbPath.equals(newDbPath)) {
-            Log.d(TAG, "Database already at target location");
-            return true;
-        }
-
-        // Create parent directory for new database
-        File newDbDir = newDbFile.getParentFile();
-        if (newDbDir != null && !newDbDir.exists()) {
-            newDbDir.mkdirs();
+        if (oldDbFile.getAbsolutePath().equals(newDbFile.getAbsolutePath())) {
+            AppLog.d(TAG, "Database already at target location");
+            return current != null ? current : new DatabaseHelper(context);
         }
 
-        // Copy database file
-        try {
-            copyFile(oldDbFile, newDbFile);
-            Log.d(TAG, "✅ Database migrated successfully to " + newDbPath);
-
-            // Optionally delete old database (commented out for safety)
-            // oldDbFile.delete();
-            // Log.d(TAG, "Old database deleted");
-
-            return true;
-        } catch (IOException e) {
-            Log.e(TAG, "❌ Failed to migrate database", e);
+        Object lock = current != null ? current : DatabaseHelper.class;
+        synchronized (lock) {
+            long start = System.currentTimeMillis();
+            if (current != null) {
+                current.checkpointAndClose();
+            }
+            try {
+                // If old database doesn't exist, there is only the preference to change
+                if (oldDbFile.exists()) {
+                    new DatabaseMigration(
+                            new File[]{oldDbFile, getArchiveFile(oldDbFile)},
+                            new File[]{newDbFile, getArchiveFile(newDbFile)},
+                            listener).run();
+                } else {
+                    AppLog.d(TAG, "No existing database to migrate");
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "❌ Failed to migrate database", e);
+                return null;
+            }
 
-            // Restore old preferences on failure
+            // commit, not apply: the new files must not be orphaned by a crash right after
             prefs.edit()
-                .putString("db_location", oldLocation)
-                .putString("db_custom_path", oldCustomPath)
-                .apply();
+                .putString("db_location", newLocation)
+                .putString("db_custom_path", customPath)
+                .commit();
+
+            DatabaseHelper migrated = new DatabaseHelper(context);
+            if (current != null) {
+                current.replacement = migrated;
+            }
+            // Old files are kept at the previous location for safety
+            Log.i(TAG, "✅ Database migrated to " + newDbFile + " in " + (System.currentTimeMillis() - start) + " ms");
+            return migrated;
+        }
+    }
 
-            return false;
+    /**
+     * Write everything back into the database files and close them, so the files alone are
+     * a complete copy (no WAL to replay, no open transaction)
+     */
+    private synchronized void checkpointAndClose() {
+        try {
+            Cursor cursor = super.getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+            cursor.moveToFirst();
+            cursor.close();
+        } catch (Exception e) {
+            Log.w(TAG, "Checkpoint before close failed: " + e.getMessage());
         }
+        close();
     }
 
     /**
@@ -677,42 +1205,6 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    /**
-     * Copy file from source to destination
-     */
-    private static void copyFile(File src, File dst) throws IOException {
-        FileInputStream inStream = null;
-        FileOutputStream outStream = null;
-
-        try {
-            inStream = new FileInputStream(src);
-            outStream = new FileOutputStream(dst);
-
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = inStream.read(buffer)) > 0) {
-                outStream.write(buffer, 0, length);
-            }
-
-            Log.d(TAG, "Copied " + src.getAbsolutePath() + " to " + dst.getAbsolutePath());
-        } finally {
-            if (inStream != null) {
-                try {
-                    inStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error closing input stream", e);
-                }
-            }
-            if (outStream != null) {
-                try {
-                    outStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error closing output stream", e);
-                }
-            }
-        }
-    }
-
     /**
      * Message record class
      */
@@ -725,6 +1217,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         public String fileUrl; // URL to multimedia file, null for text-only messages
         public String stanzaId; // XMPP message ID for retraction, null if not available
         public boolean isRead; // True if message has been read
+        public int kind = MessageContent.KIND_TEXT; // MessageContent.KIND_*
+        public String mimeType; // null if unknown
+        public long mediaSize = -1; // Bytes, -1 if unknown
+        public long duration = -1; // Milliseconds, -1 if unknown
 
         /**
          * Check if this message contains a file
@@ -733,6 +1229,27 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return fileUrl != null && !fileUrl.isEmpty();
         }
 
+        /**
+         * Typed content of this message (kind, file URL, mime type, size, duration)
+         */
+        public MessageContent getContent() {
+            MessageContent content = new MessageContent();
+            content.kind = kind;
+            content.fileUrl = fileUrl;
+            content.mimeType = mimeType;
+            content.mediaSize = mediaSize;
+            content.duration = duration;
+            return content;
+        }
+
+        public void setContent(MessageContent content) {
+            kind = content.kind;
+            fileUrl = content.fileUrl;
+            mimeType = content.mimeType;
+            mediaSize = content.mediaSize;
+            duration = content.duration;
+        }
+
         /**
          * Check if this message can be retracted (has stanza ID)
          */
@@ -740,4 +1257,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return stanzaId != null && !stanzaId.isEmpty();
         }
     }
+
+    /**
+     * Roster entry record class
+     */
+    public static class RosterRecord {
+        public String jid;          // Bare JID
+        public String name;         // Display name, null if not set
+        public String subscription; // none / to / from / both
+        public String ask;          // Pending subscription request, null if none
+        public String groups;       // Newline separated group names, null if none
+    }
 }
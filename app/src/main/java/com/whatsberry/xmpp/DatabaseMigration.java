@@ -0,0 +1,207 @@
+package com.whatsberry.xmpp;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Database Migration
+ * Moves closed database files (main database and message archive) to another directory:
+ * 1. copy each file to "<target>.migrating" with a 1 MB buffer, CRC32 over the bytes read,
+ *    then fsync
+ * 2. read the copy back and compare size and CRC32
+ * 3. PRAGMA integrity_check on the copy
+ * 4. rename the verified copies over the targets (atomic within one directory), after
+ *    removing stale journal/WAL files there that SQLite would otherwise replay on top
+ * Nothing at the target is touched until every copy has passed, and the temp files are
+ * removed on failure. The source files stay where they are.
+ */
+class DatabaseMigration {
+    private static final String TAG = "DatabaseMigration";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final String TEMP_SUFFIX = ".migrating";
+    private static final String[] SIDE_SUFFIXES = {"-journal", "-wal", "-shm"};
+
+    private final File[] sources;
+    private final File[] targets;
+    private final DatabaseHelper.MigrationListener listener;
+    private final long totalBytes;
+    private long doneBytes = 0;
+    private String lastStep = null;
+    private int lastPercent = -1;
+
+    /**
+     * @param sources files to move; a missing source deletes its target, so an old file there
+     *                is not paired with the new database
+     * @param targets destination of each source, same index
+     */
+    DatabaseMigration(File[] sources, File[] targets, DatabaseHelper.MigrationListener listener) {
+        this.sources = sources;
+        this.targets = targets;
+        this.listener = listener;
+        long total = 0;
+        for (File source : sources) {
+            total += source.length();
+        }
+        this.totalBytes = total;
+    }
+
+    void run() throws IOException {
+        File[] temps = new File[targets.length];
+        boolean swapped = false;
+        try {
+            for (int i = 0; i < sources.length; i++) {
+                File dir = targets[i].getAbsoluteFile().getParentFile();
+                if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("Cannot create " + dir);
+                }
+                if (i == 0 && dir != null && dir.getUsableSpace() < totalBytes) {
+                    throw new IOException("Not enough space in " + dir + ": " + (totalBytes / 1024) + " KB needed");
+                }
+                if (sources[i].exists()) {
+                    temps[i] = new File(targets[i].getPath() + TEMP_SUFFIX);
+                    long crc = copy(sources[i], temps[i]);
+                    verify(temps[i], sources[i].length(), crc);
+                }
+            }
+            // Checked after all copies, so the percentage only counts bytes
+            for (File temp : temps) {
+                if (temp != null) {
+                    checkIntegrity(temp);
+                }
+            }
+
+            // Main database (index 0) last: a database without its archive is still usable
+            for (int i = temps.length - 1; i >= 0; i--) {
+                deleteSideFiles(targets[i]);
+                if (temps[i] == null) {
+                    if (targets[i].exists() && !targets[i].delete()) {
+                        throw new IOException("Cannot remove stale " + targets[i]);
+                    }
+                } else if (!temps[i].renameTo(targets[i])) {
+                    throw new IOException("Cannot rename " + temps[i] + " to " + targets[i]);
+                }
+            }
+            swapped = true;
+            progress("Done", 1, 1);
+        } finally {
+            if (!swapped) {
+                for (File temp : temps) {
+                    if (temp != null && temp.exists() && !temp.delete()) {
+                        Log.w(TAG, "Could not remove " + temp);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy src to dst and flush it to the card
+     * @return CRC32 of the bytes read
+     */
+    private long copy(File src, File dst) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        FileInputStream in = new FileInputStream(src);
+        FileOutputStream out = new FileOutputStream(dst);
+        try {
+            FileChannel input = in.getChannel();
+            FileChannel output = out.getChannel();
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                crc.update(buffer.array(), 0, read);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                buffer.clear();
+                doneBytes += read;
+                progress("Copying", doneBytes, 2 * totalBytes);
+            }
+            output.force(true);
+        } finally {
+            in.close();
+            out.close();
+        }
+        AppLog.d(TAG, "Copied {} to {}", src, dst);
+        return crc.getValue();
+    }
+
+    private void verify(File copy, long expectedLength, long expectedCrc) throws IOException {
+        if (copy.length() != expectedLength) {
+            throw new IOException("Size mismatch for " + copy + ": " + copy.length() + " != " + expectedLength);
+        }
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        FileInputStream in = new FileInputStream(copy);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                doneBytes += read;
+                progress("Verifying", doneBytes, 2 * totalBytes);
+            }
+        } finally {
+            in.close();
+        }
+        if (crc.getValue() != expectedCrc) {
+            throw new IOException("Checksum mismatch for " + copy);
+        }
+    }
+
+    /**
+     * PRAGMA integrity_check on a closed copy; overridden in tests, which run without SQLiteDatabase
+     */
+    void checkIntegrity(File copy) throws IOException {
+        progress("Checking integrity", doneBytes, 2 * totalBytes);
+        SQLiteDatabase db = null;
+        Cursor cursor = null;
+        try {
+            // Read-only and without locale setup, so nothing is written to the copy
+            db = SQLiteDatabase.openDatabase(copy.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            cursor = db.rawQuery("PRAGMA integrity_check", null);
+            String result = cursor.moveToFirst() ? cursor.getString(0) : null;
+            if (!"ok".equals(result)) {
+                throw new IOException("Integrity check failed for " + copy + ": " + result);
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Cannot open copy " + copy + ": " + e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    private static void deleteSideFiles(File database) {
+        for (String suffix : SIDE_SUFFIXES) {
+            File side = new File(database.getPath() + suffix);
+            if (side.exists() && !side.delete()) {
+                Log.w(TAG, "Could not remove " + side);
+            }
+        }
+    }
+
+    private void progress(String step, long done, long total) {
+        int percent = total > 0 ? (int) (done * 100 / total) : 100;
+        if (listener != null && (percent != lastPercent || !step.equals(lastStep))) {
+            lastStep = step;
+            lastPercent = percent;
+            listener.onMigrationProgress(step, percent);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.whatsberry.xmpp;
+
+/**
+ * Emoji Code Points
+ * Plain-Java emoji detection used by TwemojiParser (no Android dependencies, so it can
+ * be benchmarked on the JVM, see the benchmarks module).
+ */
+public final class EmojiCodePoints {
+
+    // Lowest code point any range below starts at (ZERO WIDTH JOINER)
+    private static final int MIN_EMOJI = 0x200D;
+
+    private EmojiCodePoints() {
+    }
+
+    public static boolean isEmoji(int codePoint) {
+        return (codePoint >= 128512 && codePoint <= 128591) ||
+               (codePoint >= 127744 && codePoint <= 128511) ||
+               (codePoint >= 128640 && codePoint <= 128767) ||
+               (codePoint >= 127462 && codePoint <= 127487) ||
+               (codePoint >= 9728 && codePoint <= 9983) ||
+               (codePoint >= 9984 && codePoint <= 10175) ||
+               (codePoint >= 65024 && codePoint <= 65039) ||
+               (codePoint >= 129280 && codePoint <= 129535) ||
+               (codePoint >= 129536 && codePoint <= 129647) ||
+               (codePoint >= 129648 && codePoint <= 129791) ||
+               codePoint == 8205 ||
+               (codePoint >= 126980 && codePoint <= 127183);
+    }
+
+    /**
+     * Index of the next emoji at or after {@code from}, -1 if there is none
+     * Plain text below U+200D is skipped with a single comparison per char.
+     */
+    public static int nextEmoji(CharSequence text, int from) {
+        int length = text.length();
+        int i = from;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c < MIN_EMOJI) {
+                i++;
+                continue;
+            }
+            int codePoint = Character.codePointAt(text, i);
+            if (isEmoji(codePoint)) {
+                return i;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return -1;
+    }
+
+    /**
+     * Twemoji asset name of a code point (e.g. 128512 -> "1f600.png")
+     */
+    public static String assetName(int codePoint) {
+        return Integer.toHexString(codePoint) + ".png";
+    }
+}
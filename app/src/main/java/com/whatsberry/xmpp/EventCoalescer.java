@@ -0,0 +1,95 @@
+package com.whatsberry.xmpp;
+
+import android.os.Handler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Event Coalescer
+ * Collects keyed events (presence, chat states) from any thread and hands them to a sink
+ * once per window, keeping only the latest value per key. A presence storm of hundreds of
+ * stanzas then costs one posted Runnable per frame instead of one per stanza.
+ */
+public class EventCoalescer<T> {
+    public static final long FRAME_MS = 16; // One display frame at 60 Hz
+
+    /**
+     * Receives the latest value of every key that changed during the window
+     */
+    public interface Sink<T> {
+        void onEvents(Map<String, T> latest);
+    }
+
+    private final Handler handler;
+    private final long windowMs;
+    private final Sink<T> sink;
+
+    // Guarded by this
+    private Map<String, T> pending = new LinkedHashMap<>();
+    private boolean scheduled = false;
+    private long offered = 0;
+    private long dispatched = 0;
+
+    /**
+     * @param handler thread the sink runs on
+     * @param windowMs how long events are gathered before one dispatch
+     */
+    public EventCoalescer(Handler handler, long windowMs, Sink<T> sink) {
+        this.handler = handler;
+        this.windowMs = windowMs;
+        this.sink = sink;
+    }
+
+    /**
+     * Queue an event; replaces any not yet dispatched event for the same key
+     */
+    public void offer(String key, T value) {
+        synchronized (this) {
+            offered++;
+            pending.put(key, value);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        handler.postDelayed(flushRunnable, windowMs);
+    }
+
+    /**
+     * Drop everything not yet dispatched
+     */
+    public void clear() {
+        synchronized (this) {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Events offered vs. events that reached the sink (the difference was merged away)
+     */
+    public synchronized long getOfferedCount() {
+        return offered;
+    }
+
+    public synchronized long getDispatchedCount() {
+        return dispatched;
+    }
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, T> batch;
+            synchronized (EventCoalescer.this) {
+                scheduled = false;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new LinkedHashMap<>();
+                dispatched += batch.size();
+            }
+            sink.onEvents(batch);
+        }
+    };
+}
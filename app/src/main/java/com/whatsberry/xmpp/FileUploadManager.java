@@ -29,6 +29,11 @@ public class FileUploadManager {
     private static final String UPLOAD_URL = "http://whatsberry.descarga.media/upload.php";
     private static final String AUDIO_CONVERT_URL = "http://whatsberry.descarga.media/convert_audio.php";
 
+    // Whole request incl. server-side audio conversion, successful uploads only
+    private static final Metrics.Histogram UPLOAD_TIME = Metrics.histogram("upload.total");
+    private static final Metrics.Counter UPLOAD_BYTES = Metrics.counter("upload.bytes");
+    private static final Metrics.Counter UPLOAD_FAILURES = Metrics.counter("upload.failed");
+
     private FileUploadManager() {
         mainHandler = new Handler(Looper.getMainLooper());
     }
@@ -51,6 +56,7 @@ public class FileUploadManager {
         new Thread(new Runnable() {
             @Override
             public void run() {
+                long start = Metrics.now();
                 try {
                     if (connection == null || !connection.isAuthenticated()) {
                         notifyError(callback, "Not connected to XMPP server");
@@ -173,14 +179,18 @@ public class FileUploadManager {
                         // Unescape JSON (replace \/ with /)
                         downloadUrl = downloadUrl.replace("\\/", "/");
 
+                        UPLOAD_TIME.recordSince(start);
+                        UPLOAD_BYTES.add(fileSize);
                         Log.d(TAG, "File uploaded successfully: " + downloadUrl);
                         notifySuccess(callback, downloadUrl);
                     } else {
+                        UPLOAD_FAILURES.inc();
                         Log.e(TAG, "Upload failed with code: " + responseCode);
                         notifyError(callback, "Upload failed: HTTP " + responseCode);
                     }
 
                 } catch (Exception e) {
+                    UPLOAD_FAILURES.inc();
                     Log.e(TAG, "Upload error", e);
                     notifyError(callback, "Upload error: " + e.getMessage());
                 }
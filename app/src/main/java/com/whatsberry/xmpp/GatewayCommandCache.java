@@ -0,0 +1,186 @@
+package com.whatsberry.xmpp;
+
+import android.util.Log;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smackx.commands.AdHocCommandManager;
+import org.jivesoftware.smackx.disco.ServiceDiscoveryManager;
+import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
+import org.jivesoftware.smackx.disco.packet.DiscoverItems;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gateway Command Cache
+ * Discovers the gateway's ad-hoc commands once per session and maps the actions we use
+ * (register, pair, login, logout) to their command nodes. Disco#info goes through
+ * ServiceDiscoveryManager, which answers from the entity caps cache when the gateway's
+ * presence advertised a known hash, so a warm session costs no round trip at all.
+ */
+public class GatewayCommandCache {
+    private static final String TAG = "GatewayCommandCache";
+
+    /**
+     * Logical gateway actions; exact slidge node first, then keywords matched against node and name
+     */
+    public enum Action {
+        REGISTER("jabber:iq:register", "register"),
+        PAIR("wa_pair_phone", "pair"),
+        LOGIN(null, "login"),
+        LOGOUT(null, "logout");
+
+        final String node;
+        final String keyword;
+
+        Action(String node, String keyword) {
+            this.node = node;
+            this.keyword = keyword;
+        }
+    }
+
+    private static GatewayCommandCache instance;
+
+    /**
+     * What one discovery found; never modified once published
+     */
+    private static final class Entry {
+        final XMPPConnection session;   // Connection the entry was discovered on
+        final String gateway;
+        final Map<Action, String> nodes;
+        final List<DiscoverItems.Item> items;
+
+        Entry(XMPPConnection session, String gateway, Map<Action, String> nodes, List<DiscoverItems.Item> items) {
+            this.session = session;
+            this.gateway = gateway;
+            this.nodes = nodes;
+            this.items = items;
+        }
+    }
+
+    // Readers never lock; the lock only guards the short generation/publish steps,
+    // never a disco round trip, so invalidate() returns at once
+    private volatile Entry entry;
+    private int generation = 0;     // Guarded by this, bumped by invalidate()
+    private int discoveries = 0;    // Guarded by this
+
+    private GatewayCommandCache() {
+    }
+
+    public static synchronized GatewayCommandCache getInstance() {
+        if (instance == null) {
+            instance = new GatewayCommandCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Command node for an action, discovering the gateway first if this session hasn't yet
+     * @return null if the gateway offers no such command
+     */
+    public String getNode(XMPPConnection connection, String gatewayJid, Action action)
+            throws SmackException.NoResponseException, XMPPException.XMPPErrorException,
+                   SmackException.NotConnectedException {
+        return load(connection, gatewayJid).nodes.get(action);
+    }
+
+    /**
+     * All commands of the gateway as discovered for this session
+     */
+    public List<DiscoverItems.Item> getItems(XMPPConnection connection, String gatewayJid)
+            throws SmackException.NoResponseException, XMPPException.XMPPErrorException,
+                   SmackException.NotConnectedException {
+        return load(connection, gatewayJid).items;
+    }
+
+    /**
+     * Fill the cache right after login so the first pairing step finds it warm
+     */
+    public void prefetch(XMPPConnection connection, String gatewayJid) {
+        try {
+            getItems(connection, gatewayJid);
+        } catch (Exception e) {
+            Log.w(TAG, "Gateway discovery failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forget everything; the gateway may have changed its commands (e.g. after registering).
+     * A discovery still in flight is not published afterwards.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        entry = null;
+    }
+
+    /**
+     * Number of disco round trips made so far (one per session when the cache works)
+     */
+    public synchronized int getDiscoveryCount() {
+        return discoveries;
+    }
+
+    private Entry load(XMPPConnection connection, String gatewayJid)
+            throws SmackException.NoResponseException, XMPPException.XMPPErrorException,
+                   SmackException.NotConnectedException {
+        Entry current = entry;
+        if (current != null && connection == current.session && gatewayJid.equals(current.gateway)) {
+            return current;
+        }
+        int started;
+        synchronized (this) {
+            started = generation;
+            discoveries++;
+        }
+
+        ServiceDiscoveryManager discovery = ServiceDiscoveryManager.getInstanceFor(connection);
+        DiscoverInfo info = discovery.discoverInfo(gatewayJid);
+        List<DiscoverItems.Item> found = new ArrayList<>();
+        if (info.containsFeature(AdHocCommandManager.NAMESPACE)) {
+            found.addAll(discovery.discoverItems(gatewayJid, AdHocCommandManager.NAMESPACE).getItems());
+        } else {
+            Log.w(TAG, gatewayJid + " does not advertise ad-hoc commands");
+        }
+
+        Map<Action, String> nodes = new EnumMap<>(Action.class);
+        for (Action action : Action.values()) {
+            String node = match(found, action);
+            if (node != null) {
+                nodes.put(action, node);
+            }
+        }
+        Entry discovered = new Entry(connection, gatewayJid, Collections.unmodifiableMap(nodes),
+                Collections.unmodifiableList(found));
+        synchronized (this) {
+            // Invalidated meanwhile: this caller still gets the answer, the cache stays empty
+            if (generation == started) {
+                entry = discovered;
+            }
+        }
+        Log.d(TAG, "Discovered " + found.size() + " gateway commands: " + nodes);
+        return discovered;
+    }
+
+    private static String match(List<DiscoverItems.Item> found, Action action) {
+        if (action.node != null) {
+            for (DiscoverItems.Item item : found) {
+                if (action.node.equals(item.getNode())) {
+                    return item.getNode();
+                }
+            }
+        }
+        for (DiscoverItems.Item item : found) {
+            String node = item.getNode();
+            String name = item.getName() != null ? item.getName().toLowerCase() : "";
+            if ((node != null && node.contains(action.keyword)) || name.contains(action.keyword)) {
+                return node;
+            }
+        }
+        return null;
+    }
+}
@@ -2,20 +2,20 @@ package com.whatsberry.xmpp;
 
 import android.app.Activity;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
-import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.File;
+import java.io.IOException;
 
 public class ImageViewerActivity extends Activity {
     private static final String TAG = "ImageViewerActivity";
-    private ImageView imageView;
+    private ZoomableImageView imageView;
     private ProgressBar progressBar;
 
     @Override
@@ -23,7 +23,7 @@ public class ImageViewerActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_image_viewer);
 
-        imageView = (ImageView) findViewById(R.id.fullscreen_image);
+        imageView = (ZoomableImageView) findViewById(R.id.fullscreen_image);
         progressBar = (ProgressBar) findViewById(R.id.loading_progress);
 
         String imageUrl = getIntent().getStringExtra("IMAGE_URL");
@@ -48,30 +48,49 @@ public class ImageViewerActivity extends Activity {
         progressBar.setVisibility(View.VISIBLE);
         imageView.setVisibility(View.GONE);
 
-        new Thread(new Runnable() {
+        // Read through the disk cache so re-opening an image is instant
+        MediaCache.getInstance(this).fetch(imageUrl, new MediaCache.CacheCallback() {
             @Override
-            public void run() {
-                HttpURLConnection connection = null;
-                try {
-                    URL url = new URL(imageUrl);
-                    connection = (HttpURLConnection) url.openConnection();
-                    connection.setRequestMethod("GET");
-                    connection.setConnectTimeout(15000);
-                    connection.setReadTimeout(15000);
-                    connection.setDoInput(true);
-
-                    int responseCode = connection.getResponseCode();
-                    Log.d(TAG, "Image load response code: " + responseCode);
-
-                    if (responseCode == HttpURLConnection.HTTP_OK) {
-                        final Bitmap bitmap = BitmapFactory.decodeStream(connection.getInputStream());
+            public void onFileReady(final File file) {
+                final DisplayMetrics metrics = getResources().getDisplayMetrics();
+
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        String path = file.getAbsolutePath();
+
+                        // Decode only as many pixels as the screen can show; zooming in
+                        // fills in detail tile by tile from the region decoder
+                        final BitmapDecoder.SampledBitmap sampled = BitmapDecoder.decodeSampledBitmap(
+                                path, metrics.widthPixels, metrics.heightPixels, Bitmap.Config.RGB_565);
+
+                        BitmapRegionDecoder decoder = null;
+                        if (sampled != null && sampled.sampleSize > 1) {
+                            try {
+                                decoder = BitmapRegionDecoder.newInstance(path, false);
+                            } catch (IOException e) {
+                                // GIF and other formats without region support - base layer only
+                                Log.d(TAG, "Region decoding not supported: " + e.getMessage());
+                            }
+                        }
+                        final BitmapRegionDecoder regionDecoder = decoder;
 
                         runOnUiThread(new Runnable() {
                             @Override
                             public void run() {
                                 progressBar.setVisibility(View.GONE);
-                                if (bitmap != null) {
-                                    imageView.setImageBitmap(bitmap);
+                                if (isFinishing()) {
+                                    if (sampled != null) {
+                                        sampled.bitmap.recycle();
+                                    }
+                                    if (regionDecoder != null) {
+                                        regionDecoder.recycle();
+                                    }
+                                    return;
+                                }
+                                if (sampled != null) {
+                                    imageView.setImage(sampled.bitmap, sampled.sampleSize,
+                                            sampled.sourceWidth, sampled.sourceHeight, regionDecoder);
                                     imageView.setVisibility(View.VISIBLE);
                                 } else {
                                     Toast.makeText(ImageViewerActivity.this, "Failed to load image", Toast.LENGTH_SHORT).show();
@@ -79,33 +98,25 @@ public class ImageViewerActivity extends Activity {
                                 }
                             }
                         });
-                    } else {
-                        Log.e(TAG, "Failed to load image. Response code: " + responseCode);
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                progressBar.setVisibility(View.GONE);
-                                Toast.makeText(ImageViewerActivity.this, "Failed to load image", Toast.LENGTH_SHORT).show();
-                                finish();
-                            }
-                        });
                     }
-                } catch (final Exception e) {
-                    Log.e(TAG, "Error loading image", e);
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            progressBar.setVisibility(View.GONE);
-                            Toast.makeText(ImageViewerActivity.this, "Error: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                            finish();
-                        }
-                    });
-                } finally {
-                    if (connection != null) {
-                        connection.disconnect();
-                    }
-                }
+                }).start();
+            }
+
+            @Override
+            public void onFileError(String error) {
+                Log.e(TAG, "Error loading image: " + error);
+                progressBar.setVisibility(View.GONE);
+                Toast.makeText(ImageViewerActivity.this, "Error: " + error, Toast.LENGTH_SHORT).show();
+                finish();
             }
-        }).start();
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (imageView != null) {
+            imageView.recycle();
+        }
     }
 }
@@ -0,0 +1,391 @@
+package com.whatsberry.xmpp;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.util.Log;
+
+import org.jivesoftware.smack.AbstractXMPPConnection;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smackx.ping.PingManager;
+
+import java.util.LinkedList;
+
+/**
+ * Adaptive Keepalive
+ * Replaces PingManager's fixed 30 second ping with a learned interval per network.
+ * - Pings only after the connection has really been idle for the interval (any stanza resets it)
+ * - Probes longer intervals after repeated successful idle pings, up to MAX_INTERVAL_S
+ * - A failed ping marks that interval as too long for this NAT and falls back to the last good one
+ * - Pings early when the device wakes up anyway (screen on) and a ping is nearly due
+ * Wakeups are scheduled with AlarmManager so they also happen while the CPU sleeps.
+ */
+public class KeepAliveManager {
+    private static final String TAG = "KeepAliveManager";
+
+    private static final String ACTION_KEEPALIVE = "com.whatsberry.xmpp.KEEPALIVE";
+    private static final String PREFS_NAME = "WhatsberryPrefs";
+    private static final String PREF_INTERVAL = "keepalive_interval_";  // + network key
+    private static final String PREF_LAST_GOOD = "keepalive_last_good_";
+    private static final String PREF_CEILING = "keepalive_ceiling_";    // + network key
+    private static final String PREF_CEILING_AT = "keepalive_ceiling_at_";
+
+    private static final int MIN_INTERVAL_S = 30;            // The old fixed interval, safe everywhere
+    private static final int INITIAL_INTERVAL_S = 60;
+    private static final int MAX_INTERVAL_S = 15 * 60;       // Prosody and most carrier NATs allow longer
+    private static final float PROBE_FACTOR = 1.5f;
+    private static final int SUCCESSES_BEFORE_PROBE = 3;
+    private static final long CEILING_TTL_MS = 24L * 60 * 60 * 1000; // Re-probe past a failure after a day
+    private static final long PING_TIMEOUT_MS = 10000;
+    private static final float EARLY_PING_FRACTION = 0.25f;  // Ping on screen-on if due within 25% of interval
+
+    private static KeepAliveManager instance;
+
+    private final Context context;
+    private final AlarmManager alarmManager;
+    private final PowerManager.WakeLock wakeLock;
+    private final Handler worker;
+    private PendingIntent alarmIntent;
+    private boolean receiverRegistered = false;
+
+    private AbstractXMPPConnection connection;
+    private FailureListener failureListener;
+
+    // Learned state (worker thread)
+    private String networkKey = "none";
+    private volatile int intervalSeconds = INITIAL_INTERVAL_S;
+    private volatile int lastGoodSeconds = MIN_INTERVAL_S;
+    private volatile int ceilingSeconds = Integer.MAX_VALUE; // Smallest interval known to fail
+    private int consecutiveSuccesses = 0;
+    private volatile long lastSentAt = 0;
+    private volatile long nextPingAt = 0;
+
+    // Timestamps for the per-hour figures
+    private final LinkedList<Long> wakeups = new LinkedList<>();
+    private final LinkedList<Long> pings = new LinkedList<>();
+
+    /**
+     * Called when a keepalive ping gets no answer (connection is most likely dead)
+     */
+    public interface FailureListener {
+        void onKeepAliveFailed();
+    }
+
+    private KeepAliveManager(Context context) {
+        this.context = context.getApplicationContext();
+        this.alarmManager = (AlarmManager) this.context.getSystemService(Context.ALARM_SERVICE);
+        PowerManager powerManager = (PowerManager) this.context.getSystemService(Context.POWER_SERVICE);
+        this.wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Whatsberry:KeepAlive");
+        this.wakeLock.setReferenceCounted(false);
+
+        HandlerThread thread = new HandlerThread("KeepAlive");
+        thread.start();
+        this.worker = new Handler(thread.getLooper());
+    }
+
+    public static synchronized KeepAliveManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new KeepAliveManager(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Take over keepalive for a freshly authenticated connection
+     */
+    public synchronized void start(AbstractXMPPConnection connection, FailureListener listener) {
+        stop();
+        this.connection = connection;
+        this.failureListener = listener;
+
+        // We schedule pings ourselves
+        PingManager.getInstanceFor(connection).setPingInterval(-1);
+
+        connection.addPacketSendingListener(sendingListener, null);
+
+        if (!receiverRegistered) {
+            IntentFilter filter = new IntentFilter(ACTION_KEEPALIVE);
+            filter.addAction(Intent.ACTION_SCREEN_ON);
+            context.registerReceiver(receiver, filter);
+            receiverRegistered = true;
+        }
+        alarmIntent = PendingIntent.getBroadcast(context, 0, new Intent(ACTION_KEEPALIVE), 0);
+
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                loadNetworkState();
+                scheduleNext(System.currentTimeMillis());
+            }
+        });
+    }
+
+    /**
+     * Stop pinging (logout / disconnect)
+     */
+    public synchronized void stop() {
+        if (alarmIntent != null) {
+            alarmManager.cancel(alarmIntent);
+        }
+        if (receiverRegistered) {
+            context.unregisterReceiver(receiver);
+            receiverRegistered = false;
+        }
+        if (connection != null) {
+            connection.removePacketSendingListener(sendingListener);
+            connection = null;
+        }
+        worker.removeCallbacksAndMessages(null);
+        nextPingAt = 0;
+    }
+
+    /**
+     * Connection dropped with an error; if it was idle longer than the last proven
+     * interval, the NAT most likely timed out, so don't probe that far again
+     */
+    public void onConnectionLost() {
+        final long idleMs = System.currentTimeMillis() - lastActivity();
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                if (idleMs > lastGoodSeconds * 1000L && idleMs < intervalSeconds * 2000L) {
+                    Log.d(TAG, "Connection lost after " + (idleMs / 1000) + "s idle, lowering interval");
+                    lowerInterval();
+                }
+            }
+        });
+    }
+
+    // ===== Stats =====
+
+    /**
+     * Currently chosen ping interval in seconds
+     */
+    public int getIntervalSeconds() {
+        return intervalSeconds;
+    }
+
+    /**
+     * Longest interval that has been confirmed to work on this network
+     */
+    public int getLastGoodSeconds() {
+        return lastGoodSeconds;
+    }
+
+    /**
+     * Alarm wakeups in the last hour (including ones that found recent traffic and just rescheduled)
+     */
+    public synchronized int getWakeupsPerHour() {
+        trim(wakeups);
+        return wakeups.size();
+    }
+
+    /**
+     * Pings actually sent in the last hour (each one powers up the radio)
+     */
+    public synchronized int getPingsPerHour() {
+        trim(pings);
+        return pings.size();
+    }
+
+    public String getNetworkKey() {
+        return networkKey;
+    }
+
+    private void trim(LinkedList<Long> timestamps) {
+        long cutoff = System.currentTimeMillis() - 60 * 60 * 1000;
+        while (!timestamps.isEmpty() && timestamps.getFirst() < cutoff) {
+            timestamps.removeFirst();
+        }
+    }
+
+    private synchronized void record(LinkedList<Long> timestamps) {
+        timestamps.addLast(System.currentTimeMillis());
+        trim(timestamps);
+    }
+
+    // ===== Scheduling =====
+
+    private long lastActivity() {
+        long received = 0;
+        AbstractXMPPConnection conn = connection;
+        if (conn != null) {
+            received = conn.getLastStanzaReceived();
+        }
+        return Math.max(received, lastSentAt);
+    }
+
+    private void scheduleNext(long from) {
+        nextPingAt = from + intervalSeconds * 1000L;
+        synchronized (this) {
+            if (alarmIntent != null) {
+                alarmManager.set(AlarmManager.RTC_WAKEUP, nextPingAt, alarmIntent);
+            }
+        }
+    }
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (ACTION_KEEPALIVE.equals(intent.getAction())) {
+                record(wakeups);
+                // Keep the CPU up until the ping is answered
+                wakeLock.acquire(PING_TIMEOUT_MS + 5000);
+                worker.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            onAlarm(false);
+                        } finally {
+                            wakeLock.release();
+                        }
+                    }
+                });
+            } else if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+                worker.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onAlarm(true);
+                    }
+                });
+            }
+        }
+    };
+
+    private final StanzaListener sendingListener = new StanzaListener() {
+        @Override
+        public void processPacket(Stanza packet) {
+            lastSentAt = System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @param opportunistic device is awake anyway; only ping if one is nearly due
+     */
+    private void onAlarm(boolean opportunistic) {
+        AbstractXMPPConnection conn = connection;
+        if (conn == null || !conn.isAuthenticated()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long activity = lastActivity();
+        long idleMs = now - activity;
+        long intervalMs = intervalSeconds * 1000L;
+
+        if (opportunistic) {
+            if (nextPingAt == 0 || nextPingAt - now > intervalMs * EARLY_PING_FRACTION) {
+                return;
+            }
+            Log.d(TAG, "Screen on and ping due in " + ((nextPingAt - now) / 1000) + "s, pinging now");
+        } else if (idleMs < intervalMs - 1000) {
+            // Traffic kept the connection warm, no ping needed yet
+            scheduleNext(activity);
+            return;
+        }
+
+        record(pings);
+        boolean success;
+        try {
+            success = PingManager.getInstanceFor(conn).pingMyServer(false, PING_TIMEOUT_MS);
+        } catch (Exception e) {
+            Log.w(TAG, "Ping failed: " + e.getMessage());
+            success = false;
+        }
+
+        if (success) {
+            onPingSuccess(idleMs);
+            scheduleNext(System.currentTimeMillis());
+        } else {
+            Log.w(TAG, "No ping reply after " + (idleMs / 1000) + "s idle at interval " + intervalSeconds + "s");
+            lowerInterval();
+            FailureListener listener = failureListener;
+            if (listener != null) {
+                listener.onKeepAliveFailed();
+            }
+        }
+    }
+
+    private void onPingSuccess(long idleMs) {
+        int idleSeconds = (int) (idleMs / 1000);
+        if (idleSeconds > lastGoodSeconds) {
+            lastGoodSeconds = Math.min(idleSeconds, MAX_INTERVAL_S);
+        }
+
+        consecutiveSuccesses++;
+        if (consecutiveSuccesses >= SUCCESSES_BEFORE_PROBE && intervalSeconds < MAX_INTERVAL_S) {
+            int next = Math.min(MAX_INTERVAL_S, (int) (intervalSeconds * PROBE_FACTOR));
+            if (next < ceilingSeconds) {
+                Log.d(TAG, "Probing longer interval: " + intervalSeconds + "s -> " + next + "s");
+                intervalSeconds = next;
+            }
+            consecutiveSuccesses = 0;
+        }
+        saveNetworkState(false);
+    }
+
+    private void lowerInterval() {
+        ceilingSeconds = Math.min(ceilingSeconds, intervalSeconds);
+        intervalSeconds = Math.max(MIN_INTERVAL_S, Math.min(lastGoodSeconds, intervalSeconds / 2));
+        lastGoodSeconds = Math.min(lastGoodSeconds, intervalSeconds);
+        consecutiveSuccesses = 0;
+        Log.d(TAG, "Keepalive interval now " + intervalSeconds + "s (ceiling " + ceilingSeconds + "s)");
+        saveNetworkState(true);
+    }
+
+    // ===== Per-network persistence =====
+
+    /**
+     * NAT timeouts differ per network, so learned intervals are stored per Wi-Fi SSID / mobile APN
+     */
+    private String currentNetworkKey() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        if (info == null) {
+            return "none";
+        }
+        if (info.getType() == ConnectivityManager.TYPE_WIFI) {
+            WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+            WifiInfo wifiInfo = wifi != null ? wifi.getConnectionInfo() : null;
+            return "wifi_" + (wifiInfo != null ? wifiInfo.getSSID() : "unknown");
+        }
+        return info.getTypeName().toLowerCase() + "_" + info.getExtraInfo();
+    }
+
+    private void loadNetworkState() {
+        networkKey = currentNetworkKey();
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        intervalSeconds = prefs.getInt(PREF_INTERVAL + networkKey, INITIAL_INTERVAL_S);
+        lastGoodSeconds = prefs.getInt(PREF_LAST_GOOD + networkKey, MIN_INTERVAL_S);
+        ceilingSeconds = Integer.MAX_VALUE;
+        long ceilingAt = prefs.getLong(PREF_CEILING_AT + networkKey, 0);
+        if (System.currentTimeMillis() - ceilingAt < CEILING_TTL_MS) {
+            ceilingSeconds = prefs.getInt(PREF_CEILING + networkKey, Integer.MAX_VALUE);
+        }
+        consecutiveSuccesses = 0;
+        Log.d(TAG, "Network " + networkKey + ": starting at " + intervalSeconds + "s");
+    }
+
+    private void saveNetworkState(boolean ceilingChanged) {
+        SharedPreferences.Editor editor = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
+        editor.putInt(PREF_INTERVAL + networkKey, intervalSeconds);
+        editor.putInt(PREF_LAST_GOOD + networkKey, lastGoodSeconds);
+        if (ceilingChanged) {
+            editor.putInt(PREF_CEILING + networkKey, ceilingSeconds);
+            editor.putLong(PREF_CEILING_AT + networkKey, System.currentTimeMillis());
+        }
+        editor.apply();
+    }
+}
@@ -30,6 +30,8 @@ public class MainActivity extends Activity {
 
     private XMPPManager xmppManager;
     private WhatsAppManager whatsAppManager;
+    private ConnectionStateMachine connectionStateMachine;
+    private boolean manualLogin = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -40,6 +42,7 @@ public class MainActivity extends Activity {
         xmppManager.initialize(this);  // Initialize with context for database
 
         whatsAppManager = WhatsAppManager.getInstance();
+        connectionStateMachine = ConnectionStateMachine.getInstance(this);
 
         // Initialize emoji system with Twemoji assets
         EmojiData.initializeEmojis(this);
@@ -66,39 +69,55 @@ public class MainActivity extends Activity {
         String savedServer = prefs.getString(PREF_SERVER, "");
 
         if (!savedUsername.isEmpty() && !savedPassword.isEmpty() && !savedServer.isEmpty()) {
-            // Wait a bit for the service to authenticate, then check
-            new android.os.Handler().postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (xmppManager.isAuthenticated()) {
-                        // Already authenticated, go to main tabs
-                        Intent intent = new Intent(MainActivity.this, MainTabsActivity.class);
-                        startActivity(intent);
-                        finish();
-                    } else {
-                        // Not authenticated yet, check again in 2 seconds
-                        checkAuthenticationStatus();
-                    }
-                }
-            }, 2000);
+            // The service's state machine is logging in; go to main tabs once it's connected
+            if (connectionStateMachine.getState() == ConnectionStateMachine.State.CONNECTED) {
+                openContactsActivity();
+            } else {
+                connectionStateMachine.addStateListener(stateListener);
+            }
         }
     }
 
-    private void checkAuthenticationStatus() {
-        new android.os.Handler().postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (xmppManager.isAuthenticated()) {
-                    Intent intent = new Intent(MainActivity.this, MainTabsActivity.class);
-                    startActivity(intent);
-                    finish();
-                } else {
-                    // Keep checking every 2 seconds
-                    checkAuthenticationStatus();
-                }
+    /**
+     * Follows the connection state machine for both auto-login and the Connect button
+     */
+    private final ConnectionStateMachine.StateListener stateListener = new ConnectionStateMachine.StateListener() {
+        @Override
+        public void onStateChanged(ConnectionStateMachine.State state, String detail) {
+            switch (state) {
+                case CONNECTING:
+                    if (manualLogin) {
+                        progressDialog.setMessage("Connecting to XMPP server...");
+                    }
+                    break;
+                case AUTHENTICATING:
+                    if (manualLogin) {
+                        progressDialog.setMessage("Logging in...");
+                    }
+                    break;
+                case CONNECTED:
+                    if (manualLogin) {
+                        progressDialog.dismiss();
+                        Toast.makeText(MainActivity.this, "Connected successfully!", Toast.LENGTH_SHORT).show();
+                    }
+                    // Go directly to contacts since user is already registered in gateway
+                    openContactsActivity();
+                    break;
+                case BACKOFF:
+                case WAITING_FOR_NETWORK:
+                    if (manualLogin) {
+                        // Keeps retrying in the background, but tell the user why it failed
+                        manualLogin = false;
+                        progressDialog.dismiss();
+                        String error = detail.isEmpty() ? "No network" : detail;
+                        Toast.makeText(MainActivity.this, "Connection error: " + error, Toast.LENGTH_LONG).show();
+                    }
+                    break;
+                default:
+                    break;
             }
-        }, 2000);
-    }
+        }
+    };
 
     private void initializeViews() {
         etServer = (EditText) findViewById(R.id.etServer);
@@ -176,9 +195,8 @@ public class MainActivity extends Activity {
             return;
         }
 
-        final int port;
         try {
-            port = Integer.parseInt(portStr);
+            Integer.parseInt(portStr);
         } catch (NumberFormatException e) {
             Toast.makeText(this, "Invalid port number", Toast.LENGTH_SHORT).show();
             return;
@@ -190,55 +208,10 @@ public class MainActivity extends Activity {
         progressDialog.setMessage("Connecting to XMPP server...");
         progressDialog.show();
 
-        xmppManager.connect(server, port, domain, new XMPPManager.ConnectionCallback() {
-            @Override
-            public void onConnected() {
-                progressDialog.setMessage("Logging in...");
-                xmppManager.login(username, password, new XMPPManager.ConnectionCallback() {
-                    @Override
-                    public void onConnected() {
-                        // Not used in login
-                    }
-
-                    @Override
-                    public void onAuthenticated() {
-                        progressDialog.dismiss();
-                        Toast.makeText(MainActivity.this, "Connected successfully!", Toast.LENGTH_SHORT).show();
-                        // Go directly to contacts since user is already registered in gateway
-                        openContactsActivity();
-                    }
-
-                    @Override
-                    public void onDisconnected() {
-                        progressDialog.dismiss();
-                        Toast.makeText(MainActivity.this, "Disconnected", Toast.LENGTH_SHORT).show();
-                    }
-
-                    @Override
-                    public void onError(String error) {
-                        progressDialog.dismiss();
-                        Toast.makeText(MainActivity.this, "Login error: " + error, Toast.LENGTH_LONG).show();
-                    }
-                });
-            }
-
-            @Override
-            public void onAuthenticated() {
-                // Not used in connect
-            }
-
-            @Override
-            public void onDisconnected() {
-                progressDialog.dismiss();
-                Toast.makeText(MainActivity.this, "Disconnected", Toast.LENGTH_SHORT).show();
-            }
-
-            @Override
-            public void onError(String error) {
-                progressDialog.dismiss();
-                Toast.makeText(MainActivity.this, "Connection error: " + error, Toast.LENGTH_LONG).show();
-            }
-        });
+        // Single owner of the connection: restarts with the new settings and keeps it alive
+        manualLogin = true;
+        connectionStateMachine.addStateListener(stateListener);
+        connectionStateMachine.connectNow();
     }
 
     private void connectAndRegister() {
@@ -269,6 +242,10 @@ public class MainActivity extends Activity {
         progressDialog.setMessage("Connecting to XMPP server...");
         progressDialog.show();
 
+        // Stop background reconnects while we open the registration connection
+        connectionStateMachine.removeStateListener(stateListener);
+        connectionStateMachine.stop();
+
         xmppManager.connect(server, port, domain, new XMPPManager.ConnectionCallback() {
             @Override
             public void onConnected() {
@@ -282,6 +259,8 @@ public class MainActivity extends Activity {
                     @Override
                     public void onAuthenticated() {
                         progressDialog.dismiss();
+                        // Hand the logged-in connection to the state machine so it stays up
+                        connectionStateMachine.adoptCurrentConnection();
                         Toast.makeText(MainActivity.this, "Account registered successfully!", Toast.LENGTH_SHORT).show();
                         openQRCodeActivity();
                     }
@@ -325,6 +304,7 @@ public class MainActivity extends Activity {
     }
 
     private void openContactsActivity() {
+        connectionStateMachine.removeStateListener(stateListener);
         Intent intent = new Intent(this, MainTabsActivity.class);
         startActivity(intent);
         finish(); // Close login screen
@@ -333,6 +313,9 @@ public class MainActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (connectionStateMachine != null) {
+            connectionStateMachine.removeStateListener(stateListener);
+        }
         if (progressDialog != null && progressDialog.isShowing()) {
             progressDialog.dismiss();
         }
@@ -432,7 +415,18 @@ public class MainActivity extends Activity {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                final boolean success = DatabaseHelper.migrateDatabase(MainActivity.this, newLocation, customPath);
+                final boolean success = xmppManager.migrateDatabase(newLocation, customPath,
+                        new DatabaseHelper.MigrationListener() {
+                            @Override
+                            public void onMigrationProgress(final String step, final int percent) {
+                                runOnUiThread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        progressDialog.setMessage("Migrating database...\n" + step + " " + percent + "%");
+                                    }
+                                });
+                            }
+                        });
 
                 runOnUiThread(new Runnable() {
                     @Override
@@ -20,7 +20,6 @@ import android.widget.Toast;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -31,6 +30,7 @@ import java.util.Map;
  */
 public class MainTabsActivity extends Activity implements XMPPManager.MessageCallback {
     private static final String TAG = "MainTabsActivity";
+    private static final Metrics.Histogram CHAT_BIND_TIME = Metrics.histogram("ui.bind_chat");
 
     // Track currently open chat to prevent notifications
     public static String currentOpenChatJid = null;
@@ -72,7 +72,7 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
         xmppManager = XMPPManager.getInstance();
         whatsAppManager = WhatsAppManager.getInstance();
         databaseHelper = new DatabaseHelper(this);
-        notificationHelper = new NotificationHelper(this);
+        notificationHelper = NotificationHelper.getInstance(this);
 
         // Ensure XMPP foreground service is running (critical for BB10 notifications)
         Intent serviceIntent = new Intent(this, XMPPService.class);
@@ -86,6 +86,9 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
         xmppManager.setMessageCallback(this);
 
         // Start connection status monitoring
+        ConnectionStateMachine.getInstance(this).addStateListener(connectionStateListener);
+        RosterCache.getInstance(this).addRosterChangeListener(rosterChangeListener);
+        MamSyncManager.getInstance(this).addSyncListener(syncListener);
         startConnectionMonitoring();
 
         // Show chats by default
@@ -220,6 +223,7 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
             @Override
             public void run() {
                 final List<ChatItem> loadedChats = getRecentChats();
+                final int totalUnread = getTotalUnread();
 
                 runOnUiThread(new Runnable() {
                     @Override
@@ -227,6 +231,7 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
                         chats.clear();
                         chats.addAll(loadedChats);
                         filterChats(etSearchChats.getText().toString());
+                        btnChatsTab.setText(totalUnread > 0 ? "Chats (" + totalUnread + ")" : "Chats");
                     }
                 });
             }
@@ -264,12 +269,11 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
             Map<String, DatabaseHelper.MessageRecord> lastMessages =
                 databaseHelper.getLastMessagePerContact();
 
-            // Get all contacts from roster (cached)
-            List<XMPPManager.Contact> allContacts = xmppManager.getContacts();
-            Map<String, XMPPManager.Contact> contactMap = new HashMap<>();
-            for (XMPPManager.Contact contact : allContacts) {
-                contactMap.put(contact.jid, contact);
-            }
+            // Unread counters of all chats in one query
+            Map<String, Integer> unreadCounts = databaseHelper.getUnreadCounts();
+
+            // Contacts keyed by JID (in-memory roster cache)
+            Map<String, XMPPManager.Contact> contactMap = RosterCache.getInstance(this).getContactMap();
 
             // Build chat items from last messages
             for (Map.Entry<String, DatabaseHelper.MessageRecord> entry : lastMessages.entrySet()) {
@@ -281,13 +285,9 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
                 item.lastMessage = lastMsg.body;
                 item.timestamp = lastMsg.timestamp;
 
-                // Count unread messages (received messages from this contact)
                 // If this chat is currently open, unread count is 0
-                if (jid.equals(currentOpenChatJid)) {
-                    item.unreadCount = 0;
-                } else {
-                    item.unreadCount = countUnreadMessages(jid);
-                }
+                Integer unread = unreadCounts.get(jid);
+                item.unreadCount = unread == null || jid.equals(currentOpenChatJid) ? 0 : unread;
 
                 // Get contact info from roster
                 XMPPManager.Contact contact = contactMap.get(jid);
@@ -323,12 +323,11 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
     }
 
     /**
-     * Count unread messages for a contact
-     * Uses database is_read flag to track which messages have been read
+     * Unread messages over all chats, for the tab label
      */
-    private int countUnreadMessages(String contactJid) {
+    private int getTotalUnread() {
         try {
-            return databaseHelper.countUnreadMessages(contactJid);
+            return databaseHelper.getTotalUnreadCount();
         } catch (Exception e) {
             android.util.Log.e(TAG, "Error counting unread messages", e);
             return 0;
@@ -386,7 +385,11 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
 
         popup.getMenu().add(0, 1, 0, "Refresh");
         popup.getMenu().add(0, 2, 1, "Database Settings");
-        popup.getMenu().add(0, 3, 2, "Logout");
+        popup.getMenu().add(0, 6, 1, "Message Retention");
+        popup.getMenu().add(0, 7, 1, "Backup & Restore");
+        popup.getMenu().add(0, 4, 2, "Connection Info");
+        popup.getMenu().add(0, 5, 3, "Performance Metrics");
+        popup.getMenu().add(0, 3, 4, "Logout");
 
         popup.setOnMenuItemClickListener(new android.widget.PopupMenu.OnMenuItemClickListener() {
             @Override
@@ -403,6 +406,18 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
                     case 3: // Logout
                         logout();
                         return true;
+                    case 4: // Connection Info
+                        showConnectionInfo();
+                        return true;
+                    case 5: // Performance Metrics
+                        showMetrics();
+                        return true;
+                    case 6: // Message Retention
+                        showRetentionSettings();
+                        return true;
+                    case 7: // Backup & Restore
+                        showBackupDialog();
+                        return true;
                     default:
                         return false;
                 }
@@ -420,7 +435,7 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
             @Override
             public void onLogoutSuccess() {
                 progressDialog.dismiss();
-                xmppManager.disconnect();
+                ConnectionStateMachine.getInstance(MainTabsActivity.this).stop();
                 Toast.makeText(MainTabsActivity.this, "Logged out", Toast.LENGTH_SHORT).show();
                 finish();
             }
@@ -460,15 +475,78 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
      * Update connection status indicator
      */
     private void updateConnectionStatus() {
-        boolean isConnected = xmppManager.isAuthenticated();
+        ConnectionStateMachine stateMachine = ConnectionStateMachine.getInstance(this);
 
-        if (isConnected) {
-            tvConnectionStatus.setText("Connected");
-            tvConnectionStatus.setTextColor(0xFFAAFFAA); // Light green
-        } else {
-            tvConnectionStatus.setText("Disconnected");
-            tvConnectionStatus.setTextColor(0xFFFFAAAA); // Light red
+        switch (stateMachine.getState()) {
+            case CONNECTED:
+                tvConnectionStatus.setText("Connected");
+                tvConnectionStatus.setTextColor(0xFFAAFFAA); // Light green
+                break;
+            case CONNECTING:
+            case AUTHENTICATING:
+                tvConnectionStatus.setText("Connecting...");
+                tvConnectionStatus.setTextColor(0xFFFFFFAA); // Light yellow
+                break;
+            case BACKOFF:
+                long seconds = (stateMachine.getRetryDelay() + 999) / 1000;
+                tvConnectionStatus.setText("Reconnecting in " + seconds + "s");
+                tvConnectionStatus.setTextColor(0xFFFFAAAA); // Light red
+                break;
+            case WAITING_FOR_NETWORK:
+                tvConnectionStatus.setText("Waiting for network");
+                tvConnectionStatus.setTextColor(0xFFFFAAAA);
+                break;
+            default:
+                tvConnectionStatus.setText("Disconnected");
+                tvConnectionStatus.setTextColor(0xFFFFAAAA);
+                break;
+        }
+    }
+
+    private final ConnectionStateMachine.StateListener connectionStateListener = new ConnectionStateMachine.StateListener() {
+        @Override
+        public void onStateChanged(ConnectionStateMachine.State state, String detail) {
+            updateConnectionStatus();
+            if (state == ConnectionStateMachine.State.CONNECTED) {
+                // Back online - pick up anything that arrived meanwhile
+                loadChats();
+                loadContacts();
+            }
+        }
+    };
+
+    private final RosterCache.RosterChangeListener rosterChangeListener = new RosterCache.RosterChangeListener() {
+        @Override
+        public void onRosterChanged() {
+            loadContacts();
+            applyRosterToChats();
+        }
+    };
+
+    private final MamSyncManager.SyncListener syncListener = new MamSyncManager.SyncListener() {
+        @Override
+        public void onSyncComplete(int newMessages, List<DatabaseHelper.MessageRecord> unread) {
+            // Messages that arrived while we were offline are now in the database
+            for (DatabaseHelper.MessageRecord record : unread) {
+                notifyMessage(record.contactJid, record.body);
+            }
+            loadChats();
         }
+    };
+
+    /**
+     * Refresh names and online dots of the chat list without re-querying the database
+     */
+    private void applyRosterToChats() {
+        Map<String, XMPPManager.Contact> contactMap = RosterCache.getInstance(this).getContactMap();
+        for (ChatItem item : chats) {
+            XMPPManager.Contact contact = contactMap.get(item.contactJid);
+            if (contact != null) {
+                item.contactName = contact.name;
+                item.isOnline = contact.isOnline;
+            }
+        }
+        chatsAdapter.notifyDataSetChanged();
     }
 
     @Override
@@ -485,6 +563,9 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
         super.onDestroy();
 
         // Stop connection monitoring
+        ConnectionStateMachine.getInstance(this).removeStateListener(connectionStateListener);
+        RosterCache.getInstance(this).removeRosterChangeListener(rosterChangeListener);
+        MamSyncManager.getInstance(this).removeSyncListener(syncListener);
         if (connectionCheckHandler != null && connectionCheckRunnable != null) {
             connectionCheckHandler.removeCallbacks(connectionCheckRunnable);
         }
@@ -496,9 +577,20 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
 
     // MessageCallback implementation
     @Override
-    public void onMessageReceived(String from, String message, boolean isSent) {
-        android.util.Log.d(TAG, "onMessageReceived: from=" + from + ", isSent=" + isSent + ", msg=" + message.substring(0, Math.min(50, message.length())));
+    public void onMessageReceived(String from, String message, MessageContent content, boolean isSent) {
+        android.util.Log.d(TAG, "onMessageReceived: from=" + from + ", isSent=" + isSent);
+
+        notifyMessage(from, message);
 
+        // Refresh chats list when new message arrives (once per burst, not per message)
+        chatsRefreshHandler.removeCallbacks(chatsRefreshRunnable);
+        chatsRefreshHandler.postDelayed(chatsRefreshRunnable, 300);
+    }
+
+    /**
+     * Notify about a received message, unless its chat is open (batched per chat by the helper)
+     */
+    private void notifyMessage(String from, String message) {
         // Extract contact name from JID
         String contactName = from;
         if (from.contains("@")) {
@@ -518,16 +610,18 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
 
         // Show notification only if chat is not currently open
         if (currentOpenChatJid == null || !from.startsWith(currentOpenChatJid)) {
-            android.util.Log.d(TAG, "Showing notification for: " + contactName);
             notificationHelper.showMessageNotification(from, contactName, message);
-        } else {
-            android.util.Log.d(TAG, "NOT showing notification - chat is open: " + currentOpenChatJid);
         }
-
-        // Refresh chats list when new message arrives
-        loadChats();
     }
 
+    private final android.os.Handler chatsRefreshHandler = new android.os.Handler();
+    private final Runnable chatsRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            loadChats();
+        }
+    };
+
     @Override
     public void onMessageSent() {
         // Refresh chats list after sending
@@ -562,6 +656,7 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
+            long bindStart = Metrics.now();
             View view = convertView;
             if (view == null) {
                 view = getLayoutInflater().inflate(R.layout.item_chat, parent, false);
@@ -590,7 +685,7 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
             // Set last message
             tvLastMessage.setText(chat.lastMessage);
 
-            // Set unread badge (TODO: implement unread counting)
+            // Unread badge, from the conversations counters
             if (chat.unreadCount > 0) {
                 tvUnreadBadge.setText(String.valueOf(chat.unreadCount));
                 tvUnreadBadge.setVisibility(View.VISIBLE);
@@ -598,6 +693,7 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
                 tvUnreadBadge.setVisibility(View.GONE);
             }
 
+            CHAT_BIND_TIME.recordSince(bindStart);
             return view;
         }
 
@@ -764,7 +860,18 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
         new Thread(new Runnable() {
             @Override
             public void run() {
-                final boolean success = DatabaseHelper.migrateDatabase(MainTabsActivity.this, newLocation, customPath);
+                final boolean success = xmppManager.migrateDatabase(newLocation, customPath,
+                        new DatabaseHelper.MigrationListener() {
+                            @Override
+                            public void onMigrationProgress(final String step, final int percent) {
+                                runOnUiThread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        progressDialog.setMessage("Migrating database...\n" + step + " " + percent + "%");
+                                    }
+                                });
+                            }
+                        });
 
                 runOnUiThread(new Runnable() {
                     @Override
@@ -772,8 +879,11 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
                         progressDialog.dismiss();
 
                         if (success) {
+                            // Own helper still points at the old path
+                            databaseHelper.close();
+                            databaseHelper = new DatabaseHelper(MainTabsActivity.this);
                             Toast.makeText(MainTabsActivity.this,
-                                "Database migrated successfully! Restart app to apply changes.",
+                                "Database migrated successfully!",
                                 Toast.LENGTH_LONG).show();
                         } else {
                             Toast.makeText(MainTabsActivity.this,
@@ -823,4 +933,283 @@ public class MainTabsActivity extends Activity implements XMPPManager.MessageCal
         builder.setPositiveButton("OK", null);
         builder.show();
     }
+
+    /**
+     * Retention policies (0 = keep everything); applied in the background while idle or charging
+     */
+    private void showRetentionSettings() {
+        final android.content.SharedPreferences prefs = getSharedPreferences("WhatsberryPrefs", MODE_PRIVATE);
+        final RetentionManager retention = RetentionManager.getInstance(this);
+
+        android.widget.LinearLayout layout = new android.widget.LinearLayout(this);
+        layout.setOrientation(android.widget.LinearLayout.VERTICAL);
+        int padding = (int) (16 * getResources().getDisplayMetrics().density);
+        layout.setPadding(padding, padding / 2, padding, 0);
+
+        final android.widget.EditText archiveAfter = addRetentionField(layout, "Move to archive after (days)",
+                prefs.getInt(RetentionManager.PREF_ARCHIVE_AFTER_DAYS, RetentionManager.DEFAULT_ARCHIVE_AFTER_DAYS));
+        final android.widget.EditText maxAge = addRetentionField(layout, "Delete messages older than (days)",
+                prefs.getInt(RetentionManager.PREF_MAX_AGE_DAYS, 0));
+        final android.widget.EditText perContact = addRetentionField(layout, "Keep per chat (messages)",
+                prefs.getInt(RetentionManager.PREF_KEEP_PER_CONTACT, 0));
+        final android.widget.EditText maxSize = addRetentionField(layout, "Maximum database size (MB)",
+                prefs.getInt(RetentionManager.PREF_MAX_SIZE_MB, 0));
+
+        String last = retention.getLastSummary();
+        DatabaseHelper db = xmppManager.getDatabaseHelper();
+        android.widget.TextView info = new android.widget.TextView(this);
+        info.setText("0 = no limit. Archived messages stay readable and searchable. " +
+                "Runs while the phone is idle or charging.\n\nArchive: " +
+                (db != null ? db.getArchiveSummary() : "not available") + "\nLast run: " +
+                (retention.isRunning() ? "running now" : last != null ? last : "never"));
+        info.setPadding(0, padding / 2, 0, 0);
+        layout.addView(info);
+
+        android.app.AlertDialog.Builder builder = new android.app.AlertDialog.Builder(this);
+        builder.setTitle("Message Retention");
+        builder.setView(layout);
+        builder.setPositiveButton("Save", new android.content.DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(android.content.DialogInterface dialog, int which) {
+                saveRetentionSettings(prefs, archiveAfter, maxAge, perContact, maxSize);
+                Toast.makeText(MainTabsActivity.this, "Retention settings saved", Toast.LENGTH_SHORT).show();
+            }
+        });
+        builder.setNeutralButton("Save & Run Now", new android.content.DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(android.content.DialogInterface dialog, int which) {
+                saveRetentionSettings(prefs, archiveAfter, maxAge, perContact, maxSize);
+                progressDialog.setMessage("Cleaning up messages...");
+                progressDialog.show();
+                retention.runNow(new RetentionManager.Listener() {
+                    @Override
+                    public void onRetentionFinished(String summary) {
+                        progressDialog.dismiss();
+                        Toast.makeText(MainTabsActivity.this, summary, Toast.LENGTH_LONG).show();
+                        loadChats();
+                    }
+                });
+            }
+        });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
+    private android.widget.EditText addRetentionField(android.widget.LinearLayout layout, String label, int value) {
+        android.widget.TextView title = new android.widget.TextView(this);
+        title.setText(label);
+        layout.addView(title);
+
+        android.widget.EditText input = new android.widget.EditText(this);
+        input.setInputType(android.text.InputType.TYPE_CLASS_NUMBER);
+        input.setText(String.valueOf(value));
+        layout.addView(input);
+        return input;
+    }
+
+    private void saveRetentionSettings(android.content.SharedPreferences prefs, android.widget.EditText archiveAfter,
+                                       android.widget.EditText maxAge, android.widget.EditText perContact,
+                                       android.widget.EditText maxSize) {
+        prefs.edit()
+            .putInt(RetentionManager.PREF_ARCHIVE_AFTER_DAYS, parseLimit(archiveAfter))
+            .putInt(RetentionManager.PREF_MAX_AGE_DAYS, parseLimit(maxAge))
+            .putInt(RetentionManager.PREF_KEEP_PER_CONTACT, parseLimit(perContact))
+            .putInt(RetentionManager.PREF_MAX_SIZE_MB, parseLimit(maxSize))
+            .apply();
+    }
+
+    private int parseLimit(android.widget.EditText input) {
+        try {
+            return Math.max(0, Integer.parseInt(input.getText().toString().trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Show keepalive statistics (battery vs. latency trade-off)
+     */
+    private void showConnectionInfo() {
+        KeepAliveManager keepAlive = KeepAliveManager.getInstance(this);
+        int interval = keepAlive.getIntervalSeconds();
+        ClientStateManager clientState = ClientStateManager.getInstance(this);
+
+        String message = "Network: " + keepAlive.getNetworkKey() + "\n\n" +
+                        "Ping interval: " + interval + " s\n" +
+                        "Longest confirmed idle: " + keepAlive.getLastGoodSeconds() + " s\n\n" +
+                        "Wakeups (last hour): " + keepAlive.getWakeupsPerHour() + "\n" +
+                        "Pings sent (last hour): " + keepAlive.getPingsPerHour() + "\n" +
+                        "Max wakeups/hour at this interval: " + (3600 / interval) + "\n" +
+                        "(The old fixed 30 s ping woke the device 120 times/hour)\n\n" +
+                        "TLS handshakes: " + TLSSocketFactory.getHandshakeCount() +
+                        " (" + TLSSocketFactory.getResumedHandshakeCount() + " resumed)\n" +
+                        "Last handshake: " + (TLSSocketFactory.getLastHandshakeMillis() < 0 ? "-" :
+                        TLSSocketFactory.getLastHandshakeMillis() + " ms" +
+                        (TLSSocketFactory.wasLastHandshakeResumed() ? " (resumed)" : "")) + "\n" +
+                        "Lowest TLS version: " + (TLSSocketFactory.isTls10Allowed() ? "1.0 (fallback on)" : "1.1") + "\n\n" +
+                        "Client state: " + (clientState.isActive() ? "active" : "inactive") +
+                        " (" + clientState.getIndicationsSent() + " changes sent)";
+
+        android.app.AlertDialog.Builder builder = new android.app.AlertDialog.Builder(this);
+        builder.setTitle("Connection Information");
+        builder.setMessage(message);
+        builder.setPositiveButton("OK", null);
+        // Only for servers that can't do TLS 1.1; applies from the next connection
+        final boolean tls10 = TLSSocketFactory.isTls10Allowed();
+        builder.setNeutralButton(tls10 ? "Disable TLS 1.0" : "Allow TLS 1.0", new android.content.DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(android.content.DialogInterface dialog, int which) {
+                getSharedPreferences("WhatsberryPrefs", MODE_PRIVATE).edit()
+                    .putBoolean(TLSSocketFactory.PREF_ALLOW_TLS10, !tls10)
+                    .apply();
+                TLSSocketFactory.setAllowTls10(!tls10);
+                Toast.makeText(MainTabsActivity.this, (tls10 ? "TLS 1.0 disabled" : "TLS 1.0 allowed") +
+                        ", applies on the next connection", Toast.LENGTH_LONG).show();
+            }
+        });
+        builder.show();
+    }
+
+    /**
+     * Export all messages to a backup file on the SD card, or import one (e.g. copied from
+     * another device). Exporting again to the same file only appends what is new.
+     */
+    private void showBackupDialog() {
+        final java.io.File file = new java.io.File(
+                new java.io.File(android.os.Environment.getExternalStorageDirectory(), "Whatsberry"),
+                MessageBackup.FILE_NAME);
+
+        android.widget.LinearLayout layout = new android.widget.LinearLayout(this);
+        layout.setOrientation(android.widget.LinearLayout.VERTICAL);
+        int padding = (int) (16 * getResources().getDisplayMetrics().density);
+        layout.setPadding(padding, padding / 2, padding, 0);
+
+        android.widget.TextView info = new android.widget.TextView(this);
+        info.setText("Backup file:\n" + file.getAbsolutePath() + "\n\n" + (file.exists() ?
+                (file.length() / 1024) + " KB. Export adds new messages to it." : "No backup yet."));
+        layout.addView(info);
+
+        final android.widget.CheckBox includeMedia = new android.widget.CheckBox(this);
+        includeMedia.setText("Include media links (new backup only)");
+        includeMedia.setChecked(true);
+        layout.addView(includeMedia);
+
+        android.app.AlertDialog.Builder builder = new android.app.AlertDialog.Builder(this);
+        builder.setTitle("Backup & Restore");
+        builder.setView(layout);
+        builder.setPositiveButton("Export", new android.content.DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(android.content.DialogInterface dialog, int which) {
+                runBackup(file, true, includeMedia.isChecked());
+            }
+        });
+        if (file.exists()) {
+            builder.setNeutralButton("Import", new android.content.DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(android.content.DialogInterface dialog, int which) {
+                    runBackup(file, false, false);
+                }
+            });
+        }
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
+    private void runBackup(final java.io.File file, final boolean export, final boolean includeMedia) {
+        final DatabaseHelper db = xmppManager.getDatabaseHelper();
+        if (db == null) {
+            Toast.makeText(this, "Database not available", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final String title = export ? "Exporting messages..." : "Importing messages...";
+        progressDialog.setMessage(title);
+        progressDialog.show();
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MessageBackup.Listener listener = new MessageBackup.Listener() {
+                    @Override
+                    public void onBackupProgress(final long messages, final int percent) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                progressDialog.setMessage(title + "\n" + messages + " messages, " + percent + "%");
+                            }
+                        });
+                    }
+                };
+                String result;
+                try {
+                    if (export) {
+                        result = "Exported " + MessageBackup.export(db, file, includeMedia, listener) + " messages";
+                    } else {
+                        result = "Imported " + MessageBackup.importFrom(db, file, listener) + " messages";
+                    }
+                } catch (Exception e) {
+                    android.util.Log.e(TAG, "Backup failed", e);
+                    result = (export ? "Export" : "Import") + " failed: " + e.getMessage();
+                }
+                final String message = result;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        progressDialog.dismiss();
+                        Toast.makeText(MainTabsActivity.this, message, Toast.LENGTH_LONG).show();
+                        if (!export) {
+                            loadChats();
+                        }
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Debug view of the hot-path metrics, with export to a text file on the SD card
+     */
+    private void showMetrics() {
+        android.app.AlertDialog.Builder builder = new android.app.AlertDialog.Builder(this);
+        builder.setTitle("Performance Metrics");
+        builder.setMessage(Metrics.report());
+        builder.setPositiveButton("Export", new android.content.DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(android.content.DialogInterface dialog, int which) {
+                exportMetrics();
+            }
+        });
+        builder.setNeutralButton("Reset", new android.content.DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(android.content.DialogInterface dialog, int which) {
+                Metrics.reset();
+                Toast.makeText(MainTabsActivity.this, "Metrics reset", Toast.LENGTH_SHORT).show();
+            }
+        });
+        builder.setNegativeButton("Close", null);
+        builder.show();
+    }
+
+    private void exportMetrics() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String result;
+                try {
+                    java.io.File directory = new java.io.File(
+                            android.os.Environment.getExternalStorageDirectory(), "Whatsberry");
+                    result = "Saved to " + Metrics.export(directory).getAbsolutePath();
+                } catch (Exception e) {
+                    android.util.Log.e(TAG, "Metrics export failed", e);
+                    result = "Export failed: " + e.getMessage();
+                }
+                final String message = result;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(MainTabsActivity.this, message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }).start();
+    }
 }
@@ -0,0 +1,437 @@
+package com.whatsberry.xmpp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.StanzaFilter;
+import org.jivesoftware.smack.packet.ExtensionElement;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.provider.ExtensionElementProvider;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.XmlStringBuilder;
+import org.jivesoftware.smackx.forward.packet.Forwarded;
+import org.jivesoftware.smackx.forward.provider.ForwardedProvider;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * MAM Sync Manager
+ * Catches up on messages sent while we were offline from the server's message archive
+ * (XEP-0313). Pages are fetched in large RSM batches after the last archive ID we stored,
+ * each page is written in one transaction (skipping messages we already have; messages newer
+ * than what was seen of a chat are stored unread, older history read), and the
+ * checkpoint only moves forward once its page is committed - a sync cut short by a
+ * dropped connection simply resumes from there next time.
+ */
+public class MamSyncManager {
+    private static final String TAG = "MamSyncManager";
+
+    private static final String NAMESPACE = "urn:xmpp:mam:2";
+    private static final String RSM_NAMESPACE = "http://jabber.org/protocol/rsm";
+
+    private static final String PREFS_NAME = "WhatsberryPrefs";
+    private static final String PREF_CHECKPOINT = "mam_checkpoint";
+    private static final String PREF_ACCOUNT = "mam_account";
+
+    private static final int PAGE_SIZE = 250;          // Prosody: max_archive_query_results
+    private static final int MAX_PAGES = 40;           // Hard stop per sync (10,000 messages)
+    private static final long PAGE_TIMEOUT_MS = 30000;
+    private static final long FIRST_SYNC_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000; // Server keeps one week
+    private static final long CLOCK_SKEW_MS = 5 * 60 * 1000;
+
+    /**
+     * Notified on the main thread when a catch-up stored new messages
+     */
+    public interface SyncListener {
+        /**
+         * @param unread received messages that were stored unread, oldest first
+         */
+        void onSyncComplete(int newMessages, List<DatabaseHelper.MessageRecord> unread);
+    }
+
+    private static MamSyncManager instance;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<SyncListener> listeners = new ArrayList<>();
+    private boolean syncing = false;
+
+    static {
+        ProviderManager.addIQProvider(FinIQ.ELEMENT, NAMESPACE, new FinIQProvider());
+        ProviderManager.addExtensionProvider(ResultExtension.ELEMENT, NAMESPACE, new ResultProvider());
+    }
+
+    private MamSyncManager(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static synchronized MamSyncManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new MamSyncManager(context);
+        }
+        return instance;
+    }
+
+    public void addSyncListener(SyncListener listener) {
+        synchronized (listeners) {
+            if (!listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+        }
+    }
+
+    public void removeSyncListener(SyncListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Download everything archived since the last checkpoint (blocking, call off the main thread)
+     * @param ownJid bare JID of the logged in account
+     */
+    public void sync(XMPPConnection connection, String ownJid, DatabaseHelper database) {
+        synchronized (this) {
+            if (syncing) {
+                Log.d(TAG, "Sync already running");
+                return;
+            }
+            syncing = true;
+        }
+
+        long start = System.currentTimeMillis();
+        int total = 0;
+        int pages = 0;
+        List<DatabaseHelper.MessageRecord> unread = new ArrayList<>();
+        try {
+            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            if (!ownJid.equals(prefs.getString(PREF_ACCOUNT, ownJid))) {
+                prefs.edit().remove(PREF_CHECKPOINT).apply();
+            }
+            prefs.edit().putString(PREF_ACCOUNT, ownJid).apply();
+
+            String after = prefs.getString(PREF_CHECKPOINT, null);
+            Date since = null;
+            // An empty store has no read state to compare with: a first sync there is history
+            boolean history = false;
+            if (after == null) {
+                // First sync: nothing older than what we already have (or the archive's lifetime)
+                long newest = database.getNewestMessageTimestamp();
+                history = newest == 0;
+                long floor = System.currentTimeMillis() - FIRST_SYNC_MAX_AGE_MS;
+                since = new Date(Math.max(floor, newest - CLOCK_SKEW_MS));
+            }
+
+            boolean complete = false;
+            while (!complete && pages < MAX_PAGES && connection.isAuthenticated()) {
+                Page page;
+                try {
+                    page = fetchPage(connection, after, since);
+                } catch (XMPPException.XMPPErrorException e) {
+                    XMPPError error = e.getXMPPError();
+                    if (after != null && error != null && error.getCondition() == XMPPError.Condition.item_not_found) {
+                        // Checkpoint expired from the archive: fall back to a time based query
+                        Log.w(TAG, "Checkpoint " + after + " no longer in archive, restarting by date");
+                        after = null;
+                        since = new Date(System.currentTimeMillis() - FIRST_SYNC_MAX_AGE_MS);
+                        continue;
+                    }
+                    throw e;
+                }
+                pages++;
+
+                List<DatabaseHelper.MessageRecord> records = new ArrayList<>(page.messages.size());
+                for (Forwarded forwarded : page.messages) {
+                    DatabaseHelper.MessageRecord record = toRecord(forwarded, ownJid, history);
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+                if (!records.isEmpty()) {
+                    total += database.insertArchivedMessages(records);
+                    for (DatabaseHelper.MessageRecord record : records) {
+                        // id is only set on the records that were actually inserted
+                        if (record.id > 0 && !record.isSent && !record.isRead) {
+                            unread.add(record);
+                        }
+                    }
+                }
+
+                // Committed - now it's safe to move the checkpoint
+                if (page.lastId != null) {
+                    after = page.lastId;
+                    since = null;
+                    prefs.edit().putString(PREF_CHECKPOINT, after).apply();
+                }
+                complete = page.complete || page.lastId == null;
+            }
+
+            Log.d(TAG, "Sync done: " + total + " new messages in " + pages + " pages, " +
+                    (System.currentTimeMillis() - start) + "ms" + (complete ? "" : " (incomplete)"));
+        } catch (Exception e) {
+            Log.e(TAG, "Archive sync failed after " + pages + " pages: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                syncing = false;
+            }
+        }
+
+        if (total > 0) {
+            notifySyncComplete(total, unread);
+        }
+    }
+
+    private Page fetchPage(XMPPConnection connection, String after, Date since)
+            throws SmackException.NoResponseException, XMPPException.XMPPErrorException,
+                   SmackException.NotConnectedException {
+        final String queryId = UUID.randomUUID().toString();
+        QueryIQ query = new QueryIQ(queryId, after, since);
+
+        // Results arrive as messages before the final IQ; a collector keeps them in order
+        PacketCollector results = connection.createPacketCollector(new StanzaFilter() {
+            @Override
+            public boolean accept(Stanza stanza) {
+                if (!(stanza instanceof Message)) {
+                    return false;
+                }
+                ResultExtension result = stanza.getExtension(ResultExtension.ELEMENT, NAMESPACE);
+                return result != null && queryId.equals(result.queryId);
+            }
+        });
+
+        try {
+            FinIQ fin = connection.createPacketCollectorAndSend(query).nextResultOrThrow(PAGE_TIMEOUT_MS);
+
+            Page page = new Page();
+            page.complete = fin.complete;
+            page.lastId = fin.lastId;
+            String lastResultId = null;
+            Stanza stanza;
+            while ((stanza = results.pollResult()) != null) {
+                ResultExtension result = stanza.getExtension(ResultExtension.ELEMENT, NAMESPACE);
+                if (result.forwarded != null) {
+                    page.messages.add(result.forwarded);
+                }
+                lastResultId = result.id;
+            }
+            if (page.lastId == null) {
+                page.lastId = lastResultId; // Server left out the RSM <last/>
+            }
+            return page;
+        } finally {
+            results.cancel();
+        }
+    }
+
+    /**
+     * Archived message to a database row, null for anything without a body (chat states, receipts)
+     * @param history store it read; otherwise the database decides (insertArchivedMessages)
+     */
+    private DatabaseHelper.MessageRecord toRecord(Forwarded forwarded, String ownJid, boolean history) {
+        if (!(forwarded.getForwardedPacket() instanceof Message)) {
+            return null;
+        }
+        Message message = (Message) forwarded.getForwardedPacket();
+        String body = message.getBody();
+        if (body == null || body.isEmpty() || message.getType() == Message.Type.groupchat) {
+            return null;
+        }
+
+        String from = bareJid(message.getFrom());
+        boolean isSent = from == null || from.equals(ownJid);
+        String contact = isSent ? bareJid(message.getTo()) : from;
+        if (contact == null) {
+            return null;
+        }
+
+        DatabaseHelper.MessageRecord record = new DatabaseHelper.MessageRecord();
+        record.contactJid = contact;
+        record.body = body;
+        record.isSent = isSent;
+        record.timestamp = forwarded.getDelayInformation() != null ?
+                forwarded.getDelayInformation().getStamp().getTime() : System.currentTimeMillis();
+        record.stanzaId = message.getStanzaId();
+        record.isRead = history;
+        record.setContent(ReceivePipeline.contentOf(message));
+        return record;
+    }
+
+    private static String bareJid(String jid) {
+        if (jid == null) {
+            return null;
+        }
+        return jid.contains("/") ? jid.substring(0, jid.indexOf("/")) : jid;
+    }
+
+    private void notifySyncComplete(final int newMessages, final List<DatabaseHelper.MessageRecord> unread) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<SyncListener> copy;
+                synchronized (listeners) {
+                    copy = new ArrayList<>(listeners);
+                }
+                for (SyncListener listener : copy) {
+                    listener.onSyncComplete(newMessages, unread);
+                }
+            }
+        });
+    }
+
+    private static class Page {
+        final List<Forwarded> messages = new ArrayList<>();
+        String lastId;
+        boolean complete;
+    }
+
+    // ===== Stanzas =====
+
+    /**
+     * &lt;query xmlns='urn:xmpp:mam:2'&gt; with an optional start date and RSM paging
+     */
+    private static class QueryIQ extends IQ {
+        private final String queryId;
+        private final String after;
+        private final Date since;
+
+        QueryIQ(String queryId, String after, Date since) {
+            super("query", NAMESPACE);
+            this.queryId = queryId;
+            this.after = after;
+            this.since = since;
+            setType(Type.set);
+        }
+
+        @Override
+        protected IQChildElementXmlStringBuilder getIQChildElementBuilder(IQChildElementXmlStringBuilder xml) {
+            xml.attribute("queryid", queryId);
+            xml.rightAngleBracket();
+
+            if (since != null) {
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                xml.append("<x xmlns='jabber:x:data' type='submit'>");
+                xml.append("<field var='FORM_TYPE' type='hidden'><value>").append(NAMESPACE).append("</value></field>");
+                xml.append("<field var='start'><value>").append(format.format(since)).append("</value></field>");
+                xml.append("</x>");
+            }
+
+            xml.append("<set xmlns='").append(RSM_NAMESPACE).append("'>");
+            xml.append("<max>").append(String.valueOf(PAGE_SIZE)).append("</max>");
+            if (after != null) {
+                xml.append("<after>").escape(after).append("</after>");
+            }
+            xml.append("</set>");
+            return xml;
+        }
+    }
+
+    /**
+     * &lt;fin/&gt; answer that ends a page
+     */
+    private static class FinIQ extends IQ {
+        static final String ELEMENT = "fin";
+
+        boolean complete;
+        String lastId;
+
+        FinIQ() {
+            super(ELEMENT, NAMESPACE);
+        }
+
+        @Override
+        protected IQChildElementXmlStringBuilder getIQChildElementBuilder(IQChildElementXmlStringBuilder xml) {
+            xml.setEmptyElement();
+            return xml;
+        }
+    }
+
+    private static class FinIQProvider extends IQProvider<FinIQ> {
+        @Override
+        public FinIQ parse(XmlPullParser parser, int initialDepth)
+                throws XmlPullParserException, IOException, SmackException {
+            FinIQ fin = new FinIQ();
+            fin.complete = "true".equals(parser.getAttributeValue("", "complete"));
+            while (true) {
+                int event = parser.next();
+                if (event == XmlPullParser.START_TAG && "last".equals(parser.getName())) {
+                    fin.lastId = parser.nextText();
+                } else if (event == XmlPullParser.END_TAG && parser.getDepth() == initialDepth) {
+                    break;
+                }
+            }
+            return fin;
+        }
+    }
+
+    /**
+     * &lt;result queryid='' id=''&gt; wrapping one archived message
+     */
+    private static class ResultExtension implements ExtensionElement {
+        static final String ELEMENT = "result";
+
+        String queryId;
+        String id;
+        Forwarded forwarded;
+
+        @Override
+        public String getElementName() {
+            return ELEMENT;
+        }
+
+        @Override
+        public String getNamespace() {
+            return NAMESPACE;
+        }
+
+        @Override
+        public CharSequence toXML() {
+            XmlStringBuilder xml = new XmlStringBuilder(this);
+            xml.attribute("queryid", queryId);
+            xml.attribute("id", id);
+            xml.closeEmptyElement();
+            return xml;
+        }
+    }
+
+    private static class ResultProvider extends ExtensionElementProvider<ResultExtension> {
+        private final ForwardedProvider forwardedProvider = new ForwardedProvider();
+
+        @Override
+        public ResultExtension parse(XmlPullParser parser, int initialDepth)
+                throws XmlPullParserException, IOException, SmackException {
+            ResultExtension result = new ResultExtension();
+            result.queryId = parser.getAttributeValue("", "queryid");
+            result.id = parser.getAttributeValue("", "id");
+            while (true) {
+                int event = parser.next();
+                if (event == XmlPullParser.START_TAG && "forwarded".equals(parser.getName())) {
+                    result.forwarded = forwardedProvider.parse(parser);
+                } else if (event == XmlPullParser.END_TAG && parser.getDepth() == initialDepth) {
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package com.whatsberry.xmpp;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Media Cache
+ * Size-bounded LRU disk cache for downloaded attachments (images, audio, video).
+ * Entries are tracked in an append-only journal so the cache survives process death,
+ * concurrent requests for the same URL share a single download, and stale entries
+ * are revalidated with ETag / Last-Modified instead of being downloaded again.
+ */
+public class MediaCache {
+    private static final String TAG = "MediaCache";
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String JOURNAL_MAGIC = "whatsberry.MediaCache";
+    private static final int JOURNAL_VERSION = 1;
+
+    // Journal operations
+    private static final String CLEAN = "CLEAN";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    private static final long MAX_SIZE_EXTERNAL = 100L * 1024 * 1024; // 100 MB on SD card
+    private static final long MAX_SIZE_INTERNAL = 20L * 1024 * 1024;  // 20 MB if no SD card
+    private static final long REVALIDATE_AFTER_MS = 24L * 60 * 60 * 1000; // Attachments rarely change
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static MediaCache instance;
+
+    private final File directory;
+    private final long maxSize;
+    private final Handler mainHandler;
+
+    // Access-ordered map: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+    private long size = 0;
+    private int redundantOpCount = 0;
+    private Writer journalWriter;
+
+    private MediaCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        open();
+    }
+
+    public static synchronized MediaCache getInstance(Context context) {
+        if (instance == null) {
+            File dir;
+            long maxSize;
+            if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+                dir = new File(Environment.getExternalStorageDirectory(), "Whatsberry/media");
+                maxSize = MAX_SIZE_EXTERNAL;
+            } else {
+                Log.w(TAG, "External storage not available, using internal cache");
+                dir = new File(context.getApplicationContext().getCacheDir(), "media");
+                maxSize = MAX_SIZE_INTERNAL;
+            }
+            instance = new MediaCache(dir, maxSize);
+        }
+        return instance;
+    }
+
+    /**
+     * Get a cached file for a URL without touching the network
+     * @return the cached file, or null if the URL has not been downloaded yet
+     */
+    public synchronized File getCachedFile(String url) {
+        return getCachedFileForKey(keyFor(url));
+    }
+
+    /**
+     * Same as getCachedFile() for callers that only have the cache key (AudioStreamProxy URLs)
+     */
+    synchronized File getCachedFileForKey(String key) {
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        File file = entry.getFile();
+        if (!file.exists()) {
+            removeEntry(key);
+            return null;
+        }
+        journal(READ + " " + key);
+        return file;
+    }
+
+    /**
+     * Get a local file for a URL, downloading it if needed (blocking - call from a background thread)
+     * Concurrent callers for the same URL wait for the same download.
+     */
+    public File get(String url) throws IOException {
+        String key = keyFor(url);
+        Entry cached;
+        InFlight request;
+        boolean owner = false;
+
+        synchronized (this) {
+            cached = lruEntries.get(key);
+            if (cached != null && !cached.getFile().exists()) {
+                removeEntry(key);
+                cached = null;
+            }
+            if (cached != null && System.currentTimeMillis() - cached.checkedAt < REVALIDATE_AFTER_MS) {
+                journal(READ + " " + key);
+                return cached.getFile();
+            }
+
+            request = inFlight.get(key);
+            if (request == null) {
+                request = new InFlight();
+                inFlight.put(key, request);
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            Log.d(TAG, "Joining in-flight download for " + key);
+            try {
+                request.done.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for " + url);
+            }
+            if (request.error != null) {
+                throw request.error;
+            }
+            return request.file;
+        }
+
+        try {
+            request.file = download(url, key, cached);
+            return request.file;
+        } catch (IOException e) {
+            request.error = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                inFlight.remove(key);
+            }
+            request.done.countDown();
+        }
+    }
+
+    /**
+     * Get a local file for a URL asynchronously, result is delivered on the main thread
+     */
+    public void fetch(final String url, final CacheCallback callback) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final File file = get(url);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onFileReady(file);
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.e(TAG, "Failed to fetch " + url, e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onFileError(e.getMessage());
+                        }
+                    });
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Download (or revalidate) a URL into the cache
+     */
+    private File download(String url, String key, Entry stale) throws IOException {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("GET");
+            connection.setConnectTimeout(15000);
+            connection.setReadTimeout(30000);
+            connection.setDoInput(true);
+
+            // Conditional request if we already have a copy
+            if (stale != null) {
+                if (stale.etag != null) {
+                    connection.setRequestProperty("If-None-Match", stale.etag);
+                }
+                if (stale.lastModified > 0) {
+                    connection.setIfModifiedSince(stale.lastModified);
+                }
+            }
+
+            int responseCode = connection.getResponseCode();
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && stale != null) {
+                Log.d(TAG, "Not modified, reusing cached copy: " + key);
+                synchronized (this) {
+                    stale.checkedAt = System.currentTimeMillis();
+                    journal(stale.toJournalLine());
+                }
+                return stale.getFile();
+            }
+
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + responseCode);
+            }
+
+            File tmp = new File(directory, key + ".tmp");
+            InputStream in = connection.getInputStream();
+            FileOutputStream out = new FileOutputStream(tmp);
+            long length = 0;
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    length += read;
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+
+            Entry entry = new Entry(key);
+            entry.size = length;
+            entry.etag = connection.getHeaderField("ETag");
+            entry.lastModified = connection.getLastModified();
+            entry.checkedAt = System.currentTimeMillis();
+            commit(entry, tmp);
+
+            Log.d(TAG, "Cached " + url + " (" + length + " bytes)");
+            return entry.getFile();
+
+        } catch (IOException e) {
+            // Serve the stale copy rather than failing when offline
+            if (stale != null && stale.getFile().exists()) {
+                Log.w(TAG, "Revalidation failed, serving stale copy: " + e.getMessage());
+                return stale.getFile();
+            }
+            throw e;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Move a completed download into place and record it in the journal
+     */
+    synchronized void commit(Entry entry, File tmp) throws IOException {
+        File target = entry.getFile();
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Could not replace " + target);
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Could not rename " + tmp + " to " + target);
+        }
+
+        Entry previous = lruEntries.put(entry.key, entry);
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += entry.size;
+        journal(entry.toJournalLine());
+        trimToSize();
+    }
+
+    /**
+     * Adopt a file that was downloaded outside of get() (e.g. by AudioStreamProxy)
+     * @param tmp completed download, must live in getDirectory()
+     * @return the file's new location inside the cache
+     */
+    File commitDownload(String url, File tmp, String etag, long lastModified) throws IOException {
+        Entry entry = new Entry(keyFor(url));
+        entry.size = tmp.length();
+        entry.etag = etag;
+        entry.lastModified = lastModified;
+        entry.checkedAt = System.currentTimeMillis();
+        commit(entry, tmp);
+        return entry.getFile();
+    }
+
+    /**
+     * Claim the download of a URL for a downloader outside of get() (AudioStreamProxy),
+     * so get() callers for the same URL wait for it instead of downloading it again
+     * @return the claim to pass to endDownload(), or null if a download is already running
+     *         (call get() to wait for it)
+     */
+    synchronized InFlight beginDownload(String url) {
+        String key = keyFor(url);
+        if (inFlight.containsKey(key)) {
+            return null;
+        }
+        InFlight request = new InFlight();
+        inFlight.put(key, request);
+        return request;
+    }
+
+    /**
+     * Release a claim from beginDownload() and wake up everyone waiting for it
+     * @param file the committed file, null if the download failed with error
+     */
+    void endDownload(String url, InFlight request, File file, IOException error) {
+        request.file = file;
+        request.error = error;
+        synchronized (this) {
+            inFlight.remove(keyFor(url));
+        }
+        request.done.countDown();
+    }
+
+    /**
+     * Remove a URL from the cache
+     */
+    public synchronized void remove(String url) {
+        removeEntry(keyFor(url));
+    }
+
+    /**
+     * Total bytes currently stored
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            // MD5 is always available on Android
+            return String.valueOf(url.hashCode() & 0x7fffffff);
+        }
+    }
+
+    private void removeEntry(String key) {
+        Entry entry = lruEntries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+            entry.getFile().delete();
+            journal(REMOVE + " " + key);
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> it = lruEntries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            if (inFlight.containsKey(eldest.key)) {
+                continue;
+            }
+            it.remove();
+            size -= eldest.size;
+            eldest.getFile().delete();
+            journal(REMOVE + " " + eldest.key);
+            Log.d(TAG, "Evicted " + eldest.key + " (" + eldest.size + " bytes)");
+        }
+    }
+
+    // ===== Journal =====
+
+    /**
+     * Load the journal (or start a fresh one) and drop files it does not know about
+     */
+    private synchronized void open() {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create cache directory: " + directory);
+        }
+
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if (journalFile.exists()) {
+            try {
+                readJournal(journalFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Corrupt journal, clearing cache: " + e.getMessage());
+                lruEntries.clear();
+                size = 0;
+            }
+        }
+
+        // Delete orphaned files (partial downloads, entries lost from the journal)
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP)) {
+                    continue;
+                }
+                if (!lruEntries.containsKey(name)) {
+                    file.delete();
+                }
+            }
+        }
+
+        try {
+            rebuildJournal();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write journal", e);
+        }
+        trimToSize();
+
+        Log.d(TAG, "Media cache opened: " + lruEntries.size() + " entries, " + size + " bytes in " + directory);
+    }
+
+    private void readJournal(File journalFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            if (!JOURNAL_MAGIC.equals(magic) || !String.valueOf(JOURNAL_VERSION).equals(version)) {
+                throw new IOException("Unexpected journal header: " + magic + ", " + version);
+            }
+
+            String line;
+            int lineCount = 0;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    continue; // Truncated line from a crash mid-write
+                }
+                String op = parts[0];
+                String key = parts[1];
+
+                if (CLEAN.equals(op) && parts.length == 6) {
+                    Entry entry = new Entry(key);
+                    try {
+                        entry.size = Long.parseLong(parts[2]);
+                        entry.etag = "-".equals(parts[3]) ? null : URLDecoder.decode(parts[3], "UTF-8");
+                        entry.lastModified = Long.parseLong(parts[4]);
+                        entry.checkedAt = Long.parseLong(parts[5]);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    Entry previous = lruEntries.put(key, entry);
+                    if (previous != null) {
+                        size -= previous.size;
+                    }
+                    size += entry.size;
+                } else if (REMOVE.equals(op)) {
+                    Entry removed = lruEntries.remove(key);
+                    if (removed != null) {
+                        size -= removed.size;
+                    }
+                } else if (READ.equals(op)) {
+                    lruEntries.get(key); // Moves entry to most recently used
+                }
+            }
+            redundantOpCount = lineCount - lruEntries.size();
+        } finally {
+            reader.close();
+        }
+
+        // Entries whose files disappeared (e.g. SD card cleaned by user)
+        Iterator<Map.Entry<String, Entry>> it = lruEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (!entry.getFile().exists()) {
+                size -= entry.size;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Write a compact journal containing only live entries, then swap it in
+     */
+    private void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+
+        File tmp = new File(directory, JOURNAL_FILE_TMP);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            writer.write(JOURNAL_MAGIC + "\n");
+            writer.write(JOURNAL_VERSION + "\n");
+            for (Entry entry : lruEntries.values()) {
+                writer.write(entry.toJournalLine() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("Could not delete old journal");
+        }
+        if (!tmp.renameTo(journalFile)) {
+            throw new IOException("Could not rename journal");
+        }
+
+        journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+        redundantOpCount = 0;
+    }
+
+    private void journal(String line) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(line + "\n");
+            journalWriter.flush();
+
+            redundantOpCount++;
+            if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= lruEntries.size()) {
+                rebuildJournal();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Journal write failed", e);
+        }
+    }
+
+    /**
+     * Cache entry (one file per URL, named by the URL hash)
+     */
+    class Entry {
+        final String key;
+        long size;
+        String etag;
+        long lastModified;
+        long checkedAt;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        File getFile() {
+            return new File(directory, key);
+        }
+
+        String toJournalLine() {
+            String encodedEtag = "-";
+            if (etag != null) {
+                try {
+                    encodedEtag = URLEncoder.encode(etag, "UTF-8");
+                } catch (IOException e) {
+                    encodedEtag = "-";
+                }
+            }
+            return CLEAN + " " + key + " " + size + " " + encodedEtag + " " + lastModified + " " + checkedAt;
+        }
+    }
+
+    static class InFlight {
+        final CountDownLatch done = new CountDownLatch(1);
+        File file;
+        IOException error;
+    }
+
+    public interface CacheCallback {
+        void onFileReady(File file);
+        void onFileError(String error);
+    }
+}
@@ -0,0 +1,65 @@
+package com.whatsberry.xmpp;
+
+/**
+ * Media Types
+ * Classifies message bodies that are links to uploaded media. Shared by the chat screen
+ * and the incoming message path; plain Java so it can be benchmarked off-device.
+ */
+public final class MediaTypes {
+
+    private static final String[] MEDIA_EXTENSIONS = {
+            ".jpg", ".jpeg", ".png", ".gif", ".mp4", ".3gp", ".mp3", ".ogg", ".m4a"
+    };
+
+    private static final String[] AUDIO_EXTENSIONS = {
+            ".mp3", ".ogg", ".m4a", ".3gp", ".aac", ".opus", ".webm"
+    };
+
+    private MediaTypes() {
+    }
+
+    /**
+     * True for http(s) links to our attachment store or to a known media file
+     */
+    public static boolean isMediaUrl(String text) {
+        if (text == null || !(text.startsWith("http://") || text.startsWith("https://"))) {
+            return false;
+        }
+        if (text.contains("/attachments/")) {
+            return true;
+        }
+        for (String extension : MEDIA_EXTENSIONS) {
+            if (text.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True for audio files, including links to the server-side audio converter
+     */
+    public static boolean isAudioUrl(String url) {
+        if (url == null) {
+            return false;
+        }
+        for (String extension : AUDIO_EXTENSIONS) {
+            if (endsWithIgnoreCase(url, extension)) {
+                return true;
+            }
+        }
+        return url.contains("convert_audio");
+    }
+
+    /**
+     * Last path segment of a URL
+     */
+    public static String fileName(String url) {
+        return url.substring(url.lastIndexOf('/') + 1);
+    }
+
+    // Same result as toLowerCase().endsWith() for these ASCII suffixes, without the copy
+    private static boolean endsWithIgnoreCase(String text, String suffix) {
+        return text.regionMatches(true, text.length() - suffix.length(), suffix, 0, suffix.length());
+    }
+}
@@ -0,0 +1,151 @@
+package com.whatsberry.xmpp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Message Archive
+ * Block format of the cold tier (see MessageSchema.CREATE_ARCHIVE_BLOCKS). Old messages of
+ * one contact are packed in time order, up to BLOCK_SIZE per block, and deflated together:
+ * chat lines are short and repetitive, so a block compresses far better than single rows.
+ * Block layout before compression: version byte, message count, then per message
+ * id, timestamp, flags, kind, body, and file URL / stanza ID / mime type / media size /
+ * duration when the flags say they are present. Version 1 blocks (no content fields) are
+ * still read; their messages are classified from body and file URL as they are decoded.
+ */
+final class MessageArchive {
+
+    static final int BLOCK_SIZE = 256;
+
+    private static final int VERSION = 2;
+    private static final int VERSION_UNTYPED = 1;
+    private static final int FLAG_SENT = 1;
+    private static final int FLAG_READ = 2;
+    private static final int FLAG_FILE = 4;
+    private static final int FLAG_STANZA = 8;
+    private static final int FLAG_MIME_TYPE = 16;
+    private static final int FLAG_MEDIA_SIZE = 32;
+    private static final int FLAG_DURATION = 64;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private MessageArchive() {
+    }
+
+    static byte[] encode(List<DatabaseHelper.MessageRecord> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 48);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+        try {
+            out.writeByte(VERSION);
+            out.writeInt(records.size());
+            for (DatabaseHelper.MessageRecord record : records) {
+                int flags = (record.isSent ? FLAG_SENT : 0) | (record.isRead ? FLAG_READ : 0) |
+                        (record.fileUrl != null ? FLAG_FILE : 0) | (record.stanzaId != null ? FLAG_STANZA : 0) |
+                        (record.mimeType != null ? FLAG_MIME_TYPE : 0) | (record.mediaSize >= 0 ? FLAG_MEDIA_SIZE : 0) |
+                        (record.duration >= 0 ? FLAG_DURATION : 0);
+                out.writeLong(record.id);
+                out.writeLong(record.timestamp);
+                out.writeByte(flags);
+                out.writeByte(record.kind);
+                writeString(out, record.body);
+                if (record.fileUrl != null) {
+                    writeString(out, record.fileUrl);
+                }
+                if (record.stanzaId != null) {
+                    writeString(out, record.stanzaId);
+                }
+                if (record.mimeType != null) {
+                    writeString(out, record.mimeType);
+                }
+                if (record.mediaSize >= 0) {
+                    out.writeLong(record.mediaSize);
+                }
+                if (record.duration >= 0) {
+                    out.writeLong(record.duration);
+                }
+            }
+        } finally {
+            out.close();
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    static List<DatabaseHelper.MessageRecord> decode(String contactJid, byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
+        try {
+            int version = in.readUnsignedByte();
+            if (version != VERSION && version != VERSION_UNTYPED) {
+                throw new IOException("Unknown archive block version " + version);
+            }
+            int count = in.readInt();
+            List<DatabaseHelper.MessageRecord> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                DatabaseHelper.MessageRecord record = new DatabaseHelper.MessageRecord();
+                record.contactJid = contactJid;
+                record.id = in.readLong();
+                record.timestamp = in.readLong();
+                int flags = in.readUnsignedByte();
+                record.isSent = (flags & FLAG_SENT) != 0;
+                record.isRead = (flags & FLAG_READ) != 0;
+                if (version == VERSION_UNTYPED) {
+                    record.body = readString(in);
+                    record.fileUrl = (flags & FLAG_FILE) != 0 ? readString(in) : null;
+                    record.stanzaId = (flags & FLAG_STANZA) != 0 ? readString(in) : null;
+                    record.setContent(MessageContent.fromStored(record.body, record.fileUrl));
+                    records.add(record);
+                    continue;
+                }
+                record.kind = in.readUnsignedByte();
+                record.body = readString(in);
+                record.fileUrl = (flags & FLAG_FILE) != 0 ? readString(in) : null;
+                record.stanzaId = (flags & FLAG_STANZA) != 0 ? readString(in) : null;
+                record.mimeType = (flags & FLAG_MIME_TYPE) != 0 ? readString(in) : null;
+                record.mediaSize = (flags & FLAG_MEDIA_SIZE) != 0 ? in.readLong() : -1;
+                record.duration = (flags & FLAG_DURATION) != 0 ? in.readLong() : -1;
+                records.add(record);
+            }
+            return records;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Identity of a message for deduplicated inserts (MessageSchema.ARCHIVE_KEYS): its stanza ID,
+     * or for messages without one, contact, timestamp, direction and a checksum of the body
+     */
+    static String dedupKey(DatabaseHelper.MessageRecord record) {
+        if (record.stanzaId != null && !record.stanzaId.isEmpty()) {
+            return record.stanzaId;
+        }
+        CRC32 crc = new CRC32();
+        byte[] body = record.body != null ? record.body.getBytes(UTF8) : new byte[0];
+        crc.update(body, 0, body.length);
+        return "#" + record.contactJid + "|" + record.timestamp + "|" + (record.isSent ? 1 : 0) + "|" +
+                Long.toHexString(crc.getValue());
+    }
+
+    // Length-prefixed UTF-8; writeUTF would cap bodies at 64 KB. Also used by MessageBackup.
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,460 @@
+package com.whatsberry.xmpp;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Message Backup
+ * Streams the message store (hot table and archive) into a backup file and back, one range
+ * of ID_WINDOW message ids at a time, so neither side ever holds more than one range in memory
+ * (export also keeps the not yet written messages of archive blocks reaching past the range:
+ * each block is decoded once, in the range its lowest id falls into).
+ *
+ * File: magic "WBKP", version byte, flags byte (FLAG_MEDIA), long id of the store that wrote it
+ * (Store.getStoreId; version 1 files don't have it), then frames of
+ *   int payload length, long last message id covered, int CRC32 of payload, payload
+ * where the payload is a deflated message count followed by length-prefixed records
+ * (type byte, contact JID, body, flags, timestamp, file URL / stanza ID as flagged, then the
+ * message kind, a content flags byte and mime type / media size / duration as flagged).
+ * Unknown record types and trailing record bytes are skipped, so later versions can add to them;
+ * records from files written before the kind was added are classified from body and file URL.
+ *
+ * The last complete frame tells how far an export got: exporting to an existing file drops a
+ * torn last frame and continues after it. That makes an interrupted export resumable, and a
+ * later export to the same file incremental (only messages stored since). Edits and deletions
+ * of messages already in the file are not carried over. Message ids only mean something in the
+ * store that wrote them: a file from another store (another device, a reinstall, version 1) or
+ * one that covers ids the store doesn't have is moved aside, and the export starts a new file.
+ */
+public final class MessageBackup {
+    private static final String TAG = "MessageBackup";
+
+    public static final String FILE_NAME = "whatsberry-backup.wbk";
+
+    private static final byte[] MAGIC = {'W', 'B', 'K', 'P'};
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_STORE_ID = 1;
+    private static final int FLAG_MEDIA = 1; // File URLs were exported
+    private static final int FRAME_HEADER_SIZE = 16;
+    private static final int MAX_FRAME = 64 * 1024 * 1024; // Larger lengths mean a corrupt file
+    private static final int ID_WINDOW = 5000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BLOCK_QUEUE_CAPACITY = 4 * MessageArchive.BLOCK_SIZE;
+
+    private static final int RECORD_MESSAGE = 1;
+    private static final int MESSAGE_SENT = 1;
+    private static final int MESSAGE_READ = 2;
+    private static final int MESSAGE_FILE = 4;
+    private static final int MESSAGE_STANZA = 8;
+    private static final int CONTENT_MIME_TYPE = 1;
+    private static final int CONTENT_MEDIA_SIZE = 2;
+    private static final int CONTENT_DURATION = 4;
+
+    /**
+     * Progress of export/import, called on the working thread
+     */
+    public interface Listener {
+        void onBackupProgress(long messages, int percent);
+    }
+
+    /**
+     * What export and import need from the message store (DatabaseHelper)
+     */
+    public interface Store {
+        /**
+         * Random id of this store, never 0; written into the file header
+         */
+        long getStoreId();
+
+        /**
+         * Bring per-message read state in line with the conversations' read watermarks
+         */
+        int applyReadWatermarks();
+
+        long getMaxMessageId();
+
+        /**
+         * Hot-tier messages with ids from firstId to lastId, in id order
+         */
+        List<DatabaseHelper.MessageRecord> getMessagesInIdRange(long firstId, long lastId);
+
+        /**
+         * All messages of the archive blocks whose lowest message id is above afterId and at
+         * most upToId, leaving out blocks that end below minId
+         */
+        List<DatabaseHelper.MessageRecord> getArchivedBlocks(long afterId, long upToId, long minId);
+
+        /**
+         * Insert in one transaction, keeping read state and skipping messages already stored
+         * @return number inserted
+         */
+        int importMessages(List<DatabaseHelper.MessageRecord> records);
+    }
+
+    /**
+     * What the header of a file says
+     */
+    private static final class Header {
+        int flags;
+        long storeId; // 0 in version 1 files
+        int size;
+    }
+
+    private static final Comparator<DatabaseHelper.MessageRecord> BY_ID = new Comparator<DatabaseHelper.MessageRecord>() {
+        @Override
+        public int compare(DatabaseHelper.MessageRecord a, DatabaseHelper.MessageRecord b) {
+            return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+    };
+
+    private MessageBackup() {
+    }
+
+    /**
+     * Write all messages not yet in {@code file} to it (a new file gets everything). A file this
+     * store didn't write is renamed (name-&lt;time&gt;.wbk) and replaced by a new one.
+     * @param includeMedia keep file URLs of media messages; only used when the file is new
+     * @return number of messages written
+     */
+    public static long export(Store db, File file, boolean includeMedia, Listener listener) throws IOException {
+        long start = System.currentTimeMillis();
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+
+        db.applyReadWatermarks(); // Records carry the read state per message
+        long storeId = db.getStoreId();
+        long maxId = db.getMaxMessageId();
+
+        long exportedUpTo = 0;
+        boolean newFile = file.length() == 0;
+        if (!newFile) {
+            Header header;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                header = readHeader(raf);
+                exportedUpTo = findResumePoint(raf, header.size);
+            } finally {
+                raf.close();
+            }
+            if (header.storeId == storeId && exportedUpTo <= maxId) {
+                includeMedia = (header.flags & FLAG_MEDIA) != 0;
+            } else {
+                // Resuming would skip (or duplicate) messages: keep the old file, start over
+                File old = setAside(file);
+                if (!file.renameTo(old)) {
+                    throw new IOException("Can't move the backup of another message store to " + old);
+                }
+                Log.w(TAG, "Backup up to id " + exportedUpTo + " doesn't continue this store (up to id " + maxId +
+                        "), moved to " + old);
+                exportedUpTo = 0;
+                newFile = true;
+            }
+        }
+        if (newFile) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                raf.write(MAGIC);
+                raf.writeByte(VERSION);
+                raf.writeByte(includeMedia ? FLAG_MEDIA : 0);
+                raf.writeLong(storeId);
+            } finally {
+                raf.close();
+            }
+        }
+
+        long written = 0;
+        // Archived messages read ahead of their range, lowest id first
+        PriorityQueue<DatabaseHelper.MessageRecord> archived = new PriorityQueue<>(BLOCK_QUEUE_CAPACITY, BY_ID);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+        try {
+            long blocksUpTo = 0;
+            for (long from = exportedUpTo + 1; from <= maxId; from += ID_WINDOW) {
+                long to = Math.min(from + ID_WINDOW - 1, maxId);
+                for (DatabaseHelper.MessageRecord record : db.getArchivedBlocks(blocksUpTo, to, exportedUpTo + 1)) {
+                    if (record.id > exportedUpTo) {
+                        archived.add(record);
+                    }
+                }
+                blocksUpTo = to;
+
+                List<DatabaseHelper.MessageRecord> records = db.getMessagesInIdRange(from, to);
+                if (!archived.isEmpty() && archived.peek().id <= to) {
+                    while (!archived.isEmpty() && archived.peek().id <= to) {
+                        records.add(archived.poll());
+                    }
+                    Collections.sort(records, BY_ID);
+                }
+                if (!records.isEmpty()) {
+                    writeFrame(out, records, to, includeMedia);
+                    written += records.size();
+                }
+                if (listener != null) {
+                    listener.onBackupProgress(written, (int) ((to - exportedUpTo) * 100 / (maxId - exportedUpTo)));
+                }
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+        // Make the new frames durable before the user copies the file away
+        FileOutputStream syncTarget = new FileOutputStream(file, true);
+        try {
+            syncTarget.getFD().sync();
+        } finally {
+            syncTarget.close();
+        }
+
+        Log.i(TAG, "Exported " + written + " messages (after id " + exportedUpTo + ") to " + file + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+        return written;
+    }
+
+    /**
+     * Insert the messages of a backup file, one transaction per frame. Messages already stored
+     * in either tier (same stanza ID, or for messages without one, same contact, timestamp,
+     * direction and body) are skipped, so importing the same file again adds nothing.
+     * @return number of messages inserted
+     */
+    public static long importFrom(Store db, File file, Listener listener) throws IOException {
+        long start = System.currentTimeMillis();
+        long total = file.length();
+        long imported = 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            long position = readHeader(in).size;
+            while (true) {
+                byte[] payload;
+                long lastId;
+                try {
+                    int length = in.readInt();
+                    lastId = in.readLong();
+                    int crc = in.readInt();
+                    if (length < 0 || length > MAX_FRAME) {
+                        throw new IOException("Corrupt frame at byte " + position);
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (crc(payload) != crc) {
+                        throw new IOException("Checksum mismatch in frame at byte " + position);
+                    }
+                } catch (EOFException e) {
+                    // End of file, or an export that was interrupted mid-frame
+                    break;
+                }
+                position += FRAME_HEADER_SIZE + payload.length;
+
+                List<DatabaseHelper.MessageRecord> records = readFrame(payload);
+                imported += db.importMessages(records);
+                AppLog.d(TAG, "Imported frame up to id {}: {} messages", lastId, records.size());
+                if (listener != null) {
+                    listener.onBackupProgress(imported, total > 0 ? (int) (position * 100 / total) : 100);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        Log.i(TAG, "Imported " + imported + " messages from " + file + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+        return imported;
+    }
+
+    // ===== File layout =====
+
+    private static Header readHeader(DataInput in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a Whatsberry backup");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION && version != VERSION_WITHOUT_STORE_ID) {
+            throw new IOException("Unsupported backup version " + version);
+        }
+        Header header = new Header();
+        header.flags = in.readUnsignedByte();
+        header.size = MAGIC.length + 2;
+        if (version != VERSION_WITHOUT_STORE_ID) {
+            header.storeId = in.readLong();
+            header.size += 8;
+        }
+        return header;
+    }
+
+    /**
+     * Free name next to {@code file} for the old backup, with the time inserted before the extension
+     */
+    private static File setAside(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String stamp = "-" + System.currentTimeMillis();
+        return new File(file.getAbsoluteFile().getParentFile(),
+                dot > 0 ? name.substring(0, dot) + stamp + name.substring(dot) : name + stamp);
+    }
+
+    /**
+     * Walk the frame headers, cut the file after the last complete frame
+     * @return last message id covered by the file
+     */
+    private static long findResumePoint(RandomAccessFile raf, long headerSize) throws IOException {
+        long length = raf.length();
+        long position = headerSize;
+        long lastFrame = -1;
+        long lastId = 0;
+        long previousId = 0;
+        while (position + FRAME_HEADER_SIZE <= length) {
+            raf.seek(position);
+            int size = raf.readInt();
+            long id = raf.readLong();
+            if (size < 0 || size > MAX_FRAME || position + FRAME_HEADER_SIZE + size > length) {
+                break;
+            }
+            previousId = lastId;
+            lastId = id;
+            lastFrame = position;
+            position += FRAME_HEADER_SIZE + size;
+        }
+
+        // Only the last frame can be half-written; its CRC tells
+        if (lastFrame >= 0) {
+            raf.seek(lastFrame);
+            byte[] payload = new byte[raf.readInt()];
+            raf.readLong();
+            int crc = raf.readInt();
+            raf.readFully(payload);
+            if (crc(payload) != crc) {
+                position = lastFrame;
+                lastId = previousId;
+            }
+        }
+        if (position < length) {
+            Log.w(TAG, "Dropping " + (length - position) + " bytes of an interrupted export");
+            raf.setLength(position);
+        }
+        return lastId;
+    }
+
+    private static void writeFrame(DataOutputStream out, List<DatabaseHelper.MessageRecord> records, long lastId,
+                                   boolean includeMedia) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 64);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        DataOutputStream payload = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        try {
+            payload.writeInt(records.size());
+            for (DatabaseHelper.MessageRecord message : records) {
+                String fileUrl = includeMedia ? message.fileUrl : null;
+                int flags = (message.isSent ? MESSAGE_SENT : 0) | (message.isRead ? MESSAGE_READ : 0) |
+                        (fileUrl != null ? MESSAGE_FILE : 0) | (message.stanzaId != null ? MESSAGE_STANZA : 0);
+                recordBytes.reset();
+                record.writeByte(RECORD_MESSAGE);
+                MessageArchive.writeString(record, message.contactJid);
+                MessageArchive.writeString(record, message.body);
+                record.writeByte(flags);
+                record.writeLong(message.timestamp);
+                if (fileUrl != null) {
+                    MessageArchive.writeString(record, fileUrl);
+                }
+                if (message.stanzaId != null) {
+                    MessageArchive.writeString(record, message.stanzaId);
+                }
+                // Media without its link is only a file name: restore it as text
+                record.writeByte(fileUrl == null && MessageContent.isMedia(message.kind) ? MessageContent.KIND_TEXT : message.kind);
+                record.writeByte((message.mimeType != null ? CONTENT_MIME_TYPE : 0) |
+                        (message.mediaSize >= 0 ? CONTENT_MEDIA_SIZE : 0) | (message.duration >= 0 ? CONTENT_DURATION : 0));
+                if (message.mimeType != null) {
+                    MessageArchive.writeString(record, message.mimeType);
+                }
+                if (message.mediaSize >= 0) {
+                    record.writeLong(message.mediaSize);
+                }
+                if (message.duration >= 0) {
+                    record.writeLong(message.duration);
+                }
+                payload.writeInt(recordBytes.size());
+                recordBytes.writeTo(payload);
+            }
+        } finally {
+            payload.close();
+            deflater.end();
+        }
+
+        byte[] data = bytes.toByteArray();
+        out.writeInt(data.length);
+        out.writeLong(lastId);
+        out.writeInt(crc(data));
+        out.write(data);
+    }
+
+    private static List<DatabaseHelper.MessageRecord> readFrame(byte[] data) throws IOException {
+        DataInputStream payload = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
+        try {
+            int count = payload.readInt();
+            List<DatabaseHelper.MessageRecord> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[payload.readInt()];
+                payload.readFully(bytes);
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+                if (record.readUnsignedByte() != RECORD_MESSAGE) {
+                    continue;
+                }
+                DatabaseHelper.MessageRecord message = new DatabaseHelper.MessageRecord();
+                message.contactJid = MessageArchive.readString(record);
+                message.body = MessageArchive.readString(record);
+                int flags = record.readUnsignedByte();
+                message.isSent = (flags & MESSAGE_SENT) != 0;
+                message.isRead = (flags & MESSAGE_READ) != 0;
+                message.timestamp = record.readLong();
+                message.fileUrl = (flags & MESSAGE_FILE) != 0 ? MessageArchive.readString(record) : null;
+                message.stanzaId = (flags & MESSAGE_STANZA) != 0 ? MessageArchive.readString(record) : null;
+                if (record.available() > 0) {
+                    message.kind = record.readUnsignedByte();
+                    int content = record.readUnsignedByte();
+                    message.mimeType = (content & CONTENT_MIME_TYPE) != 0 ? MessageArchive.readString(record) : null;
+                    message.mediaSize = (content & CONTENT_MEDIA_SIZE) != 0 ? record.readLong() : -1;
+                    message.duration = (content & CONTENT_DURATION) != 0 ? record.readLong() : -1;
+                } else {
+                    message.setContent(MessageContent.fromStored(message.body, message.fileUrl));
+                }
+                records.add(message);
+            }
+            return records;
+        } finally {
+            payload.close();
+        }
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+}
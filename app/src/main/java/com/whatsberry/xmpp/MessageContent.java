@@ -0,0 +1,160 @@
+package com.whatsberry.xmpp;
+
+/**
+ * Message Content
+ * What a message is (text, media, call notice), decided once when it is stored and kept in
+ * the kind / mime_type / media_size / duration columns, so the chat screen renders from
+ * those instead of looking at the body again. Plain Java so it can be benchmarked off-device.
+ *
+ * Sources, best first: the XEP-0066 out-of-band extension (jabber:x:oob) of the stanza, what we
+ * know about a file we upload ourselves, and for messages without either, the body itself.
+ */
+public final class MessageContent {
+
+    // Stored values, never renumber
+    public static final int KIND_TEXT = 0;
+    public static final int KIND_IMAGE = 1;
+    public static final int KIND_VIDEO = 2;
+    public static final int KIND_AUDIO = 3;
+    public static final int KIND_FILE = 4;
+    public static final int KIND_CALL_INCOMING = 5;
+    public static final int KIND_CALL_MISSED = 6;
+
+    public static final String OOB_ELEMENT = "x";
+    public static final String OOB_NAMESPACE = "jabber:x:oob";
+
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    public int kind = KIND_TEXT;
+    public String fileUrl; // Media kinds only
+    public String mimeType; // null if unknown
+    public long mediaSize = -1; // Bytes, -1 if unknown
+    public long duration = -1; // Milliseconds, -1 if unknown
+
+    /**
+     * Classify an incoming message
+     * @param oobUrl url of the jabber:x:oob extension, null if the stanza has none
+     * @param oobDesc desc of the extension (usually the file name), may be null
+     */
+    public static MessageContent fromStanza(String body, String oobUrl, String oobDesc) {
+        if (oobUrl != null && !oobUrl.isEmpty()) {
+            String name = oobDesc != null && !oobDesc.isEmpty() ? oobDesc : MediaTypes.fileName(oobUrl);
+            return media(oobUrl, name);
+        }
+        return fromStored(body, null);
+    }
+
+    /**
+     * Classify a message from what older rows and backups have: the body and the file URL
+     */
+    public static MessageContent fromStored(String body, String fileUrl) {
+        if (fileUrl != null && !fileUrl.isEmpty()) {
+            return media(fileUrl, body);
+        }
+        if (MediaTypes.isMediaUrl(body)) {
+            return media(body, MediaTypes.fileName(body));
+        }
+        MessageContent content = new MessageContent();
+        content.kind = callKind(body);
+        return content;
+    }
+
+    /**
+     * A file we uploaded ourselves
+     * @param duration recording length in ms, -1 if unknown
+     */
+    public static MessageContent forUpload(String fileUrl, String fileName, long size, long duration) {
+        MessageContent content = media(fileUrl, fileName);
+        content.mediaSize = size;
+        content.duration = duration;
+        return content;
+    }
+
+    public static boolean isMedia(int kind) {
+        return kind >= KIND_IMAGE && kind <= KIND_FILE;
+    }
+
+    public static boolean isCall(int kind) {
+        return kind == KIND_CALL_INCOMING || kind == KIND_CALL_MISSED;
+    }
+
+    /**
+     * MIME type from a file name's extension
+     */
+    public static String mimeTypeFor(String fileName) {
+        if (fileName == null) return DEFAULT_MIME_TYPE;
+
+        String lower = fileName.toLowerCase();
+        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "image/jpeg";
+        if (lower.endsWith(".png")) return "image/png";
+        if (lower.endsWith(".gif")) return "image/gif";
+        if (lower.endsWith(".mp4")) return "video/mp4";
+        if (lower.endsWith(".3gp")) return "video/3gpp";
+        if (lower.endsWith(".webm")) return "video/webm";
+        if (lower.endsWith(".mp3")) return "audio/mpeg";
+        if (lower.endsWith(".ogg") || lower.endsWith(".opus")) return "audio/ogg";
+        if (lower.endsWith(".m4a")) return "audio/mp4";
+
+        return DEFAULT_MIME_TYPE;
+    }
+
+    /**
+     * Caller of a call notice
+     * Format: "Incoming call from Kevin Morán (xmpp:+5213141720100@whatsapp.localhost) at 2025-12-07 19:23:10+00:00"
+     * @return the name, or null if the text has none
+     */
+    public static String callerName(String text) {
+        if (text == null) {
+            return null;
+        }
+        int fromIndex = text.toLowerCase().indexOf("from ");
+        if (fromIndex == -1) {
+            return null;
+        }
+        int startIndex = fromIndex + 5; // Skip "from "
+        int endIndex = text.indexOf(" (", startIndex);
+        return endIndex != -1 ? text.substring(startIndex, endIndex).trim() : null;
+    }
+
+    private static MessageContent media(String fileUrl, String fileName) {
+        MessageContent content = new MessageContent();
+        content.fileUrl = fileUrl;
+        String name = fileName != null ? fileName : MediaTypes.fileName(fileUrl);
+        String mimeType = mimeTypeFor(name);
+        if (DEFAULT_MIME_TYPE.equals(mimeType)) {
+            mimeType = mimeTypeFor(fileUrl);
+        }
+
+        // Audio first, as the chat screen always did: voice notes are .3gp/.webm too,
+        // and converter links have no extension at all
+        if (MediaTypes.isAudioUrl(fileUrl) || MediaTypes.isAudioUrl(name)) {
+            content.kind = KIND_AUDIO;
+            if (mimeType.startsWith("video/")) {
+                mimeType = "audio/" + mimeType.substring("video/".length());
+            }
+        } else if (mimeType.startsWith("image/")) {
+            content.kind = KIND_IMAGE;
+        } else if (mimeType.startsWith("video/")) {
+            content.kind = KIND_VIDEO;
+        } else {
+            content.kind = KIND_FILE;
+        }
+        content.mimeType = DEFAULT_MIME_TYPE.equals(mimeType) ? null : mimeType;
+        return content;
+    }
+
+    private static int callKind(String text) {
+        // Call notices are a single short line, no need to lower-case long messages
+        if (text == null || text.length() > 512) {
+            return KIND_TEXT;
+        }
+        String lowerText = text.toLowerCase();
+        if (lowerText.contains("incoming call from")) {
+            return KIND_CALL_INCOMING;
+        }
+        if (lowerText.contains("missed call from")) {
+            return KIND_CALL_MISSED;
+        }
+        return KIND_TEXT;
+    }
+}
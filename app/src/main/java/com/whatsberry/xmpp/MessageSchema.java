@@ -0,0 +1,498 @@
+package com.whatsberry.xmpp;
+
+/**
+ * Message Schema
+ * Table layout and SQL of the messages table and of its cold tier. DatabaseHelper runs these
+ * statements on the device; the benchmarks module runs the very same strings against host
+ * SQLite, so keep this class free of Android types.
+ */
+public final class MessageSchema {
+
+    public static final String TABLE = "messages";
+
+    public static final String ID = "id";
+    public static final String CONTACT_JID = "contact_jid";
+    public static final String BODY = "body";
+    public static final String IS_SENT = "is_sent";
+    public static final String TIMESTAMP = "timestamp";
+    public static final String FILE_URL = "file_url"; // Multimedia files, NULL for text-only messages
+    public static final String STANZA_ID = "stanza_id"; // XMPP message ID for retraction
+    public static final String IS_READ = "is_read"; // 1 if message has been read, 0 if unread
+    public static final String KIND = "kind"; // MessageContent.KIND_*, classified when stored
+    public static final String MIME_TYPE = "mime_type"; // Media only, NULL if unknown
+    public static final String MEDIA_SIZE = "media_size"; // Bytes, NULL if unknown
+    public static final String DURATION = "duration"; // Milliseconds, NULL if unknown
+
+    public static final String CREATE_TABLE = "CREATE TABLE " + TABLE + " (" +
+            ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            CONTACT_JID + " TEXT NOT NULL, " +
+            BODY + " TEXT NOT NULL, " +
+            IS_SENT + " INTEGER NOT NULL, " +
+            TIMESTAMP + " INTEGER NOT NULL, " +
+            FILE_URL + " TEXT, " +
+            STANZA_ID + " TEXT, " +
+            IS_READ + " INTEGER NOT NULL DEFAULT 0, " + // 0 = unread, 1 = read
+            KIND + " INTEGER NOT NULL DEFAULT 0, " +
+            MIME_TYPE + " TEXT, " +
+            MEDIA_SIZE + " INTEGER, " +
+            DURATION + " INTEGER" +
+            ")";
+
+    /**
+     * Columns added by schema 9, for ALTER TABLE on older databases
+     */
+    public static final String[] CONTENT_COLUMNS = {
+            KIND + " INTEGER NOT NULL DEFAULT 0", MIME_TYPE + " TEXT", MEDIA_SIZE + " INTEGER", DURATION + " INTEGER"
+    };
+
+    /**
+     * Rows stored before schema 9 that may be something other than text (the LIKEs are
+     * case-insensitive); classified once by the upgrade. No arguments
+     */
+    public static final String SELECT_UNCLASSIFIED = "SELECT " + ID + ", " + BODY + ", " + FILE_URL + " FROM " + TABLE +
+            " WHERE " + FILE_URL + " IS NOT NULL OR " + BODY + " LIKE 'http%'" +
+            " OR " + BODY + " LIKE '%incoming call from%' OR " + BODY + " LIKE '%missed call from%'";
+
+    // Per-contact queries in time order, and the per-contact retention cutoffs and deletes.
+    // Replaces idx_contact_jid (schema 6 and older), which it covers as a prefix.
+    public static final String CREATE_INDEX_CONTACT_TIME =
+            "CREATE INDEX IF NOT EXISTS idx_contact_time ON " + TABLE + "(" + CONTACT_JID + ", " + TIMESTAMP + ")";
+    public static final String DROP_INDEX_CONTACT = "DROP INDEX IF EXISTS idx_contact_jid";
+
+    // Archive sync dedups every page against stored stanza IDs
+    public static final String CREATE_INDEX_STANZA_ID =
+            "CREATE INDEX IF NOT EXISTS idx_stanza_id ON " + TABLE + "(" + STANZA_ID + ")";
+
+    /**
+     * Newest message of every contact (chat list); no arguments
+     */
+    public static final String SELECT_LAST_PER_CONTACT = "SELECT m.* FROM " + TABLE + " m " +
+            "INNER JOIN (" +
+            "   SELECT " + CONTACT_JID + ", MAX(" + TIMESTAMP + ") as max_time " +
+            "   FROM " + TABLE + " " +
+            "   GROUP BY " + CONTACT_JID +
+            ") latest " +
+            "ON m." + CONTACT_JID + " = latest." + CONTACT_JID + " " +
+            "AND m." + TIMESTAMP + " = latest.max_time";
+
+    public static final String SELECT_CONTACTS = "SELECT DISTINCT " + CONTACT_JID + " FROM " + TABLE;
+
+    public static final String SELECT_MAX_ID = "SELECT MAX(" + ID + ") FROM " + TABLE;
+
+    /**
+     * Messages with ids in a range, in id order (primary key range); arguments: first id, last id
+     */
+    public static final String SELECT_ID_RANGE = "SELECT * FROM " + TABLE +
+            " WHERE " + ID + " >= ? AND " + ID + " <= ? ORDER BY " + ID;
+
+    /**
+     * A message by stanza ID (idx_stanza_id); argument: stanza ID
+     */
+    public static final String SELECT_BY_STANZA_ID = "SELECT * FROM " + TABLE + " WHERE " + STANZA_ID + " = ? LIMIT 1";
+
+    /**
+     * Argument: message id
+     */
+    public static final String DELETE_MESSAGE = "DELETE FROM " + TABLE + " WHERE " + ID + " = ?";
+
+    /**
+     * WHERE clause for one contact's messages older than a cutoff (an idx_contact_time range);
+     * arguments: contact JID, timestamp
+     */
+    public static final String CONTACT_OLDER_THAN_WHERE = CONTACT_JID + " = ? AND " + TIMESTAMP + " < ?";
+
+    // ===== Deduplicated inserts (archive sync, backup import) =====
+    // A message is already stored if a row of either tier has its stanza ID or, for messages
+    // without one, the same contact, timestamp, direction and body. The hot table answers that
+    // through idx_stanza_id and idx_contact_time, the archive through ARCHIVE_KEYS.
+
+    private static final String INSERT_COLUMNS = "INSERT INTO " + TABLE + " (" + CONTACT_JID + ", " + BODY + ", " +
+            IS_SENT + ", " + TIMESTAMP + ", " + IS_READ + ", " + KIND + ", " + FILE_URL + ", " + MIME_TYPE + ", " +
+            MEDIA_SIZE + ", " + DURATION + ", " + STANZA_ID + ")";
+
+    /**
+     * Insert a message (DatabaseHelper.insertMessage), arguments ?1 to ?11 as for insertIfNew
+     */
+    public static final String INSERT = INSERT_COLUMNS + " VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, ?9, ?10, ?11)";
+
+    /**
+     * Insert a message unless it is already stored. Numbered arguments: ?1 contact JID, ?2 body,
+     * ?3 is_sent, ?4 timestamp, ?5 is_read, ?6 kind, ?7 file URL, ?8 mime type, ?9 media size,
+     * ?10 duration, ?11 stanza ID (NULL if none) and, {@code withArchive}, ?12 the message's
+     * MessageArchive.dedupKey
+     */
+    public static String insertIfNew(boolean withArchive) {
+        return INSERT_COLUMNS + " SELECT ?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, ?9, ?10, ?11 WHERE CASE WHEN ?11 IS NULL" +
+                " THEN NOT EXISTS (SELECT 1 FROM " + TABLE + " WHERE " + CONTACT_JID + " = ?1 AND " + TIMESTAMP + " = ?4" +
+                " AND " + IS_SENT + " = ?3 AND " + BODY + " = ?2)" +
+                " ELSE NOT EXISTS (SELECT 1 FROM " + TABLE + " WHERE " + STANZA_ID + " = ?11) END" +
+                (withArchive ? " AND NOT EXISTS (SELECT 1 FROM " + ARCHIVE_KEYS + " WHERE " + KEY + " = ?12)" : "");
+    }
+
+    // ===== Store identity =====
+    // One row with a random id, made when first asked for (MessageStore.getStoreId). Backups
+    // record it, so a reinstalled app or another device never appends to a file it didn't start.
+
+    public static final String STORE_INFO = "store_info";
+    public static final String STORE_INFO_ROW = "id"; // Always 1
+    public static final String STORE_ID = "store_id";
+
+    public static final String CREATE_STORE_INFO = "CREATE TABLE IF NOT EXISTS " + STORE_INFO + " (" +
+            STORE_INFO_ROW + " INTEGER PRIMARY KEY CHECK (" + STORE_INFO_ROW + " = 1), " +
+            STORE_ID + " INTEGER NOT NULL" +
+            ")";
+
+    public static final String SELECT_STORE_ID = "SELECT " + STORE_ID + " FROM " + STORE_INFO;
+
+    /**
+     * Keeps an existing id; argument: the new id
+     */
+    public static final String INSERT_STORE_ID = "INSERT OR IGNORE INTO " + STORE_INFO +
+            " (" + STORE_INFO_ROW + ", " + STORE_ID + ") VALUES (1, ?)";
+
+    // ===== Conversations =====
+    // Unread state per contact, so the chat list and "mark as read" never touch message rows.
+    // A received message is unread while is_read = 0 and its id is above the contact's
+    // read_up_to watermark; the triggers below keep unread_count equal to that on every insert,
+    // delete and is_read change. Marking a chat read only moves the watermark: is_read of the
+    // rows is brought in line later, off the UI path (APPLY_READ_WATERMARKS).
+
+    public static final String CONVERSATIONS = "conversations";
+    public static final String CONVERSATION_CONTACT_JID = "contact_jid";
+    public static final String CONVERSATION_UNREAD_COUNT = "unread_count";
+    public static final String CONVERSATION_READ_UP_TO = "read_up_to"; // Message id
+
+    public static final String CREATE_CONVERSATIONS = "CREATE TABLE IF NOT EXISTS " + CONVERSATIONS + " (" +
+            CONVERSATION_CONTACT_JID + " TEXT PRIMARY KEY, " +
+            CONVERSATION_UNREAD_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+            CONVERSATION_READ_UP_TO + " INTEGER NOT NULL DEFAULT 0" +
+            ")";
+
+    // Covering index for the unread rows (few) when counters are rebuilt or watermarks
+    // applied. Not a partial index: those need SQLite 3.8, Android 4.3 ships 3.7.11.
+    public static final String CREATE_INDEX_UNREAD = "CREATE INDEX IF NOT EXISTS idx_unread ON " + TABLE +
+            "(" + IS_READ + ", " + IS_SENT + ", " + CONTACT_JID + ")";
+
+    public static final String CREATE_TRIGGER_UNREAD_INSERT = "CREATE TRIGGER IF NOT EXISTS unread_insert" +
+            " AFTER INSERT ON " + TABLE +
+            " WHEN " + unreadRow("NEW") + " BEGIN" +
+            " INSERT OR IGNORE INTO " + CONVERSATIONS + " (" + CONVERSATION_CONTACT_JID + ") VALUES (NEW." + CONTACT_JID + ");" +
+            " UPDATE " + CONVERSATIONS + " SET " + CONVERSATION_UNREAD_COUNT + " = " + CONVERSATION_UNREAD_COUNT + " + 1" +
+            " WHERE " + CONVERSATION_CONTACT_JID + " = NEW." + CONTACT_JID + " AND " + CONVERSATION_READ_UP_TO + " < NEW." + ID + ";" +
+            " END";
+
+    public static final String CREATE_TRIGGER_UNREAD_DELETE = "CREATE TRIGGER IF NOT EXISTS unread_delete" +
+            " AFTER DELETE ON " + TABLE +
+            " WHEN " + unreadRow("OLD") + " BEGIN" +
+            " UPDATE " + CONVERSATIONS + " SET " + CONVERSATION_UNREAD_COUNT + " = " + CONVERSATION_UNREAD_COUNT + " - 1" +
+            " WHERE " + CONVERSATION_CONTACT_JID + " = OLD." + CONTACT_JID + " AND " + CONVERSATION_READ_UP_TO + " < OLD." + ID + ";" +
+            " END";
+
+    public static final String CREATE_TRIGGER_UNREAD_READ = "CREATE TRIGGER IF NOT EXISTS unread_read" +
+            " AFTER UPDATE OF " + IS_READ + " ON " + TABLE +
+            " WHEN " + unreadRow("OLD") + " AND NEW." + IS_READ + " = 1 BEGIN" +
+            " UPDATE " + CONVERSATIONS + " SET " + CONVERSATION_UNREAD_COUNT + " = " + CONVERSATION_UNREAD_COUNT + " - 1" +
+            " WHERE " + CONVERSATION_CONTACT_JID + " = OLD." + CONTACT_JID + " AND " + CONVERSATION_READ_UP_TO + " < OLD." + ID + ";" +
+            " END";
+
+    /**
+     * Rebuild the counters from the message rows (schema upgrade); no arguments
+     */
+    public static final String FILL_CONVERSATIONS = "INSERT OR REPLACE INTO " + CONVERSATIONS +
+            " (" + CONVERSATION_CONTACT_JID + ", " + CONVERSATION_UNREAD_COUNT + ")" +
+            " SELECT " + CONTACT_JID + ", COUNT(*) FROM " + TABLE +
+            " WHERE " + IS_READ + " = 0 AND " + IS_SENT + " = 0 GROUP BY " + CONTACT_JID;
+
+    /**
+     * Unread count of one contact (primary key lookup); argument: contact JID
+     */
+    public static final String SELECT_UNREAD_COUNT = "SELECT " + CONVERSATION_UNREAD_COUNT + " FROM " + CONVERSATIONS +
+            " WHERE " + CONVERSATION_CONTACT_JID + " = ?";
+
+    /**
+     * Contacts with unread messages and their counts (chat list); no arguments
+     */
+    public static final String SELECT_UNREAD_COUNTS = "SELECT " + CONVERSATION_CONTACT_JID + ", " +
+            CONVERSATION_UNREAD_COUNT + " FROM " + CONVERSATIONS + " WHERE " + CONVERSATION_UNREAD_COUNT + " > 0";
+
+    public static final String SELECT_TOTAL_UNREAD = "SELECT SUM(" + CONVERSATION_UNREAD_COUNT + ") FROM " + CONVERSATIONS;
+
+    /**
+     * Mark everything of a contact stored so far as read: one row, whatever the chat size.
+     * The watermark is the AUTOINCREMENT high-water mark, so later messages stay unread.
+     * Argument: contact JID
+     */
+    public static final String MARK_CONVERSATION_READ = "UPDATE " + CONVERSATIONS +
+            " SET " + CONVERSATION_UNREAD_COUNT + " = 0, " + CONVERSATION_READ_UP_TO +
+            " = COALESCE((SELECT seq FROM sqlite_sequence WHERE name = '" + TABLE + "'), 0)" +
+            " WHERE " + CONVERSATION_CONTACT_JID + " = ?";
+
+    /**
+     * Timestamp of the newest message of a contact the user has seen in the hot table: sent,
+     * read, or at or below the read watermark. Walks idx_contact_time from the newest row and
+     * stops at the first match. Argument: contact JID
+     */
+    public static final String SELECT_SEEN_UP_TO = "SELECT " + TIMESTAMP + " FROM " + TABLE +
+            " WHERE " + CONTACT_JID + " = ?1 AND (" + IS_SENT + " = 1 OR " + IS_READ + " = 1 OR " + ID + " <= (" +
+            "SELECT " + CONVERSATION_READ_UP_TO + " FROM " + CONVERSATIONS + " WHERE " + CONVERSATION_CONTACT_JID + " = ?1))" +
+            " ORDER BY " + TIMESTAMP + " DESC LIMIT 1";
+
+    /**
+     * Set is_read on received rows below their contact's watermark (finds them through
+     * idx_unread); no arguments
+     */
+    public static final String APPLY_READ_WATERMARKS = "UPDATE " + TABLE + " SET " + IS_READ + " = 1" +
+            " WHERE " + IS_READ + " = 0 AND " + IS_SENT + " = 0 AND " + ID + " <= (" +
+            "SELECT " + CONVERSATION_READ_UP_TO + " FROM " + CONVERSATIONS + " c" +
+            " WHERE c." + CONVERSATION_CONTACT_JID + " = " + TABLE + "." + CONTACT_JID + ")";
+
+    // ===== Cold tier =====
+    // Old, read messages are moved into compressed blocks (see MessageArchive) in a second
+    // database file, attached to the main connection under this name. Messages of a block
+    // belong to one contact and are in time order.
+
+    public static final String ARCHIVE = "archive";
+    public static final String ARCHIVE_BLOCKS = ARCHIVE + ".message_blocks";
+
+    public static final String BLOCK_ID = "id";
+    public static final String BLOCK_CONTACT_JID = "contact_jid";
+    public static final String BLOCK_FIRST_TIMESTAMP = "first_timestamp";
+    public static final String BLOCK_LAST_TIMESTAMP = "last_timestamp";
+    public static final String BLOCK_MESSAGE_COUNT = "message_count";
+    public static final String BLOCK_MIN_MESSAGE_ID = "min_message_id"; // Original messages.id values,
+    public static final String BLOCK_MAX_MESSAGE_ID = "max_message_id"; // so edits and deletes find them
+    public static final String BLOCK_DATA = "data";
+
+    public static final String CREATE_ARCHIVE_BLOCKS = "CREATE TABLE IF NOT EXISTS " + ARCHIVE_BLOCKS + " (" +
+            BLOCK_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            BLOCK_CONTACT_JID + " TEXT NOT NULL, " +
+            BLOCK_FIRST_TIMESTAMP + " INTEGER NOT NULL, " +
+            BLOCK_LAST_TIMESTAMP + " INTEGER NOT NULL, " +
+            BLOCK_MESSAGE_COUNT + " INTEGER NOT NULL, " +
+            BLOCK_MIN_MESSAGE_ID + " INTEGER NOT NULL, " +
+            BLOCK_MAX_MESSAGE_ID + " INTEGER NOT NULL, " +
+            BLOCK_DATA + " BLOB NOT NULL" +
+            ")";
+
+    public static final String CREATE_ARCHIVE_INDEX_CONTACT = "CREATE INDEX IF NOT EXISTS " + ARCHIVE +
+            ".idx_blocks_contact ON message_blocks(" + BLOCK_CONTACT_JID + ", " + BLOCK_LAST_TIMESTAMP + ")";
+
+    // Blocks by message id (edits and deletes of archived messages, backup export)
+    public static final String CREATE_ARCHIVE_INDEX_IDS = "CREATE INDEX IF NOT EXISTS " + ARCHIVE +
+            ".idx_blocks_ids ON message_blocks(" + BLOCK_MIN_MESSAGE_ID + ", " + BLOCK_MAX_MESSAGE_ID + ")";
+
+    /**
+     * Arguments: contact JID, first timestamp, last timestamp, message count, lowest and
+     * highest message id, data
+     */
+    public static final String INSERT_ARCHIVE_BLOCK = "INSERT INTO " + ARCHIVE_BLOCKS + " (" + BLOCK_CONTACT_JID + ", " +
+            BLOCK_FIRST_TIMESTAMP + ", " + BLOCK_LAST_TIMESTAMP + ", " + BLOCK_MESSAGE_COUNT + ", " +
+            BLOCK_MIN_MESSAGE_ID + ", " + BLOCK_MAX_MESSAGE_ID + ", " + BLOCK_DATA + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Arguments as for INSERT_ARCHIVE_BLOCK, then the block id
+     */
+    public static final String UPDATE_ARCHIVE_BLOCK = "UPDATE " + ARCHIVE_BLOCKS + " SET " + BLOCK_CONTACT_JID + " = ?, " +
+            BLOCK_FIRST_TIMESTAMP + " = ?, " + BLOCK_LAST_TIMESTAMP + " = ?, " + BLOCK_MESSAGE_COUNT + " = ?, " +
+            BLOCK_MIN_MESSAGE_ID + " = ?, " + BLOCK_MAX_MESSAGE_ID + " = ?, " + BLOCK_DATA + " = ? WHERE " + BLOCK_ID + " = ?";
+
+    /**
+     * Argument: block id
+     */
+    public static final String DELETE_ARCHIVE_BLOCK = "DELETE FROM " + ARCHIVE_BLOCKS + " WHERE " + BLOCK_ID + " = ?";
+
+    // Dedup key (MessageArchive.dedupKey) of every archived message, written with its block,
+    // so deduplicated inserts never inflate blocks
+    public static final String ARCHIVE_KEYS = ARCHIVE + ".message_keys";
+    public static final String KEY = "message_key";
+    public static final String KEY_BLOCK_ID = "block_id";
+
+    public static final String CREATE_ARCHIVE_KEYS = "CREATE TABLE IF NOT EXISTS " + ARCHIVE_KEYS + " (" +
+            KEY + " TEXT NOT NULL, " +
+            KEY_BLOCK_ID + " INTEGER NOT NULL" +
+            ")";
+
+    public static final String CREATE_ARCHIVE_INDEX_KEY = "CREATE INDEX IF NOT EXISTS " + ARCHIVE +
+            ".idx_keys_key ON message_keys(" + KEY + ")";
+
+    public static final String CREATE_ARCHIVE_INDEX_KEY_BLOCK = "CREATE INDEX IF NOT EXISTS " + ARCHIVE +
+            ".idx_keys_block ON message_keys(" + KEY_BLOCK_ID + ")";
+
+    /**
+     * Arguments: key, block id
+     */
+    public static final String INSERT_ARCHIVE_KEY = "INSERT INTO " + ARCHIVE_KEYS + " (" + KEY + ", " + KEY_BLOCK_ID +
+            ") VALUES (?, ?)";
+
+    /**
+     * Argument: block id
+     */
+    public static final String DELETE_ARCHIVE_KEYS_FOR_BLOCK = "DELETE FROM " + ARCHIVE_KEYS + " WHERE " + KEY_BLOCK_ID + " = ?";
+
+    /**
+     * Blocks written before ARCHIVE_KEYS existed (found through idx_keys_block); no arguments
+     */
+    public static final String SELECT_ARCHIVE_BLOCKS_WITHOUT_KEYS = "SELECT * FROM " + ARCHIVE_BLOCKS +
+            " WHERE " + BLOCK_ID + " NOT IN (SELECT " + KEY_BLOCK_ID + " FROM " + ARCHIVE_KEYS + ")";
+
+    /**
+     * A contact's blocks, oldest first; argument: contact JID
+     */
+    public static final String SELECT_ARCHIVE_BLOCKS_FOR_CONTACT = "SELECT * FROM " + ARCHIVE_BLOCKS +
+            " WHERE " + BLOCK_CONTACT_JID + " = ? ORDER BY " + BLOCK_LAST_TIMESTAMP + " ASC";
+
+    /**
+     * A contact's blocks, newest first; argument: contact JID
+     */
+    public static final String SELECT_ARCHIVE_BLOCKS_FOR_CONTACT_NEWEST_FIRST = "SELECT * FROM " + ARCHIVE_BLOCKS +
+            " WHERE " + BLOCK_CONTACT_JID + " = ? ORDER BY " + BLOCK_LAST_TIMESTAMP + " DESC";
+
+    /**
+     * All blocks, newest first (archive search); no arguments
+     */
+    public static final String SELECT_ARCHIVE_BLOCKS_NEWEST_FIRST = "SELECT * FROM " + ARCHIVE_BLOCKS +
+            " ORDER BY " + BLOCK_LAST_TIMESTAMP + " DESC";
+
+    /**
+     * The block holding a message; argument: message id twice
+     */
+    public static final String SELECT_ARCHIVE_BLOCK_FOR_MESSAGE = "SELECT * FROM " + ARCHIVE_BLOCKS +
+            " WHERE " + BLOCK_MIN_MESSAGE_ID + " <= ? AND " + BLOCK_MAX_MESSAGE_ID + " >= ?";
+
+    /**
+     * The blocks holding a dedup key (idx_keys_key), for a stanza ID the block of that message;
+     * argument: key
+     */
+    public static final String SELECT_ARCHIVE_BLOCKS_FOR_KEY = "SELECT * FROM " + ARCHIVE_BLOCKS +
+            " WHERE " + BLOCK_ID + " IN (SELECT " + KEY_BLOCK_ID + " FROM " + ARCHIVE_KEYS + " WHERE " + KEY + " = ?)";
+
+    /**
+     * Blocks whose lowest message id is above the first argument and at most the second,
+     * leaving out blocks that end below the third, in id order (an idx_blocks_ids range).
+     * Consecutive ranges read every block once (MessageBackup export).
+     */
+    public static final String SELECT_ARCHIVE_BLOCKS_STARTING_IN = "SELECT * FROM " + ARCHIVE_BLOCKS +
+            " WHERE " + BLOCK_MIN_MESSAGE_ID + " > ? AND " + BLOCK_MIN_MESSAGE_ID + " <= ? AND " +
+            BLOCK_MAX_MESSAGE_ID + " >= ? ORDER BY " + BLOCK_MIN_MESSAGE_ID;
+
+    /**
+     * Newest archived message of a contact (idx_blocks_contact); argument: contact JID
+     */
+    public static final String SELECT_ARCHIVE_LAST_TIMESTAMP = "SELECT MAX(" + BLOCK_LAST_TIMESTAMP + ") FROM " +
+            ARCHIVE_BLOCKS + " WHERE " + BLOCK_CONTACT_JID + " = ?";
+
+    public static final String SELECT_ARCHIVE_MAX_ID = "SELECT MAX(" + BLOCK_MAX_MESSAGE_ID + ") FROM " + ARCHIVE_BLOCKS;
+
+    public static final String SELECT_ARCHIVE_CONTACTS = "SELECT DISTINCT " + BLOCK_CONTACT_JID + " FROM " + ARCHIVE_BLOCKS;
+
+    private MessageSchema() {
+    }
+
+    /**
+     * Statements creating the table and its indexes on a fresh database, in order
+     */
+    public static String[] createStatements() {
+        return new String[]{CREATE_TABLE, CREATE_INDEX_CONTACT_TIME, CREATE_INDEX_STANZA_ID,
+                CREATE_CONVERSATIONS, CREATE_INDEX_UNREAD, CREATE_TRIGGER_UNREAD_INSERT,
+                CREATE_TRIGGER_UNREAD_DELETE, CREATE_TRIGGER_UNREAD_READ, CREATE_STORE_INFO};
+    }
+
+    /**
+     * Statements adding the unread counters (table, index, triggers) to an existing database
+     */
+    public static String[] createConversationStatements() {
+        return new String[]{CREATE_CONVERSATIONS, CREATE_INDEX_UNREAD, CREATE_TRIGGER_UNREAD_INSERT,
+                CREATE_TRIGGER_UNREAD_DELETE, CREATE_TRIGGER_UNREAD_READ};
+    }
+
+    // Trigger condition: a received, unread row ("NEW" or "OLD")
+    private static String unreadRow(String row) {
+        return row + "." + IS_SENT + " = 0 AND " + row + "." + IS_READ + " = 0";
+    }
+
+    /**
+     * Conversation in chronological order; argument: contact JID
+     * @param limit maximum rows, 0 for all
+     */
+    public static String selectForContact(int limit) {
+        return "SELECT * FROM " + TABLE +
+                " WHERE " + CONTACT_JID + " = ?" +
+                " ORDER BY " + TIMESTAMP + " ASC" +
+                (limit > 0 ? " LIMIT " + limit : "");
+    }
+
+    /**
+     * Body search, newest first; arguments: "%query%" and, if {@code forContact}, the contact JID
+     */
+    public static String search(boolean forContact, int limit) {
+        return "SELECT * FROM " + TABLE +
+                " WHERE " + BODY + " LIKE ?" +
+                (forContact ? " AND " + CONTACT_JID + " = ?" : "") +
+                " ORDER BY " + TIMESTAMP + " DESC" +
+                " LIMIT " + limit;
+    }
+
+    /**
+     * Contacts with more than {@code keep} messages, in one pass over idx_contact_time; no arguments
+     */
+    public static String selectContactsOver(int keep) {
+        return "SELECT " + CONTACT_JID + " FROM " + TABLE +
+                " GROUP BY " + CONTACT_JID +
+                " HAVING COUNT(*) > " + keep;
+    }
+
+    /**
+     * Timestamp of a contact's {@code keep}-th newest message, read from the index;
+     * argument: contact JID
+     */
+    public static String selectRetentionCutoff(int keep) {
+        return "SELECT " + TIMESTAMP + " FROM " + TABLE +
+                " WHERE " + CONTACT_JID + " = ?" +
+                " ORDER BY " + TIMESTAMP + " DESC" +
+                " LIMIT 1 OFFSET " + (keep - 1);
+    }
+
+    /**
+     * Delete at most {@code chunk} rows matching {@code where} (same arguments as the clause),
+     * so each statement is a short transaction
+     */
+    public static String deleteChunk(String where, int chunk) {
+        return "DELETE FROM " + TABLE + " WHERE " + ID + " IN (" +
+                "SELECT " + ID + " FROM " + TABLE + " WHERE " + where + " LIMIT " + chunk + ")";
+    }
+
+    /**
+     * Delete the {@code chunk} first stored messages (rowid order, cheapest to find); no arguments
+     */
+    public static String deleteOldestChunk(int chunk) {
+        return "DELETE FROM " + TABLE + " WHERE " + ID + " IN (" +
+                "SELECT " + ID + " FROM " + TABLE + " ORDER BY " + ID + " LIMIT " + chunk + ")";
+    }
+
+    /**
+     * A contact's read messages older than a cutoff, oldest first (next block to archive);
+     * arguments: contact JID, timestamp
+     */
+    public static String selectArchivable(int limit) {
+        return "SELECT * FROM " + TABLE +
+                " WHERE " + CONTACT_JID + " = ? AND " + TIMESTAMP + " < ? AND " + IS_READ + " = 1" +
+                " ORDER BY " + TIMESTAMP + " ASC LIMIT " + limit;
+    }
+
+    /**
+     * Delete the keys of the blocks matching {@code blockWhere} (same arguments as the clause);
+     * run before deleting the blocks
+     */
+    public static String deleteArchiveKeys(String blockWhere) {
+        return "DELETE FROM " + ARCHIVE_KEYS + " WHERE " + KEY_BLOCK_ID + " IN (" +
+                "SELECT " + BLOCK_ID + " FROM " + ARCHIVE_BLOCKS + " WHERE " + blockWhere + ")";
+    }
+
+    /**
+     * Statements preparing the attached archive database, in order
+     */
+    public static String[] createArchiveStatements() {
+        return new String[]{CREATE_ARCHIVE_BLOCKS, CREATE_ARCHIVE_INDEX_CONTACT, CREATE_ARCHIVE_INDEX_IDS,
+                CREATE_ARCHIVE_KEYS, CREATE_ARCHIVE_INDEX_KEY, CREATE_ARCHIVE_INDEX_KEY_BLOCK};
+    }
+}
@@ -0,0 +1,732 @@
+package com.whatsberry.xmpp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Message Store
+ * The message steps of DatabaseHelper, written against a minimal database interface instead
+ * of SQLiteDatabase: binding records to the MessageSchema statements and reading rows back,
+ * deduplicated batch inserts, the unread counters, and the cold tier (packing, walking and
+ * rewriting archive blocks). DatabaseHelper runs it on the device (SQLiteMessageDatabase);
+ * the unit tests run the same code on host SQLite.
+ */
+final class MessageStore implements MessageBackup.Store {
+    private static final String TAG = "MessageStore";
+
+    private static final Metrics.Counter BLOCKS_DECODED = Metrics.counter("db.archive_blocks_decoded");
+
+    /**
+     * The calls of SQLiteDatabase this class uses
+     */
+    interface Database {
+        Statement compile(String sql);
+
+        Rows query(String sql, String[] args);
+
+        void beginTransaction();
+
+        void setTransactionSuccessful();
+
+        void endTransaction();
+    }
+
+    /**
+     * A compiled statement, as SQLiteStatement: 1-based arguments, unbound ones are NULL
+     */
+    interface Statement {
+        void bindString(int index, String value);
+
+        void bindLong(int index, long value);
+
+        void bindBlob(int index, byte[] value);
+
+        void clearBindings();
+
+        /**
+         * @return rowid of the inserted row, -1 if none was inserted
+         */
+        long executeInsert();
+
+        int executeUpdateDelete();
+
+        void close();
+    }
+
+    /**
+     * Query result, as Cursor: 0-based columns
+     */
+    interface Rows {
+        boolean moveToNext();
+
+        int getColumnIndex(String column);
+
+        long getLong(int column);
+
+        String getString(int column);
+
+        byte[] getBlob(int column);
+
+        boolean isNull(int column);
+
+        void close();
+    }
+
+    private final Database db;
+    private final boolean withArchive;
+
+    /**
+     * @param withArchive the archive database is attached as MessageSchema.ARCHIVE
+     */
+    MessageStore(Database db, boolean withArchive) {
+        this.db = db;
+        this.withArchive = withArchive;
+    }
+
+    // ===== Hot table =====
+
+    /**
+     * Insert one message: sent messages are stored read, received ones unread
+     * @return id of the new row
+     */
+    long insertMessage(String contactJid, String body, boolean isSent, long timestamp, MessageContent content, String stanzaId) {
+        Statement insert = db.compile(MessageSchema.INSERT);
+        try {
+            insert.bindString(1, contactJid);
+            insert.bindString(2, body);
+            insert.bindLong(3, isSent ? 1 : 0);
+            insert.bindLong(4, timestamp);
+            insert.bindLong(5, isSent ? 1 : 0);
+            bindContent(insert, content.kind, content.fileUrl, content.mimeType, content.mediaSize, content.duration);
+            if (stanzaId != null && !stanzaId.isEmpty()) {
+                insert.bindString(11, stanzaId);
+            }
+            return insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Insert records in one transaction, skipping those already stored in either tier (same
+     * stanza ID, or for messages without one, same contact, timestamp, direction and body)
+     * @param keepReadState store read records as read; otherwise received ones are unread
+     * @return number of messages actually inserted; those records get their new id
+     */
+    int insertBatch(List<DatabaseHelper.MessageRecord> records, boolean keepReadState) {
+        int inserted = 0;
+        db.beginTransaction();
+        try {
+            // Dedup happens in the statement, against both tiers and earlier rows of this batch
+            Statement insert = db.compile(MessageSchema.insertIfNew(withArchive));
+            try {
+                for (DatabaseHelper.MessageRecord record : records) {
+                    if (record.contactJid == null || record.body == null) {
+                        continue;
+                    }
+                    bindIfNew(insert, record, record.isSent || (keepReadState && record.isRead));
+                    long id = insert.executeInsert();
+                    if (id != -1) {
+                        record.id = id;
+                        inserted++;
+                    }
+                }
+            } finally {
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return inserted;
+    }
+
+    /**
+     * Insert a page of archive sync (MAM) messages, deduplicated as insertBatch. A received
+     * message is stored unread if it is newer than everything of its chat the user has seen
+     * (stored messages that are sent, read or archived, and replies sent from another client in
+     * the same page), so messages that arrived while offline raise the badge; older history is
+     * stored read. Records already marked read stay read.
+     * @return number of messages actually inserted; those records get their new id
+     */
+    int insertArchivedMessages(List<DatabaseHelper.MessageRecord> records) {
+        Map<String, Long> seenUpTo = new HashMap<>();
+        for (DatabaseHelper.MessageRecord record : records) {
+            if (record.isSent && record.contactJid != null) {
+                Long seen = seenUpTo.get(record.contactJid);
+                seenUpTo.put(record.contactJid, Math.max(record.timestamp, seen != null ? seen : seenUpTo(record.contactJid)));
+            }
+        }
+        for (DatabaseHelper.MessageRecord record : records) {
+            if (record.isSent || record.isRead || record.contactJid == null) {
+                continue;
+            }
+            Long seen = seenUpTo.get(record.contactJid);
+            if (seen == null) {
+                seen = seenUpTo(record.contactJid);
+                seenUpTo.put(record.contactJid, seen);
+            }
+            record.isRead = record.timestamp <= seen;
+        }
+        return insertBatch(records, true);
+    }
+
+    /**
+     * Timestamp of the newest message of a contact the user has seen, 0 if none
+     */
+    private long seenUpTo(String contactJid) {
+        String[] args = {contactJid};
+        long seen = queryLong(MessageSchema.SELECT_SEEN_UP_TO, args);
+        if (withArchive) {
+            // Only read messages are archived
+            seen = Math.max(seen, queryLong(MessageSchema.SELECT_ARCHIVE_LAST_TIMESTAMP, args));
+        }
+        return seen;
+    }
+
+    @Override
+    public int importMessages(List<DatabaseHelper.MessageRecord> records) {
+        return insertBatch(records, true);
+    }
+
+    /**
+     * Bind a record to the arguments of MessageSchema.insertIfNew
+     */
+    private void bindIfNew(Statement insert, DatabaseHelper.MessageRecord record, boolean isRead) {
+        insert.clearBindings();
+        insert.bindString(1, record.contactJid);
+        insert.bindString(2, record.body);
+        insert.bindLong(3, record.isSent ? 1 : 0);
+        insert.bindLong(4, record.timestamp);
+        insert.bindLong(5, isRead ? 1 : 0);
+        bindContent(insert, record.kind, record.fileUrl, record.mimeType, record.mediaSize, record.duration);
+        if (record.canRetract()) {
+            insert.bindString(11, record.stanzaId);
+        }
+        if (withArchive) {
+            insert.bindString(12, MessageArchive.dedupKey(record));
+        }
+    }
+
+    // Arguments ?6 to ?10 of MessageSchema.INSERT and insertIfNew; unknown values stay NULL
+    private static void bindContent(Statement insert, int kind, String fileUrl, String mimeType, long mediaSize, long duration) {
+        insert.bindLong(6, kind);
+        if (fileUrl != null && !fileUrl.isEmpty()) {
+            insert.bindString(7, fileUrl);
+        }
+        if (mimeType != null) {
+            insert.bindString(8, mimeType);
+        }
+        if (mediaSize >= 0) {
+            insert.bindLong(9, mediaSize);
+        }
+        if (duration >= 0) {
+            insert.bindLong(10, duration);
+        }
+    }
+
+    /**
+     * A contact's messages of both tiers in chronological order
+     * @param limit maximum messages, 0 for all
+     */
+    List<DatabaseHelper.MessageRecord> getMessagesForContact(String contactJid, int limit) {
+        List<DatabaseHelper.MessageRecord> messages = readMessages(MessageSchema.selectForContact(limit), new String[]{contactJid});
+
+        // Older history lives in the archive tier
+        List<DatabaseHelper.MessageRecord> archived = readArchivedMessages(contactJid);
+        if (!archived.isEmpty()) {
+            archived.addAll(messages);
+            messages = archived;
+            sortByTimestamp(messages, true);
+            if (limit > 0 && messages.size() > limit) {
+                messages = new ArrayList<>(messages.subList(0, limit));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Newest message of every contact, archived chats included
+     */
+    Map<String, DatabaseHelper.MessageRecord> getLastMessagePerContact() {
+        Map<String, DatabaseHelper.MessageRecord> lastMessages = new HashMap<>();
+        for (DatabaseHelper.MessageRecord message : readMessages(MessageSchema.SELECT_LAST_PER_CONTACT, null)) {
+            lastMessages.put(message.contactJid, message);
+        }
+
+        // Chats whose whole history has been archived
+        if (withArchive) {
+            for (String contactJid : queryStrings(MessageSchema.SELECT_ARCHIVE_CONTACTS)) {
+                if (!lastMessages.containsKey(contactJid)) {
+                    DatabaseHelper.MessageRecord last = readLastArchivedMessage(contactJid);
+                    if (last != null) {
+                        lastMessages.put(contactJid, last);
+                    }
+                }
+            }
+        }
+        return lastMessages;
+    }
+
+    /**
+     * The message with a stanza ID, from either tier: an idx_stanza_id lookup in the hot table,
+     * otherwise the archive key of the ID and the one block it points to
+     * @return null if no stored message has it
+     */
+    DatabaseHelper.MessageRecord findMessageByStanzaId(String stanzaId) {
+        List<DatabaseHelper.MessageRecord> hot = readMessages(MessageSchema.SELECT_BY_STANZA_ID, new String[]{stanzaId});
+        if (!hot.isEmpty()) {
+            return hot.get(0);
+        }
+        if (withArchive) {
+            for (DatabaseHelper.MessageRecord record : readBlocks(MessageSchema.SELECT_ARCHIVE_BLOCKS_FOR_KEY, new String[]{stanzaId})) {
+                if (stanzaId.equals(record.stanzaId)) {
+                    return record;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Random id of this database, made on first use and never changed; 0 is never used
+     */
+    @Override
+    public long getStoreId() {
+        long id = queryLong(MessageSchema.SELECT_STORE_ID);
+        if (id == 0) {
+            SecureRandom random = new SecureRandom();
+            do {
+                id = random.nextLong();
+            } while (id == 0);
+            Statement insert = db.compile(MessageSchema.INSERT_STORE_ID);
+            try {
+                insert.bindLong(1, id);
+                insert.executeInsert();
+            } finally {
+                insert.close();
+            }
+            // Another thread may have been first
+            id = queryLong(MessageSchema.SELECT_STORE_ID);
+        }
+        return id;
+    }
+
+    /**
+     * Highest message id in either tier, 0 if there are none
+     */
+    @Override
+    public long getMaxMessageId() {
+        long max = queryLong(MessageSchema.SELECT_MAX_ID);
+        if (withArchive) {
+            max = Math.max(max, queryLong(MessageSchema.SELECT_ARCHIVE_MAX_ID));
+        }
+        return max;
+    }
+
+    /**
+     * Hot-table messages with ids from firstId to lastId, in id order (primary key range)
+     */
+    @Override
+    public List<DatabaseHelper.MessageRecord> getMessagesInIdRange(long firstId, long lastId) {
+        return readMessages(MessageSchema.SELECT_ID_RANGE, new String[]{String.valueOf(firstId), String.valueOf(lastId)});
+    }
+
+    // ===== Unread counters =====
+
+    /**
+     * Move the contact's read watermark to the newest stored message
+     */
+    void markConversationRead(String contactJid) {
+        Statement mark = db.compile(MessageSchema.MARK_CONVERSATION_READ);
+        try {
+            mark.bindString(1, contactJid);
+            mark.executeUpdateDelete();
+        } finally {
+            mark.close();
+        }
+    }
+
+    /**
+     * Unread messages of a contact (maintained counter, no scan)
+     */
+    int countUnreadMessages(String contactJid) {
+        Rows rows = db.query(MessageSchema.SELECT_UNREAD_COUNT, new String[]{contactJid});
+        try {
+            return rows.moveToNext() ? (int) rows.getLong(0) : 0;
+        } finally {
+            rows.close();
+        }
+    }
+
+    @Override
+    public int applyReadWatermarks() {
+        Statement apply = db.compile(MessageSchema.APPLY_READ_WATERMARKS);
+        try {
+            return apply.executeUpdateDelete();
+        } finally {
+            apply.close();
+        }
+    }
+
+    // ===== Cold tier (see MessageArchive) =====
+
+    /**
+     * Move the contact's oldest read messages before {@code cutoff} into one archive block
+     * (at most MessageArchive.BLOCK_SIZE). Insert and delete commit together.
+     * @return messages moved; fewer than the block size means the contact is done
+     */
+    int archiveMessagesBefore(String contactJid, long cutoff) {
+        if (!withArchive) {
+            return 0;
+        }
+        List<DatabaseHelper.MessageRecord> records = readMessages(MessageSchema.selectArchivable(MessageArchive.BLOCK_SIZE),
+                new String[]{contactJid, String.valueOf(cutoff)});
+        if (records.isEmpty()) {
+            return 0;
+        }
+
+        db.beginTransaction();
+        try {
+            Statement insert = db.compile(MessageSchema.INSERT_ARCHIVE_BLOCK);
+            long blockId;
+            try {
+                bindBlock(insert, contactJid, records);
+                blockId = insert.executeInsert();
+            } finally {
+                insert.close();
+            }
+            insertArchiveKeys(blockId, records);
+            Statement delete = db.compile(MessageSchema.DELETE_MESSAGE);
+            try {
+                for (DatabaseHelper.MessageRecord record : records) {
+                    delete.bindLong(1, record.id);
+                    delete.executeUpdateDelete();
+                }
+            } finally {
+                delete.close();
+            }
+            db.setTransactionSuccessful();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not pack archive block for " + contactJid, e);
+            return 0;
+        } finally {
+            db.endTransaction();
+        }
+        return records.size();
+    }
+
+    /**
+     * Bind a block of one contact's messages (in time order) to INSERT_ARCHIVE_BLOCK, or to
+     * the first arguments of UPDATE_ARCHIVE_BLOCK
+     */
+    private static void bindBlock(Statement statement, String contactJid, List<DatabaseHelper.MessageRecord> records)
+            throws IOException {
+        long minId = Long.MAX_VALUE;
+        long maxId = Long.MIN_VALUE;
+        for (DatabaseHelper.MessageRecord record : records) {
+            minId = Math.min(minId, record.id);
+            maxId = Math.max(maxId, record.id);
+        }
+        statement.bindString(1, contactJid);
+        statement.bindLong(2, records.get(0).timestamp);
+        statement.bindLong(3, records.get(records.size() - 1).timestamp);
+        statement.bindLong(4, records.size());
+        statement.bindLong(5, minId);
+        statement.bindLong(6, maxId);
+        statement.bindBlob(7, MessageArchive.encode(records));
+    }
+
+    private void insertArchiveKeys(long blockId, List<DatabaseHelper.MessageRecord> records) {
+        Statement insert = db.compile(MessageSchema.INSERT_ARCHIVE_KEY);
+        try {
+            for (DatabaseHelper.MessageRecord record : records) {
+                insert.bindString(1, MessageArchive.dedupKey(record));
+                insert.bindLong(2, blockId);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Write the dedup keys of blocks archived before MessageSchema.ARCHIVE_KEYS existed
+     * (one pass on the first open after the upgrade, nothing after that)
+     * @return messages indexed
+     */
+    int indexArchiveKeys() {
+        int indexed = 0;
+        db.beginTransaction();
+        try {
+            Rows rows = db.query(MessageSchema.SELECT_ARCHIVE_BLOCKS_WITHOUT_KEYS, null);
+            try {
+                int idIndex = rows.getColumnIndex(MessageSchema.BLOCK_ID);
+                while (rows.moveToNext()) {
+                    List<DatabaseHelper.MessageRecord> records = decodeBlock(rows);
+                    insertArchiveKeys(rows.getLong(idIndex), records);
+                    indexed += records.size();
+                }
+            } finally {
+                rows.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return indexed;
+    }
+
+    @Override
+    public List<DatabaseHelper.MessageRecord> getArchivedBlocks(long afterId, long upToId, long minId) {
+        if (!withArchive) {
+            return new ArrayList<>();
+        }
+        return readBlocks(MessageSchema.SELECT_ARCHIVE_BLOCKS_STARTING_IN,
+                new String[]{String.valueOf(afterId), String.valueOf(upToId), String.valueOf(minId)});
+    }
+
+    private List<DatabaseHelper.MessageRecord> readArchivedMessages(String contactJid) {
+        if (!withArchive) {
+            return new ArrayList<>();
+        }
+        return readBlocks(MessageSchema.SELECT_ARCHIVE_BLOCKS_FOR_CONTACT, new String[]{contactJid});
+    }
+
+    private DatabaseHelper.MessageRecord readLastArchivedMessage(String contactJid) {
+        DatabaseHelper.MessageRecord last = null;
+        Rows rows = db.query(MessageSchema.SELECT_ARCHIVE_BLOCKS_FOR_CONTACT_NEWEST_FIRST + " LIMIT 1", new String[]{contactJid});
+        try {
+            if (rows.moveToNext()) {
+                for (DatabaseHelper.MessageRecord record : decodeBlock(rows)) {
+                    if (last == null || record.timestamp >= last.timestamp) {
+                        last = record;
+                    }
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        return last;
+    }
+
+    /**
+     * Add archived matches to {@code results} (newest first), then keep the newest {@code limit}
+     */
+    void searchArchive(String query, String contactJid, int limit, List<DatabaseHelper.MessageRecord> results) {
+        if (!withArchive) {
+            return;
+        }
+        String needle = query.toLowerCase(Locale.ROOT);
+        boolean forContact = contactJid != null && !contactJid.isEmpty();
+        int wanted = limit - results.size();
+        Rows rows = forContact
+                ? db.query(MessageSchema.SELECT_ARCHIVE_BLOCKS_FOR_CONTACT_NEWEST_FIRST, new String[]{contactJid})
+                : db.query(MessageSchema.SELECT_ARCHIVE_BLOCKS_NEWEST_FIRST, null);
+        List<DatabaseHelper.MessageRecord> matches = new ArrayList<>();
+        try {
+            int lastIndex = rows.getColumnIndex(MessageSchema.BLOCK_LAST_TIMESTAMP);
+            // Blocks come newest first; stop at the first block that can't hold anything newer
+            // than the oldest match we would keep
+            while (rows.moveToNext()) {
+                if (matches.size() >= wanted && rows.getLong(lastIndex) < matches.get(wanted - 1).timestamp) {
+                    break;
+                }
+                boolean found = false;
+                for (DatabaseHelper.MessageRecord record : decodeBlock(rows)) {
+                    if (record.body != null && record.body.toLowerCase(Locale.ROOT).contains(needle)) {
+                        matches.add(record);
+                        found = true;
+                    }
+                }
+                if (found) {
+                    sortByTimestamp(matches, false);
+                }
+            }
+        } finally {
+            rows.close();
+        }
+
+        results.addAll(matches);
+        sortByTimestamp(results, false);
+        while (results.size() > limit) {
+            results.remove(results.size() - 1);
+        }
+    }
+
+    /**
+     * Edit ({@code newBody} set) or delete ({@code newBody} null) an archived message by
+     * rewriting its block
+     * @return 1 if the message was found
+     */
+    int rewriteArchivedMessage(long messageId, String newBody) {
+        if (!withArchive) {
+            return 0;
+        }
+        String id = String.valueOf(messageId);
+        db.beginTransaction();
+        try {
+            Rows rows = db.query(MessageSchema.SELECT_ARCHIVE_BLOCK_FOR_MESSAGE, new String[]{id, id});
+            try {
+                while (rows.moveToNext()) {
+                    List<DatabaseHelper.MessageRecord> records = decodeBlock(rows);
+                    for (int i = 0; i < records.size(); i++) {
+                        if (records.get(i).id != messageId) {
+                            continue;
+                        }
+                        if (newBody != null) {
+                            records.get(i).body = newBody;
+                        } else {
+                            records.remove(i);
+                        }
+                        long blockId = rows.getLong(rows.getColumnIndex(MessageSchema.BLOCK_ID));
+                        String contactJid = rows.getString(rows.getColumnIndex(MessageSchema.BLOCK_CONTACT_JID));
+                        execute(MessageSchema.DELETE_ARCHIVE_KEYS_FOR_BLOCK, blockId);
+                        if (records.isEmpty()) {
+                            execute(MessageSchema.DELETE_ARCHIVE_BLOCK, blockId);
+                        } else {
+                            Statement update = db.compile(MessageSchema.UPDATE_ARCHIVE_BLOCK);
+                            try {
+                                bindBlock(update, contactJid, records);
+                                update.bindLong(8, blockId);
+                                update.executeUpdateDelete();
+                            } finally {
+                                update.close();
+                            }
+                            insertArchiveKeys(blockId, records);
+                        }
+                        db.setTransactionSuccessful();
+                        return 1;
+                    }
+                }
+            } finally {
+                rows.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not rewrite archive block for message " + messageId, e);
+        } finally {
+            db.endTransaction();
+        }
+        return 0;
+    }
+
+    // ===== Rows =====
+
+    private List<DatabaseHelper.MessageRecord> readMessages(String sql, String[] args) {
+        List<DatabaseHelper.MessageRecord> messages = new ArrayList<>();
+        Rows rows = db.query(sql, args);
+        try {
+            while (rows.moveToNext()) {
+                messages.add(readMessage(rows));
+            }
+        } finally {
+            rows.close();
+        }
+        return messages;
+    }
+
+    /**
+     * A messages row (all columns of schema 9) as a record
+     */
+    static DatabaseHelper.MessageRecord readMessage(Rows rows) {
+        DatabaseHelper.MessageRecord msg = new DatabaseHelper.MessageRecord();
+        msg.id = rows.getLong(rows.getColumnIndex(MessageSchema.ID));
+        msg.contactJid = rows.getString(rows.getColumnIndex(MessageSchema.CONTACT_JID));
+        msg.body = rows.getString(rows.getColumnIndex(MessageSchema.BODY));
+        msg.isSent = rows.getLong(rows.getColumnIndex(MessageSchema.IS_SENT)) == 1;
+        msg.timestamp = rows.getLong(rows.getColumnIndex(MessageSchema.TIMESTAMP));
+        msg.fileUrl = rows.getString(rows.getColumnIndex(MessageSchema.FILE_URL));
+        msg.stanzaId = rows.getString(rows.getColumnIndex(MessageSchema.STANZA_ID));
+        msg.isRead = rows.getLong(rows.getColumnIndex(MessageSchema.IS_READ)) == 1;
+        msg.kind = (int) rows.getLong(rows.getColumnIndex(MessageSchema.KIND));
+        msg.mimeType = rows.getString(rows.getColumnIndex(MessageSchema.MIME_TYPE));
+        int mediaSizeIndex = rows.getColumnIndex(MessageSchema.MEDIA_SIZE);
+        int durationIndex = rows.getColumnIndex(MessageSchema.DURATION);
+        msg.mediaSize = rows.isNull(mediaSizeIndex) ? -1 : rows.getLong(mediaSizeIndex);
+        msg.duration = rows.isNull(durationIndex) ? -1 : rows.getLong(durationIndex);
+        return msg;
+    }
+
+    private List<DatabaseHelper.MessageRecord> readBlocks(String sql, String[] args) {
+        List<DatabaseHelper.MessageRecord> messages = new ArrayList<>();
+        Rows rows = db.query(sql, args);
+        try {
+            while (rows.moveToNext()) {
+                messages.addAll(decodeBlock(rows));
+            }
+        } finally {
+            rows.close();
+        }
+        return messages;
+    }
+
+    /**
+     * Messages of the block at the current row; none if it can't be read
+     */
+    private static List<DatabaseHelper.MessageRecord> decodeBlock(Rows rows) {
+        String contactJid = rows.getString(rows.getColumnIndex(MessageSchema.BLOCK_CONTACT_JID));
+        BLOCKS_DECODED.inc();
+        try {
+            return MessageArchive.decode(contactJid, rows.getBlob(rows.getColumnIndex(MessageSchema.BLOCK_DATA)));
+        } catch (IOException e) {
+            Log.e(TAG, "Unreadable archive block " + rows.getLong(rows.getColumnIndex(MessageSchema.BLOCK_ID)), e);
+            return new ArrayList<>();
+        }
+    }
+
+    private List<String> queryStrings(String sql) {
+        List<String> values = new ArrayList<>();
+        Rows rows = db.query(sql, null);
+        try {
+            while (rows.moveToNext()) {
+                values.add(rows.getString(0));
+            }
+        } finally {
+            rows.close();
+        }
+        return values;
+    }
+
+    // First column of the first row, 0 for no row or NULL (e.g. MAX over an empty table)
+    private long queryLong(String sql) {
+        return queryLong(sql, null);
+    }
+
+    private long queryLong(String sql, String[] args) {
+        Rows rows = db.query(sql, args);
+        try {
+            return rows.moveToNext() ? rows.getLong(0) : 0;
+        } finally {
+            rows.close();
+        }
+    }
+
+    private void execute(String sql, long arg) {
+        Statement statement = db.compile(sql);
+        try {
+            statement.bindLong(1, arg);
+            statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    static void sortByTimestamp(List<DatabaseHelper.MessageRecord> messages, final boolean ascending) {
+        Collections.sort(messages, new Comparator<DatabaseHelper.MessageRecord>() {
+            @Override
+            public int compare(DatabaseHelper.MessageRecord a, DatabaseHelper.MessageRecord b) {
+                int order = a.timestamp < b.timestamp ? -1 : (a.timestamp == b.timestamp ? 0 : 1);
+                return ascending ? order : -order;
+            }
+        });
+    }
+}
@@ -0,0 +1,331 @@
+package com.whatsberry.xmpp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics
+ * Process-wide registry of counters, gauges and latency histograms for the hot paths
+ * (message pipeline, database, uploads, emoji parsing, list binding). Recording is a few
+ * atomic increments with no locks or allocation, so it can stay on in release builds;
+ * hot paths keep the returned instrument in a static field instead of looking it up per call.
+ */
+public final class Metrics {
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private static volatile long startedAt = System.currentTimeMillis();
+
+    private Metrics() {
+    }
+
+    /**
+     * Monotonic start time for {@link Histogram#recordSince(long)}
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public static Gauge gauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null) {
+            Gauge created = new Gauge();
+            gauge = gauges.putIfAbsent(name, created);
+            if (gauge == null) {
+                gauge = created;
+            }
+        }
+        return gauge;
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Zero every instrument (registrations stay, the static fields holding them remain valid)
+     */
+    public static void reset() {
+        for (Counter counter : counters.values()) {
+            counter.value.set(0);
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        startedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Human readable report of all instruments, sorted by name; latencies in milliseconds
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        long seconds = Math.max(1, (System.currentTimeMillis() - startedAt) / 1000);
+        sb.append("Since: ").append(format(startedAt)).append(" (").append(seconds).append(" s)\n");
+
+        List<String> names = sorted(histograms.keySet());
+        if (!names.isEmpty()) {
+            sb.append("\nLatency (ms)   count / p50 / p90 / p99 / max\n");
+            for (String name : names) {
+                Snapshot s = histograms.get(name).snapshot();
+                sb.append(name).append(": ").append(s.count);
+                if (s.count > 0) {
+                    sb.append(" / ").append(millis(s.p50))
+                      .append(" / ").append(millis(s.p90))
+                      .append(" / ").append(millis(s.p99))
+                      .append(" / ").append(millis(s.max));
+                }
+                sb.append('\n');
+            }
+        }
+
+        names = sorted(counters.keySet());
+        if (!names.isEmpty()) {
+            sb.append("\nCounters\n");
+            for (String name : names) {
+                long value = counters.get(name).get();
+                sb.append(name).append(": ").append(value)
+                  .append(" (").append(String.format(Locale.US, "%.2f", value / (double) seconds)).append("/s)\n");
+            }
+        }
+
+        names = sorted(gauges.keySet());
+        if (!names.isEmpty()) {
+            sb.append("\nGauges\n");
+            for (String name : names) {
+                sb.append(name).append(": ").append(gauges.get(name).get()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the report plus per-bucket histogram data to a new file in the given directory
+     */
+    public static File export(File directory) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(directory, "metrics-" + stamp + ".txt");
+
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(report());
+            // Raw buckets so runs from different devices can be merged and re-percentiled
+            writer.write("\nBuckets (name, upper bound us, count)\n");
+            for (String name : sorted(histograms.keySet())) {
+                Histogram histogram = histograms.get(name);
+                for (int i = 0; i < Histogram.BUCKETS; i++) {
+                    long count = histogram.buckets.get(i);
+                    if (count > 0) {
+                        writer.write(name + "," + Histogram.upperBound(i) + "," + count + "\n");
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static List<String> sorted(java.util.Set<String> keys) {
+        List<String> names = new ArrayList<>(keys);
+        Collections.sort(names);
+        return names;
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.US, "%.1f", micros / 1000.0);
+    }
+
+    private static String format(long time) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(time));
+    }
+
+    /**
+     * Monotonically increasing count of events
+     */
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Current level of something (queue depth, cache size); not cleared by reset()
+     */
+    public static final class Gauge {
+        private final AtomicLong value = new AtomicLong();
+
+        public void set(long newValue) {
+            value.set(newValue);
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Latency distribution in microseconds, HDR-style log-linear buckets: 16 sub-buckets per
+     * power of two, so any reported percentile is within 1/16 (~6%) of the true value
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 35; // Values up to 2^36 us (~19 h)
+        static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Record the time elapsed since a {@link Metrics#now()} reading
+         */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public void record(long micros) {
+            if (micros < 0) {
+                micros = 0;
+            }
+            buckets.incrementAndGet(bucketIndex(micros));
+            sum.addAndGet(micros);
+            long seen = max.get();
+            while (micros > seen && !max.compareAndSet(seen, micros)) {
+                seen = max.get();
+            }
+        }
+
+        /**
+         * Consistent enough copy for reporting (writers are not paused)
+         */
+        public Snapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+                total += copy[i];
+            }
+            Snapshot snapshot = new Snapshot();
+            snapshot.count = total;
+            snapshot.max = max.get();
+            snapshot.mean = total > 0 ? sum.get() / total : 0;
+            snapshot.p50 = percentile(copy, total, 0.50, snapshot.max);
+            snapshot.p90 = percentile(copy, total, 0.90, snapshot.max);
+            snapshot.p99 = percentile(copy, total, 0.99, snapshot.max);
+            return snapshot;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            sum.set(0);
+            max.set(0);
+        }
+
+        static int bucketIndex(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        /**
+         * Highest value that lands in a bucket
+         */
+        static long upperBound(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            int exponent = index / SUB_COUNT + SUB_BITS - 1;
+            int sub = index % SUB_COUNT;
+            long lower = (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+
+        private static long percentile(long[] buckets, long total, double quantile, long max) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Point-in-time view of a histogram, values in microseconds
+     */
+    public static final class Snapshot {
+        public long count;
+        public long mean;
+        public long p50;
+        public long p90;
+        public long p99;
+        public long max;
+    }
+}
@@ -3,111 +3,325 @@ package com.whatsberry.xmpp;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.media.RingtoneManager;
-import android.net.Uri;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Helper class for showing notifications
  * Optimized for BlackBerry 10 Android Runtime
+ * Messages are aggregated per conversation: a burst from the gateway becomes one
+ * "N new messages" notification per chat, posted once per batch window, and only the
+ * first post in an alert interval makes sound / vibrates. Too many chats at once collapse
+ * into a single summary. Swiping a notification away forgets the pending messages it stood
+ * for, the same as opening the chat, so the next message starts a fresh count.
  */
 public class NotificationHelper {
     private static final String TAG = "NotificationHelper";
     private static final int NOTIFICATION_ID_BASE = 1000;
-    private static int notificationCounter = 0;
+    private static final int SUMMARY_NOTIFICATION_ID = 999;
+
+    private static final long BATCH_WINDOW_MS = 1000;      // Collect a burst before posting
+    private static final long ALERT_INTERVAL_MS = 10000;   // At most one sound/vibration per interval
+    private static final int MAX_CONVERSATION_NOTIFICATIONS = 4;
+    private static final String ACTION_DISMISSED = "com.whatsberry.xmpp.NOTIFICATION_DISMISSED";
+    private static final String EXTRA_CONTACT_JID = "contactJid"; // Absent for the summary
+
+    private static NotificationHelper instance;
+
+    private final Context context;
+    private final NotificationManager notificationManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this
+    private final Map<String, Conversation> conversations = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+    private boolean summaryShown = false;
+    private boolean newMessagesPending = false; // Only new messages may alert, not re-layouts
+    private long lastAlertAt = 0;
+    private Notification summaryNotification;
 
-    private Context context;
-    private NotificationManager notificationManager;
+    /**
+     * Pending notification state of one chat (the Notification object is reused on updates)
+     */
+    private static class Conversation {
+        String jid;
+        String name;
+        String lastText;
+        int unseen;
+        boolean dirty;
+        boolean shown;
+        Notification notification;
+        PendingIntent contentIntent;
+        PendingIntent deleteIntent;
+    }
 
-    public NotificationHelper(Context context) {
-        this.context = context;
+    private NotificationHelper(Context context) {
+        this.context = context.getApplicationContext();
         this.notificationManager = (NotificationManager)
-                context.getSystemService(Context.NOTIFICATION_SERVICE);
-        Log.d(TAG, "NotificationHelper initialized");
+                this.context.getSystemService(Context.NOTIFICATION_SERVICE);
+        this.context.registerReceiver(dismissReceiver, new IntentFilter(ACTION_DISMISSED));
+    }
+
+    public static synchronized NotificationHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new NotificationHelper(context);
+        }
+        return instance;
     }
 
     /**
      * Show a new message notification
-     * Enhanced for BlackBerry Hub integration with maximum compatibility
+     * Queued and merged with other messages of the same chat; posted after BATCH_WINDOW_MS
      */
     public void showMessageNotification(String contactJid, String contactName, String messageText) {
-        Log.d(TAG, "========================================");
-        Log.d(TAG, "SHOWING NOTIFICATION FOR: " + contactName);
-        Log.d(TAG, "Message: " + messageText);
-        Log.d(TAG, "========================================");
+        synchronized (this) {
+            Conversation conversation = conversations.get(contactJid);
+            if (conversation == null) {
+                conversation = new Conversation();
+                conversation.jid = contactJid;
+                conversations.put(contactJid, conversation);
+            }
+            conversation.name = contactName;
+            conversation.lastText = messageText;
+            conversation.unseen++;
+            conversation.dirty = true;
+            newMessagesPending = true;
 
-        try {
-            // Create intent to open chat when notification is clicked
-            Intent intent = new Intent(context, ChatActivity.class);
-            intent.putExtra("contactJid", contactJid);
-            intent.putExtra("contactName", contactName);
-            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        handler.postDelayed(flushRunnable, BATCH_WINDOW_MS);
+    }
 
-            PendingIntent pendingIntent = PendingIntent.getActivity(
-                    context,
-                    contactJid.hashCode(), // Use JID hash as unique request code
-                    intent,
-                    PendingIntent.FLAG_UPDATE_CURRENT
-            );
+    /**
+     * The user opened this chat: forget its unseen messages and remove its notification
+     */
+    public void clearConversation(String contactJid) {
+        boolean hadSummary;
+        synchronized (this) {
+            Conversation conversation = conversations.remove(contactJid);
+            if (conversation == null) {
+                return;
+            }
+            hadSummary = summaryShown;
+        }
+        notificationManager.cancel(notificationId(contactJid));
+        if (hadSummary) {
+            // Counts in the summary changed, or it may now fit in per-chat notifications again
+            markAllDirty();
+            flushRunnable.run();
+        }
+    }
 
-            // Get default notification sound
-            Uri soundUri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-            Log.d(TAG, "Sound URI: " + soundUri);
+    /**
+     * Clear all notifications
+     */
+    public void clearAllNotifications() {
+        synchronized (this) {
+            conversations.clear();
+            summaryShown = false;
+        }
+        notificationManager.cancelAll();
+    }
 
-            // Prepare ticker text (CRITICAL for BB10 - shows as heads-up)
-            String tickerText = contactName + ": " + messageText;
-            if (tickerText.length() > 50) {
-                tickerText = tickerText.substring(0, 47) + "...";
+    /**
+     * deleteIntent of our notifications: the user swiped one (or "clear all") in the shade
+     */
+    private final BroadcastReceiver dismissReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String contactJid = intent.getStringExtra(EXTRA_CONTACT_JID);
+            AppLog.d(TAG, "Notification dismissed: {}", contactJid != null ? contactJid : "summary");
+            if (contactJid != null) {
+                clearConversation(contactJid);
+            } else {
+                clearAllNotifications();
             }
+        }
+    };
 
-            // Build notification with ALL possible flags for BB10 compatibility
-            Notification notification = new Notification();
-            notification.icon = android.R.drawable.stat_notify_chat;
-            notification.tickerText = tickerText; // CRITICAL for BB10 - shows as heads-up
-            notification.when = System.currentTimeMillis();
+    private PendingIntent dismissIntent(String contactJid, int requestCode) {
+        Intent intent = new Intent(ACTION_DISMISSED);
+        intent.setPackage(context.getPackageName());
+        if (contactJid != null) {
+            intent.putExtra(EXTRA_CONTACT_JID, contactJid);
+        }
+        return PendingIntent.getBroadcast(context, requestCode, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
 
-            // CRITICAL: Use DEFAULT_ALL for BB10 Hub integration
-            // This includes: DEFAULT_SOUND, DEFAULT_VIBRATE, DEFAULT_LIGHTS
-            // BB10's Android Runtime needs this to treat notification as "important"
-            notification.defaults = Notification.DEFAULT_ALL;
-            Log.d(TAG, "Using Notification.DEFAULT_ALL (SOUND + VIBRATE + LIGHTS)");
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            List<Conversation> toPost = new ArrayList<>();
+            List<Conversation> toCancel = new ArrayList<>();
+            boolean useSummary;
+            boolean cancelSummary;
+            boolean alert;
+            int totalUnseen = 0;
+
+            synchronized (NotificationHelper.this) {
+                flushScheduled = false;
+
+                boolean anyDirty = false;
+                for (Conversation conversation : conversations.values()) {
+                    totalUnseen += conversation.unseen;
+                    anyDirty |= conversation.dirty;
+                }
+                if (!anyDirty && !summaryShown) {
+                    return;
+                }
 
-            // Optionally set custom sound (but DEFAULT_ALL will use system default if not set)
-            // notification.sound = soundUri; // Commented out - let DEFAULT_ALL handle it
+                useSummary = conversations.size() > MAX_CONVERSATION_NOTIFICATIONS;
+                cancelSummary = summaryShown && !useSummary;
+                summaryShown = useSummary && !conversations.isEmpty();
 
-            // Set flags for maximum visibility
-            notification.flags = Notification.FLAG_SHOW_LIGHTS
-                               | Notification.FLAG_AUTO_CANCEL;
-            Log.d(TAG, "Flags: FLAG_SHOW_LIGHTS | FLAG_AUTO_CANCEL");
+                long now = System.currentTimeMillis();
+                alert = newMessagesPending && now - lastAlertAt >= ALERT_INTERVAL_MS;
+                if (alert) {
+                    lastAlertAt = now;
+                }
+                newMessagesPending = false;
+
+                for (Conversation conversation : conversations.values()) {
+                    if (useSummary) {
+                        if (conversation.shown) {
+                            toCancel.add(conversation);
+                            conversation.shown = false;
+                        }
+                    } else if (conversation.dirty) {
+                        toPost.add(conversation);
+                        conversation.shown = true;
+                    }
+                    conversation.dirty = false;
+                }
+            }
+
+            try {
+                for (Conversation conversation : toCancel) {
+                    notificationManager.cancel(notificationId(conversation.jid));
+                }
+                if (cancelSummary) {
+                    notificationManager.cancel(SUMMARY_NOTIFICATION_ID);
+                }
+                if (useSummary) {
+                    postSummary(totalUnseen, alert);
+                } else {
+                    for (int i = 0; i < toPost.size(); i++) {
+                        // Only one notification of the batch gets to make noise
+                        postConversation(toPost.get(i), alert && i == toPost.size() - 1);
+                    }
+                }
+                AppLog.d(TAG, "Posted {} for {} messages (alert={})",
+                        useSummary ? "summary" : "chat notifications", totalUnseen, alert);
+            } catch (Exception e) {
+                Log.e(TAG, "Error showing notification", e);
+            }
+        }
+    };
 
-            // Set content view using deprecated but BB10-compatible method
-            notification.setLatestEventInfo(
+    private void postConversation(Conversation conversation, boolean alert) {
+        String text;
+        synchronized (this) {
+            text = conversation.unseen == 1 ? conversation.lastText :
+                    conversation.unseen + " new messages";
+        }
+
+        if (conversation.contentIntent == null) {
+            // Create intent to open chat when notification is clicked
+            Intent intent = new Intent(context, ChatActivity.class);
+            intent.putExtra("contactJid", conversation.jid);
+            intent.putExtra("contactName", conversation.name);
+            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            conversation.contentIntent = PendingIntent.getActivity(
                     context,
-                    contactName,
-                    messageText,
-                    pendingIntent
+                    conversation.jid.hashCode(), // Use JID hash as unique request code
+                    intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT
             );
-            Log.d(TAG, "setLatestEventInfo() called with title: " + contactName);
+        }
+        if (conversation.deleteIntent == null) {
+            conversation.deleteIntent = dismissIntent(conversation.jid, conversation.jid.hashCode());
+        }
+        if (conversation.notification == null) {
+            conversation.notification = new Notification();
+            conversation.notification.icon = android.R.drawable.stat_notify_chat;
+            conversation.notification.deleteIntent = conversation.deleteIntent;
+        }
 
-            // Show notification with unique ID per contact
-            int notificationId = NOTIFICATION_ID_BASE + Math.abs(contactJid.hashCode() % 1000);
+        Notification notification = conversation.notification;
+        notification.when = System.currentTimeMillis();
+        notification.number = conversation.unseen;
+        applyAlert(notification, alert, ticker(conversation.name + ": " + text));
 
-            Log.d(TAG, "Calling notificationManager.notify() with ID: " + notificationId);
-            notificationManager.notify(notificationId, notification);
-            Log.d(TAG, "✅ Notification sent successfully with DEFAULT_ALL!");
+        // Set content view using deprecated but BB10-compatible method
+        notification.setLatestEventInfo(context, conversation.name, text, conversation.contentIntent);
+        notificationManager.notify(notificationId(conversation.jid), notification);
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "❌ ERROR showing notification:", e);
-            e.printStackTrace();
+    private void postSummary(int totalUnseen, boolean alert) {
+        int chats;
+        synchronized (this) {
+            chats = conversations.size();
         }
+        String text = totalUnseen + " new messages in " + chats + " chats";
+
+        if (summaryNotification == null) {
+            summaryNotification = new Notification();
+            summaryNotification.icon = android.R.drawable.stat_notify_chat;
+            summaryNotification.deleteIntent = dismissIntent(null, SUMMARY_NOTIFICATION_ID);
+        }
+        Intent intent = new Intent(context, MainTabsActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        PendingIntent pendingIntent = PendingIntent.getActivity(context, SUMMARY_NOTIFICATION_ID,
+                intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        summaryNotification.when = System.currentTimeMillis();
+        summaryNotification.number = totalUnseen;
+        applyAlert(summaryNotification, alert, ticker("WhatsBerry: " + text));
+        summaryNotification.setLatestEventInfo(context, "WhatsBerry", text, pendingIntent);
+        notificationManager.notify(SUMMARY_NOTIFICATION_ID, summaryNotification);
     }
 
     /**
-     * Clear all notifications
+     * Alerting posts use DEFAULT_ALL (BB10's runtime needs it to treat the notification as
+     * important for the Hub); throttled updates only refresh the content and the LED
      */
-    public void clearAllNotifications() {
-        notificationManager.cancelAll();
+    private void applyAlert(Notification notification, boolean alert, String tickerText) {
+        if (alert) {
+            notification.defaults = Notification.DEFAULT_ALL;
+            notification.tickerText = tickerText; // CRITICAL for BB10 - shows as heads-up
+        } else {
+            notification.defaults = Notification.DEFAULT_LIGHTS;
+            notification.tickerText = null;
+        }
+        notification.flags = Notification.FLAG_SHOW_LIGHTS | Notification.FLAG_AUTO_CANCEL;
+    }
+
+    private void markAllDirty() {
+        synchronized (this) {
+            for (Conversation conversation : conversations.values()) {
+                conversation.dirty = true;
+            }
+        }
+    }
+
+    private static String ticker(String text) {
+        return text.length() > 50 ? text.substring(0, 47) + "..." : text;
+    }
+
+    private static int notificationId(String contactJid) {
+        return NOTIFICATION_ID_BASE + Math.abs(contactJid.hashCode() % 1000);
     }
 }
@@ -181,7 +181,7 @@ public class QRCodeActivity extends Activity {
             @Override
             public void onLogoutSuccess() {
                 progressDialog.dismiss();
-                XMPPManager.getInstance().disconnect();
+                ConnectionStateMachine.getInstance(QRCodeActivity.this).stop();
                 Toast.makeText(QRCodeActivity.this, "Logged out successfully", Toast.LENGTH_SHORT).show();
                 finish();
             }
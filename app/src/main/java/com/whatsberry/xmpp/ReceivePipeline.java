@@ -0,0 +1,135 @@
+package com.whatsberry.xmpp;
+
+import org.jivesoftware.smack.packet.DefaultExtensionElement;
+import org.jivesoftware.smack.packet.ExtensionElement;
+import org.jivesoftware.smack.packet.Message;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Receive Pipeline
+ * An incoming chat message from the stanza listener to the UI callback: validate, drop
+ * duplicates, classify (MessageContent), store, then call back on the callback executor.
+ * Plain Java: XMPPManager plugs in DatabaseHelper and the main thread, the receive benchmark
+ * plugs in sqlite-jdbc and an executor of its own, and both record the same msg.* metrics.
+ */
+public final class ReceivePipeline {
+
+    // Stanza arrival -> stored -> handled by the UI callback
+    private static final Metrics.Counter MESSAGES_RECEIVED = Metrics.counter("msg.received");
+    private static final Metrics.Counter MESSAGES_DUPLICATE = Metrics.counter("msg.duplicate");
+    private static final Metrics.Histogram RECEIVE_TO_STORED = Metrics.histogram("msg.receive_to_stored");
+    private static final Metrics.Histogram RECEIVE_TO_UI = Metrics.histogram("msg.receive_to_ui");
+    private static final Metrics.Gauge PENDING_UI = Metrics.gauge("msg.pending_ui_callbacks");
+
+    // How long a dedup key is remembered
+    private static final long RECENT_MS = 10000;
+
+    /**
+     * Where received messages are kept
+     */
+    public interface Store {
+        /**
+         * @param from sender as in the stanza, resource included
+         * @param stanzaId null if the stanza has none
+         */
+        void storeReceived(String from, String body, MessageContent content, String stanzaId);
+    }
+
+    public interface Callback {
+        void onMessageReceived(String from, String body, MessageContent content);
+    }
+
+    private final Store store;
+    private final Executor callbackExecutor;
+    private volatile Callback callback;
+
+    // Dedup key -> first seen (ms), oldest first
+    private final LinkedHashMap<String, Long> recentMessages = new LinkedHashMap<>();
+
+    /**
+     * @param callbackExecutor runs the callback (the main thread on the device)
+     */
+    public ReceivePipeline(Store store, Executor callbackExecutor) {
+        this.store = store;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * @param callback null to only store messages
+     */
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Handle a chat message, on the thread that received it
+     * @param arrivedAt {@link Metrics#now()} when the stanza reached the listener
+     * @return false if it was dropped (no body, or a duplicate)
+     */
+    public boolean receive(Message message, final long arrivedAt) {
+        final String body = message.getBody();
+        if (body == null || body.isEmpty()) {
+            return false;
+        }
+        final String from = message.getFrom();
+
+        long now = System.currentTimeMillis();
+        if (!firstSeen(StanzaText.dedupKey(from, body, now), now)) {
+            MESSAGES_DUPLICATE.inc();
+            return false;
+        }
+
+        final MessageContent content = contentOf(message);
+        store.storeReceived(from, body, content, message.getStanzaId());
+        RECEIVE_TO_STORED.recordSince(arrivedAt);
+        MESSAGES_RECEIVED.inc();
+
+        final Callback target = callback;
+        if (target != null) {
+            PENDING_UI.add(1);
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PENDING_UI.add(-1);
+                    target.onMessageReceived(from, body, content);
+                    RECEIVE_TO_UI.recordSince(arrivedAt);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Classify a message once, from its jabber:x:oob extension (XEP-0066) when it has one,
+     * otherwise from the body. Smack has no provider for the extension, so it arrives
+     * as a DefaultExtensionElement.
+     */
+    public static MessageContent contentOf(Message message) {
+        String url = null;
+        String desc = null;
+        ExtensionElement oob = message.getExtension(MessageContent.OOB_ELEMENT, MessageContent.OOB_NAMESPACE);
+        if (oob instanceof DefaultExtensionElement) {
+            url = ((DefaultExtensionElement) oob).getValue("url");
+            desc = ((DefaultExtensionElement) oob).getValue("desc");
+        }
+        return MessageContent.fromStanza(message.getBody(), url != null ? url.trim() : null, desc);
+    }
+
+    private boolean firstSeen(String key, long now) {
+        synchronized (recentMessages) {
+            Iterator<Map.Entry<String, Long>> oldest = recentMessages.entrySet().iterator();
+            while (oldest.hasNext() && now - oldest.next().getValue() >= RECENT_MS) {
+                oldest.remove();
+            }
+            if (recentMessages.containsKey(key)) {
+                return false;
+            }
+            recentMessages.put(key, now);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.whatsberry.xmpp;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Message Retention
+ * First moves read messages older than the archive threshold (default 180 days) into the
+ * compressed cold tier (see DatabaseHelper "Cold tier"), which keeps the main table and its
+ * indexes small. Then keeps the database bounded with three optional policies (0 = off),
+ * applied to both tiers:
+ * - maximum age in days
+ * - maximum messages per contact
+ * - maximum database size in MB (oldest archive blocks go first, then oldest stored messages)
+ * Deletes run in chunks of DatabaseHelper.RETENTION_CHUNK rows, one short transaction each,
+ * with a pause in between so the message path never waits long for the write lock.
+ * Afterwards the freed pages are returned to the SD card with incremental vacuum. Older files
+ * first need a one-time full VACUUM to allow that; it only runs on the charger or from
+ * "Run now" in settings, never on battery.
+ *
+ * Runs at most every RUN_INTERVAL_MS and only while the device is charging or the screen
+ * is off. Checks are triggered by power connected / screen off and by an inexact,
+ * non-waking alarm, so the job never wakes the device by itself. When the user comes
+ * back mid-run (screen on, not charging) it stops between chunks and resumes next time.
+ */
+public class RetentionManager {
+    private static final String TAG = "RetentionManager";
+
+    private static final String ACTION_CHECK = "com.whatsberry.xmpp.RETENTION_CHECK";
+    private static final String PREFS_NAME = "WhatsberryPrefs";
+    public static final String PREF_ARCHIVE_AFTER_DAYS = "retention_archive_after_days";
+    public static final int DEFAULT_ARCHIVE_AFTER_DAYS = 180;
+    public static final String PREF_MAX_AGE_DAYS = "retention_max_age_days";
+    public static final String PREF_KEEP_PER_CONTACT = "retention_keep_per_contact";
+    public static final String PREF_MAX_SIZE_MB = "retention_max_size_mb";
+    private static final String PREF_LAST_RUN = "retention_last_run";
+    private static final String PREF_LAST_SUMMARY = "retention_last_summary";
+
+    private static final long RUN_INTERVAL_MS = 12L * 60 * 60 * 1000;
+    private static final long CHUNK_PAUSE_MS = 50;
+    private static final int VACUUM_PAGES_PER_STEP = 256; // 1 MB with the default 4 KB pages
+    private static final int ARCHIVE_BLOCKS_PER_STEP = 8;   // Size limit: archive blocks dropped per chunk
+    private static final long WAKELOCK_TIMEOUT_MS = 10 * 60 * 1000;
+
+    private static final Metrics.Counter DELETED = Metrics.counter("retention.deleted");
+    private static final Metrics.Counter ARCHIVED = Metrics.counter("retention.archived");
+    private static final Metrics.Histogram CHUNK_TIME = Metrics.histogram("retention.chunk");
+    private static final Metrics.Histogram RUN_TIME = Metrics.histogram("retention.run");
+
+    private static RetentionManager instance;
+
+    private final Context context;
+    private final PowerManager powerManager;
+    private final PowerManager.WakeLock wakeLock;
+    private final Handler worker;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean started = false;
+    private volatile boolean running = false;
+
+    /**
+     * Result of a run started from the UI
+     */
+    public interface Listener {
+        void onRetentionFinished(String summary);
+    }
+
+    private RetentionManager(Context context) {
+        this.context = context.getApplicationContext();
+        this.powerManager = (PowerManager) this.context.getSystemService(Context.POWER_SERVICE);
+        this.wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Whatsberry:Retention");
+        this.wakeLock.setReferenceCounted(false);
+
+        HandlerThread thread = new HandlerThread("Retention", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        this.worker = new Handler(thread.getLooper());
+    }
+
+    public static synchronized RetentionManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new RetentionManager(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Start watching for idle/charging periods (called once from XMPPService)
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        IntentFilter filter = new IntentFilter(ACTION_CHECK);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        context.registerReceiver(receiver, filter);
+
+        // Non-waking and inexact: delivered with the next wakeup the device has anyway
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent check = PendingIntent.getBroadcast(context, 0, new Intent(ACTION_CHECK), 0);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR, AlarmManager.INTERVAL_HOUR, check);
+    }
+
+    /**
+     * Run now regardless of schedule and device state (settings screen)
+     */
+    public void runNow(final Listener listener) {
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                final String summary = runJob(true);
+                if (listener != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onRetentionFinished(summary);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Summary of the last completed run, null if there was none
+     */
+    public String getLastSummary() {
+        return prefs().getString(PREF_LAST_SUMMARY, null);
+    }
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            worker.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isDue() && (isCharging() || isIdle())) {
+                        runJob(false);
+                    }
+                }
+            });
+        }
+    };
+
+    private boolean isDue() {
+        return System.currentTimeMillis() - prefs().getLong(PREF_LAST_RUN, 0) >= RUN_INTERVAL_MS;
+    }
+
+    private boolean isCharging() {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private boolean isIdle() {
+        return !powerManager.isScreenOn();
+    }
+
+    // ===== Job (worker thread) =====
+
+    private String runJob(boolean forced) {
+        DatabaseHelper db = XMPPManager.getInstance().getDatabaseHelper();
+        if (db == null) {
+            return "Database not available";
+        }
+
+        SharedPreferences prefs = prefs();
+        int archiveAfterDays = prefs.getInt(PREF_ARCHIVE_AFTER_DAYS, DEFAULT_ARCHIVE_AFTER_DAYS);
+        int maxAgeDays = prefs.getInt(PREF_MAX_AGE_DAYS, 0);
+        int keepPerContact = prefs.getInt(PREF_KEEP_PER_CONTACT, 0);
+        int maxSizeMb = prefs.getInt(PREF_MAX_SIZE_MB, 0);
+
+        running = true;
+        wakeLock.acquire(WAKELOCK_TIMEOUT_MS);
+        long start = Metrics.now();
+        Run run = new Run(forced);
+        try {
+            long usedBefore = db.getUsedBytes();
+            // The one-time conversion is a full VACUUM (whole file rewritten): only on the
+            // charger or when asked for, a screen-off run on battery keeps to chunked deletes
+            boolean mayRewrite = forced || isCharging();
+            boolean incremental = mayRewrite ? db.ensureIncrementalVacuum() : db.isIncrementalVacuum();
+
+            if (maxAgeDays > 0) {
+                long cutoff = daysAgo(maxAgeDays);
+                run.deleted += db.deleteArchivedBefore(cutoff);
+                for (String contactJid : db.getContactJids()) {
+                    if (!run.deleteBefore(db, contactJid, cutoff)) {
+                        break;
+                    }
+                }
+            }
+            if (keepPerContact > 0 && !run.yielded) {
+                for (String contactJid : db.getContactsWithMoreThan(keepPerContact)) {
+                    if (!run.deleteBefore(db, contactJid, db.getRetentionCutoff(contactJid, keepPerContact))) {
+                        break;
+                    }
+                }
+                for (String contactJid : db.getArchivedContactJids()) {
+                    if (run.shouldYield()) {
+                        break;
+                    }
+                    run.deleted += db.trimArchivedMessages(contactJid, keepPerContact);
+                }
+            }
+            // Archive after the deletions above, so nothing is packed only to be dropped
+            if (archiveAfterDays > 0 && db.isArchiveAvailable() && !run.yielded) {
+                db.applyReadWatermarks(); // Chats marked read since the last run become archivable
+                long cutoff = daysAgo(archiveAfterDays);
+                for (String contactJid : db.getContactJids()) {
+                    if (!run.archiveBefore(db, contactJid, cutoff)) {
+                        break;
+                    }
+                }
+            }
+            if (maxSizeMb > 0 && !run.yielded) {
+                long budget = maxSizeMb * 1024L * 1024L;
+                while (db.getUsedBytes() > budget && run.deleteOldest(db)) {
+                    // Chunks until the data fits
+                }
+            }
+
+            int released = 0;
+            if (incremental) {
+                int pages;
+                do {
+                    pages = db.incrementalVacuum(VACUUM_PAGES_PER_STEP);
+                    released += pages;
+                } while (pages > 0 && !run.shouldYield());
+            }
+
+            String summary = "Archived " + run.archived + ", deleted " + run.deleted + " messages, data " +
+                    (usedBefore / 1024) + " KB -> " + (db.getUsedBytes() / 1024) + " KB, " + (released > 0 ? released + " pages returned" :
+                    incremental ? "nothing to return" : mayRewrite ? "incremental vacuum unavailable" :
+                    "incremental vacuum waits for the charger") +
+                    (run.yielded ? " (interrupted, resumes later)" : "");
+            Log.i(TAG, summary);
+
+            SharedPreferences.Editor editor = prefs.edit().putString(PREF_LAST_SUMMARY, summary);
+            if (!run.yielded) {
+                editor.putLong(PREF_LAST_RUN, System.currentTimeMillis());
+            }
+            editor.apply();
+            return summary;
+        } catch (Exception e) {
+            Log.e(TAG, "Retention run failed", e);
+            return "Failed: " + e.getMessage();
+        } finally {
+            RUN_TIME.recordSince(start);
+            wakeLock.release();
+            running = false;
+        }
+    }
+
+    private static long daysAgo(int days) {
+        return System.currentTimeMillis() - days * 24L * 60 * 60 * 1000;
+    }
+
+    private SharedPreferences prefs() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * State of one run: archived and deleted messages, and whether it gave way to the user
+     */
+    private class Run {
+        final boolean forced;
+        int deleted = 0;
+        int archived = 0;
+        boolean yielded = false;
+
+        Run(boolean forced) {
+            this.forced = forced;
+        }
+
+        /**
+         * Delete the contact's messages older than cutoff, chunk by chunk
+         * @return false if the run should stop
+         */
+        boolean deleteBefore(DatabaseHelper db, String contactJid, long cutoff) {
+            int rows;
+            do {
+                long start = Metrics.now();
+                rows = db.deleteMessagesBefore(contactJid, cutoff, DatabaseHelper.RETENTION_CHUNK);
+                if (!afterChunk(rows, start)) {
+                    return false;
+                }
+            } while (rows == DatabaseHelper.RETENTION_CHUNK);
+            return true;
+        }
+
+        /**
+         * Move the contact's read messages older than cutoff to the archive, block by block
+         * @return false if the run should stop
+         */
+        boolean archiveBefore(DatabaseHelper db, String contactJid, long cutoff) {
+            int moved;
+            do {
+                moved = db.archiveMessagesBefore(contactJid, cutoff);
+                if (moved > 0) {
+                    ARCHIVED.add(moved);
+                    archived += moved;
+                    SystemClock.sleep(CHUNK_PAUSE_MS);
+                }
+                if (shouldYield()) {
+                    return false;
+                }
+            } while (moved == MessageArchive.BLOCK_SIZE);
+            return true;
+        }
+
+        /**
+         * Delete one chunk of the oldest data: archive blocks while there are any, then
+         * the first stored messages
+         * @return false if nothing was deleted or the run should stop
+         */
+        boolean deleteOldest(DatabaseHelper db) {
+            long start = Metrics.now();
+            int rows = db.deleteOldestArchivedBlocks(ARCHIVE_BLOCKS_PER_STEP);
+            if (rows == 0) {
+                rows = db.deleteOldestMessages(DatabaseHelper.RETENTION_CHUNK);
+            }
+            return afterChunk(rows, start) && rows > 0;
+        }
+
+        private boolean afterChunk(int rows, long start) {
+            if (rows > 0) {
+                CHUNK_TIME.recordSince(start);
+                DELETED.add(rows);
+                deleted += rows;
+                // Let queued message inserts take the write lock
+                SystemClock.sleep(CHUNK_PAUSE_MS);
+            }
+            return !shouldYield();
+        }
+
+        boolean shouldYield() {
+            if (!forced && !yielded && !isCharging() && !isIdle()) {
+                AppLog.d(TAG, "Screen on while on battery, stopping after {} deletions", deleted);
+                yielded = true;
+            }
+            return yielded;
+        }
+    }
+}
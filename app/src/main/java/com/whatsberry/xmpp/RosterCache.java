@@ -0,0 +1,468 @@
+package com.whatsberry.xmpp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.roster.Roster;
+import org.jivesoftware.smack.roster.RosterListener;
+import org.jivesoftware.smack.roster.packet.RosterPacket;
+import org.jivesoftware.smack.roster.rosterstore.RosterStore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Roster Cache
+ * Persistent copy of the roster (SQLite) plugged into Smack as its RosterStore, so login
+ * sends the stored roster version (XEP-0237) and the server only answers with what changed.
+ * Contact lists are served from memory: loaded from disk once at startup, then patched by
+ * roster pushes and per-contact presence updates instead of walking the whole roster.
+ */
+public class RosterCache implements RosterStore, RosterListener {
+    private static final String TAG = "RosterCache";
+
+    private static final String PREFS_NAME = "WhatsberryPrefs";
+    private static final String PREF_VERSION = "roster_version";
+    private static final String PREF_ACCOUNT = "roster_account"; // Bare JID, user@server
+    // A few frames: presence dots don't need to move faster than that, and the
+    // contact list is rebuilt once per window rather than once per stanza
+    private static final long PRESENCE_WINDOW_MS = 6 * EventCoalescer.FRAME_MS;
+
+    /**
+     * Notified on the main thread after the contact list changed (coalesced)
+     */
+    public interface RosterChangeListener {
+        void onRosterChanged();
+    }
+
+    private static RosterCache instance;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<RosterChangeListener> listeners = new ArrayList<>();
+
+    // Guarded by this
+    private final Map<String, RosterPacket.Item> items = new LinkedHashMap<>();
+    private final Map<String, Presence> presences = new HashMap<>(); // Best presence per bare JID
+    private boolean loaded = false;
+    private Roster roster;
+    private List<XMPPManager.Contact> contactsSnapshot;          // Rebuilt lazily after a change
+    private Map<String, XMPPManager.Contact> contactMapSnapshot;
+    private boolean notifyPending = false;
+
+    private final EventCoalescer<Presence> presenceEvents;
+
+    private RosterCache(Context context) {
+        this.context = context.getApplicationContext();
+        this.presenceEvents = new EventCoalescer<>(mainHandler, PRESENCE_WINDOW_MS,
+                new EventCoalescer.Sink<Presence>() {
+                    @Override
+                    public void onEvents(Map<String, Presence> latest) {
+                        applyPresences(latest);
+                    }
+                });
+    }
+
+    public static synchronized RosterCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new RosterCache(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Use this cache for the connection's roster. Call before login so the roster request
+     * already carries our version. The cache belongs to user@server: the same user name on
+     * another server is a different roster.
+     */
+    public void attach(XMPPConnection connection, String username) {
+        String account = accountJid(username, connection.getServiceName());
+        SharedPreferences prefs = prefs();
+        if (!account.equals(prefs.getString(PREF_ACCOUNT, account))) {
+            Log.d(TAG, "Account changed, dropping cached roster");
+            resetEntries(Collections.<RosterPacket.Item>emptyList(), "");
+        }
+        prefs.edit().putString(PREF_ACCOUNT, account).apply();
+
+        Roster newRoster = Roster.getInstanceFor(connection);
+        synchronized (this) {
+            if (roster != null) {
+                roster.removeRosterListener(this);
+            }
+            roster = newRoster;
+            presences.clear(); // Presence of the previous session is stale
+            invalidate();
+        }
+        presenceEvents.clear();
+        newRoster.setRosterStore(this);
+        newRoster.addRosterListener(this);
+        notifyChanged();
+    }
+
+    /**
+     * Connection gone: everybody is offline until their presence arrives again
+     */
+    public void onDisconnected() {
+        presenceEvents.clear();
+        synchronized (this) {
+            if (presences.isEmpty()) {
+                return;
+            }
+            presences.clear();
+            invalidate();
+        }
+        notifyChanged();
+    }
+
+    /**
+     * Contact list (roster entries with their current presence), immediately available from disk
+     */
+    public synchronized List<XMPPManager.Contact> getContacts() {
+        ensureLoaded();
+        if (contactsSnapshot == null) {
+            List<XMPPManager.Contact> contacts = new ArrayList<>(items.size());
+            for (RosterPacket.Item item : items.values()) {
+                contacts.add(toContact(item));
+            }
+            contactsSnapshot = Collections.unmodifiableList(contacts);
+        }
+        return new ArrayList<>(contactsSnapshot);
+    }
+
+    /**
+     * Same contacts keyed by bare JID
+     */
+    public synchronized Map<String, XMPPManager.Contact> getContactMap() {
+        if (contactMapSnapshot == null) {
+            Map<String, XMPPManager.Contact> map = new HashMap<>();
+            for (XMPPManager.Contact contact : getContacts()) {
+                map.put(contact.jid, contact);
+            }
+            contactMapSnapshot = Collections.unmodifiableMap(map);
+        }
+        return contactMapSnapshot;
+    }
+
+    public synchronized List<String> getJids() {
+        ensureLoaded();
+        return new ArrayList<>(items.keySet());
+    }
+
+    public void addRosterChangeListener(RosterChangeListener listener) {
+        synchronized (listeners) {
+            if (!listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+        }
+    }
+
+    public void removeRosterChangeListener(RosterChangeListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    // ===== RosterStore (called by Smack) =====
+
+    @Override
+    public synchronized List<RosterPacket.Item> getEntries() {
+        ensureLoaded();
+        return new ArrayList<>(items.values());
+    }
+
+    @Override
+    public synchronized RosterPacket.Item getEntry(String bareJid) {
+        ensureLoaded();
+        return items.get(bareJid);
+    }
+
+    @Override
+    public String getRosterVersion() {
+        return prefs().getString(PREF_VERSION, "");
+    }
+
+    @Override
+    public boolean addEntry(RosterPacket.Item item, String version) {
+        synchronized (this) {
+            ensureLoaded();
+            items.put(item.getUser(), item);
+            invalidate();
+        }
+        notifyChanged();
+
+        DatabaseHelper database = database();
+        if (database == null) {
+            return false;
+        }
+        try {
+            database.upsertRosterItem(toRecord(item));
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to store roster entry " + item.getUser(), e);
+            return false;
+        }
+        saveVersion(version);
+        return true;
+    }
+
+    @Override
+    public boolean resetEntries(Collection<RosterPacket.Item> newItems, String version) {
+        List<DatabaseHelper.RosterRecord> records = new ArrayList<>(newItems.size());
+        synchronized (this) {
+            loaded = true; // The server's copy replaces whatever was on disk
+            items.clear();
+            for (RosterPacket.Item item : newItems) {
+                items.put(item.getUser(), item);
+                records.add(toRecord(item));
+            }
+            invalidate();
+        }
+        notifyChanged();
+
+        DatabaseHelper database = database();
+        if (database == null) {
+            return false;
+        }
+        try {
+            database.replaceRoster(records);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to store roster", e);
+            return false;
+        }
+        saveVersion(version);
+        return true;
+    }
+
+    @Override
+    public boolean removeEntry(String bareJid, String version) {
+        synchronized (this) {
+            ensureLoaded();
+            items.remove(bareJid);
+            presences.remove(bareJid);
+            invalidate();
+        }
+        notifyChanged();
+
+        DatabaseHelper database = database();
+        if (database == null) {
+            return false;
+        }
+        try {
+            database.deleteRosterItem(bareJid);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to delete roster entry " + bareJid, e);
+            return false;
+        }
+        saveVersion(version);
+        return true;
+    }
+
+    // ===== RosterListener (presence deltas) =====
+
+    @Override
+    public void entriesAdded(Collection<String> addresses) {
+        // Already applied through the store
+    }
+
+    @Override
+    public void entriesUpdated(Collection<String> addresses) {
+    }
+
+    @Override
+    public void entriesDeleted(Collection<String> addresses) {
+    }
+
+    @Override
+    public void presenceChanged(Presence presence) {
+        String bareJid = presence.getFrom();
+        if (bareJid == null) {
+            return;
+        }
+        if (bareJid.contains("/")) {
+            bareJid = bareJid.substring(0, bareJid.indexOf("/"));
+        }
+        // Login floods us with one presence per gateway contact; merge them per JID first
+        presenceEvents.offer(bareJid, presence);
+    }
+
+    /**
+     * Apply a window's worth of presence changes (main thread)
+     */
+    private void applyPresences(Map<String, Presence> latest) {
+        Roster current;
+        synchronized (this) {
+            current = roster;
+        }
+
+        boolean changed = false;
+        for (Map.Entry<String, Presence> entry : latest.entrySet()) {
+            String bareJid = entry.getKey();
+            // Only this contact is recomputed (the roster merges its resources for us).
+            // Asked outside our lock: Smack calls into the store while holding its own.
+            Presence best = current != null ? current.getPresence(bareJid) : entry.getValue();
+
+            synchronized (this) {
+                Presence previous = presences.get(bareJid);
+                if (previous != null && previous.isAvailable() == best.isAvailable() &&
+                        equal(previous.getStatus(), best.getStatus())) {
+                    continue; // Priority or resource churn the UI can't see
+                }
+                presences.put(bareJid, best);
+                invalidate();
+                changed = true;
+            }
+        }
+        if (changed) {
+            dispatchChanged();
+        }
+    }
+
+    // ===== Internals =====
+
+    /**
+     * Called with the monitor held
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        DatabaseHelper database = database();
+        if (database == null) {
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            for (DatabaseHelper.RosterRecord record : database.getRosterItems()) {
+                items.put(record.jid, toItem(record));
+            }
+            Log.d(TAG, "Loaded " + items.size() + " roster entries from disk in " +
+                    (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to load roster from disk", e);
+        }
+    }
+
+    /**
+     * Called with the monitor held
+     */
+    private void invalidate() {
+        contactsSnapshot = null;
+        contactMapSnapshot = null;
+    }
+
+    private void notifyChanged() {
+        synchronized (this) {
+            if (notifyPending) {
+                return; // A burst of roster pushes becomes one UI refresh
+            }
+            notifyPending = true;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RosterCache.this) {
+                    notifyPending = false;
+                }
+                dispatchChanged();
+            }
+        });
+    }
+
+    private void dispatchChanged() {
+        List<RosterChangeListener> copy;
+        synchronized (listeners) {
+            copy = new ArrayList<>(listeners);
+        }
+        for (RosterChangeListener listener : copy) {
+            listener.onRosterChanged();
+        }
+    }
+
+    /**
+     * Called with the monitor held
+     */
+    private XMPPManager.Contact toContact(RosterPacket.Item item) {
+        XMPPManager.Contact contact = new XMPPManager.Contact();
+        contact.jid = item.getUser();
+        contact.name = item.getName() != null ? item.getName() : item.getUser();
+        Presence presence = presences.get(item.getUser());
+        contact.isOnline = presence != null && presence.isAvailable();
+        contact.status = presence != null ? presence.getStatus() : null;
+        return contact;
+    }
+
+    private static DatabaseHelper.RosterRecord toRecord(RosterPacket.Item item) {
+        DatabaseHelper.RosterRecord record = new DatabaseHelper.RosterRecord();
+        record.jid = item.getUser();
+        record.name = item.getName();
+        record.subscription = item.getItemType() != null ? item.getItemType().name() : null;
+        record.ask = item.getItemStatus() != null ? item.getItemStatus().name() : null;
+
+        StringBuilder groups = new StringBuilder();
+        for (String group : item.getGroupNames()) {
+            if (groups.length() > 0) {
+                groups.append('\n');
+            }
+            groups.append(group);
+        }
+        record.groups = groups.length() > 0 ? groups.toString() : null;
+        return record;
+    }
+
+    private static RosterPacket.Item toItem(DatabaseHelper.RosterRecord record) {
+        RosterPacket.Item item = new RosterPacket.Item(record.jid, record.name);
+        try {
+            if (record.subscription != null) {
+                item.setItemType(RosterPacket.ItemType.valueOf(record.subscription));
+            }
+            if (record.ask != null) {
+                item.setItemStatus(RosterPacket.ItemStatus.valueOf(record.ask));
+            }
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unknown subscription state for " + record.jid + ": " + e.getMessage());
+        }
+        if (record.groups != null) {
+            for (String group : record.groups.split("\n")) {
+                item.addGroupName(group);
+            }
+        }
+        return item;
+    }
+
+    private void saveVersion(String version) {
+        if (version != null) {
+            prefs().edit().putString(PREF_VERSION, version).apply();
+        }
+    }
+
+    private DatabaseHelper database() {
+        return XMPPManager.getInstance().getDatabaseHelper();
+    }
+
+    private SharedPreferences prefs() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Bare JID of the account, lower case (JIDs compare case-insensitively)
+     */
+    static String accountJid(String username, String serviceName) {
+        String jid = username.contains("@") ? username : username + "@" + serviceName;
+        return jid.toLowerCase(Locale.US);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,129 @@
+package com.whatsberry.xmpp;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * SQLite Message Database
+ * MessageStore.Database on an open SQLiteDatabase; the interface follows SQLiteDatabase,
+ * SQLiteStatement and Cursor, so every call passes straight through.
+ */
+final class SQLiteMessageDatabase implements MessageStore.Database {
+    private final SQLiteDatabase db;
+
+    SQLiteMessageDatabase(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    @Override
+    public MessageStore.Statement compile(String sql) {
+        return new CompiledStatement(db.compileStatement(sql));
+    }
+
+    @Override
+    public MessageStore.Rows query(String sql, String[] args) {
+        return new CursorRows(db.rawQuery(sql, args));
+    }
+
+    @Override
+    public void beginTransaction() {
+        db.beginTransaction();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        db.setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        db.endTransaction();
+    }
+
+    private static final class CompiledStatement implements MessageStore.Statement {
+        private final SQLiteStatement statement;
+
+        CompiledStatement(SQLiteStatement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            statement.bindString(index, value);
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            statement.bindLong(index, value);
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            statement.bindBlob(index, value);
+        }
+
+        @Override
+        public void clearBindings() {
+            statement.clearBindings();
+        }
+
+        @Override
+        public long executeInsert() {
+            return statement.executeInsert();
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            return statement.executeUpdateDelete();
+        }
+
+        @Override
+        public void close() {
+            statement.close();
+        }
+    }
+
+    private static final class CursorRows implements MessageStore.Rows {
+        private final Cursor cursor;
+
+        CursorRows(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return cursor.moveToNext();
+        }
+
+        @Override
+        public int getColumnIndex(String column) {
+            return cursor.getColumnIndex(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return cursor.getLong(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return cursor.getString(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return cursor.getBlob(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return cursor.isNull(column);
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+}
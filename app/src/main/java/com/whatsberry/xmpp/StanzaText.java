@@ -0,0 +1,80 @@
+package com.whatsberry.xmpp;
+
+/**
+ * Stanza Text
+ * String helpers of the XMPP message path that don't need Smack or Android: XML escaping
+ * for hand-built extensions, the retraction id parser and the duplicate-message key.
+ */
+public final class StanzaText {
+
+    // Live messages from the same sender with the same body inside this window are duplicates
+    public static final long DEDUP_WINDOW_MS = 2000;
+
+    private StanzaText() {
+    }
+
+    /**
+     * Escape the five XML special characters; returns the input itself when nothing needs escaping
+     */
+    public static String escapeXml(String text) {
+        if (text == null) {
+            return "";
+        }
+        int length = text.length();
+        int i = 0;
+        while (i < length && !isSpecial(text.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return text;
+        }
+
+        StringBuilder sb = new StringBuilder(length + 16);
+        sb.append(text, 0, i);
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&': sb.append("&amp;"); break;
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '"': sb.append("&quot;"); break;
+                case '\'': sb.append("&apos;"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Extract stanza ID from retract extension XML
+     * Example: <retract id='message-id-123' xmlns='urn:xmpp:message-retract:1'/>
+     * @return the id, or null if there is no id attribute
+     */
+    public static String extractRetractId(String xml) {
+        if (xml == null) {
+            return null;
+        }
+        int idStart = xml.indexOf("id='");
+        if (idStart == -1) {
+            idStart = xml.indexOf("id=\"");
+        }
+        if (idStart == -1) {
+            return null;
+        }
+        char quote = xml.charAt(idStart + 3);
+        idStart += 4; // Skip id=' or id="
+        int idEnd = xml.indexOf(quote, idStart);
+        return idEnd != -1 ? xml.substring(idStart, idEnd) : null;
+    }
+
+    /**
+     * Key identifying a live message for duplicate detection (sender, body, time window)
+     */
+    public static String dedupKey(String from, String body, long nowMillis) {
+        return from + "|" + body + "|" + (nowMillis / DEDUP_WINDOW_MS);
+    }
+
+    private static boolean isSpecial(char c) {
+        return c == '&' || c == '<' || c == '>' || c == '"' || c == '\'';
+    }
+}
@@ -3,32 +3,155 @@ package com.whatsberry.xmpp;
 import android.util.Log;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
 
 /**
  * Custom SSLSocketFactory to enable TLS 1.2 on Android API 18 (BlackBerry 10)
- * Android API 18 supports TLS 1.2 but doesn't enable it by default
+ * Android API 18 supports TLS 1.2 but doesn't enable it by default.
+ * One SSLContext is shared by the whole process so its client session cache survives
+ * reconnects: the second STARTTLS to the proxy resumes the session (abbreviated handshake,
+ * no RSA/ECDHE work) instead of paying for a full handshake every time the network flaps.
+ *
+ * Protocol floor: TLS 1.1. Sockets get TLS 1.2 and 1.1, intersected with what the runtime
+ * supports; TLS 1.0 is added only when the user turned on the fallback (PREF_ALLOW_TLS10,
+ * for servers or runtimes without 1.1). A socket that would be left with nothing above the
+ * floor fails instead of silently falling back to the platform defaults (TLS 1.0, SSLv3).
  */
 public class TLSSocketFactory extends SSLSocketFactory {
     private static final String TAG = "TLSSocketFactory";
-    private SSLSocketFactory internalSSLSocketFactory;
+
+    /** WhatsberryPrefs boolean: also offer TLS 1.0 (off by default) */
+    public static final String PREF_ALLOW_TLS10 = "tls_allow_tls10";
+
+    private static final String[] ENABLED_PROTOCOLS = {"TLSv1.2", "TLSv1.1"};
+    private static final String FALLBACK_PROTOCOL = "TLSv1";
+    private static final int SESSION_CACHE_SIZE = 8;                   // We only ever talk to one or two hosts
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;   // Matches the proxy's ticket lifetime
+
+    // ARMv7 without crypto extensions: ECDHE over DHE (no 2048-bit modexp), AES-128 over
+    // AES-256 (10 rounds instead of 14), AEAD over CBC+HMAC where the runtime offers it.
+    // Suites the runtime doesn't know are skipped; its other defaults follow in their own order.
+    private static final String[] PREFERRED_CIPHER_SUITES = {
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA",
+            "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA",
+            "TLS_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_RSA_WITH_AES_128_CBC_SHA"
+    };
+
+    private static SSLContext sharedContext;
+    private static volatile boolean allowTls10 = false;
+
+    // Handshake statistics (for the connection info screen)
+    private static final AtomicInteger handshakes = new AtomicInteger();
+    private static final AtomicInteger resumedHandshakes = new AtomicInteger();
+    private static volatile long lastHandshakeMillis = -1;
+    private static volatile boolean lastHandshakeResumed = false;
+
+    private final SSLSocketFactory internalSSLSocketFactory;
+    private final String[] cipherSuites;
+    private final Set<String> issuedSessionIds = new HashSet<>();
+    private volatile boolean protocolsLogged = false;
+    private volatile boolean ticketsUnsupported = false;
 
     public TLSSocketFactory() throws KeyManagementException, NoSuchAlgorithmException {
-        SSLContext context = SSLContext.getInstance("TLS");
-        context.init(null, null, null);
+        this(newInitializedContext());
+    }
+
+    private TLSSocketFactory(SSLContext context) {
         internalSSLSocketFactory = context.getSocketFactory();
+        cipherSuites = orderCipherSuites(internalSSLSocketFactory.getDefaultCipherSuites(),
+                internalSSLSocketFactory.getSupportedCipherSuites());
+    }
+
+    /**
+     * Process-wide SSLContext whose sockets come from this factory
+     * Pass it to Smack as the custom SSLContext so every STARTTLS reuses the same session cache.
+     */
+    public static synchronized SSLContext getSharedContext() throws KeyManagementException, NoSuchAlgorithmException {
+        if (sharedContext == null) {
+            SSLContext delegate = newInitializedContext();
+
+            SSLSessionContext sessions = delegate.getClientSessionContext();
+            if (sessions != null) {
+                sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            }
+
+            TLSSocketFactory factory = new TLSSocketFactory(delegate);
+            sharedContext = new SharedSSLContext(new FactoryContextSpi(delegate, factory), delegate);
+            Log.d(TAG, "Shared SSLContext ready, preferred cipher: " + factory.cipherSuites[0]);
+        }
+        return sharedContext;
+    }
+
+    /**
+     * Apply the PREF_ALLOW_TLS10 setting; takes effect with the next socket
+     */
+    public static void setAllowTls10(boolean allow) {
+        allowTls10 = allow;
+    }
+
+    public static boolean isTls10Allowed() {
+        return allowTls10;
+    }
+
+    /**
+     * Handshakes completed by any socket of this process
+     */
+    public static int getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * How many of those were abbreviated (resumed) handshakes
+     */
+    public static int getResumedHandshakeCount() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Duration of the last handshake in ms, -1 if none completed yet
+     */
+    public static long getLastHandshakeMillis() {
+        return lastHandshakeMillis;
+    }
+
+    public static boolean wasLastHandshakeResumed() {
+        return lastHandshakeResumed;
     }
 
     @Override
     public String[] getDefaultCipherSuites() {
-        return internalSSLSocketFactory.getDefaultCipherSuites();
+        return cipherSuites.clone();
     }
 
     @Override
@@ -42,7 +165,7 @@ public class TLSSocketFactory extends SSLSocketFactory {
     }
 
     @Override
-    public Socket createSocket(Socket s, String host, int port, boolean autoClose) 
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose)
             throws IOException {
         return enableTLSOnSocket(internalSSLSocketFactory.createSocket(s, host, port, autoClose));
     }
@@ -53,7 +176,7 @@ public class TLSSocketFactory extends SSLSocketFactory {
     }
 
     @Override
-    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) 
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
             throws IOException {
         return enableTLSOnSocket(internalSSLSocketFactory.createSocket(host, port, localHost, localPort));
     }
@@ -64,28 +187,180 @@ public class TLSSocketFactory extends SSLSocketFactory {
     }
 
     @Override
-    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) 
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
             throws IOException {
         return enableTLSOnSocket(internalSSLSocketFactory.createSocket(address, port, localAddress, localPort));
     }
 
     /**
-     * Enable TLS 1.2 and TLS 1.1 on the socket
+     * Enable TLS 1.2 and TLS 1.1 (and 1.0 if allowed), apply the cipher order and turn on session tickets
      */
-    private Socket enableTLSOnSocket(Socket socket) {
+    private Socket enableTLSOnSocket(Socket socket) throws IOException {
         if (socket != null && (socket instanceof SSLSocket)) {
             SSLSocket sslSocket = (SSLSocket) socket;
-            
-            // Log supported protocols for debugging
-            String[] supportedProtocols = sslSocket.getSupportedProtocols();
-            Log.d(TAG, "Supported protocols: " + java.util.Arrays.toString(supportedProtocols));
-            
-            // Enable TLS 1.2 and 1.1 explicitly
-            sslSocket.setEnabledProtocols(new String[]{"TLSv1.2", "TLSv1.1"});
-            
-            String[] enabledProtocols = sslSocket.getEnabledProtocols();
-            Log.d(TAG, "Enabled protocols: " + java.util.Arrays.toString(enabledProtocols));
+
+            String[] protocols = enabledProtocols(sslSocket.getSupportedProtocols(), allowTls10);
+            if (protocols.length == 0) {
+                sslSocket.close();
+                throw new IOException("No TLS 1.1 or newer on this device (supported: " +
+                        Arrays.toString(sslSocket.getSupportedProtocols()) + "); enable the TLS 1.0 fallback");
+            }
+            sslSocket.setEnabledProtocols(protocols);
+            sslSocket.setEnabledCipherSuites(cipherSuites);
+            enableSessionTickets(sslSocket);
+
+            if (!protocolsLogged) {
+                protocolsLogged = true;
+                Log.d(TAG, "Supported protocols: " + Arrays.toString(sslSocket.getSupportedProtocols()));
+                Log.d(TAG, "Enabled protocols: " + Arrays.toString(sslSocket.getEnabledProtocols()));
+            }
+
+            final long createdAt = System.currentTimeMillis();
+            sslSocket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    onHandshakeCompleted(event.getSession(), System.currentTimeMillis() - createdAt);
+                }
+            });
         }
         return socket;
     }
+
+    /**
+     * Session tickets (RFC 5077) let the proxy resume without keeping server-side state.
+     * Android's OpenSSL socket has the switch but keeps it off and out of the public API.
+     */
+    private void enableSessionTickets(SSLSocket socket) {
+        if (ticketsUnsupported) {
+            return;
+        }
+        try {
+            Method method = socket.getClass().getMethod("setUseSessionTickets", boolean.class);
+            method.invoke(socket, true);
+        } catch (NoSuchMethodException e) {
+            ticketsUnsupported = true;
+            Log.d(TAG, "Session tickets not available on " + socket.getClass().getName());
+        } catch (Exception e) {
+            ticketsUnsupported = true;
+            Log.w(TAG, "Could not enable session tickets: " + e.getMessage());
+        }
+    }
+
+    private void onHandshakeCompleted(SSLSession session, long elapsedMs) {
+        boolean resumed;
+        synchronized (issuedSessionIds) {
+            if (issuedSessionIds.size() > SESSION_CACHE_SIZE * 8) {
+                issuedSessionIds.clear(); // Only recent sessions can be resumed anyway
+            }
+            resumed = !issuedSessionIds.add(toHex(session.getId()));
+        }
+        handshakes.incrementAndGet();
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+        }
+        lastHandshakeMillis = elapsedMs;
+        lastHandshakeResumed = resumed;
+        Log.d(TAG, "Handshake " + (resumed ? "resumed" : "full") + " in " + elapsedMs + "ms: "
+                + session.getProtocol() + ", " + session.getCipherSuite());
+    }
+
+    /**
+     * ENABLED_PROTOCOLS (plus FALLBACK_PROTOCOL if allowed) that the runtime supports, in that order
+     */
+    static String[] enabledProtocols(String[] supported, boolean allowFallback) {
+        Set<String> supportedSet = new HashSet<>(Arrays.asList(supported));
+        List<String> result = new ArrayList<>();
+        for (String protocol : ENABLED_PROTOCOLS) {
+            if (supportedSet.contains(protocol)) {
+                result.add(protocol);
+            }
+        }
+        if (allowFallback && supportedSet.contains(FALLBACK_PROTOCOL)) {
+            result.add(FALLBACK_PROTOCOL);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static String[] orderCipherSuites(String[] defaults, String[] supported) {
+        Set<String> supportedSet = new HashSet<>(Arrays.asList(supported));
+        Set<String> ordered = new LinkedHashSet<>();
+        for (String suite : PREFERRED_CIPHER_SUITES) {
+            if (supportedSet.contains(suite)) {
+                ordered.add(suite);
+            }
+        }
+        ordered.addAll(Arrays.asList(defaults));
+        List<String> result = new ArrayList<>(ordered);
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static SSLContext newInitializedContext() throws KeyManagementException, NoSuchAlgorithmException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        return context;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * SSLContext.getSocketFactory() is final, so the only supported way to hand out our
+     * factory is an SSLContext built around an SPI that returns it
+     */
+    private static class SharedSSLContext extends SSLContext {
+        SharedSSLContext(SSLContextSpi spi, SSLContext delegate) {
+            super(spi, delegate.getProvider(), delegate.getProtocol());
+        }
+    }
+
+    private static class FactoryContextSpi extends SSLContextSpi {
+        private final SSLContext delegate;
+        private final TLSSocketFactory socketFactory;
+
+        FactoryContextSpi(SSLContext delegate, TLSSocketFactory socketFactory) {
+            this.delegate = delegate;
+            this.socketFactory = socketFactory;
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom random)
+                throws KeyManagementException {
+            // Already initialised; re-initialising would throw away the session cache
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return socketFactory;
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return delegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return delegate.createSSLEngine();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return delegate.createSSLEngine(host, port);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return delegate.getClientSessionContext();
+        }
+    }
 }
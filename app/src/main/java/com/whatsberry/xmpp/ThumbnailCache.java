@@ -0,0 +1,522 @@
+package com.whatsberry.xmpp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Thumbnail Cache
+ * Small previews for image and video bubbles, kept in memory and as compact JPEGs on disk.
+ * Previews come from the full file when it is already in MediaCache, otherwise from the
+ * EXIF thumbnail in the first few KB of the image, a single video frame, or (for small
+ * images only) a download through MediaCache so opening the image later is free.
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    private static final int THUMB_MAX_EDGE = 320;                  // Pixels, longest side
+    private static final int JPEG_QUALITY = 75;
+    private static final long MAX_DISK_SIZE = 10L * 1024 * 1024;    // 10 MB of thumbnails
+    private static final long MAX_MEMORY_SIZE = 4L * 1024 * 1024;   // 4 MB of decoded bitmaps
+    private static final int EXIF_PROBE_BYTES = 64 * 1024;          // EXIF lives in the first APP1 segment
+    private static final long MAX_DERIVE_BYTES = 1024 * 1024;       // Don't download bigger images just for a preview
+    private static final int LOADER_THREADS = 2;
+    private static final int TIMEOUT_MS = 15000;
+    private static final int MAX_FAILURES = 256;                    // URLs remembered as having no preview
+    private static final long RETRY_AFTER_MS = 10 * 60 * 1000;      // Before such a URL is tried again
+
+    private static ThumbnailCache instance;
+
+    private final Context context;
+    private final File directory;
+    private final Handler mainHandler;
+    private final ExecutorService executor;
+
+    // Access-ordered so eviction drops the least recently shown thumbnail
+    private final LinkedHashMap<String, Bitmap> memoryCache = new LinkedHashMap<>(16, 0.75f, true);
+    private final long memoryBudget;
+    private long memoryBytes = 0;
+    private long diskSize = -1;
+
+    // URL -> elapsedRealtime after which a failed preview is tried again, oldest first
+    private final LinkedHashMap<String, Long> failures = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_FAILURES;
+        }
+    };
+
+    // Pending request per ImageView (main thread only)
+    private final Map<ImageView, Request> activeRequests = new WeakHashMap<>();
+
+    private ThumbnailCache(Context context) {
+        this.context = context.getApplicationContext();
+        File mediaDir = MediaCache.getInstance(context).getDirectory();
+        this.directory = new File(mediaDir.getParentFile(), "thumbs");
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create thumbnail directory: " + directory);
+        }
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.executor = Executors.newFixedThreadPool(LOADER_THREADS);
+        this.memoryBudget = Math.min(MAX_MEMORY_SIZE, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailCache(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Bind the thumbnail for a media URL into an ImageView (call from the main thread)
+     * Any earlier request for the same view is cancelled, so recycled list rows never
+     * show a thumbnail that belongs to a different message.
+     */
+    public void bind(ImageView view, String url, boolean isVideo) {
+        cancel(view);
+
+        Bitmap cached = getFromMemory(url);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            view.setVisibility(View.VISIBLE);
+            return;
+        }
+
+        view.setImageDrawable(null);
+        view.setVisibility(View.GONE);
+
+        // No probe, frame grab or download again for a URL that just failed while scrolling
+        if (recentlyFailed(url)) {
+            return;
+        }
+
+        Request request = new Request(url, isVideo, view);
+        activeRequests.put(view, request);
+        request.future = executor.submit(request);
+    }
+
+    /**
+     * Cancel any pending thumbnail for a view (row recycled for a non-media message)
+     */
+    public void cancel(ImageView view) {
+        Request request = activeRequests.remove(view);
+        if (request != null) {
+            request.cancelled = true;
+            request.future.cancel(false);
+        }
+    }
+
+    // ===== Memory cache =====
+
+    private synchronized Bitmap getFromMemory(String url) {
+        return memoryCache.get(url);
+    }
+
+    private synchronized void putInMemory(String url, Bitmap bitmap) {
+        Bitmap previous = memoryCache.put(url, bitmap);
+        if (previous != null) {
+            memoryBytes -= previous.getByteCount();
+        }
+        memoryBytes += bitmap.getByteCount();
+
+        // Evicted bitmaps may still be on screen, so leave them to the GC instead of recycling
+        Iterator<Map.Entry<String, Bitmap>> it = memoryCache.entrySet().iterator();
+        while (memoryBytes > memoryBudget && it.hasNext()) {
+            Map.Entry<String, Bitmap> eldest = it.next();
+            if (eldest.getKey().equals(url)) {
+                break;
+            }
+            memoryBytes -= eldest.getValue().getByteCount();
+            it.remove();
+        }
+    }
+
+    // ===== Failures =====
+
+    private synchronized boolean recentlyFailed(String url) {
+        Long retryAt = failures.get(url);
+        if (retryAt == null) {
+            return false;
+        }
+        if (SystemClock.elapsedRealtime() >= retryAt) {
+            failures.remove(url);
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void recordFailure(String url) {
+        failures.remove(url); // Re-insert as the newest entry
+        failures.put(url, SystemClock.elapsedRealtime() + RETRY_AFTER_MS);
+    }
+
+    // ===== Disk cache =====
+
+    private File thumbFile(String url) {
+        return new File(directory, MediaCache.keyFor(url) + ".jpg");
+    }
+
+    private Bitmap loadFromDisk(String url) {
+        File file = thumbFile(url);
+        if (!file.exists()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (bitmap == null) {
+            file.delete();
+            return null;
+        }
+        // lastModified doubles as the disk LRU timestamp
+        file.setLastModified(System.currentTimeMillis());
+        return bitmap;
+    }
+
+    private void saveToDisk(String url, Bitmap bitmap) {
+        File file = thumbFile(url);
+        File tmp = new File(directory, file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+            trimDisk(file.length());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store thumbnail: " + e.getMessage());
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Account for a newly written file and delete the oldest thumbnails if over budget
+     */
+    private synchronized void trimDisk(long added) {
+        if (diskSize < 0) {
+            diskSize = 0;
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    diskSize += f.length();
+                }
+            }
+        } else {
+            diskSize += added;
+        }
+
+        if (diskSize <= MAX_DISK_SIZE) {
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        // Trim to 90% so we don't rescan the directory on every new thumbnail
+        long target = MAX_DISK_SIZE * 9 / 10;
+        for (File f : files) {
+            if (diskSize <= target) {
+                break;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                diskSize -= length;
+            }
+        }
+        Log.d(TAG, "Trimmed thumbnail cache to " + diskSize + " bytes");
+    }
+
+    // ===== Thumbnail sources =====
+
+    private Bitmap createThumbnail(String url, boolean isVideo, Request request) {
+        MediaCache mediaCache = MediaCache.getInstance(context);
+        File local = mediaCache.getCachedFile(url);
+
+        if (isVideo) {
+            return scaleToFit(extractVideoFrame(local != null ? local.getAbsolutePath() : url));
+        }
+
+        if (local == null) {
+            ProbeResult probe = probeEmbeddedThumbnail(url);
+            if (probe.thumbnail != null) {
+                return scaleToFit(probe.thumbnail);
+            }
+            if (request.cancelled) {
+                return null;
+            }
+            if (probe.totalLength > MAX_DERIVE_BYTES) {
+                Log.d(TAG, "No embedded thumbnail and image too large to fetch (" + probe.totalLength + " bytes)");
+                return null;
+            }
+            try {
+                local = mediaCache.get(url);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not download image for thumbnail: " + e.getMessage());
+                return null;
+            }
+        }
+
+        BitmapDecoder.SampledBitmap sampled = BitmapDecoder.decodeSampledBitmap(
+                local.getAbsolutePath(), THUMB_MAX_EDGE, THUMB_MAX_EDGE, Bitmap.Config.RGB_565);
+        return sampled != null ? scaleToFit(sampled.bitmap) : null;
+    }
+
+    /**
+     * Grab one frame; MediaMetadataRetriever only reads what it needs from a remote URL
+     */
+    private Bitmap extractVideoFrame(String source) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            if (source.startsWith("http")) {
+                retriever.setDataSource(source, new HashMap<String, String>());
+            } else {
+                retriever.setDataSource(source);
+            }
+            return retriever.getFrameAtTime();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not extract video frame: " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    private static class ProbeResult {
+        Bitmap thumbnail;
+        long totalLength = -1; // -1 if the server did not say
+    }
+
+    /**
+     * Fetch only the head of a JPEG and decode its embedded EXIF thumbnail (camera photos have one)
+     */
+    private ProbeResult probeEmbeddedThumbnail(String url) {
+        ProbeResult result = new ProbeResult();
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestProperty("Range", "bytes=0-" + (EXIF_PROBE_BYTES - 1));
+
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                // Content-Range: bytes 0-65535/1234567
+                String range = connection.getHeaderField("Content-Range");
+                if (range != null && range.lastIndexOf('/') >= 0) {
+                    try {
+                        result.totalLength = Long.parseLong(range.substring(range.lastIndexOf('/') + 1).trim());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // Range not supported - read the head and drop the connection
+                result.totalLength = connection.getContentLength();
+            } else {
+                return result;
+            }
+
+            byte[] head = new byte[EXIF_PROBE_BYTES];
+            int length = 0;
+            InputStream in = connection.getInputStream();
+            try {
+                int read;
+                while (length < head.length && (read = in.read(head, length, head.length - length)) != -1) {
+                    length += read;
+                }
+            } finally {
+                in.close();
+            }
+
+            result.thumbnail = findExifThumbnail(head, length);
+        } catch (IOException e) {
+            Log.w(TAG, "Thumbnail probe failed: " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Walk the JPEG marker segments and decode the JPEG embedded in the EXIF (APP1) block
+     */
+    static Bitmap findExifThumbnail(byte[] data, int length) {
+        if (length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+            return null; // Not a JPEG
+        }
+
+        int pos = 2;
+        while (pos + 4 <= length) {
+            if ((data[pos] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = data[pos + 1] & 0xFF;
+            if (marker == 0xDA || marker == 0xD9) {
+                return null; // Image data starts, no more metadata
+            }
+            int segmentLength = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            int segmentStart = pos + 4;
+            int segmentEnd = pos + 2 + segmentLength;
+            if (segmentLength < 2 || segmentEnd > length) {
+                return null; // Truncated inside our probe window
+            }
+
+            if (marker == 0xE1 && segmentLength > 8 &&
+                    data[segmentStart] == 'E' && data[segmentStart + 1] == 'x' &&
+                    data[segmentStart + 2] == 'i' && data[segmentStart + 3] == 'f') {
+                int soi = -1;
+                for (int i = segmentStart + 6; i + 1 < segmentEnd; i++) {
+                    if ((data[i] & 0xFF) == 0xFF && (data[i + 1] & 0xFF) == 0xD8) {
+                        soi = i;
+                        break;
+                    }
+                }
+                int eoi = -1;
+                for (int i = segmentEnd - 2; i > soi && soi >= 0; i--) {
+                    if ((data[i] & 0xFF) == 0xFF && (data[i + 1] & 0xFF) == 0xD9) {
+                        eoi = i + 2;
+                        break;
+                    }
+                }
+                if (soi >= 0 && eoi > soi) {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inPreferredConfig = Bitmap.Config.RGB_565;
+                    return BitmapFactory.decodeByteArray(data, soi, eoi - soi, options);
+                }
+                return null;
+            }
+
+            pos = segmentEnd;
+        }
+        return null;
+    }
+
+    private static Bitmap scaleToFit(Bitmap source) {
+        if (source == null) {
+            return null;
+        }
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int longest = Math.max(width, height);
+        if (longest <= THUMB_MAX_EDGE) {
+            return source;
+        }
+        float ratio = (float) THUMB_MAX_EDGE / longest;
+        Bitmap scaled = Bitmap.createScaledBitmap(source,
+                Math.max(1, Math.round(width * ratio)), Math.max(1, Math.round(height * ratio)), true);
+        if (scaled != source) {
+            source.recycle();
+        }
+        return scaled;
+    }
+
+    // ===== Loader =====
+
+    private class Request implements Runnable {
+        final String url;
+        final boolean isVideo;
+        final WeakReference<ImageView> viewRef;
+        volatile boolean cancelled = false;
+        Future<?> future;
+
+        Request(String url, boolean isVideo, ImageView view) {
+            this.url = url;
+            this.isVideo = isVideo;
+            this.viewRef = new WeakReference<>(view);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+
+            Bitmap bitmap = loadFromDisk(url);
+            if (bitmap == null && !cancelled) {
+                try {
+                    bitmap = createThumbnail(url, isVideo, this);
+                    // A cancelled request may have stopped early, that says nothing about the URL
+                    if (bitmap == null && !cancelled) {
+                        recordFailure(url);
+                    }
+                } catch (OutOfMemoryError e) {
+                    Log.w(TAG, "OOM creating thumbnail for " + url);
+                }
+                if (bitmap != null) {
+                    saveToDisk(url, bitmap);
+                }
+            }
+
+            if (bitmap == null) {
+                return;
+            }
+            putInMemory(url, bitmap);
+
+            final Bitmap result = bitmap;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ImageView view = viewRef.get();
+                    // Only bind if this view still wants this URL
+                    if (cancelled || view == null || activeRequests.get(view) != Request.this) {
+                        return;
+                    }
+                    activeRequests.remove(view);
+                    view.setImageBitmap(result);
+                    view.setVisibility(View.VISIBLE);
+                }
+            });
+        }
+    }
+}
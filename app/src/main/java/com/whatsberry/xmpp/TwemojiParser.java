@@ -20,21 +20,7 @@ import java.util.List;
 public class TwemojiParser {
     private static final String TAG = "TwemojiParser";
     private static final String TWEMOJI_PATH = "twemoji/72x72/";
-
-    private static boolean isEmoji(int codePoint) {
-        return (codePoint >= 128512 && codePoint <= 128591) ||
-               (codePoint >= 127744 && codePoint <= 128511) ||
-               (codePoint >= 128640 && codePoint <= 128767) ||
-               (codePoint >= 127462 && codePoint <= 127487) ||
-               (codePoint >= 9728 && codePoint <= 9983) ||
-               (codePoint >= 9984 && codePoint <= 10175) ||
-               (codePoint >= 65024 && codePoint <= 65039) ||
-               (codePoint >= 129280 && codePoint <= 129535) ||
-               (codePoint >= 129536 && codePoint <= 129647) ||
-               (codePoint >= 129648 && codePoint <= 129791) ||
-               codePoint == 8205 ||
-               (codePoint >= 126980 && codePoint <= 127183);
-    }
+    private static final Metrics.Histogram PARSE_TIME = Metrics.histogram("emoji.parse");
 
     /**
      * Parse text and replace emoji characters with Twemoji images
@@ -43,24 +29,24 @@ public class TwemojiParser {
         if (text == null || text.isEmpty()) {
             return text;
         }
+        long start = Metrics.now();
+        int i = EmojiCodePoints.nextEmoji(text, 0);
+        if (i < 0) {
+            // Most messages: no spans needed, the plain string is cheaper to lay out
+            PARSE_TIME.recordSince(start);
+            return text;
+        }
         SpannableStringBuilder builder = new SpannableStringBuilder(text);
-        int length = builder.length();
-        int i = 0;
-        while (i < length) {
-            int codePoint = Character.codePointAt(builder, i);
-            if (isEmoji(codePoint)) {
-                int charCount = Character.charCount(codePoint);
-                Drawable emojiDrawable = getEmojiDrawable(context, codePoint);
-                if (emojiDrawable != null) {
-                    builder.setSpan(new ImageSpan(emojiDrawable, ImageSpan.ALIGN_BASELINE), i, i + charCount, 33);
-                }
-                if (charCount == 2) {
-                    i++;
-                    length--;
-                }
+        while (i >= 0) {
+            int codePoint = text.codePointAt(i);
+            int charCount = Character.charCount(codePoint);
+            Drawable emojiDrawable = getEmojiDrawable(context, codePoint);
+            if (emojiDrawable != null) {
+                builder.setSpan(new ImageSpan(emojiDrawable, ImageSpan.ALIGN_BASELINE), i, i + charCount, 33);
             }
-            i++;
+            i = EmojiCodePoints.nextEmoji(text, i + charCount);
         }
+        PARSE_TIME.recordSince(start);
         return builder;
     }
 
@@ -68,7 +54,7 @@ public class TwemojiParser {
      * Get emoji drawable from code point
      */
     public static Drawable getEmojiDrawable(Context context, int codePoint) {
-        String filename = getEmojiFilename(codePoint);
+        String filename = EmojiCodePoints.assetName(codePoint);
         try {
             InputStream is = context.getAssets().open(TWEMOJI_PATH + filename);
             Bitmap bitmap = BitmapFactory.decodeStream(is);
@@ -98,13 +84,6 @@ public class TwemojiParser {
         return getEmojiDrawable(context, emoji.codePointAt(0));
     }
 
-    /**
-     * Convert code point to filename (e.g., 128512 -> "1f600.png")
-     */
-    private static String getEmojiFilename(int codePoint) {
-        return String.format("%x.png", codePoint).toLowerCase();
-    }
-
     /**
      * Get emoji size for picker grid
      */
@@ -131,7 +110,7 @@ public class TwemojiParser {
         if (emoji == null || emoji.isEmpty()) {
             return false;
         }
-        String filename = getEmojiFilename(emoji.codePointAt(0));
+        String filename = EmojiCodePoints.assetName(emoji.codePointAt(0));
         try {
             String[] list = context.getAssets().list(TWEMOJI_PATH);
             if (list != null) {
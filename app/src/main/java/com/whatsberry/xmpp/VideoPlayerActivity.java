@@ -11,6 +11,9 @@ import android.widget.ProgressBar;
 import android.widget.Toast;
 import android.widget.VideoView;
 
+import java.io.File;
+import java.io.IOException;
+
 public class VideoPlayerActivity extends Activity {
     private static final String TAG = "VideoPlayerActivity";
     private VideoView videoView;
@@ -39,9 +42,6 @@ public class VideoPlayerActivity extends Activity {
         mediaController.setAnchorView(videoView);
         videoView.setMediaController(mediaController);
 
-        // Set video URI
-        videoView.setVideoURI(Uri.parse(videoUrl));
-
         // Listeners
         videoView.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
             @Override
@@ -70,6 +70,20 @@ public class VideoPlayerActivity extends Activity {
         });
 
         progressBar.setVisibility(View.VISIBLE);
+
+        // Play from the cache if we have it; otherwise stream through the proxy, which fills
+        // the cache with the same download so playback starts with the first bytes
+        File cached = MediaCache.getInstance(this).getCachedFile(videoUrl);
+        if (cached != null) {
+            videoView.setVideoPath(cached.getAbsolutePath());
+            return;
+        }
+        try {
+            videoView.setVideoURI(Uri.parse(AudioStreamProxy.getInstance(this).getProxyUrl(videoUrl)));
+        } catch (IOException e) {
+            Log.w(TAG, "Proxy unavailable, streaming uncached: " + e.getMessage());
+            videoView.setVideoURI(Uri.parse(videoUrl));
+        }
     }
 
     @Override
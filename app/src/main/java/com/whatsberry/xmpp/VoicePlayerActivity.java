@@ -11,6 +11,8 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Locale;
 
 public class VoicePlayerActivity extends Activity {
@@ -74,9 +76,43 @@ public class VoicePlayerActivity extends Activity {
     }
 
     private void prepareAudio(String url) {
+        playPauseButton.setEnabled(false);
+
+        // Cached copy plays straight from disk
+        File cached = MediaCache.getInstance(this).getCachedFile(url);
+        if (cached != null) {
+            preparePlayer(cached.getAbsolutePath());
+            return;
+        }
+
+        // Otherwise stream through the local proxy: playback starts after the first
+        // few KB and the file lands in the cache for next time
+        try {
+            preparePlayer(AudioStreamProxy.getInstance(this).getProxyUrl(url));
+        } catch (IOException e) {
+            Log.e(TAG, "Stream proxy unavailable, downloading first", e);
+            MediaCache.getInstance(this).fetch(url, new MediaCache.CacheCallback() {
+                @Override
+                public void onFileReady(File file) {
+                    if (isFinishing()) {
+                        return;
+                    }
+                    preparePlayer(file.getAbsolutePath());
+                }
+
+                @Override
+                public void onFileError(String error) {
+                    Log.e(TAG, "Error downloading audio: " + error);
+                    Toast.makeText(VoicePlayerActivity.this, "Error: " + error, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+    }
+
+    private void preparePlayer(String dataSource) {
         try {
             mediaPlayer = new MediaPlayer();
-            mediaPlayer.setDataSource(url);
+            mediaPlayer.setDataSource(dataSource);
 
             mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
                 @Override
@@ -107,7 +143,6 @@ public class VoicePlayerActivity extends Activity {
             });
 
             mediaPlayer.prepareAsync();
-            playPauseButton.setEnabled(false);
 
         } catch (Exception e) {
             Log.e(TAG, "Error preparing audio", e);
@@ -4,12 +4,14 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import org.jivesoftware.smack.packet.IQ;
-import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.StanzaFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smackx.commands.AdHocCommand;
 import org.jivesoftware.smackx.commands.AdHocCommandManager;
 import org.jivesoftware.smackx.commands.RemoteCommand;
-import org.jivesoftware.smackx.disco.ServiceDiscoveryManager;
 import org.jivesoftware.smackx.disco.packet.DiscoverItems;
 import org.jivesoftware.smackx.xdata.Form;
 import org.jivesoftware.smackx.xdata.FormField;
@@ -26,7 +28,10 @@ public class WhatsAppManager {
     private static WhatsAppManager instance;
     private XMPPManager xmppManager;
     private Handler mainHandler;
-    private String gatewayJid = "whatsapp.localhost"; // Default gateway
+    private volatile String gatewayJid = "whatsapp.localhost"; // Default gateway
+
+    private static final int MAX_FORM_STAGES = 3;         // Register form, then Preferences
+    private static final long REPLY_TIMEOUT_MS = 30000;   // Upper bound only, replies end the wait
 
     private WhatsAppManager() {
         mainHandler = new Handler(Looper.getMainLooper());
@@ -45,6 +50,23 @@ public class WhatsAppManager {
      */
     public void setGatewayJid(String jid) {
         this.gatewayJid = jid;
+        GatewayCommandCache.getInstance().invalidate();
+    }
+
+    /**
+     * New session: warm the command cache so pairing doesn't start with disco round trips
+     */
+    public void onAuthenticated(final XMPPConnection connection) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                GatewayCommandCache.getInstance().prefetch(connection, gatewayJid);
+            }
+        }).start();
+    }
+
+    public void onDisconnected() {
+        GatewayCommandCache.getInstance().invalidate();
     }
 
     /**
@@ -58,43 +80,18 @@ public class WhatsAppManager {
                 try {
                     Log.d(TAG, "Registering via message to: " + gatewayJid);
 
-                    // Send "register" message
-                    xmppManager.sendMessage(gatewayJid, "register", new XMPPManager.MessageCallback() {
-                        @Override
-                        public void onMessageReceived(String from, String message, boolean isSent) {
-                            Log.d(TAG, "Response from gateway: " + message);
-                        }
-
-                        @Override
-                        public void onMessageSent() {
-                            Log.d(TAG, "Register message sent");
-                        }
-
-                        @Override
-                        public void onMessageError(String error) {
-                            Log.e(TAG, "Failed to send register message: " + error);
-                        }
-                    });
-
-                    // Wait for response (slidge should auto-respond)
-                    Thread.sleep(3000);
-
-                    mainHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            callback.onRegistrationSuccess();
-                        }
-                    });
+                    // Done as soon as slidge answers, not after a fixed delay
+                    String reply = sendAndAwaitReply("register");
+                    if (reply == null) {
+                        notifyError(callback, "No response from " + gatewayJid);
+                        return;
+                    }
+                    Log.d(TAG, "Response from gateway: " + reply);
+                    notifyRegistrationSuccess(callback);
 
                 } catch (Exception e) {
                     Log.e(TAG, "Registration via message failed", e);
-                    final String error = e.getMessage();
-                    mainHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            callback.onRegistrationError(error);
-                        }
-                    });
+                    notifyError(callback, e.getMessage());
                 }
             }
         }).start();
@@ -111,46 +108,18 @@ public class WhatsAppManager {
                 try {
                     Log.d(TAG, "Requesting QR via message to: " + gatewayJid);
 
-                    // Send "pair" message
-                    xmppManager.sendMessage(gatewayJid, "pair", new XMPPManager.MessageCallback() {
-                        @Override
-                        public void onMessageReceived(String from, String message, boolean isSent) {
-                            Log.d(TAG, "Response from gateway: " + message);
-                        }
-
-                        @Override
-                        public void onMessageSent() {
-                            Log.d(TAG, "Pair message sent");
-                        }
-
-                        @Override
-                        public void onMessageError(String error) {
-                            Log.e(TAG, "Failed to send pair message: " + error);
-                        }
-                    });
-
-                    // Wait for response with QR code
-                    // The QR should come in the next message from gateway
-                    Thread.sleep(5000);
-
-                    // For now, notify that message was sent
-                    // Real QR will come via message listener
-                    mainHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            callback.onQRCodeReceived("Check messages from " + gatewayJid);
-                        }
-                    });
+                    String reply = sendAndAwaitReply("pair");
+                    if (reply == null) {
+                        notifyQRError(callback, "No response from " + gatewayJid);
+                        return;
+                    }
+                    // The QR itself may follow in further messages, handled by the message listener
+                    Log.d(TAG, "Response from gateway: " + reply);
+                    notifyQRReceived(callback, "Check messages from " + gatewayJid);
 
                 } catch (Exception e) {
                     Log.e(TAG, "QR request via message failed", e);
-                    final String error = e.getMessage();
-                    mainHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            callback.onQRCodeError(error);
-                        }
-                    });
+                    notifyQRError(callback, e.getMessage());
                 }
             }
         }).start();
@@ -171,67 +140,37 @@ public class WhatsAppManager {
 
                     Log.d(TAG, "Registering with WhatsApp gateway: " + gatewayJid);
 
-                    // Execute Register command
-                    AdHocCommandManager manager = AdHocCommandManager.getAddHocCommandsManager(
-                            xmppManager.getConnection());
-
-                    // Discover available commands
-                    DiscoverItems items = manager.discoverCommands(gatewayJid);
-
-                    RemoteCommand registerCommand = null;
-                    for (DiscoverItems.Item item : items.getItems()) {
-                        Log.d(TAG, "Available command: " + item.getNode() + " - " + item.getName());
-                        String node = item.getNode();
-                        String name = item.getName().toLowerCase();
-
-                        // Look for register command (jabber:iq:register or contains "register")
-                        if (node.equals("jabber:iq:register") || node.contains("register") || name.contains("register")) {
-                            registerCommand = manager.getRemoteCommand(gatewayJid, node);
-                            Log.d(TAG, "Found register command: " + node);
-                            break;
-                        }
-                    }
-
+                    RemoteCommand registerCommand = findCommand(GatewayCommandCache.Action.REGISTER);
                     if (registerCommand == null) {
                         notifyError(callback, "Register command not found");
                         return;
                     }
 
-                    // Execute register command
+                    // Each execute/complete returns with the gateway's response, so walk the
+                    // forms (registration, then Preferences) as they come back
                     registerCommand.execute();
-
-                    // Check if form needs to be completed
                     Form form = registerCommand.getForm();
-                    if (form != null && registerCommand.getStatus() == AdHocCommand.Status.executing) {
-                        Log.d(TAG, "Registration returned a form, completing it...");
-
-                        // Submit the form with default values to complete registration
-                        Form answerForm = form.createAnswerForm();
-
-                        // Complete the command with the answered form
-                        registerCommand.complete(answerForm);
-
-                        // After completing, check if there's ANOTHER form (Preferences)
-                        Thread.sleep(500);
+                    int stages = 0;
+                    while (form != null && registerCommand.getStatus() == AdHocCommand.Status.executing
+                            && stages < MAX_FORM_STAGES) {
+                        Log.d(TAG, "Completing gateway form \"" + form.getTitle() + "\" with defaults");
+                        registerCommand.complete(form.createAnswerForm());
                         form = registerCommand.getForm();
-                        if (form != null && "Preferences".equals(form.getTitle())) {
-                            Log.d(TAG, "Received Preferences form, completing it with defaults...");
-
-                            // Create answer form with default values
-                            answerForm = form.createAnswerForm();
-
-                            // Complete the Preferences form
-                            registerCommand.complete(answerForm);
-                        }
+                        stages++;
                     }
 
-                    // Wait a bit for registration to complete on server
-                    Thread.sleep(1000);
+                    if (registerCommand.getStatus() == AdHocCommand.Status.canceled) {
+                        notifyError(callback, "Registration canceled by gateway");
+                        return;
+                    }
 
+                    // Registered users get a different command set (pair, login, ...)
+                    GatewayCommandCache.getInstance().invalidate();
                     notifyRegistrationSuccess(callback);
 
                 } catch (Exception e) {
                     Log.e(TAG, "Registration error", e);
+                    GatewayCommandCache.getInstance().invalidate();
                     notifyError(callback, "Registration failed: " + e.getMessage());
                 }
             }
@@ -253,26 +192,7 @@ public class WhatsAppManager {
 
                     Log.d(TAG, "Requesting QR code from gateway");
 
-                    AdHocCommandManager manager = AdHocCommandManager.getAddHocCommandsManager(
-                            xmppManager.getConnection());
-
-                    // Discover commands
-                    DiscoverItems items = manager.discoverCommands(gatewayJid);
-
-                    RemoteCommand pairCommand = null;
-                    for (DiscoverItems.Item item : items.getItems()) {
-                        Log.d(TAG, "Command: " + item.getNode() + " - " + item.getName());
-                        String node = item.getNode();
-                        String name = item.getName().toLowerCase();
-
-                        // Look for pair command (wa_pair_phone or contains "pair")
-                        if (node.equals("wa_pair_phone") || node.contains("pair") || name.contains("pair")) {
-                            pairCommand = manager.getRemoteCommand(gatewayJid, node);
-                            Log.d(TAG, "Found pair command: " + node);
-                            break;
-                        }
-                    }
-
+                    RemoteCommand pairCommand = findCommand(GatewayCommandCache.Action.PAIR);
                     if (pairCommand == null) {
                         notifyQRError(callback, "PairPhone command not found");
                         return;
@@ -315,6 +235,7 @@ public class WhatsAppManager {
 
                 } catch (Exception e) {
                     Log.e(TAG, "QR code error", e);
+                    GatewayCommandCache.getInstance().invalidate();
                     notifyQRError(callback, "Failed to get QR code: " + e.getMessage());
                 }
             }
@@ -336,19 +257,7 @@ public class WhatsAppManager {
 
                     Log.d(TAG, "Logging into WhatsApp");
 
-                    AdHocCommandManager manager = AdHocCommandManager.getAddHocCommandsManager(
-                            xmppManager.getConnection());
-
-                    DiscoverItems items = manager.discoverCommands(gatewayJid);
-
-                    RemoteCommand loginCommand = null;
-                    for (DiscoverItems.Item item : items.getItems()) {
-                        if (item.getNode().contains("login") || item.getName().toLowerCase().contains("login")) {
-                            loginCommand = manager.getRemoteCommand(gatewayJid, item.getNode());
-                            break;
-                        }
-                    }
-
+                    RemoteCommand loginCommand = findCommand(GatewayCommandCache.Action.LOGIN);
                     if (loginCommand == null) {
                         notifyLoginError(callback, "Login command not found");
                         return;
@@ -359,6 +268,7 @@ public class WhatsAppManager {
 
                 } catch (Exception e) {
                     Log.e(TAG, "WhatsApp login error", e);
+                    GatewayCommandCache.getInstance().invalidate();
                     notifyLoginError(callback, "Login failed: " + e.getMessage());
                 }
             }
@@ -378,27 +288,17 @@ public class WhatsAppManager {
                         return;
                     }
 
-                    AdHocCommandManager manager = AdHocCommandManager.getAddHocCommandsManager(
-                            xmppManager.getConnection());
-
-                    DiscoverItems items = manager.discoverCommands(gatewayJid);
-
-                    RemoteCommand logoutCommand = null;
-                    for (DiscoverItems.Item item : items.getItems()) {
-                        if (item.getNode().contains("logout") || item.getName().toLowerCase().contains("logout")) {
-                            logoutCommand = manager.getRemoteCommand(gatewayJid, item.getNode());
-                            break;
-                        }
-                    }
-
+                    RemoteCommand logoutCommand = findCommand(GatewayCommandCache.Action.LOGOUT);
                     if (logoutCommand != null) {
                         logoutCommand.execute();
                     }
+                    GatewayCommandCache.getInstance().invalidate();
 
                     notifyLogoutSuccess(callback);
 
                 } catch (Exception e) {
                     Log.e(TAG, "Logout error", e);
+                    GatewayCommandCache.getInstance().invalidate();
                     notifyLogoutError(callback, "Logout failed: " + e.getMessage());
                 }
             }
@@ -417,13 +317,11 @@ public class WhatsAppManager {
                         return;
                     }
 
-                    AdHocCommandManager manager = AdHocCommandManager.getAddHocCommandsManager(
-                            xmppManager.getConnection());
-
-                    DiscoverItems items = manager.discoverCommands(gatewayJid);
+                    List<DiscoverItems.Item> items = GatewayCommandCache.getInstance()
+                            .getItems(xmppManager.getConnection(), gatewayJid);
 
                     final StringBuilder commands = new StringBuilder();
-                    for (DiscoverItems.Item item : items.getItems()) {
+                    for (DiscoverItems.Item item : items) {
                         commands.append(item.getName()).append(" (").append(item.getNode()).append(")\n");
                     }
 
@@ -441,6 +339,72 @@ public class WhatsAppManager {
         }).start();
     }
 
+    /**
+     * Remote command for an action, resolved through the per-session cache
+     */
+    private RemoteCommand findCommand(GatewayCommandCache.Action action) throws Exception {
+        XMPPConnection connection = xmppManager.getConnection();
+        String node = GatewayCommandCache.getInstance().getNode(connection, gatewayJid, action);
+        if (node == null) {
+            return null;
+        }
+        Log.d(TAG, "Using " + action + " command: " + node);
+        return AdHocCommandManager.getAddHocCommandsManager(connection).getRemoteCommand(gatewayJid, node);
+    }
+
+    /**
+     * Send a text command to the gateway and block until its first reply (or the timeout)
+     * @return reply body, null on timeout
+     */
+    private String sendAndAwaitReply(final String command) throws Exception {
+        final String gateway = gatewayJid;
+        XMPPConnection connection = xmppManager.getConnection();
+        if (connection == null) {
+            throw new IllegalStateException("Not connected");
+        }
+        // Collector first, so a fast reply can't slip past between send and wait
+        PacketCollector replies = connection.createPacketCollector(new StanzaFilter() {
+            @Override
+            public boolean accept(Stanza stanza) {
+                if (!(stanza instanceof Message) || ((Message) stanza).getBody() == null
+                        || stanza.getFrom() == null) {
+                    return false;
+                }
+                String from = stanza.getFrom();
+                int slash = from.indexOf('/');
+                return gateway.equals(slash >= 0 ? from.substring(0, slash) : from);
+            }
+        });
+
+        try {
+            final String[] sendError = new String[1];
+            xmppManager.sendMessage(gateway, command, new XMPPManager.MessageCallback() {
+                @Override
+                public void onMessageReceived(String from, String message, MessageContent content, boolean isSent) {
+                }
+
+                @Override
+                public void onMessageSent() {
+                    Log.d(TAG, "Sent \"" + command + "\" to gateway");
+                }
+
+                @Override
+                public void onMessageError(String error) {
+                    Log.e(TAG, "Failed to send " + command + ": " + error);
+                    sendError[0] = error;
+                }
+            });
+
+            Message reply = (Message) replies.nextResult(REPLY_TIMEOUT_MS);
+            if (reply == null && sendError[0] != null) {
+                throw new IllegalStateException(sendError[0]);
+            }
+            return reply != null ? reply.getBody() : null;
+        } finally {
+            replies.cancel();
+        }
+    }
+
     // Notification helpers
     private void notifyRegistrationSuccess(final RegistrationCallback callback) {
         if (callback != null) {
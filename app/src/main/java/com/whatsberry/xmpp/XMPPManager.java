@@ -18,8 +18,6 @@ import org.jivesoftware.smack.chat.ChatManagerListener;
 import org.jivesoftware.smack.chat.ChatMessageListener;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Presence;
-import org.jivesoftware.smack.roster.Roster;
-import org.jivesoftware.smack.roster.RosterEntry;
 import org.jivesoftware.smack.tcp.XMPPTCPConnection;
 import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
 import org.jivesoftware.smackx.carbons.CarbonManager;
@@ -27,15 +25,10 @@ import org.jivesoftware.smackx.carbons.packet.CarbonExtension;
 import org.jivesoftware.smackx.chatstates.ChatState;
 import org.jivesoftware.smackx.chatstates.ChatStateManager;
 import org.jivesoftware.smackx.chatstates.ChatStateListener;
-import org.jivesoftware.smackx.ping.PingManager;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.security.NoSuchAlgorithmException;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -48,13 +41,29 @@ public class XMPPManager {
     private static final String TAG = "XMPPManager";
 
     private static XMPPManager instance;
-    private AbstractXMPPConnection connection;
+    private volatile AbstractXMPPConnection connection;
     private ChatManager chatManager;
     private ChatStateManager chatStateManager;
     private Handler mainHandler;
     private java.util.Set<String> chatsWithListeners = new java.util.HashSet<>();
-    private java.util.Set<String> recentMessages = new java.util.HashSet<>();
-    private Handler cleanupHandler = new Handler(Looper.getMainLooper());
+    private final ReceivePipeline receivePipeline;
+
+    // Outbound chat states: at most one change per contact per interval, duplicates dropped
+    private static final long TYPING_MIN_INTERVAL_MS = 2000;
+    private final Map<String, Boolean> typingSent = new HashMap<>();     // Last state on the wire
+    private final Map<String, Boolean> typingWanted = new HashMap<>();   // Latest state asked for
+    private final Map<String, Long> typingSentAt = new HashMap<>();
+    private final java.util.Set<String> typingFlushScheduled = new java.util.HashSet<>();
+
+    // Carbons and retractions; incoming chat messages are timed by ReceivePipeline (msg.*)
+    private static final Metrics.Counter CARBONS_RECEIVED = Metrics.counter("carbon.received");
+    private static final Metrics.Histogram CARBON_TO_STORED = Metrics.histogram("carbon.receive_to_stored");
+    private static final Metrics.Counter RETRACTS_RECEIVED = Metrics.counter("retract.received");
+    private static final Metrics.Counter RETRACTS_UNKNOWN = Metrics.counter("retract.unknown");
+    private static final Metrics.Histogram RETRACT_TO_APPLIED = Metrics.histogram("retract.receive_to_applied");
+
+    // Inbound chat states, merged per contact within one frame before reaching the UI
+    private final EventCoalescer<Boolean> typingEvents;
 
     // Callbacks
     private ConnectionCallback connectionCallback;
@@ -63,11 +72,35 @@ public class XMPPManager {
     private MessageRetractCallback messageRetractCallback;
 
     // Database for persistent storage
-    private DatabaseHelper databaseHelper;
+    private volatile DatabaseHelper databaseHelper; // Replaced by migrateDatabase
     private Context context;
 
     private XMPPManager() {
         mainHandler = new Handler(Looper.getMainLooper());
+        receivePipeline = new ReceivePipeline(new ReceivePipeline.Store() {
+            @Override
+            public void storeReceived(String from, String body, MessageContent content, String stanzaId) {
+                AppLog.d(TAG, "Received message with stanza ID: {}", stanzaId);
+                storeMessage(from, body, false, content, stanzaId);
+            }
+        }, new java.util.concurrent.Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        });
+        typingEvents = new EventCoalescer<>(mainHandler, EventCoalescer.FRAME_MS,
+                new EventCoalescer.Sink<Boolean>() {
+                    @Override
+                    public void onEvents(Map<String, Boolean> latest) {
+                        if (typingStateCallback == null) {
+                            return;
+                        }
+                        for (Map.Entry<String, Boolean> entry : latest.entrySet()) {
+                            typingStateCallback.onTypingStateChanged(entry.getKey(), entry.getValue());
+                        }
+                    }
+                });
     }
 
     /**
@@ -76,6 +109,7 @@ public class XMPPManager {
     public void initialize(Context context) {
         this.context = context.getApplicationContext();
         this.databaseHelper = new DatabaseHelper(this.context);
+        ClientStateManager.getInstance(this.context); // Starts following screen and activity state
     }
 
     public static synchronized XMPPManager getInstance() {
@@ -86,33 +120,16 @@ public class XMPPManager {
     }
 
     /**
-     * Create SSLContext that supports TLS 1.2 on Android API 18
-     * Uses custom TLSSocketFactory to enable TLS 1.2 on all sockets
+     * SSLContext that supports TLS 1.2 on Android API 18
+     * Process-wide, so reconnects resume the previous TLS session instead of a full handshake
      */
     private SSLContext getTLS12Context() {
+        if (context != null) {
+            TLSSocketFactory.setAllowTls10(context.getSharedPreferences("WhatsberryPrefs", Context.MODE_PRIVATE)
+                    .getBoolean(TLSSocketFactory.PREF_ALLOW_TLS10, false));
+        }
         try {
-            // Create custom TLSSocketFactory that enables TLS 1.2
-            TLSSocketFactory tlsSocketFactory = new TLSSocketFactory();
-
-            // Create SSLContext
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, null, null);
-
-            // Use reflection to replace the socket factory in the SSLContext
-            // This is a workaround because SSLContext.getSocketFactory() is final
-            try {
-                Field factoryField = sslContext.getClass().getDeclaredField("socketFactory");
-                factoryField.setAccessible(true);
-                factoryField.set(sslContext, tlsSocketFactory);
-                Log.d(TAG, "Successfully injected TLSSocketFactory into SSLContext");
-            } catch (Exception e) {
-                Log.w(TAG, "Could not inject TLSSocketFactory via reflection: " + e.getMessage());
-                // Reflection failed, but we'll still return the context
-                // It might work anyway depending on Smack's implementation
-            }
-
-            return sslContext;
-
+            return TLSSocketFactory.getSharedContext();
         } catch (Exception e) {
             Log.e(TAG, "Failed to create TLS context with custom socket factory", e);
             return null;
@@ -130,7 +147,7 @@ public class XMPPManager {
             @Override
             public void run() {
                 try {
-                    Log.d(TAG, "Connecting to " + server + ":" + port);
+                    AppLog.d(TAG, "Connecting to {}:{}", server, port);
 
                     XMPPTCPConnectionConfiguration.Builder configBuilder = XMPPTCPConnectionConfiguration.builder()
                             .setServiceName(domain)
@@ -140,55 +157,84 @@ public class XMPPManager {
                             .setCompressionEnabled(false) // Disable compression for BB10 compatibility
                             .setConnectTimeout(30000); // 30 second timeout
 
+                    SSLContext tlsContext = getTLS12Context();
+                    if (tlsContext != null) {
+                        configBuilder.setCustomSSLContext(tlsContext);
+                    }
+
                     // Port 5222 connects to custom Node.js STARTTLS proxy that:
                     // - Accepts plaintext XMPP initially
                     // - Intercepts STARTTLS and upgrades to TLS 1.0+ (any version BB10 supports)
                     // - Forwards decrypted traffic to Prosody on localhost:5200
-                    Log.d(TAG, "Connecting via STARTTLS proxy on port " + port);
+                    AppLog.d(TAG, "Connecting via STARTTLS proxy on port {}", port);
 
                     XMPPTCPConnectionConfiguration config = configBuilder.build();
 
-                    Log.d(TAG, "Connection config: server=" + server + ", port=" + port + ", domain=" + domain + ", timeout=30s, TLS=1.2");
+                    AppLog.d(TAG, "Connection config: server={}, port={}, domain={}, timeout=30s, TLS=1.2", server, port, domain);
+
+                    // Never leave an old socket open next to the new one
+                    AbstractXMPPConnection previous = connection;
+                    connection = null; // Its listener must not report this close as ours
+                    if (previous != null && previous.isConnected()) {
+                        AppLog.d(TAG, "Closing previous connection before reconnecting");
+                        previous.disconnect();
+                    }
 
-                    connection = new XMPPTCPConnection(config);
+                    final AbstractXMPPConnection newConnection = new XMPPTCPConnection(config);
+                    connection = newConnection;
 
-                    // Setup reconnection
-                    ReconnectionManager reconnectionManager = ReconnectionManager.getInstanceFor(connection);
-                    reconnectionManager.enableAutomaticReconnection();
+                    // Reconnects are driven by ConnectionStateMachine (backoff + network awareness)
+                    ReconnectionManager.getInstanceFor(connection).disableAutomaticReconnection();
 
                     // Add connection listener
                     connection.addConnectionListener(new ConnectionListener() {
                         @Override
                         public void connected(XMPPConnection connection) {
-                            Log.d(TAG, "Connected to XMPP server");
+                            AppLog.d(TAG, "Connected to XMPP server");
                         }
 
                         @Override
                         public void authenticated(XMPPConnection connection, boolean resumed) {
-                            Log.d(TAG, "Authenticated");
+                            AppLog.d(TAG, "Authenticated");
                             setupChatManager();
+                            ClientStateManager.getInstance(context).onAuthenticated(newConnection);
+                            startArchiveSync(newConnection);
+                            WhatsAppManager.getInstance().onAuthenticated(newConnection);
                         }
 
                         @Override
                         public void connectionClosed() {
-                            Log.d(TAG, "Connection closed");
+                            AppLog.d(TAG, "Connection closed");
+                            if (connection != newConnection) {
+                                return; // A replaced connection, nobody is listening for it
+                            }
+                            RosterCache.getInstance(context).onDisconnected();
+                            ClientStateManager.getInstance(context).onDisconnected();
+                            WhatsAppManager.getInstance().onDisconnected();
                             notifyDisconnected();
                         }
 
                         @Override
                         public void connectionClosedOnError(Exception e) {
                             Log.e(TAG, "Connection closed on error", e);
+                            if (connection != newConnection) {
+                                return;
+                            }
+                            KeepAliveManager.getInstance(context).onConnectionLost();
+                            RosterCache.getInstance(context).onDisconnected();
+                            ClientStateManager.getInstance(context).onDisconnected();
+                            WhatsAppManager.getInstance().onDisconnected();
                             notifyConnectionError(e.getMessage());
                         }
 
                         @Override
                         public void reconnectionSuccessful() {
-                            Log.d(TAG, "Reconnection successful");
+                            AppLog.d(TAG, "Reconnection successful");
                         }
 
                         @Override
                         public void reconnectingIn(int seconds) {
-                            Log.d(TAG, "Reconnecting in " + seconds + " seconds");
+                            AppLog.d(TAG, "Reconnecting in {} seconds", seconds);
                         }
 
                         @Override
@@ -197,9 +243,9 @@ public class XMPPManager {
                         }
                     });
 
-                    Log.d(TAG, "Attempting to connect...");
+                    AppLog.d(TAG, "Attempting to connect...");
                     connection.connect();
-                    Log.d(TAG, "Connection established successfully!");
+                    AppLog.d(TAG, "Connection established successfully!");
                     notifyConnected();
 
                 } catch (SmackException e) {
@@ -235,7 +281,8 @@ public class XMPPManager {
                         return;
                     }
 
-                    Log.d(TAG, "Logging in as " + username);
+                    AppLog.d(TAG, "Logging in as {}", username);
+                    RosterCache.getInstance(context).attach(connection, username);
                     connection.login(username, password);
                     notifyAuthenticated();
 
@@ -263,7 +310,7 @@ public class XMPPManager {
                         return;
                     }
 
-                    Log.d(TAG, "Registering account " + username);
+                    AppLog.d(TAG, "Registering account {}", username);
                     org.jivesoftware.smackx.iqregister.AccountManager accountManager =
                         org.jivesoftware.smackx.iqregister.AccountManager.getInstance(connection);
 
@@ -271,6 +318,7 @@ public class XMPPManager {
                     accountManager.createAccount(username, password);
 
                     // Auto login after registration
+                    RosterCache.getInstance(context).attach(connection, username);
                     connection.login(username, password);
                     notifyAuthenticated();
 
@@ -282,28 +330,62 @@ public class XMPPManager {
         }).start();
     }
 
+    /**
+     * Fetch whatever the server archived while we were offline (XEP-0313)
+     */
+    private void startArchiveSync(final AbstractXMPPConnection syncConnection) {
+        if (databaseHelper == null || syncConnection.getUser() == null) {
+            return;
+        }
+        String user = syncConnection.getUser();
+        final String ownJid = user.contains("/") ? user.substring(0, user.indexOf("/")) : user;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MamSyncManager.getInstance(context).sync(syncConnection, ownJid, databaseHelper);
+            }
+        }).start();
+    }
+
     /**
      * Setup chat manager for receiving messages
      */
     private void setupChatManager() {
         chatManager = ChatManager.getInstanceFor(connection);
 
-        // Enable PingManager to keep connection alive
-        PingManager pingManager = PingManager.getInstanceFor(connection);
-        pingManager.setPingInterval(30); // Ping every 30 seconds
-        Log.d(TAG, "PingManager enabled with 30 second interval");
+        // Adaptive keepalive (learns the longest idle interval this network's NAT allows)
+        KeepAliveManager.getInstance(context).start(connection, new KeepAliveManager.FailureListener() {
+            @Override
+            public void onKeepAliveFailed() {
+                Log.e(TAG, "Keepalive ping unanswered, dropping dead connection");
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                notifyConnectionError("Connection lost (no ping reply)");
+            }
+        });
+
+        // New session: contacts have not seen any chat state from us yet
+        synchronized (typingSent) {
+            typingSent.clear();
+            typingWanted.clear();
+            typingSentAt.clear();
+        }
+        typingEvents.clear();
 
         // Enable ChatStateManager for typing indicators
         chatStateManager = ChatStateManager.getInstance(connection);
-        Log.d(TAG, "ChatStateManager enabled for typing indicators");
+        AppLog.d(TAG, "ChatStateManager enabled for typing indicators");
 
         // ===== GLOBAL MESSAGE LISTENER =====
         // This catches ALL incoming messages, even before chats are created
         // This is critical for receiving messages from new contacts
-        Log.d(TAG, "Setting up GLOBAL message listener...");
+        AppLog.d(TAG, "Setting up GLOBAL message listener...");
         connection.addAsyncStanzaListener(new org.jivesoftware.smack.StanzaListener() {
             @Override
             public void processPacket(org.jivesoftware.smack.packet.Stanza packet) {
+                long arrivedAt = Metrics.now();
                 try {
                     if (!(packet instanceof Message)) {
                         return; // Not a message, ignore
@@ -318,25 +400,23 @@ public class XMPPManager {
                         return; // Not a chat message, ignore
                     }
 
-                    Log.d(TAG, "===== GLOBAL LISTENER RECEIVED MESSAGE =====");
-                    Log.d(TAG, "From: " + from);
-                    Log.d(TAG, "Body: " + body);
-                    Log.d(TAG, "Type: " + message.getType());
+                    // Bodies never go to logcat, only their size
+                    AppLog.d(TAG, "Message from {} ({} chars)", from, body != null ? body.length() : 0);
 
                     // Only process messages with body text (ignore empty messages)
                     if (body != null && !body.trim().isEmpty()) {
-                        notifyMessageReceived(message);
+                        receivePipeline.receive(message, arrivedAt);
                     }
                 } catch (Exception e) {
                     Log.e(TAG, "Error in global message listener: " + e.getMessage(), e);
                 }
             }
         }, new org.jivesoftware.smack.filter.StanzaTypeFilter(Message.class));
-        Log.d(TAG, "GLOBAL message listener installed successfully");
+        AppLog.d(TAG, "GLOBAL message listener installed successfully");
 
         // ===== MESSAGE RETRACTION LISTENER (XEP-0424) =====
         // Listen for message retraction requests
-        Log.d(TAG, "Setting up MESSAGE RETRACTION listener...");
+        AppLog.d(TAG, "Setting up MESSAGE RETRACTION listener...");
         connection.addAsyncStanzaListener(new org.jivesoftware.smack.StanzaListener() {
             @Override
             public void processPacket(org.jivesoftware.smack.packet.Stanza packet) {
@@ -352,16 +432,18 @@ public class XMPPManager {
                         message.getExtension("urn:xmpp:message-retract:1");
 
                     if (retractExt != null) {
+                        final long receivedAt = Metrics.now();
+                        RETRACTS_RECEIVED.inc();
                         String from = message.getFrom();
 
                         // Parse the retract extension XML to get the stanza ID
                         String xml = retractExt.toXML().toString();
-                        String stanzaId = extractStanzaIdFromRetract(xml);
+                        String stanzaId = StanzaText.extractRetractId(xml);
 
                         if (stanzaId != null && !stanzaId.isEmpty()) {
-                            Log.d(TAG, "===== RECEIVED MESSAGE RETRACTION =====");
-                            Log.d(TAG, "From: " + from);
-                            Log.d(TAG, "Stanza ID to delete: " + stanzaId);
+                            AppLog.d(TAG, "===== RECEIVED MESSAGE RETRACTION =====");
+                            AppLog.d(TAG, "From: {}", from);
+                            AppLog.d(TAG, "Stanza ID to delete: {}", stanzaId);
 
                             // Delete from database
                             if (databaseHelper != null) {
@@ -370,7 +452,8 @@ public class XMPPManager {
                                 if (messageToDelete != null) {
                                     boolean deleted = databaseHelper.deleteMessage(messageToDelete.id);
                                     if (deleted) {
-                                        Log.d(TAG, "✅ Message deleted from database");
+                                        RETRACT_TO_APPLIED.recordSince(receivedAt);
+                                        AppLog.d(TAG, "✅ Message deleted from database");
 
                                         // Notify callback
                                         if (messageRetractCallback != null) {
@@ -385,6 +468,7 @@ public class XMPPManager {
                                         Log.w(TAG, "Failed to delete message from database");
                                     }
                                 } else {
+                                    RETRACTS_UNKNOWN.inc();
                                     Log.w(TAG, "Message with stanza ID " + stanzaId + " not found in database");
                                 }
                             }
@@ -395,7 +479,7 @@ public class XMPPManager {
                 }
             }
         }, new org.jivesoftware.smack.filter.StanzaTypeFilter(Message.class));
-        Log.d(TAG, "MESSAGE RETRACTION listener installed successfully");
+        AppLog.d(TAG, "MESSAGE RETRACTION listener installed successfully");
 
         // Listen for ALL incoming messages
         chatManager.addChatListener(new ChatManagerListener() {
@@ -403,11 +487,11 @@ public class XMPPManager {
             public void chatCreated(Chat chat, boolean createdLocally) {
                 // Add listener to ALL chats (both created locally and remotely)
                 String participant = chat.getParticipant();
-                Log.d(TAG, "Chat created with: " + participant + " (local=" + createdLocally + ")");
+                AppLog.d(TAG, "Chat created with: {} (local={})", participant, createdLocally);
 
                 // Prevent adding duplicate listeners to the same chat
                 if (chatsWithListeners.contains(participant)) {
-                    Log.d(TAG, "Chat listener already exists for: " + participant);
+                    AppLog.d(TAG, "Chat listener already exists for: {}", participant);
                     return;
                 }
 
@@ -417,7 +501,7 @@ public class XMPPManager {
                 chat.addMessageListener(new ChatMessageListener() {
                     @Override
                     public void processMessage(Chat chat, Message message) {
-                        Log.d(TAG, "Chat message from " + message.getFrom() + ": " + message.getBody());
+                        AppLog.d(TAG, "Chat message from {}", message.getFrom());
 
                         // Check for chat state extension in message
                         try {
@@ -429,15 +513,10 @@ public class XMPPManager {
                                 ChatState state = chatStateExt.getChatState();
                                 String from = message.getFrom();
                                 boolean isTyping = (state == ChatState.composing);
-                                Log.d(TAG, "Chat state from " + from + ": " + state + " (typing=" + isTyping + ")");
+                                AppLog.d(TAG, "Chat state from {}: {} (typing={})", from, state, isTyping);
 
                                 if (typingStateCallback != null) {
-                                    mainHandler.post(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            typingStateCallback.onTypingStateChanged(from, isTyping);
-                                        }
-                                    });
+                                    typingEvents.offer(from, isTyping);
                                 }
                             }
                         } catch (Exception e) {
@@ -464,7 +543,7 @@ public class XMPPManager {
 
             // Enable carbon copies
             carbonManager.enableCarbons();
-            Log.d(TAG, "Carbon Copies enabled successfully");
+            AppLog.d(TAG, "Carbon Copies enabled successfully");
 
             // Add listener for carbon copy messages
             connection.addAsyncStanzaListener(new org.jivesoftware.smack.StanzaListener() {
@@ -487,18 +566,22 @@ public class XMPPManager {
                                     String body = forwardedMsg.getBody();
 
                                     if (body != null && !body.isEmpty()) {
-                                        Log.d(TAG, "Carbon copy SENT (to " + to + "): " + body);
+                                        final long receivedAt = Metrics.now();
+                                        CARBONS_RECEIVED.inc();
+                                        AppLog.d(TAG, "Carbon copy SENT (to {})", to);
 
                                         // Store as a sent message in database with stanza ID
                                         String stanzaId = forwardedMsg.getStanzaId();
-                                        storeMessage(to, body, true, null, stanzaId);
+                                        final MessageContent content = ReceivePipeline.contentOf(forwardedMsg);
+                                        storeMessage(to, body, true, content, stanzaId);
+                                        CARBON_TO_STORED.recordSince(receivedAt);
 
                                         // Notify UI if we're in that chat
                                         if (messageCallback != null) {
                                             mainHandler.post(new Runnable() {
                                                 @Override
                                                 public void run() {
-                                                    messageCallback.onMessageReceived(to, body, true); // true = sent message
+                                                    messageCallback.onMessageReceived(to, body, content, true); // true = sent message
                                                 }
                                             });
                                         }
@@ -521,6 +604,7 @@ public class XMPPManager {
      * Send message to contact
      */
     public void sendMessage(String toJid, String messageText, final MessageCallback callback) {
+        resetTypingState(toJid);
         new Thread(new Runnable() {
             @Override
             public void run() {
@@ -538,13 +622,13 @@ public class XMPPManager {
 
                     // Get the stanza ID that will be sent
                     String stanzaId = message.getStanzaId();
-                    Log.d(TAG, "Sending message with stanza ID: " + stanzaId);
+                    AppLog.d(TAG, "Sending message with stanza ID: {}", stanzaId);
 
                     // Send the message
                     connection.sendStanza(message);
 
                     // Store sent message locally with stanza ID
-                    storeMessage(toJid, messageText, true, null, stanzaId);
+                    storeMessage(toJid, messageText, true, MessageContent.fromStanza(messageText, null, null), stanzaId);
 
                     if (callback != null) {
                         mainHandler.post(new Runnable() {
@@ -574,8 +658,11 @@ public class XMPPManager {
     /**
      * Send file with OOB (Out of Band Data) - XEP-0066
      * This sends the file URL in a way that XMPP clients (including WhatsApp bridge via Slidge) recognize as attachment
+     * @param size file size in bytes, -1 if unknown
+     * @param duration recording length in ms, -1 if unknown
      */
-    public void sendFileMessage(String toJid, final String fileUrl, final String fileName, final MessageCallback callback) {
+    public void sendFileMessage(String toJid, final String fileUrl, final String fileName, final long size,
+                                final long duration, final MessageCallback callback) {
         new Thread(new Runnable() {
             @Override
             public void run() {
@@ -594,13 +681,13 @@ public class XMPPManager {
                     message.setBody(fileUrl);
 
                     // Determine MIME type from filename
-                    String mimeType = getMimeTypeFromFilename(fileName);
+                    String mimeType = MessageContent.mimeTypeFor(fileName);
 
                     // Add OOB extension (XEP-0066) manually via XML
                     // Slidge recognizes this and converts to WhatsApp media
                     String oobExtension = "<x xmlns='jabber:x:oob'><url>" +
-                        escapeXml(fileUrl) + "</url>" +
-                        (fileName != null ? "<desc>" + escapeXml(fileName) + "</desc>" : "") +
+                        StanzaText.escapeXml(fileUrl) + "</url>" +
+                        (fileName != null ? "<desc>" + StanzaText.escapeXml(fileName) + "</desc>" : "") +
                         "</x>";
 
                     // For Slidge, we also hint the MIME type if it's media
@@ -627,9 +714,9 @@ public class XMPPManager {
                             public CharSequence toXML() {
                                 StringBuilder xml = new StringBuilder();
                                 xml.append("<x xmlns='jabber:x:oob'>");
-                                xml.append("<url>").append(escapeXml(fileUrl)).append("</url>");
+                                xml.append("<url>").append(StanzaText.escapeXml(fileUrl)).append("</url>");
                                 if (fileName != null && !fileName.isEmpty()) {
-                                    xml.append("<desc>").append(escapeXml(fileName)).append("</desc>");
+                                    xml.append("<desc>").append(StanzaText.escapeXml(fileName)).append("</desc>");
                                 }
                                 xml.append("</x>");
                                 return xml.toString();
@@ -643,15 +730,15 @@ public class XMPPManager {
 
                     // Get the stanza ID before sending
                     String stanzaId = message.getStanzaId();
-                    Log.d(TAG, "Sending file message with stanza ID: " + stanzaId);
+                    AppLog.d(TAG, "Sending file message with stanza ID: {}", stanzaId);
 
                     // Send the message
                     connection.sendStanza(message);
 
-                    Log.d(TAG, "Sent file message: " + fileUrl + " (type: " + mimeType + ")");
+                    AppLog.d(TAG, "Sent file message: {} (type: {})", fileUrl, mimeType);
 
                     // Store sent message locally with file flag and stanza ID
-                    storeFileMessage(toJid, fileUrl, fileName, true, stanzaId);
+                    storeFileMessage(toJid, MessageContent.forUpload(fileUrl, fileName, size, duration), fileName, true, stanzaId);
 
                     if (callback != null) {
                         mainHandler.post(new Runnable() {
@@ -723,7 +810,7 @@ public class XMPPManager {
 
                         @Override
                         public CharSequence toXML() {
-                            return "<retract id='" + escapeXml(stanzaId) + "' xmlns='urn:xmpp:message-retract:1'/>";
+                            return "<retract id='" + StanzaText.escapeXml(stanzaId) + "' xmlns='urn:xmpp:message-retract:1'/>";
                         }
                     };
 
@@ -771,7 +858,7 @@ public class XMPPManager {
                     // Send the retraction message
                     connection.sendStanza(message);
 
-                    Log.d(TAG, "Sent message retraction for stanza ID: " + stanzaId);
+                    AppLog.d(TAG, "Sent message retraction for stanza ID: {}", stanzaId);
 
                     if (callback != null) {
                         mainHandler.post(new Runnable() {
@@ -798,59 +885,6 @@ public class XMPPManager {
         }).start();
     }
 
-    private String getMimeTypeFromFilename(String filename) {
-        if (filename == null) return "application/octet-stream";
-
-        String lower = filename.toLowerCase();
-        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "image/jpeg";
-        if (lower.endsWith(".png")) return "image/png";
-        if (lower.endsWith(".gif")) return "image/gif";
-        if (lower.endsWith(".mp4")) return "video/mp4";
-        if (lower.endsWith(".3gp")) return "video/3gpp";
-        if (lower.endsWith(".webm")) return "video/webm";
-        if (lower.endsWith(".mp3")) return "audio/mpeg";
-        if (lower.endsWith(".ogg") || lower.endsWith(".opus")) return "audio/ogg";
-        if (lower.endsWith(".m4a")) return "audio/mp4";
-
-        return "application/octet-stream";
-    }
-
-    private String escapeXml(String text) {
-        if (text == null) return "";
-        return text.replace("&", "&amp;")
-                   .replace("<", "&lt;")
-                   .replace(">", "&gt;")
-                   .replace("\"", "&quot;")
-                   .replace("'", "&apos;");
-    }
-
-    /**
-     * Extract stanza ID from retract extension XML
-     * Example: <retract id='message-id-123' xmlns='urn:xmpp:message-retract:1'/>
-     */
-    private String extractStanzaIdFromRetract(String xml) {
-        try {
-            // Simple XML parsing to extract id attribute
-            int idStart = xml.indexOf("id='");
-            if (idStart == -1) {
-                idStart = xml.indexOf("id=\"");
-            }
-            if (idStart != -1) {
-                idStart += 4; // Skip "id='"
-                int idEnd = xml.indexOf("'", idStart);
-                if (idEnd == -1) {
-                    idEnd = xml.indexOf("\"", idStart);
-                }
-                if (idEnd != -1) {
-                    return xml.substring(idStart, idEnd);
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error extracting stanza ID from retract XML", e);
-        }
-        return null;
-    }
-
     /**
      * Find a message in the database by its stanza ID
      */
@@ -860,49 +894,14 @@ public class XMPPManager {
         }
 
         try {
-            // Search through all messages to find one with matching stanza ID
-            // This is not optimal but works for now
-            // TODO: Add database method to search by stanza_id directly
-            List<String> contacts = getAllContactJids();
-            for (String contactJid : contacts) {
-                List<DatabaseHelper.MessageRecord> messages =
-                    databaseHelper.getMessagesForContact(contactJid, 0); // All messages
-                for (DatabaseHelper.MessageRecord msg : messages) {
-                    if (stanzaId.equals(msg.stanzaId)) {
-                        return msg;
-                    }
-                }
-            }
+            return databaseHelper.findMessageByStanzaId(stanzaId);
         } catch (Exception e) {
             Log.e(TAG, "Error finding message by stanza ID", e);
         }
         return null;
     }
 
-    /**
-     * Get all contact JIDs from roster and recent messages
-     */
-    private List<String> getAllContactJids() {
-        List<String> jids = new ArrayList<>();
-        try {
-            if (connection != null && connection.isAuthenticated()) {
-                Roster roster = Roster.getInstanceFor(connection);
-                Collection<RosterEntry> entries = roster.getEntries();
-                for (RosterEntry entry : entries) {
-                    jids.add(entry.getUser());
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting contact JIDs", e);
-        }
-        return jids;
-    }
-
-    private void storeFileMessage(String contactJid, String fileUrl, String fileName, boolean isSent) {
-        storeFileMessage(contactJid, fileUrl, fileName, isSent, null);
-    }
-
-    private void storeFileMessage(String contactJid, String fileUrl, String fileName, boolean isSent, String stanzaId) {
+    private void storeFileMessage(String contactJid, MessageContent content, String fileName, boolean isSent, String stanzaId) {
         if (databaseHelper == null) {
             Log.w(TAG, "Database not initialized, message not stored");
             return;
@@ -914,53 +913,43 @@ public class XMPPManager {
         }
 
         // Store with file URL info so it can be displayed correctly
-        String messageBody = fileName != null ? fileName : fileUrl;
+        String messageBody = fileName != null ? fileName : content.fileUrl;
         long timestamp = System.currentTimeMillis();
 
-        Log.d(TAG, "💾 Storing file message - Contact: " + contactJid + ", isSent: " + isSent +
-                   ", file: " + fileName + (stanzaId != null ? ", stanzaId: " + stanzaId : ""));
+        AppLog.d(TAG, "💾 Storing file message - Contact: {}, isSent: {}, stanzaId: {}", contactJid, isSent, stanzaId);
 
-        databaseHelper.insertMessage(contactJid, messageBody, isSent, timestamp, fileUrl, stanzaId);
+        databaseHelper.insertMessage(contactJid, messageBody, isSent, timestamp, content, stanzaId);
     }
 
     /**
      * Get roster (contact list)
+     * Served from the persistent roster cache, so it works offline and costs no roster walk
      */
     public List<Contact> getContacts() {
-        List<Contact> contacts = new ArrayList<>();
-
-        try {
-            if (connection == null || !connection.isAuthenticated()) {
-                return contacts;
-            }
-
-            Roster roster = Roster.getInstanceFor(connection);
-            Collection<RosterEntry> entries = roster.getEntries();
-
-            for (RosterEntry entry : entries) {
-                Contact contact = new Contact();
-                contact.jid = entry.getUser();
-                contact.name = entry.getName() != null ? entry.getName() : entry.getUser();
-
-                Presence presence = roster.getPresence(entry.getUser());
-                contact.isOnline = presence.isAvailable();
-                contact.status = presence.getStatus();
-
-                contacts.add(contact);
-            }
-
-        } catch (Exception e) {
-            Log.e(TAG, "Get contacts error", e);
+        if (context == null) {
+            return new ArrayList<>();
         }
-
-        return contacts;
+        return RosterCache.getInstance(context).getContacts();
     }
 
     /**
      * Set message callback
      */
-    public void setMessageCallback(MessageCallback callback) {
+    public void setMessageCallback(final MessageCallback callback) {
         this.messageCallback = callback;
+        receivePipeline.setCallback(callback == null ? null : new ReceivePipeline.Callback() {
+            @Override
+            public void onMessageReceived(String from, String body, MessageContent content) {
+                callback.onMessageReceived(from, body, content, false); // false = received message
+            }
+        });
+    }
+
+    /**
+     * Set connection callback (receives disconnect / error events for the current connection)
+     */
+    public void setConnectionCallback(ConnectionCallback callback) {
+        this.connectionCallback = callback;
     }
 
     /**
@@ -976,14 +965,66 @@ public class XMPPManager {
 
     /**
      * Send typing state (composing or paused)
+     * Rate limited per contact: repeats are dropped and a change within TYPING_MIN_INTERVAL_MS
+     * of the previous one is deferred, so only the state the user ends up in is sent.
      */
     public void sendTypingState(String toJid, boolean isTyping) {
         if (connection == null || !connection.isAuthenticated() || chatStateManager == null) {
             return;
         }
 
+        long delay;
+        synchronized (typingSent) {
+            typingWanted.put(toJid, isTyping);
+            Boolean sent = typingSent.get(toJid);
+            if (sent == null ? !isTyping : sent == isTyping) {
+                return; // Already on the wire (or nothing to pause)
+            }
+            if (typingFlushScheduled.contains(toJid)) {
+                return; // The pending flush will pick up the latest state
+            }
+            Long sentAt = typingSentAt.get(toJid);
+            delay = sentAt == null ? 0 : TYPING_MIN_INTERVAL_MS - (System.currentTimeMillis() - sentAt);
+            if (delay > 0) {
+                typingFlushScheduled.add(toJid);
+            }
+        }
+
+        if (delay > 0) {
+            final String jid = toJid;
+            mainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    flushTypingState(jid);
+                }
+            }, delay);
+        } else {
+            flushTypingState(toJid);
+        }
+    }
+
+    /**
+     * Send the latest wanted state if it differs from what the contact last saw
+     */
+    private void flushTypingState(String toJid) {
+        boolean isTyping;
+        synchronized (typingSent) {
+            typingFlushScheduled.remove(toJid);
+            Boolean wanted = typingWanted.get(toJid);
+            Boolean sent = typingSent.get(toJid);
+            if (wanted == null || wanted.equals(sent) || (sent == null && !wanted)) {
+                return; // Flipped back before the interval was over
+            }
+            isTyping = wanted;
+            typingSent.put(toJid, isTyping);
+            typingSentAt.put(toJid, System.currentTimeMillis());
+        }
+
+        AbstractXMPPConnection current = connection;
+        if (current == null || !current.isAuthenticated()) {
+            return;
+        }
         try {
-            Chat chat = chatManager.createChat(toJid);
             ChatState state = isTyping ? ChatState.composing : ChatState.paused;
 
             // Create message with chat state
@@ -991,13 +1032,23 @@ public class XMPPManager {
             message.setTo(toJid);
             message.addExtension(new org.jivesoftware.smackx.chatstates.packet.ChatStateExtension(state));
 
-            connection.sendStanza(message);
-            Log.d(TAG, "Sent typing state to " + toJid + ": " + state);
+            current.sendStanza(message);
+            AppLog.d(TAG, "Sent typing state to {}: {}", toJid, state);
         } catch (Exception e) {
             Log.e(TAG, "Failed to send typing state", e);
         }
     }
 
+    /**
+     * A real message ends "composing" on the receiving side, forget what we told the contact
+     */
+    private void resetTypingState(String toJid) {
+        synchronized (typingSent) {
+            typingSent.remove(toJid);
+            typingWanted.remove(toJid);
+        }
+    }
+
     /**
      * Load message history for a contact from database
      */
@@ -1012,7 +1063,7 @@ public class XMPPManager {
                         return;
                     }
 
-                    Log.d(TAG, "Loading message history for: " + contactJid);
+                    AppLog.d(TAG, "Loading message history for: {}", contactJid);
 
                     // Normalize JID
                     String normalizedJid = contactJid;
@@ -1035,10 +1086,11 @@ public class XMPPManager {
                         msg.timestamp = record.timestamp;
                         msg.fileUrl = record.fileUrl; // Copy file URL if present
                         msg.stanzaId = record.stanzaId; // Copy stanza ID for retraction
+                        msg.content = record.getContent(); // Kind etc. as classified when stored
                         historyMessages.add(msg);
                     }
 
-                    Log.d(TAG, "Loaded " + historyMessages.size() + " messages from database");
+                    AppLog.d(TAG, "Loaded {} messages from database", historyMessages.size());
                     notifyHistoryLoaded(callback, historyMessages);
 
                 } catch (Exception e) {
@@ -1063,9 +1115,12 @@ public class XMPPManager {
      * Disconnect from server
      */
     public void disconnect() {
+        KeepAliveManager.getInstance(context).stop();
         if (connection != null && connection.isConnected()) {
             connection.disconnect();
         }
+        RosterCache.getInstance(context).onDisconnected();
+        ClientStateManager.getInstance(context).onDisconnected();
     }
 
     /**
@@ -1089,6 +1144,20 @@ public class XMPPManager {
         return databaseHelper;
     }
 
+    /**
+     * Move the database to another location and continue on the new files (no restart needed)
+     * Blocks for the whole copy, call from a background thread.
+     * @return true if the database now lives at the new location
+     */
+    public boolean migrateDatabase(String newLocation, String customPath, DatabaseHelper.MigrationListener listener) {
+        DatabaseHelper migrated = DatabaseHelper.migrateDatabase(context, databaseHelper, newLocation, customPath, listener);
+        if (migrated == null) {
+            return false;
+        }
+        databaseHelper = migrated;
+        return true;
+    }
+
     // Notification helpers
     private void notifyConnected() {
         if (connectionCallback != null) {
@@ -1134,68 +1203,11 @@ public class XMPPManager {
         }
     }
 
-    private void notifyMessageReceived(final Message message) {
-        // Validate message has body
-        if (message.getBody() == null || message.getBody().isEmpty()) {
-            Log.w(TAG, "Received message with empty body from: " + message.getFrom());
-            return;
-        }
-
-        final String body = message.getBody();
-        final String from = message.getFrom();
-
-        // Create unique message ID based on sender and content
-        final String messageId = from + "|" + body + "|" + (System.currentTimeMillis() / 2000); // 2 second window
-
-        // Check if we've already processed this message recently
-        synchronized (recentMessages) {
-            if (recentMessages.contains(messageId)) {
-                Log.d(TAG, "Duplicate message detected, skipping: " + messageId);
-                return;
-            }
-            recentMessages.add(messageId);
-        }
-
-        // Clean up old message IDs after 10 seconds
-        cleanupHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (recentMessages) {
-                    recentMessages.remove(messageId);
-                }
-            }
-        }, 10000);
-
-        // Store received message in database with stanza ID
-        String stanzaId = message.getStanzaId();
-        Log.d(TAG, "Received message with stanza ID: " + stanzaId);
-        storeMessage(from, body, false, null, stanzaId);
-
-        // Check if message contains a file URL (simple detection)
-        // URLs from our upload service or common media URLs
-        final boolean isFileUrl = body.startsWith("http://") || body.startsWith("https://");
-        final boolean isMediaFile = isFileUrl && (
-            body.contains("/attachments/") ||
-            body.endsWith(".jpg") || body.endsWith(".jpeg") || body.endsWith(".png") ||
-            body.endsWith(".gif") || body.endsWith(".mp4") || body.endsWith(".3gp") ||
-            body.endsWith(".mp3") || body.endsWith(".ogg") || body.endsWith(".m4a")
-        );
-
-        if (messageCallback != null) {
-            mainHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    messageCallback.onMessageReceived(message.getFrom(), body, false); // false = received message
-                }
-            });
-        }
-    }
-
     private void storeMessage(String contactJid, String body, boolean isSent) {
-        storeMessage(contactJid, body, isSent, null, null);
+        storeMessage(contactJid, body, isSent, MessageContent.fromStanza(body, null, null), null);
     }
 
-    private void storeMessage(String contactJid, String body, boolean isSent, String fileUrl, String stanzaId) {
+    private void storeMessage(String contactJid, String body, boolean isSent, MessageContent content, String stanzaId) {
         if (databaseHelper == null) {
             Log.e(TAG, "❌ Database not initialized, message NOT stored!");
             return;
@@ -1209,13 +1221,12 @@ public class XMPPManager {
 
         long timestamp = System.currentTimeMillis();
 
-        Log.d(TAG, "💾 Storing message - Contact: " + contactJid + " (original: " + originalJid + "), isSent: " + isSent +
-                   ", body length: " + body.length() + (stanzaId != null ? ", stanzaId: " + stanzaId : ""));
+        AppLog.d(TAG, "💾 Storing message - Contact: {} (original: {}), isSent: {}", contactJid, originalJid, isSent);
 
         // Store in database
         try {
-            databaseHelper.insertMessage(contactJid, body, isSent, timestamp, fileUrl, stanzaId);
-            Log.d(TAG, "✅ Message stored successfully in database");
+            databaseHelper.insertMessage(contactJid, body, isSent, timestamp, content, stanzaId);
+            AppLog.d(TAG, "✅ Message stored successfully in database");
         } catch (Exception e) {
             Log.e(TAG, "❌ Failed to store message in database", e);
         }
@@ -1255,7 +1266,7 @@ public class XMPPManager {
     }
 
     public interface MessageCallback {
-        void onMessageReceived(String from, String message, boolean isSent);
+        void onMessageReceived(String from, String message, MessageContent content, boolean isSent);
         void onMessageSent();
         void onMessageError(String error);
     }
@@ -1290,5 +1301,6 @@ public class XMPPManager {
         public long timestamp;
         public String fileUrl; // URL for multimedia files, null for text-only
         public String stanzaId; // XMPP stanza ID for retraction
+        public MessageContent content; // Kind, mime type, size, duration
     }
 }
@@ -4,7 +4,6 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.IBinder;
 import android.util.Log;
 
@@ -16,12 +15,6 @@ import android.util.Log;
 public class XMPPService extends Service {
     private static final String TAG = "XMPPService";
     private static final int FOREGROUND_NOTIFICATION_ID = 9999;
-    private static final String PREFS_NAME = "WhatsberryPrefs";
-    private static final String PREF_SERVER = "server";
-    private static final String PREF_PORT = "port";
-    private static final String PREF_DOMAIN = "domain";
-    private static final String PREF_USERNAME = "username";
-    private static final String PREF_PASSWORD = "password";
 
     private XMPPManager xmppManager;
     private boolean isRunning = false;
@@ -32,6 +25,9 @@ public class XMPPService extends Service {
         Log.d(TAG, "XMPPService created");
         xmppManager = XMPPManager.getInstance();
         xmppManager.initialize(this);
+
+        // Database trimming and vacuum while idle or charging
+        RetentionManager.getInstance(this).start();
     }
 
     @Override
@@ -42,12 +38,11 @@ public class XMPPService extends Service {
         startForeground(FOREGROUND_NOTIFICATION_ID, createForegroundNotification());
         Log.d(TAG, "✅ Running as FOREGROUND SERVICE (BB10 won't kill this)");
 
-        if (!isRunning) {
-            isRunning = true;
+        isRunning = true;
 
-            // Auto-login with hardcoded credentials
-            autoLogin();
-        }
+        // Keep the saved account connected (no-op if already running);
+        // retries, backoff and network changes are handled by the state machine
+        ConnectionStateMachine.getInstance(this).start();
 
         // START_STICKY ensures service restarts if killed
         return START_STICKY;
@@ -87,108 +82,6 @@ public class XMPPService extends Service {
         return notification;
     }
 
-    private void autoLogin() {
-        // Get credentials from SharedPreferences
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        final String server = prefs.getString(PREF_SERVER, "");
-        final String username = prefs.getString(PREF_USERNAME, "");
-        final String password = prefs.getString(PREF_PASSWORD, "");
-        final String portStr = prefs.getString(PREF_PORT, "5222");
-        final String domain = prefs.getString(PREF_DOMAIN, server);
-
-        // Don't auto-login if credentials are not configured
-        if (server.isEmpty() || username.isEmpty() || password.isEmpty()) {
-            Log.d(TAG, "No saved credentials found, skipping auto-login");
-            return;
-        }
-
-        final int port;
-        try {
-            port = Integer.parseInt(portStr);
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Invalid port number, using default 5222");
-            return;
-        }
-
-        Log.d(TAG, "Auto-login to: " + username + "@" + server + ":" + port);
-
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    // Check if already connected
-                    if (xmppManager.isAuthenticated()) {
-                        Log.d(TAG, "Already authenticated, skipping login");
-                        return;
-                    }
-
-                    // Connect and Login
-                    xmppManager.connect(server, port, domain, new XMPPManager.ConnectionCallback() {
-                        @Override
-                        public void onConnected() {
-                            Log.d(TAG, "Connected to XMPP server, now logging in...");
-
-                            // Login AFTER we're connected
-                            xmppManager.login(username, password, new XMPPManager.ConnectionCallback() {
-                                @Override
-                                public void onConnected() {}
-
-                                @Override
-                                public void onAuthenticated() {
-                                    Log.d(TAG, "✅ Auto-login successful!");
-                                }
-
-                                @Override
-                                public void onDisconnected() {
-                                    Log.d(TAG, "Disconnected after login, retrying...");
-                                    scheduleRetry();
-                                }
-
-                                @Override
-                                public void onError(String error) {
-                                    Log.e(TAG, "Login error: " + error);
-                                    scheduleRetry();
-                                }
-                            });
-                        }
-
-                        @Override
-                        public void onAuthenticated() {
-                            Log.d(TAG, "✅ Authenticated via connect callback");
-                        }
-
-                        @Override
-                        public void onDisconnected() {
-                            Log.d(TAG, "Disconnected from server, retrying...");
-                            scheduleRetry();
-                        }
-
-                        @Override
-                        public void onError(String error) {
-                            Log.e(TAG, "Connection error: " + error);
-                            scheduleRetry();
-                        }
-                    });
-
-                } catch (Exception e) {
-                    Log.e(TAG, "Auto-login exception: " + e.getMessage(), e);
-                    scheduleRetry();
-                }
-            }
-        }).start();
-    }
-
-    private void scheduleRetry() {
-        // Retry login after 30 seconds
-        new android.os.Handler().postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                Log.d(TAG, "Retrying auto-login...");
-                autoLogin();
-            }
-        }, 30000);
-    }
-
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -0,0 +1,454 @@
+package com.whatsberry.xmpp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Zoomable image view with tiled rendering
+ * Draws a screen-sized subsampled base bitmap, and when zoomed in decodes only the
+ * visible region at higher resolution with BitmapRegionDecoder, in fixed-size tiles.
+ * Tile memory is capped by an LRU budget and full-size tile bitmaps are reused via inBitmap.
+ */
+public class ZoomableImageView extends View {
+    private static final String TAG = "ZoomableImageView";
+
+    private static final int TILE_SIZE = 256;              // Decoded tile edge in pixels
+    private static final long MAX_TILE_BUDGET = 8L * 1024 * 1024; // 8 MB of tiles at most
+    private static final int TILE_POOL_SIZE = 4;           // Spare bitmaps kept for inBitmap reuse
+    private static final float MAX_ZOOM = 4.0f;            // Screen pixels per image pixel
+    private static final float DOUBLE_TAP_ZOOM = 3.0f;     // Relative to fit-to-screen
+
+    // Base layer
+    private Bitmap baseBitmap;
+    private int baseSampleSize = 1;
+    private int imageWidth;
+    private int imageHeight;
+
+    // Transform: viewX = imageX * scale + offsetX
+    private float scale = 1.0f;
+    private float minScale = 1.0f;
+    private float offsetX;
+    private float offsetY;
+
+    // Tile layer
+    private BitmapRegionDecoder regionDecoder;
+    private HandlerThread decodeThread;
+    private Handler decodeHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<String, Tile> tileCache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> pendingTiles = new HashSet<>();
+    private final List<Bitmap> tilePool = new ArrayList<>();
+    private final long tileBudget;
+    private long tileBytes = 0;
+    private volatile int currentTileSample = 0;
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix baseMatrix = new Matrix();
+    private final RectF tileDst = new RectF();
+
+    private ScaleGestureDetector scaleDetector;
+    private GestureDetector gestureDetector;
+
+    public ZoomableImageView(Context context) {
+        this(context, null);
+    }
+
+    public ZoomableImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        tileBudget = Math.min(MAX_TILE_BUDGET, Runtime.getRuntime().maxMemory() / 8);
+        setupGestures(context);
+    }
+
+    /**
+     * Set the image to display
+     * @param base subsampled bitmap covering the whole image
+     * @param baseSampleSize source pixels per base bitmap pixel
+     * @param decoder region decoder for the full-resolution file, or null to disable tiling
+     */
+    public void setImage(Bitmap base, int baseSampleSize, int imageWidth, int imageHeight,
+                         BitmapRegionDecoder decoder) {
+        recycle();
+
+        this.baseBitmap = base;
+        this.baseSampleSize = baseSampleSize;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.regionDecoder = decoder;
+
+        if (decoder != null) {
+            decodeThread = new HandlerThread("TileDecoder");
+            decodeThread.start();
+            decodeHandler = new Handler(decodeThread.getLooper());
+        }
+
+        resetZoom();
+        invalidate();
+    }
+
+    /**
+     * Release all bitmaps and the decoder thread (call from Activity.onDestroy)
+     */
+    public void recycle() {
+        if (decodeHandler != null) {
+            decodeHandler.removeCallbacksAndMessages(null);
+            final BitmapRegionDecoder decoder = regionDecoder;
+            final HandlerThread thread = decodeThread;
+            // Recycle the decoder on its own thread so we never race an in-progress decode
+            decodeHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (decoder != null) {
+                        decoder.recycle();
+                    }
+                    thread.quit();
+                }
+            });
+            decodeHandler = null;
+            decodeThread = null;
+        }
+        regionDecoder = null;
+        pendingTiles.clear();
+        currentTileSample = 0;
+
+        for (Tile tile : tileCache.values()) {
+            tile.bitmap.recycle();
+        }
+        tileCache.clear();
+        tileBytes = 0;
+
+        synchronized (tilePool) {
+            for (Bitmap bitmap : tilePool) {
+                bitmap.recycle();
+            }
+            tilePool.clear();
+        }
+
+        if (baseBitmap != null) {
+            baseBitmap.recycle();
+            baseBitmap = null;
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        resetZoom();
+    }
+
+    private void resetZoom() {
+        if (getWidth() == 0 || getHeight() == 0 || imageWidth == 0 || imageHeight == 0) {
+            return;
+        }
+        minScale = Math.min((float) getWidth() / imageWidth, (float) getHeight() / imageHeight);
+        scale = minScale;
+        clampOffsets();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (baseBitmap == null) {
+            return;
+        }
+
+        // Base layer: one base pixel covers baseSampleSize image pixels
+        baseMatrix.reset();
+        baseMatrix.postScale(scale * baseSampleSize, scale * baseSampleSize);
+        baseMatrix.postTranslate(offsetX, offsetY);
+        canvas.drawBitmap(baseBitmap, baseMatrix, paint);
+
+        if (regionDecoder != null) {
+            drawTiles(canvas);
+        }
+    }
+
+    /**
+     * Draw (and request) the tiles covering the visible region at the current zoom
+     */
+    private void drawTiles(Canvas canvas) {
+        int sample = sampleSizeForScale(scale);
+        if (sample >= baseSampleSize) {
+            // Base layer already has enough detail
+            cancelPendingTiles();
+            return;
+        }
+        if (sample != currentTileSample) {
+            cancelPendingTiles();
+            currentTileSample = sample;
+        }
+
+        float left = Math.max(0, -offsetX / scale);
+        float top = Math.max(0, -offsetY / scale);
+        float right = Math.min(imageWidth, (getWidth() - offsetX) / scale);
+        float bottom = Math.min(imageHeight, (getHeight() - offsetY) / scale);
+        if (right <= left || bottom <= top) {
+            return;
+        }
+
+        int span = TILE_SIZE * sample; // Image pixels per tile edge
+        int firstCol = (int) (left / span);
+        int lastCol = (int) ((right - 1) / span);
+        int firstRow = (int) (top / span);
+        int lastRow = (int) ((bottom - 1) / span);
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                String key = sample + "/" + col + "/" + row;
+                Tile tile = tileCache.get(key);
+                if (tile != null) {
+                    tileDst.set(tile.region.left * scale + offsetX,
+                                tile.region.top * scale + offsetY,
+                                tile.region.right * scale + offsetX,
+                                tile.region.bottom * scale + offsetY);
+                    canvas.drawBitmap(tile.bitmap, null, tileDst, paint);
+                } else {
+                    Rect region = new Rect(col * span, row * span,
+                            Math.min(imageWidth, (col + 1) * span),
+                            Math.min(imageHeight, (row + 1) * span));
+                    requestTile(key, region, sample);
+                }
+            }
+        }
+    }
+
+    /**
+     * Largest power of two sample size that still gives at least one decoded pixel per screen pixel
+     */
+    private static int sampleSizeForScale(float scale) {
+        int sample = 1;
+        while (sample * 2 * scale <= 1.0f) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    private void requestTile(final String key, final Rect region, final int sample) {
+        if (decodeHandler == null || !pendingTiles.add(key)) {
+            return;
+        }
+        final BitmapRegionDecoder decoder = regionDecoder;
+
+        decodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (sample != currentTileSample) {
+                    // Zoom level changed while queued
+                    postTile(key, region, sample, null);
+                    return;
+                }
+
+                boolean fullTile = region.width() == TILE_SIZE * sample && region.height() == TILE_SIZE * sample;
+
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sample;
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+                options.inMutable = true;
+                if (fullTile && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    options.inBitmap = takePooledBitmap();
+                }
+
+                Bitmap bitmap = null;
+                try {
+                    bitmap = decoder.decodeRegion(region, options);
+                } catch (IllegalArgumentException e) {
+                    // Pooled bitmap not compatible - decode into a fresh one
+                    options.inBitmap = null;
+                    try {
+                        bitmap = decoder.decodeRegion(region, options);
+                    } catch (Exception e2) {
+                        Log.w(TAG, "Tile decode failed: " + key, e2);
+                    }
+                } catch (OutOfMemoryError e) {
+                    Log.w(TAG, "OOM decoding tile " + key);
+                } catch (Exception e) {
+                    Log.w(TAG, "Tile decode failed: " + key, e);
+                }
+
+                postTile(key, region, sample, bitmap);
+            }
+        });
+    }
+
+    private void postTile(final String key, final Rect region, final int sample, final Bitmap bitmap) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                pendingTiles.remove(key);
+                if (bitmap == null) {
+                    return;
+                }
+                if (sample != currentTileSample || regionDecoder == null) {
+                    releaseTileBitmap(bitmap);
+                    return;
+                }
+                addTile(key, new Tile(region, bitmap));
+                invalidate();
+            }
+        });
+    }
+
+    private void addTile(String key, Tile tile) {
+        Tile previous = tileCache.put(key, tile);
+        if (previous != null) {
+            tileBytes -= previous.bitmap.getByteCount();
+            releaseTileBitmap(previous.bitmap);
+        }
+        tileBytes += tile.bitmap.getByteCount();
+
+        // Evict least recently drawn tiles; visible tiles are touched every frame
+        Iterator<Map.Entry<String, Tile>> it = tileCache.entrySet().iterator();
+        while (tileBytes > tileBudget && it.hasNext()) {
+            Tile eldest = it.next().getValue();
+            if (eldest == tile) {
+                break;
+            }
+            it.remove();
+            tileBytes -= eldest.bitmap.getByteCount();
+            releaseTileBitmap(eldest.bitmap);
+        }
+    }
+
+    private void cancelPendingTiles() {
+        if (decodeHandler != null) {
+            decodeHandler.removeCallbacksAndMessages(null);
+        }
+        pendingTiles.clear();
+    }
+
+    private Bitmap takePooledBitmap() {
+        synchronized (tilePool) {
+            return tilePool.isEmpty() ? null : tilePool.remove(tilePool.size() - 1);
+        }
+    }
+
+    /**
+     * Keep full-size mutable tile bitmaps for reuse, recycle everything else
+     */
+    private void releaseTileBitmap(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && bitmap.isMutable() &&
+                bitmap.getWidth() == TILE_SIZE && bitmap.getHeight() == TILE_SIZE) {
+            synchronized (tilePool) {
+                if (tilePool.size() < TILE_POOL_SIZE) {
+                    tilePool.add(bitmap);
+                    return;
+                }
+            }
+        }
+        bitmap.recycle();
+    }
+
+    // ===== Gestures =====
+
+    private void setupGestures(Context context) {
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoomTo(scale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                offsetX -= distanceX;
+                offsetY -= distanceY;
+                clampOffsets();
+                invalidate();
+                return true;
+            }
+
+            @Override
+            public boolean onSingleTapConfirmed(MotionEvent e) {
+                return performClick();
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                float target = scale > minScale * 1.05f ? minScale : minScale * DOUBLE_TAP_ZOOM;
+                zoomTo(target, e.getX(), e.getY());
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        scaleDetector.onTouchEvent(event);
+        gestureDetector.onTouchEvent(event);
+        return true;
+    }
+
+    private void zoomTo(float newScale, float focusX, float focusY) {
+        float maxScale = Math.max(MAX_ZOOM, minScale);
+        newScale = Math.max(minScale, Math.min(newScale, maxScale));
+
+        // Keep the image point under the focus fixed
+        offsetX = focusX - (focusX - offsetX) * (newScale / scale);
+        offsetY = focusY - (focusY - offsetY) * (newScale / scale);
+        scale = newScale;
+
+        clampOffsets();
+        invalidate();
+    }
+
+    /**
+     * Center the image when smaller than the view, otherwise keep edges on screen
+     */
+    private void clampOffsets() {
+        float scaledWidth = imageWidth * scale;
+        float scaledHeight = imageHeight * scale;
+
+        if (scaledWidth <= getWidth()) {
+            offsetX = (getWidth() - scaledWidth) / 2;
+        } else {
+            offsetX = Math.max(getWidth() - scaledWidth, Math.min(0, offsetX));
+        }
+
+        if (scaledHeight <= getHeight()) {
+            offsetY = (getHeight() - scaledHeight) / 2;
+        } else {
+            offsetY = Math.max(getHeight() - scaledHeight, Math.min(0, offsetY));
+        }
+    }
+
+    private static class Tile {
+        final Rect region; // In full-resolution image coordinates
+        final Bitmap bitmap;
+
+        Tile(Rect region, Bitmap bitmap) {
+            this.region = region;
+            this.bitmap = bitmap;
+        }
+    }
+}
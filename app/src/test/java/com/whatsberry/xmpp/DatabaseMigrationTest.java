@@ -0,0 +1,124 @@
+package com.whatsberry.xmpp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DatabaseMigrationTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void movesVerifiedCopies() throws Exception {
+        File from = folder.newFolder("from");
+        File to = folder.newFolder("to");
+        File db = database(new File(from, "messages.db"));
+        File archive = database(new File(from, "archive.db"));
+        File staleWal = write(new File(to, "messages.db-wal"), "old wal");
+
+        migration(new File[]{db, archive}, new File[]{new File(to, "messages.db"), new File(to, "archive.db")}).run();
+
+        assertSameBytes(db, new File(to, "messages.db"));
+        assertSameBytes(archive, new File(to, "archive.db"));
+        assertFalse(staleWal.exists());
+        assertTrue(db.exists());
+        assertEquals(Arrays.asList("archive.db", "messages.db"), sortedNames(to));
+    }
+
+    @Test
+    public void failedCheckRemovesTheCopiesAndLeavesTargetsAlone() throws Exception {
+        File from = folder.newFolder("from");
+        File to = folder.newFolder("to");
+        File db = database(new File(from, "messages.db"));
+        File corrupt = write(new File(from, "archive.db"), "not a database");
+        File oldDb = write(new File(to, "messages.db"), "previous database");
+
+        try {
+            migration(new File[]{db, corrupt}, new File[]{oldDb, new File(to, "archive.db")}).run();
+            fail("Corrupt archive was migrated");
+        } catch (IOException expected) {
+            // The archive copy fails its check after both copies were written
+        }
+
+        assertEquals("previous database", new String(Files.readAllBytes(oldDb.toPath()), "UTF-8"));
+        assertEquals(Arrays.asList("messages.db"), sortedNames(to));
+    }
+
+    @Test
+    public void missingSourceRemovesItsTarget() throws Exception {
+        File from = folder.newFolder("from");
+        File to = folder.newFolder("to");
+        File db = database(new File(from, "messages.db"));
+        write(new File(to, "archive.db"), "archive of another database");
+
+        migration(new File[]{db, new File(from, "archive.db")},
+                new File[]{new File(to, "messages.db"), new File(to, "archive.db")}).run();
+
+        assertEquals(Arrays.asList("messages.db"), sortedNames(to));
+    }
+
+    /**
+     * The integrity check through sqlite-jdbc instead of SQLiteDatabase
+     */
+    private static DatabaseMigration migration(File[] sources, File[] targets) {
+        return new DatabaseMigration(sources, targets, null) {
+            @Override
+            void checkIntegrity(File copy) throws IOException {
+                try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + copy.getPath());
+                     Statement statement = conn.createStatement();
+                     ResultSet rs = statement.executeQuery("PRAGMA integrity_check")) {
+                    String result = rs.next() ? rs.getString(1) : null;
+                    if (!"ok".equals(result)) {
+                        throw new IOException("Integrity check failed for " + copy + ": " + result);
+                    }
+                } catch (SQLException e) {
+                    throw new IOException("Cannot open copy " + copy + ": " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    private static File database(File file) throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+             Statement statement = conn.createStatement()) {
+            statement.execute("CREATE TABLE t (v TEXT)");
+            statement.execute("INSERT INTO t VALUES ('" + file.getName() + "')");
+        }
+        return file;
+    }
+
+    private static File write(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes("UTF-8"));
+        }
+        return file;
+    }
+
+    private static void assertSameBytes(File expected, File actual) throws IOException {
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+    }
+
+    private static List<String> sortedNames(File dir) {
+        String[] names = dir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+}
@@ -0,0 +1,277 @@
+package com.whatsberry.xmpp;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * MessageStore.Database on host SQLite (sqlite-jdbc), main file plus attached archive as on
+ * the device, so tests run the MessageStore code that ships
+ */
+final class JdbcDatabase implements MessageStore.Database, AutoCloseable {
+
+    final Connection connection;
+    private int transactions = 0;
+    private boolean levelSuccessful = false;
+    private boolean failed = false;
+
+    JdbcDatabase(File dir) throws SQLException {
+        dir.mkdirs();
+        connection = DriverManager.getConnection("jdbc:sqlite:" + new File(dir, "whatsberry.db").getPath());
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : MessageSchema.createStatements()) {
+                statement.execute(sql);
+            }
+            statement.execute("ATTACH DATABASE '" + new File(dir, "whatsberry-archive.db").getPath() +
+                    "' AS " + MessageSchema.ARCHIVE);
+            for (String sql : MessageSchema.createArchiveStatements()) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * The store as DatabaseHelper opens it, archive attached
+     */
+    MessageStore store() {
+        return new MessageStore(this, true);
+    }
+
+    /**
+     * Messages in both tiers
+     */
+    long countMessages() throws SQLException {
+        return queryLong("SELECT COUNT(*) FROM " + MessageSchema.TABLE) +
+                queryLong("SELECT SUM(" + MessageSchema.BLOCK_MESSAGE_COUNT + ") FROM " + MessageSchema.ARCHIVE_BLOCKS);
+    }
+
+    long queryLong(String sql) throws SQLException {
+        try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    void execute(String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    @Override
+    public MessageStore.Statement compile(String sql) {
+        try {
+            return new JdbcStatement(connection.prepareStatement(sql));
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public MessageStore.Rows query(String sql, String[] args) {
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            for (int i = 0; args != null && i < args.length; i++) {
+                statement.setString(i + 1, args[i]);
+            }
+            return new JdbcRows(statement, statement.executeQuery());
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Nested like SQLiteDatabase: the outermost end commits, unless a level was not successful
+
+    @Override
+    public void beginTransaction() {
+        try {
+            if (transactions++ == 0) {
+                connection.setAutoCommit(false);
+                failed = false;
+            }
+            levelSuccessful = false;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        levelSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        failed |= !levelSuccessful;
+        levelSuccessful = false;
+        try {
+            if (--transactions == 0) {
+                if (failed) {
+                    connection.rollback();
+                } else {
+                    connection.commit();
+                }
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        connection.close();
+    }
+
+    /**
+     * Arguments are kept until execution, so unbound ones go in as NULL as with SQLiteStatement
+     */
+    private static final class JdbcStatement implements MessageStore.Statement {
+        private final PreparedStatement statement;
+        private final Object[] args;
+
+        JdbcStatement(PreparedStatement statement) throws SQLException {
+            this.statement = statement;
+            this.args = new Object[statement.getParameterMetaData().getParameterCount()];
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            args[index - 1] = value;
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            args[index - 1] = value;
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            args[index - 1] = value;
+        }
+
+        @Override
+        public void clearBindings() {
+            Arrays.fill(args, null);
+        }
+
+        @Override
+        public long executeInsert() {
+            if (execute() == 0) {
+                return -1;
+            }
+            try (Statement rowid = statement.getConnection().createStatement();
+                 ResultSet rs = rowid.executeQuery("SELECT last_insert_rowid()")) {
+                return rs.next() ? rs.getLong(1) : -1;
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            return execute();
+        }
+
+        @Override
+        public void close() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private int execute() {
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    statement.setObject(i + 1, args[i]);
+                }
+                return statement.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Forward-only cursor with the 0-based columns of android.database.Cursor
+     */
+    private static final class JdbcRows implements MessageStore.Rows {
+        private final PreparedStatement statement;
+        private final ResultSet rs;
+
+        JdbcRows(PreparedStatement statement, ResultSet rs) {
+            this.statement = statement;
+            this.rs = rs;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            try {
+                return rs.next();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int getColumnIndex(String column) {
+            try {
+                return rs.findColumn(column) - 1;
+            } catch (SQLException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public long getLong(int column) {
+            try {
+                return rs.getLong(column + 1);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String getString(int column) {
+            try {
+                return rs.getString(column + 1);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            try {
+                return rs.getBytes(column + 1);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            try {
+                return rs.getObject(column + 1) == null;
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                rs.close();
+                statement.close();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.whatsberry.xmpp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageArchiveTest {
+    private static final String ALICE = "alice@whatsapp.localhost";
+    private static final long T0 = 1700000000000L;
+
+    @Test
+    public void blockKeepsEveryField() throws Exception {
+        List<DatabaseHelper.MessageRecord> records = new ArrayList<>();
+        records.add(record(1, "plain text é😀", false, true, null, "s1"));
+        DatabaseHelper.MessageRecord voice = record(2, "voice.ogg", true, true, "https://upload.example/voice.ogg", null);
+        voice.setContent(MessageContent.forUpload(voice.fileUrl, "voice.ogg", 4096, 7000));
+        records.add(voice);
+
+        List<DatabaseHelper.MessageRecord> decoded = MessageArchive.decode(ALICE, MessageArchive.encode(records));
+        assertEquals(2, decoded.size());
+
+        DatabaseHelper.MessageRecord text = decoded.get(0);
+        assertEquals(ALICE, text.contactJid);
+        assertEquals(1, text.id);
+        assertEquals(T0 + 1, text.timestamp);
+        assertEquals("plain text é😀", text.body);
+        assertFalse(text.isSent);
+        assertTrue(text.isRead);
+        assertEquals("s1", text.stanzaId);
+        assertNull(text.fileUrl);
+        assertEquals(MessageContent.KIND_TEXT, text.kind);
+
+        DatabaseHelper.MessageRecord audio = decoded.get(1);
+        assertTrue(audio.isSent);
+        assertNull(audio.stanzaId);
+        assertEquals("https://upload.example/voice.ogg", audio.fileUrl);
+        assertEquals(MessageContent.KIND_AUDIO, audio.kind);
+        assertEquals("audio/ogg", audio.mimeType);
+        assertEquals(4096, audio.mediaSize);
+        assertEquals(7000, audio.duration);
+    }
+
+    @Test
+    public void untypedBlocksAreClassifiedWhenRead() throws Exception {
+        // Version 1 layout, as written before the kind columns existed: no kind byte, no media fields
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+        out.writeByte(1);
+        out.writeInt(2);
+        out.writeLong(10);
+        out.writeLong(T0);
+        out.writeByte(2 | 8); // Read, has stanza ID
+        MessageArchive.writeString(out, "Missed call from Bob (xmpp:+1@whatsapp.localhost) at 2025-01-01");
+        MessageArchive.writeString(out, "old-1");
+        out.writeLong(11);
+        out.writeLong(T0 + 1);
+        out.writeByte(1 | 2 | 4); // Sent, read, has file
+        MessageArchive.writeString(out, "photo.jpg");
+        MessageArchive.writeString(out, "https://upload.example/photo.jpg");
+        out.close();
+
+        List<DatabaseHelper.MessageRecord> decoded = MessageArchive.decode(ALICE, bytes.toByteArray());
+        assertEquals(2, decoded.size());
+        assertEquals(10, decoded.get(0).id);
+        assertEquals("old-1", decoded.get(0).stanzaId);
+        assertEquals(MessageContent.KIND_CALL_MISSED, decoded.get(0).kind);
+        assertEquals(MessageContent.KIND_IMAGE, decoded.get(1).kind);
+        assertEquals("image/jpeg", decoded.get(1).mimeType);
+        assertTrue(decoded.get(1).isSent);
+        assertEquals(-1, decoded.get(1).mediaSize);
+
+        // Re-encoding writes the current version and keeps the classification
+        List<DatabaseHelper.MessageRecord> again = MessageArchive.decode(ALICE, MessageArchive.encode(decoded));
+        assertEquals(MessageContent.KIND_IMAGE, again.get(1).kind);
+        assertEquals("https://upload.example/photo.jpg", again.get(1).fileUrl);
+    }
+
+    @Test
+    public void dedupKeyPrefersTheStanzaId() {
+        DatabaseHelper.MessageRecord withId = record(1, "hi", false, false, null, "s1");
+        DatabaseHelper.MessageRecord withoutId = record(1, "hi", false, false, null, null);
+        DatabaseHelper.MessageRecord otherBody = record(1, "ho", false, false, null, null);
+
+        assertEquals("s1", MessageArchive.dedupKey(withId));
+        assertEquals(MessageArchive.dedupKey(withoutId), MessageArchive.dedupKey(record(1, "hi", false, false, null, null)));
+        assertFalse(MessageArchive.dedupKey(withoutId).equals(MessageArchive.dedupKey(otherBody)));
+    }
+
+    private static DatabaseHelper.MessageRecord record(long id, String body, boolean sent, boolean read,
+                                                       String fileUrl, String stanzaId) {
+        DatabaseHelper.MessageRecord record = new DatabaseHelper.MessageRecord();
+        record.id = id;
+        record.contactJid = ALICE;
+        record.body = body;
+        record.timestamp = T0 + id;
+        record.isSent = sent;
+        record.isRead = read;
+        record.fileUrl = fileUrl;
+        record.stanzaId = stanzaId;
+        record.setContent(MessageContent.fromStored(body, fileUrl));
+        return record;
+    }
+}
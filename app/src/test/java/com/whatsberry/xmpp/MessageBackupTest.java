@@ -0,0 +1,200 @@
+package com.whatsberry.xmpp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class MessageBackupTest {
+    private static final String ALICE = "alice@whatsapp.localhost";
+    private static final String BOB = "bob@whatsapp.localhost";
+    private static final long T0 = 1700000000000L;
+    private static final FilenameFilter BACKUPS = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(".wbk");
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JdbcDatabase sourceDb;
+    private MessageStore source;
+    private File backup;
+
+    @Before
+    public void setUp() throws Exception {
+        sourceDb = new JdbcDatabase(folder.newFolder("source"));
+        source = sourceDb.store();
+        for (int i = 0; i < 300; i++) {
+            // Every third message predates stanza IDs
+            insert(source, ALICE, "alice " + i, i % 2 == 0, T0 + i * 1000, i % 3 == 0 ? null : "a" + i);
+        }
+        for (int i = 0; i < 40; i++) {
+            insert(source, BOB, "same text", false, T0 + i * 1000, null);
+        }
+        // Alice's history goes to the cold tier
+        source.markConversationRead(ALICE);
+        source.applyReadWatermarks();
+        assertEquals(256, source.archiveMessagesBefore(ALICE, T0 + 400 * 1000));
+
+        backup = new File(folder.getRoot(), MessageBackup.FILE_NAME);
+        assertEquals(340, MessageBackup.export(source, backup, true, null));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sourceDb.close();
+    }
+
+    @Test
+    public void importIntoEmptyStoreThenAgainAddsNothing() throws Exception {
+        try (JdbcDatabase targetDb = new JdbcDatabase(folder.newFolder("target"))) {
+            MessageStore target = targetDb.store();
+            assertEquals(340, MessageBackup.importFrom(target, backup, null));
+            assertEquals(340, targetDb.countMessages());
+
+            assertEquals(0, MessageBackup.importFrom(target, backup, null));
+            assertEquals(340, targetDb.countMessages());
+        }
+    }
+
+    @Test
+    public void importIntoSourceSkipsArchivedAndUnidentifiedMessages() throws Exception {
+        assertEquals(0, MessageBackup.importFrom(source, backup, null));
+        assertEquals(340, sourceDb.countMessages());
+        assertEquals(340 - 256, sourceDb.queryLong("SELECT COUNT(*) FROM " + MessageSchema.TABLE));
+    }
+
+    @Test
+    public void importKeepsReadState() throws Exception {
+        try (JdbcDatabase targetDb = new JdbcDatabase(folder.newFolder("target"))) {
+            MessageStore target = targetDb.store();
+            MessageBackup.importFrom(target, backup, null);
+            assertEquals(0, target.countUnreadMessages(ALICE));
+            assertEquals(40, target.countUnreadMessages(BOB));
+        }
+    }
+
+    @Test
+    public void exportAgainWritesOnlyNewMessages() throws Exception {
+        assertEquals(0, MessageBackup.export(source, backup, true, null));
+        insert(source, BOB, "later", false, T0 + 500 * 1000, "b-later");
+        assertEquals(1, MessageBackup.export(source, backup, true, null));
+
+        try (JdbcDatabase targetDb = new JdbcDatabase(folder.newFolder("target"))) {
+            MessageStore target = targetDb.store();
+            assertEquals(341, MessageBackup.importFrom(target, backup, null));
+        }
+    }
+
+    @Test
+    public void exportFromAFreshStoreStartsANewFile() throws Exception {
+        // Reinstalled app: ids start over below what the file already covers
+        try (JdbcDatabase freshDb = new JdbcDatabase(folder.newFolder("fresh"))) {
+            MessageStore fresh = freshDb.store();
+            insert(fresh, BOB, "after reinstall", false, T0 + 600 * 1000, "b-new");
+            assertEquals(1, MessageBackup.export(fresh, backup, true, null));
+        }
+        assertEquals(2, folder.getRoot().listFiles(BACKUPS).length);
+
+        try (JdbcDatabase targetDb = new JdbcDatabase(folder.newFolder("target"))) {
+            assertEquals(1, MessageBackup.importFrom(targetDb.store(), backup, null));
+        }
+    }
+
+    @Test
+    public void exportAfterImportOnAnotherDeviceStartsANewFile() throws Exception {
+        try (JdbcDatabase deviceDb = new JdbcDatabase(folder.newFolder("device"))) {
+            MessageStore device = deviceDb.store();
+            insert(device, BOB, "before restore", false, T0 + 600 * 1000, "b-new");
+            assertEquals(340, MessageBackup.importFrom(device, backup, null));
+            insert(device, BOB, "after restore", false, T0 + 700 * 1000, "b-newer");
+            assertEquals(342, MessageBackup.export(device, backup, true, null));
+            // The same store appends again
+            insert(device, BOB, "later", false, T0 + 800 * 1000, "b-later");
+            assertEquals(1, MessageBackup.export(device, backup, true, null));
+        }
+        assertEquals(2, folder.getRoot().listFiles(BACKUPS).length);
+
+        try (JdbcDatabase targetDb = new JdbcDatabase(folder.newFolder("target"))) {
+            assertEquals(343, MessageBackup.importFrom(targetDb.store(), backup, null));
+        }
+    }
+
+    @Test
+    public void storeIdIsKept() throws Exception {
+        long id = source.getStoreId();
+        assertNotEquals(0, id);
+        assertEquals(id, sourceDb.store().getStoreId());
+    }
+
+    @Test
+    public void exportDecodesEveryBlockOnceAndKeepsIdOrder() throws Exception {
+        try (JdbcDatabase db = new JdbcDatabase(folder.newFolder("interleaved"))) {
+            MessageStore store = db.store();
+            // Two chats taking turns: each block spans ids far beyond one export window
+            db.beginTransaction();
+            for (int i = 0; i < 12000; i++) {
+                insert(store, i % 2 == 0 ? ALICE : BOB, "m" + i, false, T0 + i, "s" + i);
+            }
+            db.setTransactionSuccessful();
+            db.endTransaction();
+            store.markConversationRead(ALICE);
+            store.markConversationRead(BOB);
+            store.applyReadWatermarks();
+            while (store.archiveMessagesBefore(ALICE, Long.MAX_VALUE) > 0 || store.archiveMessagesBefore(BOB, Long.MAX_VALUE) > 0) {
+                // Archive everything
+            }
+            long blocks = db.queryLong("SELECT COUNT(*) FROM " + MessageSchema.ARCHIVE_BLOCKS);
+
+            File file = new File(folder.getRoot(), "interleaved.wbk");
+            Metrics.reset();
+            assertEquals(12000, MessageBackup.export(store, file, true, null));
+            assertEquals(blocks, Metrics.counter("db.archive_blocks_decoded").get());
+
+            try (JdbcDatabase target = new JdbcDatabase(folder.newFolder("restored"))) {
+                assertEquals(12000, MessageBackup.importFrom(target.store(), file, null));
+                // Restored in id order, so stanza s<i> got id i + 1
+                assertEquals(1, target.queryLong("SELECT " + MessageSchema.ID + " FROM " + MessageSchema.TABLE +
+                        " WHERE " + MessageSchema.STANZA_ID + " = 's0'"));
+                assertEquals(12000, target.queryLong("SELECT " + MessageSchema.ID + " FROM " + MessageSchema.TABLE +
+                        " WHERE " + MessageSchema.STANZA_ID + " = 's11999'"));
+                assertEquals(0, target.queryLong("SELECT COUNT(*) FROM " + MessageSchema.TABLE + " a JOIN " +
+                        MessageSchema.TABLE + " b ON b." + MessageSchema.ID + " = a." + MessageSchema.ID + " + 1" +
+                        " WHERE b." + MessageSchema.TIMESTAMP + " < a." + MessageSchema.TIMESTAMP));
+            }
+        }
+    }
+
+    private static void insert(MessageStore store, String contactJid, String body, boolean isSent, long timestamp,
+                               String stanzaId) {
+        store.insertMessage(contactJid, body, isSent, timestamp, MessageContent.fromStored(body, null), stanzaId);
+    }
+
+    @Test
+    public void duplicatesWithinOneBatchAreInsertedOnce() throws Exception {
+        List<DatabaseHelper.MessageRecord> records = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            DatabaseHelper.MessageRecord record = new DatabaseHelper.MessageRecord();
+            record.contactJid = BOB;
+            record.body = "twice";
+            record.timestamp = T0 - 1000;
+            records.add(record);
+        }
+        try (JdbcDatabase targetDb = new JdbcDatabase(folder.newFolder("target"))) {
+            MessageStore target = targetDb.store();
+            assertEquals(1, target.importMessages(records));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.whatsberry.xmpp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MessageStoreTest {
+    private static final String ALICE = "alice@whatsapp.localhost";
+    private static final String BOB = "bob@whatsapp.localhost";
+    private static final long T0 = 1700000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JdbcDatabase db;
+    private MessageStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new JdbcDatabase(folder.newFolder("db"));
+        store = db.store();
+        for (int i = 0; i < 600; i++) {
+            String body = "m" + i;
+            store.insertMessage(i % 2 == 0 ? ALICE : BOB, body, false, T0 + i, MessageContent.fromStored(body, null), "s" + i);
+        }
+        store.markConversationRead(ALICE);
+        store.markConversationRead(BOB);
+        store.applyReadWatermarks();
+        // The older half of both chats goes to the cold tier
+        while (store.archiveMessagesBefore(ALICE, T0 + 300) > 0 || store.archiveMessagesBefore(BOB, T0 + 300) > 0) {
+            // Archive
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void findsByStanzaIdInBothTiers() {
+        Metrics.reset();
+        DatabaseHelper.MessageRecord hot = store.findMessageByStanzaId("s599");
+        assertEquals("m599", hot.body);
+        assertEquals(BOB, hot.contactJid);
+        assertEquals(0, Metrics.counter("db.archive_blocks_decoded").get());
+
+        DatabaseHelper.MessageRecord archived = store.findMessageByStanzaId("s10");
+        assertEquals("m10", archived.body);
+        assertEquals(ALICE, archived.contactJid);
+        assertEquals(11, archived.id);
+        // Only the block holding it was inflated
+        assertEquals(1, Metrics.counter("db.archive_blocks_decoded").get());
+
+        assertNull(store.findMessageByStanzaId("unknown"));
+    }
+
+    @Test
+    public void retractingAnArchivedMessageRewritesItsBlock() {
+        DatabaseHelper.MessageRecord archived = store.findMessageByStanzaId("s10");
+        assertEquals(1, store.rewriteArchivedMessage(archived.id, null));
+
+        assertNull(store.findMessageByStanzaId("s10"));
+        assertEquals(299, store.getMessagesForContact(ALICE, 0).size());
+        assertEquals("m12", store.findMessageByStanzaId("s12").body);
+    }
+
+    @Test
+    public void editedArchivedMessageKeepsItsPlace() {
+        assertEquals(1, store.rewriteArchivedMessage(store.findMessageByStanzaId("s10").id, "edited"));
+        assertEquals("edited", store.getMessagesForContact(ALICE, 0).get(5).body);
+        assertEquals(0, store.rewriteArchivedMessage(-1, "nothing"));
+    }
+}
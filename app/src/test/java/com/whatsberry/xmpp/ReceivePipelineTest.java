@@ -0,0 +1,92 @@
+package com.whatsberry.xmpp;
+
+import org.jivesoftware.smack.packet.DefaultExtensionElement;
+import org.jivesoftware.smack.packet.Message;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReceivePipelineTest {
+    private static final String FROM = "alice@whatsapp.localhost/gateway";
+
+    private final List<String> stored = new ArrayList<>();
+    private final List<String> delivered = new ArrayList<>();
+    private final List<Runnable> mainThread = new ArrayList<>();
+    private ReceivePipeline pipeline;
+
+    @Before
+    public void setUp() {
+        pipeline = new ReceivePipeline(new ReceivePipeline.Store() {
+            @Override
+            public void storeReceived(String from, String body, MessageContent content, String stanzaId) {
+                stored.add(stanzaId);
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainThread.add(command);
+            }
+        });
+        pipeline.setCallback(new ReceivePipeline.Callback() {
+            @Override
+            public void onMessageReceived(String from, String body, MessageContent content) {
+                delivered.add(body);
+            }
+        });
+    }
+
+    @Test
+    public void storesBeforeCallingBackOnTheExecutor() {
+        assertTrue(pipeline.receive(message("hello", "s1"), Metrics.now()));
+        assertEquals(1, stored.size());
+        assertTrue(delivered.isEmpty());
+
+        mainThread.get(0).run();
+        assertEquals("hello", delivered.get(0));
+    }
+
+    @Test
+    public void dropsEmptyAndRepeatedMessages() {
+        assertFalse(pipeline.receive(message("", "s0"), Metrics.now()));
+        assertTrue(pipeline.receive(message("twice", "s1"), Metrics.now()));
+        assertFalse(pipeline.receive(message("twice", "s2"), Metrics.now()));
+        assertEquals(1, stored.size());
+    }
+
+    @Test
+    public void storesWithoutCallback() {
+        pipeline.setCallback(null);
+        assertTrue(pipeline.receive(message("quiet", null), Metrics.now()));
+        assertEquals(1, stored.size());
+        assertNull(stored.get(0));
+        assertTrue(mainThread.isEmpty());
+    }
+
+    @Test
+    public void classifiesFromOutOfBandData() {
+        Message message = message("see attachment", "s1");
+        DefaultExtensionElement oob = new DefaultExtensionElement(MessageContent.OOB_ELEMENT, MessageContent.OOB_NAMESPACE);
+        oob.setValue("url", " https://upload.example/f/voice.ogg ");
+        message.addExtension(oob);
+
+        MessageContent content = ReceivePipeline.contentOf(message);
+        assertEquals(MessageContent.KIND_AUDIO, content.kind);
+        assertEquals("https://upload.example/f/voice.ogg", content.fileUrl);
+    }
+
+    private static Message message(String body, String stanzaId) {
+        Message message = new Message("bob@whatsapp.localhost", Message.Type.chat);
+        message.setFrom(FROM);
+        message.setBody(body);
+        message.setStanzaId(stanzaId);
+        return message;
+    }
+}
@@ -0,0 +1,22 @@
+package com.whatsberry.xmpp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TLSSocketFactoryTest {
+    private static final String[] API_18 = {"SSLv3", "TLSv1", "TLSv1.1", "TLSv1.2"};
+
+    @Test
+    public void keepsTheFloorUnlessFallbackIsAllowed() {
+        assertArrayEquals(new String[]{"TLSv1.2", "TLSv1.1"}, TLSSocketFactory.enabledProtocols(API_18, false));
+        assertArrayEquals(new String[]{"TLSv1.2", "TLSv1.1", "TLSv1"}, TLSSocketFactory.enabledProtocols(API_18, true));
+    }
+
+    @Test
+    public void onlyEnablesWhatTheRuntimeSupports() {
+        String[] old = {"SSLv3", "TLSv1"};
+        assertArrayEquals(new String[0], TLSSocketFactory.enabledProtocols(old, false));
+        assertArrayEquals(new String[]{"TLSv1"}, TLSSocketFactory.enabledProtocols(old, true));
+    }
+}
@@ -0,0 +1,150 @@
+package com.whatsberry.xmpp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UnreadCountTest {
+    private static final String ALICE = "alice@whatsapp.localhost";
+    private static final String BOB = "bob@whatsapp.localhost";
+    private static final long T0 = 1700000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JdbcDatabase db;
+    private MessageStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new JdbcDatabase(folder.newFolder("db"));
+        store = db.store();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void countsReceivedMessagesOnly() throws Exception {
+        insert(ALICE, "one", false, T0, "a1");
+        insert(ALICE, "two", false, T0 + 1, "a2");
+        insert(ALICE, "reply", true, T0 + 2, "a3");
+        insert(BOB, "hi", false, T0 + 3, "b1");
+
+        assertEquals(2, store.countUnreadMessages(ALICE));
+        assertEquals(1, store.countUnreadMessages(BOB));
+    }
+
+    @Test
+    public void markingReadOnlyMovesTheWatermark() throws Exception {
+        insert(ALICE, "one", false, T0, "a1");
+        insert(ALICE, "two", false, T0 + 1, "a2");
+        store.markConversationRead(ALICE);
+
+        assertEquals(0, store.countUnreadMessages(ALICE));
+        // Rows are brought in line later, without touching the counter again
+        assertEquals(2, unreadRows());
+        assertEquals(2, store.applyReadWatermarks());
+        assertEquals(0, unreadRows());
+        assertEquals(0, store.countUnreadMessages(ALICE));
+
+        // Above the watermark: counted again
+        insert(ALICE, "three", false, T0 + 2, "a3");
+        assertEquals(1, store.countUnreadMessages(ALICE));
+        assertEquals(0, store.applyReadWatermarks());
+        assertEquals(1, store.countUnreadMessages(ALICE));
+    }
+
+    @Test
+    public void deletesBelowTheWatermarkLeaveTheCounterAlone() throws Exception {
+        long read = insert(ALICE, "seen", false, T0, "a1");
+        store.markConversationRead(ALICE);
+        long unread = insert(ALICE, "new", false, T0 + 1, "a2");
+
+        // Still is_read = 0 (watermarks not applied yet), but already counted as read
+        delete(read);
+        assertEquals(1, store.countUnreadMessages(ALICE));
+        delete(unread);
+        assertEquals(0, store.countUnreadMessages(ALICE));
+    }
+
+    @Test
+    public void rebuildMatchesTheTriggers() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            insert(i % 3 == 0 ? BOB : ALICE, "m" + i, i % 5 == 0, T0 + i, "s" + i);
+        }
+        int alice = store.countUnreadMessages(ALICE);
+        int bob = store.countUnreadMessages(BOB);
+        try (Statement statement = db.connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM " + MessageSchema.CONVERSATIONS);
+            statement.executeUpdate(MessageSchema.FILL_CONVERSATIONS);
+        }
+        assertEquals(alice, store.countUnreadMessages(ALICE));
+        assertEquals(bob, store.countUnreadMessages(BOB));
+    }
+
+    @Test
+    public void archiveSyncCountsMessagesMissedWhileOffline() throws Exception {
+        insert(ALICE, "live", false, T0, "live-1");
+        store.markConversationRead(ALICE);
+
+        // MAM pages as MamSyncManager.toRecord builds them on a catch-up: nothing marked read
+        List<DatabaseHelper.MessageRecord> page = new ArrayList<>();
+        page.add(mamRecord(ALICE, "live", false, T0, "live-1"));
+        page.add(mamRecord(ALICE, "older", false, T0 - 1000, "mam-1"));
+        page.add(mamRecord(ALICE, "no id", false, T0 - 2000, null));
+        page.add(mamRecord(ALICE, "no id", false, T0 - 2000, null));
+        page.add(mamRecord(ALICE, "missed", false, T0 + 1000, "mam-2"));
+        // Answered from another client: only what came after the reply is new
+        page.add(mamRecord(BOB, "answered", false, T0 + 100, "mam-3"));
+        page.add(mamRecord(BOB, "reply", true, T0 + 200, "mam-4"));
+        page.add(mamRecord(BOB, "after reply", false, T0 + 300, "mam-5"));
+        assertEquals(6, store.insertArchivedMessages(page));
+
+        assertEquals(1, store.countUnreadMessages(ALICE));
+        assertEquals(1, store.countUnreadMessages(BOB));
+        assertEquals(7, db.countMessages());
+        assertEquals(0, page.get(0).id);
+        assertTrue(page.get(4).id > 0);
+        assertFalse(page.get(4).isRead);
+        assertTrue(page.get(1).isRead);
+    }
+
+    private long insert(String contactJid, String body, boolean isSent, long timestamp, String stanzaId) {
+        return store.insertMessage(contactJid, body, isSent, timestamp, MessageContent.fromStored(body, null), stanzaId);
+    }
+
+    private long unreadRows() throws Exception {
+        return db.queryLong("SELECT COUNT(*) FROM " + MessageSchema.TABLE + " WHERE " +
+                MessageSchema.IS_READ + " = 0 AND " + MessageSchema.IS_SENT + " = 0");
+    }
+
+    private void delete(long id) throws Exception {
+        try (Statement statement = db.connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM " + MessageSchema.TABLE + " WHERE " + MessageSchema.ID + " = " + id);
+        }
+    }
+
+    private static DatabaseHelper.MessageRecord mamRecord(String contactJid, String body, boolean isSent,
+                                                          long timestamp, String stanzaId) {
+        DatabaseHelper.MessageRecord record = new DatabaseHelper.MessageRecord();
+        record.contactJid = contactJid;
+        record.body = body;
+        record.isSent = isSent;
+        record.timestamp = timestamp;
+        record.stanzaId = stanzaId;
+        return record;
+    }
+}
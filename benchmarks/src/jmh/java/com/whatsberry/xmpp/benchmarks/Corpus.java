@@ -0,0 +1,66 @@
+package com.whatsberry.xmpp.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Deterministic message bodies shared by the benchmarks (fixed seed, so runs compare)
+ */
+final class Corpus {
+    static final int SIZE = 1024; // Power of two, indexed with a mask
+
+    private static final String[] WORDS = {
+            "hola", "ok", "see", "you", "tomorrow", "at", "the", "office", "jaja", "thanks",
+            "where", "are", "you?", "llego", "en", "5", "min", "sounds", "good", "photo"
+    };
+    // Written as escapes so the source compiles the same under any platform encoding
+    private static final String[] EMOJI = {
+            "\uD83D\uDE00", "\uD83D\uDE02", "\u2764", "\uD83D\uDC4D", "\uD83C\uDF89", "\uD83E\uDD14"
+    };
+    private static final String[] MEDIA = {
+            "https://whatsberry.descarga.media/attachments/5f1c2a/IMG-20240101.jpg",
+            "https://whatsberry.descarga.media/attachments/91be0d/VID-20240101.mp4",
+            "http://whatsberry.descarga.media/convert_audio.php?f=ptt-20240101.ogg",
+            "https://example.org/files/voice-note.OPUS",
+            "https://example.org/docs/report.pdf"
+    };
+
+    private Corpus() {
+    }
+
+    /**
+     * Chat-like text; emojiPercent of the messages contain one or more emoji
+     */
+    static String[] texts(int emojiPercent, long seed) {
+        Random random = new Random(seed);
+        String[] texts = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            StringBuilder sb = new StringBuilder();
+            int words = 2 + random.nextInt(14);
+            boolean emoji = random.nextInt(100) < emojiPercent;
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    sb.append(' ');
+                }
+                sb.append(WORDS[random.nextInt(WORDS.length)]);
+                if (emoji && random.nextInt(4) == 0) {
+                    sb.append(EMOJI[random.nextInt(EMOJI.length)]);
+                }
+            }
+            texts[i] = sb.toString();
+        }
+        return texts;
+    }
+
+    /**
+     * Mix of plain text and media links, about one in four bodies is a link
+     */
+    static String[] bodies(long seed) {
+        Random random = new Random(seed);
+        String[] plain = texts(10, seed);
+        String[] bodies = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            bodies[i] = random.nextInt(4) == 0 ? MEDIA[random.nextInt(MEDIA.length)] : plain[i];
+        }
+        return bodies;
+    }
+}
@@ -0,0 +1,47 @@
+package com.whatsberry.xmpp.benchmarks;
+
+import com.whatsberry.xmpp.EmojiCodePoints;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Emoji detection as done by TwemojiParser.parseEmojis for every bound message row
+ */
+@State(Scope.Thread)
+public class EmojiScanBenchmark {
+
+    @Param({"0", "10", "100"})
+    public int emojiPercent;
+
+    private String[] texts;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        texts = Corpus.texts(emojiPercent, 42);
+    }
+
+    /**
+     * Find every emoji of one message (what the parser does before creating spans)
+     */
+    @Benchmark
+    public int scanMessage() {
+        String text = texts[next++ & (Corpus.SIZE - 1)];
+        int found = 0;
+        int i = EmojiCodePoints.nextEmoji(text, 0);
+        while (i >= 0) {
+            found++;
+            i = EmojiCodePoints.nextEmoji(text, i + Character.charCount(text.codePointAt(i)));
+        }
+        return found;
+    }
+
+    @Benchmark
+    public String assetName() {
+        return EmojiCodePoints.assetName(0x1F600 + (next++ & 63));
+    }
+}
@@ -0,0 +1,39 @@
+package com.whatsberry.xmpp.benchmarks;
+
+import com.whatsberry.xmpp.MediaTypes;
+import com.whatsberry.xmpp.MessageContent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Message classification, done once when a message is stored (see MessageContent)
+ */
+@State(Scope.Thread)
+public class MediaTypesBenchmark {
+
+    private String[] bodies;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        bodies = Corpus.bodies(7);
+    }
+
+    @Benchmark
+    public boolean isMediaUrl() {
+        return MediaTypes.isMediaUrl(bodies[next++ & (Corpus.SIZE - 1)]);
+    }
+
+    @Benchmark
+    public boolean isAudioUrl() {
+        return MediaTypes.isAudioUrl(bodies[next++ & (Corpus.SIZE - 1)]);
+    }
+
+    @Benchmark
+    public int classify() {
+        return MessageContent.fromStored(bodies[next++ & (Corpus.SIZE - 1)], null).kind;
+    }
+}
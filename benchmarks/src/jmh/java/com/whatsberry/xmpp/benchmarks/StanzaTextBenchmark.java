@@ -0,0 +1,52 @@
+package com.whatsberry.xmpp.benchmarks;
+
+import com.whatsberry.xmpp.StanzaText;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-stanza string work in XMPPManager: escaping, retraction parsing, duplicate keys
+ */
+@State(Scope.Thread)
+public class StanzaTextBenchmark {
+
+    private static final String[] FILE_NAMES = {
+            "IMG-20240101-WA0001.jpg",
+            "Tom & Jerry <season 1>.mp4",
+            "it's \"fine\".pdf",
+            "voice-note.ogg"
+    };
+
+    private static final String[] RETRACTS = {
+            "<retract id='3EB0C4A1F2D6B8E9A7C5' xmlns='urn:xmpp:message-retract:1'/>",
+            "<retract xmlns=\"urn:xmpp:message-retract:1\" id=\"a1b2c3d4-e5f6-7890-abcd-ef0123456789\"/>"
+    };
+
+    private String[] bodies;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        bodies = Corpus.texts(10, 11);
+    }
+
+    @Benchmark
+    public String escapeXml() {
+        return StanzaText.escapeXml(FILE_NAMES[next++ & 3]);
+    }
+
+    @Benchmark
+    public String extractRetractId() {
+        return StanzaText.extractRetractId(RETRACTS[next++ & 1]);
+    }
+
+    @Benchmark
+    public String dedupKey() {
+        int i = next++;
+        return StanzaText.dedupKey("+34600123456@whatsapp.localhost/slidge",
+                bodies[i & (Corpus.SIZE - 1)], 1700000000000L + i * 37L);
+    }
+}
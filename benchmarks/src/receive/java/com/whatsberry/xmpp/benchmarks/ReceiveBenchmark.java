@@ -0,0 +1,240 @@
+package com.whatsberry.xmpp.benchmarks;
+
+import com.whatsberry.xmpp.MessageContent;
+import com.whatsberry.xmpp.MessageSchema;
+import com.whatsberry.xmpp.Metrics;
+import com.whatsberry.xmpp.ReceivePipeline;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.util.PacketParserUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end timing of the receive path on the JVM: the stanzas xmpp-loadgen.js sends are
+ * parsed by Smack, handed to ReceivePipeline on a listener pool (Smack runs async stanza
+ * listeners the same way), stored on host SQLite with MessageSchema.INSERT, one commit per
+ * message as DatabaseHelper.insertMessage does, and called back on a single "main" thread.
+ *
+ * Arrival is taken before the stanza is parsed, so both latencies include parsing and the
+ * wait for a listener thread: arrival -> DB commit (msg.receive_to_stored) and
+ * arrival -> UI callback (msg.receive_to_ui).
+ *
+ * System properties: receive.messages, receive.rate (messages/s, 0 = as fast as the reader
+ * parses), receive.contacts, receive.db, receive.report (see benchmarks/build.gradle).
+ */
+public final class ReceiveBenchmark {
+    private static final String DOMAIN = "whatsapp.localhost";
+    private static final int BODY_SIZE = 60;     // xmpp-loadgen.js --body-size default
+    private static final int MEDIA_EVERY = 12;   // Every 12th message is an OOB media link
+    private static final int WARMUP = 500;
+
+    public static void main(String[] args) throws Exception {
+        int messages = Integer.getInteger("receive.messages", 1000);
+        int rate = Integer.getInteger("receive.rate", 0);
+        int contacts = Integer.getInteger("receive.contacts", 20);
+        File dbFile = new File(System.getProperty("receive.db", "build/receive/messages.db"));
+        File reportFile = new File(System.getProperty("receive.report", "build/results/receive/results.txt"));
+
+        File dbDir = dbFile.getAbsoluteFile().getParentFile();
+        if (dbDir != null) {
+            dbDir.mkdirs();
+        }
+        if (dbFile.exists() && !dbFile.delete()) {
+            throw new IllegalStateException("Cannot delete " + dbFile);
+        }
+
+        ExecutorService listeners = Executors.newCachedThreadPool();
+        ExecutorService mainThread = Executors.newSingleThreadExecutor();
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath())) {
+            try (Statement statement = conn.createStatement()) {
+                for (String sql : MessageSchema.createStatements()) {
+                    statement.execute(sql);
+                }
+            }
+            JdbcStore store = new JdbcStore(conn);
+            ReceivePipeline pipeline = new ReceivePipeline(store, mainThread);
+
+            run(pipeline, listeners, "warmup", WARMUP, 0, contacts);
+            drain(mainThread);
+            Metrics.reset();
+            double seconds = run(pipeline, listeners, "run", messages, rate, contacts);
+
+            long stored = count(conn);
+            if (stored != WARMUP + messages) {
+                throw new IllegalStateException("Stored " + stored + " of " + (WARMUP + messages) + " messages");
+            }
+
+            String report = format(messages, rate, contacts, seconds);
+            System.out.print(report);
+            File reportDir = reportFile.getAbsoluteFile().getParentFile();
+            if (reportDir != null) {
+                reportDir.mkdirs();
+            }
+            try (PrintWriter writer = new PrintWriter(new FileWriter(reportFile))) {
+                writer.print(report);
+            }
+            System.out.println("Report written to " + reportFile);
+        } finally {
+            listeners.shutdown();
+            mainThread.shutdown();
+        }
+    }
+
+    /**
+     * Feed one burst through the pipeline from a single reader (the connection's reader thread)
+     * @return seconds from the first stanza to the last callback
+     */
+    private static double run(final ReceivePipeline pipeline, ExecutorService listeners, String id,
+                              int messages, int rate, int contacts) throws Exception {
+        // Stanzas are built up front, so the run only times what the app does with them
+        String[] stanzas = new String[messages];
+        for (int i = 0; i < messages; i++) {
+            stanzas[i] = stanza(id, i, contacts);
+        }
+
+        final CountDownLatch handled = new CountDownLatch(messages);
+        pipeline.setCallback(new ReceivePipeline.Callback() {
+            @Override
+            public void onMessageReceived(String from, String body, MessageContent content) {
+                handled.countDown();
+            }
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            if (rate > 0) {
+                long due = start + i * 1000000000L / rate;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            final long arrivedAt = Metrics.now();
+            final Message message = (Message) PacketParserUtils.parseStanza(stanzas[i]);
+            listeners.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pipeline.receive(message, arrivedAt);
+                }
+            });
+        }
+        if (!handled.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException(handled.getCount() + " messages never reached the callback");
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * Wait until every queued callback has run: the latency is recorded after the callback
+     * returns, so a warmup sample could otherwise land after Metrics.reset()
+     */
+    private static void drain(ExecutorService executor) throws Exception {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * A chat message as xmpp-loadgen.js sends it, or a media link as the gateway does
+     */
+    private static String stanza(String id, int seq, int contacts) {
+        String from = "c" + (seq % contacts) + "@" + DOMAIN + "/gateway";
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("<message xmlns='jabber:client' from='").append(from).append("' to='alice@").append(DOMAIN)
+          .append("/whatsberry' type='chat' id='lg-").append(id).append('-').append(seq).append("'>");
+        if (seq % MEDIA_EVERY == 0) {
+            String url = "https://" + DOMAIN + "/upload/" + id + "/" + seq + "/photo.jpg";
+            sb.append("<body>").append(url).append("</body>")
+              .append("<x xmlns='jabber:x:oob'><url>").append(url).append("</url></x>");
+        } else {
+            String prefix = "Load test #" + id + "-" + seq + " ";
+            StringBuilder body = new StringBuilder(prefix);
+            while (body.length() < BODY_SIZE) {
+                body.append("lorem ipsum dolor sit amet ");
+            }
+            sb.append("<body>").append(body, 0, Math.max(prefix.length(), BODY_SIZE)).append("</body>");
+        }
+        sb.append("<active xmlns='http://jabber.org/protocol/chatstates'/></message>");
+        return sb.toString();
+    }
+
+    /**
+     * XMPPManager.storeMessage -> DatabaseHelper.insertMessage, on one connection like the
+     * app's single SQLiteDatabase
+     */
+    private static final class JdbcStore implements ReceivePipeline.Store {
+        private final PreparedStatement insert;
+
+        JdbcStore(Connection conn) throws SQLException {
+            insert = conn.prepareStatement(MessageSchema.INSERT);
+        }
+
+        @Override
+        public synchronized void storeReceived(String from, String body, MessageContent content, String stanzaId) {
+            String contactJid = from.contains("/") ? from.substring(0, from.indexOf('/')) : from;
+            try {
+                insert.clearParameters();
+                insert.setString(1, contactJid);
+                insert.setString(2, body);
+                insert.setInt(3, 0);
+                insert.setLong(4, System.currentTimeMillis());
+                insert.setInt(5, 0);
+                insert.setInt(6, content.kind);
+                setOptional(7, content.fileUrl != null && !content.fileUrl.isEmpty() ? content.fileUrl : null);
+                setOptional(8, content.mimeType);
+                setOptional(9, content.mediaSize >= 0 ? content.mediaSize : null);
+                setOptional(10, content.duration >= 0 ? content.duration : null);
+                setOptional(11, stanzaId != null && !stanzaId.isEmpty() ? stanzaId : null);
+                insert.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void setOptional(int index, Object value) throws SQLException {
+            if (value == null) {
+                insert.setNull(index, Types.NULL);
+            } else {
+                insert.setObject(index, value);
+            }
+        }
+    }
+
+    private static long count(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM " + MessageSchema.TABLE)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private static String format(int messages, int rate, int contacts, double seconds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%n%d messages from %d contacts, offered %s, handled in %.2f s (%.0f/s)%n",
+                messages, contacts, rate > 0 ? rate + "/s" : "as fast as parsed", seconds, messages / seconds));
+        sb.append(String.format(Locale.US, "%-22s %8s %9s %9s %9s %9s%n", "Latency (ms)", "count", "p50", "p90", "p99", "max"));
+        for (String name : new String[]{"msg.receive_to_stored", "msg.receive_to_ui"}) {
+            Metrics.Snapshot s = Metrics.histogram(name).snapshot();
+            sb.append(String.format(Locale.US, "%-22s %8d %9.2f %9.2f %9.2f %9.2f%n", name, s.count,
+                    s.p50 / 1000.0, s.p90 / 1000.0, s.p99 / 1000.0, s.max / 1000.0));
+        }
+        sb.append("msg.duplicate: ").append(Metrics.counter("msg.duplicate").get()).append('\n');
+        return sb.toString();
+    }
+}
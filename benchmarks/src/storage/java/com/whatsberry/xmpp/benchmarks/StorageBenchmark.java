@@ -0,0 +1,318 @@
+package com.whatsberry.xmpp.benchmarks;
+
+import com.whatsberry.xmpp.MessageSchema;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Times the DatabaseHelper queries against a synthetic million-message archive on host
+ * SQLite, using the SQL from MessageSchema, and fails when a median exceeds its threshold
+ * in storage-thresholds.properties.
+ *
+ * Each operation reads every column of every row, like the cursor loops in DatabaseHelper.
+ * Writes run inside a transaction that is rolled back after timing, so every iteration sees
+ * the same archive; the commit (fsync on the SD card) is not part of the numbers.
+ *
+ * System properties: storage.messages, storage.contacts, storage.db, storage.thresholds,
+ * storage.report, storage.failOnRegression (see benchmarks/build.gradle for the defaults).
+ */
+public final class StorageBenchmark {
+    private static final long SEED = 20240101L;
+
+    private static final int SEARCH_LIMIT = 100;      // One screen of search results
+    private static final int KEEP_PER_CONTACT = 1000; // cleanOldMessages argument
+    private static final int RETENTION_CHUNK = 500;   // DatabaseHelper.RETENTION_CHUNK
+
+    /**
+     * One timed operation; {@link #run} returns a row or match count so nothing is optimized away
+     */
+    private abstract static class Operation {
+        final String name;
+        final int warmup;
+        final int iterations;
+        final boolean writes;
+
+        Operation(String name, int warmup, int iterations, boolean writes) {
+            this.name = name;
+            this.warmup = warmup;
+            this.iterations = iterations;
+            this.writes = writes;
+        }
+
+        abstract long run(Connection conn) throws SQLException;
+    }
+
+    private static final class Result {
+        final String name;
+        final long rows;
+        final double medianMs;
+        final double p90Ms;
+        final double maxMs;
+        final double thresholdMs; // NaN when the operation has no threshold
+
+        Result(String name, long rows, long[] nanos, double thresholdMs) {
+            Arrays.sort(nanos);
+            this.name = name;
+            this.rows = rows;
+            this.medianMs = nanos[nanos.length / 2] / 1e6;
+            this.p90Ms = nanos[Math.min(nanos.length - 1, (int) Math.ceil(nanos.length * 0.9) - 1)] / 1e6;
+            this.maxMs = nanos[nanos.length - 1] / 1e6;
+            this.thresholdMs = thresholdMs;
+        }
+
+        boolean regressed() {
+            return !Double.isNaN(thresholdMs) && medianMs > thresholdMs;
+        }
+    }
+
+    private StorageBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = Integer.getInteger("storage.messages", 1000000);
+        int contacts = Integer.getInteger("storage.contacts", 500);
+        File dbFile = new File(System.getProperty("storage.db", "build/storage/archive.db"));
+        File thresholdsFile = new File(System.getProperty("storage.thresholds", "storage-thresholds.properties"));
+        File reportFile = new File(System.getProperty("storage.report", "build/results/storage/results.txt"));
+        boolean failOnRegression = Boolean.parseBoolean(System.getProperty("storage.failOnRegression", "true"));
+
+        SyntheticArchive archive = SyntheticArchive.open(dbFile, messages, contacts, SEED);
+        Properties thresholds = loadThresholds(thresholdsFile);
+        // Thresholds are calibrated for the default archive only
+        boolean defaultSize = messages == 1000000 && contacts == 500;
+
+        List<Result> results = new ArrayList<>();
+        try (Connection conn = SyntheticArchive.connect(archive.file)) {
+            for (Operation operation : operations(archive)) {
+                double threshold = Double.NaN;
+                String value = thresholds.getProperty(operation.name);
+                if (defaultSize && value != null) {
+                    threshold = Double.parseDouble(value.trim());
+                }
+                Result result = measure(conn, operation, threshold);
+                results.add(result);
+                System.out.println(String.format("[STORAGE] %-40s %9.2f ms", result.name, result.medianMs));
+            }
+        }
+
+        String report = format(archive, results);
+        System.out.print(report);
+        File reportDir = reportFile.getAbsoluteFile().getParentFile();
+        if (reportDir != null) {
+            reportDir.mkdirs();
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter(reportFile))) {
+            writer.print(report);
+        }
+        System.out.println("Report written to " + reportFile);
+
+        int regressions = 0;
+        for (Result result : results) {
+            if (result.regressed()) {
+                regressions++;
+            }
+        }
+        if (regressions > 0 && failOnRegression) {
+            System.err.println(regressions + " operation(s) slower than their threshold");
+            System.exit(1);
+        }
+    }
+
+    private static List<Operation> operations(final SyntheticArchive archive) {
+        final String busiest = archive.contactAtPercentile(0);
+        final String typical = archive.contactAtPercentile(50);
+        List<Operation> operations = new ArrayList<>();
+
+        // Opening a chat: ChatActivity -> XMPPManager.loadMessageHistory -> getMessagesForContact
+        operations.add(new Operation("getMessagesForContact.busiest", 2, 10, false) {
+            @Override
+            long run(Connection conn) throws SQLException {
+                return drain(conn, MessageSchema.selectForContact(0), busiest);
+            }
+        });
+        operations.add(new Operation("getMessagesForContact.typical", 3, 20, false) {
+            @Override
+            long run(Connection conn) throws SQLException {
+                return drain(conn, MessageSchema.selectForContact(0), typical);
+            }
+        });
+
+        // Chat list: MainTabsActivity loads the last message of every chat, then all unread counters
+        operations.add(new Operation("getLastMessagePerContact", 2, 10, false) {
+            @Override
+            long run(Connection conn) throws SQLException {
+                return drain(conn, MessageSchema.SELECT_LAST_PER_CONTACT);
+            }
+        });
+        operations.add(new Operation("getUnreadCounts", 3, 20, false) {
+            @Override
+            long run(Connection conn) throws SQLException {
+                return drain(conn, MessageSchema.SELECT_UNREAD_COUNTS);
+            }
+        });
+
+        // A word in most bodies (stops at the limit) and one that is in none (full scan)
+        operations.add(new Operation("searchMessages.common", 3, 20, false) {
+            @Override
+            long run(Connection conn) throws SQLException {
+                return drain(conn, MessageSchema.search(false, SEARCH_LIMIT), "%thanks%");
+            }
+        });
+        operations.add(new Operation("searchMessages.noMatch", 2, 10, false) {
+            @Override
+            long run(Connection conn) throws SQLException {
+                return drain(conn, MessageSchema.search(false, SEARCH_LIMIT), "%zzqx%");
+            }
+        });
+        operations.add(new Operation("searchMessages.inContact", 3, 20, false) {
+            @Override
+            long run(Connection conn) throws SQLException {
+                return drain(conn, MessageSchema.search(true, SEARCH_LIMIT), "%zzqx%", busiest);
+            }
+        });
+
+        operations.add(new Operation("markMessagesAsRead.busiest", 3, 20, true) {
+            @Override
+            long run(Connection conn) throws SQLException {
+                return update(conn, MessageSchema.MARK_CONVERSATION_READ, busiest);
+            }
+        });
+
+        // Whole-archive trim as DatabaseHelper.cleanOldMessages does it: contacts over the limit,
+        // their cutoff from the index, then chunked range deletes
+        operations.add(new Operation("cleanOldMessages", 1, 3, true) {
+            @Override
+            long run(Connection conn) throws SQLException {
+                List<String> jids = new ArrayList<>();
+                try (Statement statement = conn.createStatement();
+                     ResultSet rs = statement.executeQuery(MessageSchema.selectContactsOver(KEEP_PER_CONTACT))) {
+                    while (rs.next()) {
+                        jids.add(rs.getString(1));
+                    }
+                }
+                long deleted = 0;
+                try (PreparedStatement cutoff = conn.prepareStatement(MessageSchema.selectRetentionCutoff(KEEP_PER_CONTACT));
+                     PreparedStatement delete = conn.prepareStatement(
+                             MessageSchema.deleteChunk(MessageSchema.CONTACT_OLDER_THAN_WHERE, RETENTION_CHUNK))) {
+                    for (String jid : jids) {
+                        cutoff.setString(1, jid);
+                        long before;
+                        try (ResultSet rs = cutoff.executeQuery()) {
+                            before = rs.next() ? rs.getLong(1) : Long.MIN_VALUE;
+                        }
+                        int rows;
+                        do {
+                            delete.setString(1, jid);
+                            delete.setLong(2, before);
+                            rows = delete.executeUpdate();
+                            deleted += rows;
+                        } while (rows == RETENTION_CHUNK);
+                    }
+                }
+                return deleted;
+            }
+        });
+        return operations;
+    }
+
+    private static Result measure(Connection conn, Operation operation, double threshold) throws SQLException {
+        long rows = 0;
+        long[] nanos = new long[operation.iterations];
+        for (int i = -operation.warmup; i < operation.iterations; i++) {
+            if (operation.writes) {
+                conn.setAutoCommit(false);
+            }
+            long start = System.nanoTime();
+            try {
+                rows = operation.run(conn);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                if (operation.writes) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+                if (i >= 0) {
+                    nanos[i] = elapsed;
+                }
+            }
+        }
+        return new Result(operation.name, rows, nanos, threshold);
+    }
+
+    /**
+     * Run a query and read every column of every row, returns the row count
+     */
+    private static long drain(Connection conn, String sql, String... args) throws SQLException {
+        long rows = 0;
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            for (int i = 0; i < args.length; i++) {
+                statement.setString(i + 1, args[i]);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    for (int c = 1; c <= columns; c++) {
+                        rs.getObject(c);
+                    }
+                    rows++;
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static long update(Connection conn, String sql, String... args) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            for (int i = 0; i < args.length; i++) {
+                statement.setString(i + 1, args[i]);
+            }
+            return statement.executeUpdate();
+        }
+    }
+
+    private static Properties loadThresholds(File file) throws IOException {
+        Properties thresholds = new Properties();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                thresholds.load(in);
+            }
+        } else {
+            System.out.println("[STORAGE] No thresholds at " + file + ", reporting only");
+        }
+        return thresholds;
+    }
+
+    private static String format(SyntheticArchive archive, List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        String line = new String(new char[96]).replace('\0', '=');
+        sb.append(line).append('\n');
+        sb.append(String.format("Archive: %d messages, %d contacts (busiest %d, median %d), %d KB%n",
+                archive.messages, archive.contacts.length, archive.perContact[0],
+                archive.perContact[archive.contacts.length / 2], archive.file.length() / 1024));
+        sb.append(line).append('\n');
+        sb.append(String.format("%-36s %9s %10s %10s %10s %10s  %s%n",
+                "operation", "rows", "median ms", "p90 ms", "max ms", "limit ms", "status"));
+        for (Result result : results) {
+            sb.append(String.format("%-36s %9d %10.2f %10.2f %10.2f %10s  %s%n",
+                    result.name, result.rows, result.medianMs, result.p90Ms, result.maxMs,
+                    Double.isNaN(result.thresholdMs) ? "-" : String.format("%.1f", result.thresholdMs),
+                    Double.isNaN(result.thresholdMs) ? "" : result.regressed() ? "REGRESSION" : "ok"));
+        }
+        sb.append(line).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,212 @@
+package com.whatsberry.xmpp.benchmarks;
+
+import com.whatsberry.xmpp.MessageSchema;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic message archive built with the app's own schema (MessageSchema).
+ * Shaped like a long-lived account: contact activity follows a power law (a few group
+ * chats hold most of the history), timestamps span two years in arrival order, some
+ * messages are media links and a few legacy rows have no stanza ID. Received messages
+ * near the end of the timeline are unread. Same seed and sizes give the same database.
+ */
+final class SyntheticArchive {
+    private static final int GENERATOR_VERSION = 1;
+
+    private static final long START = 1672531200000L; // 2023-01-01 UTC
+    private static final long SPAN = 2L * 365 * 24 * 3600 * 1000;
+    private static final long UNREAD_TAIL = 3L * 24 * 3600 * 1000; // Last three days
+
+    private static final String[] WORDS = {
+            "hola", "ok", "see", "you", "tomorrow", "at", "the", "office", "jaja", "thanks",
+            "where", "are", "llego", "en", "5", "min", "sounds", "good", "photo", "meeting",
+            "dinner", "call", "me", "later", "que", "tal", "todo", "bien", "yes", "no"
+    };
+    private static final String[] MEDIA_NAMES = {
+            "IMG-%d.jpg", "VID-%d.mp4", "PTT-%d.ogg", "AUD-%d.m4a", "IMG-%d.png", "DOC-%d.pdf"
+    };
+
+    final File file;
+    final int messages;
+    final String[] contacts; // By activity, busiest first
+    final int[] perContact;  // Messages stored for each contact
+
+    private SyntheticArchive(File file, int messages, String[] contacts, int[] perContact) {
+        this.file = file;
+        this.messages = messages;
+        this.contacts = contacts;
+        this.perContact = perContact;
+    }
+
+    /**
+     * Open the archive at {@code file}, generating it first unless a file built with the
+     * same sizes, seed and schema is already there
+     */
+    static SyntheticArchive open(File file, int messages, int contactCount, long seed) throws SQLException {
+        String[] contacts = new String[contactCount];
+        for (int i = 0; i < contactCount; i++) {
+            contacts[i] = "+52131" + (4170000 + i * 37) + "@whatsapp.localhost";
+        }
+        int fingerprint = fingerprint(messages, contactCount, seed);
+
+        if (file.exists() && readFingerprint(file) == fingerprint) {
+            System.out.println("[ARCHIVE] Reusing " + file);
+        } else {
+            if (file.exists() && !file.delete()) {
+                throw new SQLException("Cannot replace " + file);
+            }
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            long start = System.nanoTime();
+            generate(file, messages, contacts, seed, fingerprint);
+            System.out.println("[ARCHIVE] Generated " + messages + " messages in " +
+                    (System.nanoTime() - start) / 1000000 + " ms: " + file);
+        }
+
+        int[] perContact = new int[contactCount];
+        try (Connection conn = connect(file);
+             PreparedStatement count = conn.prepareStatement(
+                     "SELECT COUNT(*) FROM " + MessageSchema.TABLE + " WHERE " + MessageSchema.CONTACT_JID + " = ?")) {
+            for (int i = 0; i < contactCount; i++) {
+                count.setString(1, contacts[i]);
+                try (ResultSet rs = count.executeQuery()) {
+                    perContact[i] = rs.next() ? rs.getInt(1) : 0;
+                }
+            }
+        }
+        return new SyntheticArchive(file, messages, contacts, perContact);
+    }
+
+    static Connection connect(File file) throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+    }
+
+    /**
+     * Contact at the given activity percentile (0 = busiest, 50 = median, 100 = quietest)
+     */
+    String contactAtPercentile(int percentile) {
+        return contacts[Math.min(contacts.length - 1, contacts.length * percentile / 100)];
+    }
+
+    private static void generate(File file, int messages, String[] contacts, long seed, int fingerprint)
+            throws SQLException {
+        Random random = new Random(seed);
+
+        // Zipf-like activity: weight 1 / rank^0.8
+        double[] cumulative = new double[contacts.length];
+        double total = 0;
+        for (int i = 0; i < contacts.length; i++) {
+            total += 1.0 / Math.pow(i + 1, 0.8);
+            cumulative[i] = total;
+        }
+
+        try (Connection conn = connect(file)) {
+            try (Statement statement = conn.createStatement()) {
+                // Build speed only; the benchmark reopens with the defaults
+                statement.execute("PRAGMA journal_mode = OFF");
+                statement.execute("PRAGMA synchronous = OFF");
+                for (String create : MessageSchema.createStatements()) {
+                    statement.execute(create);
+                }
+            }
+            conn.setAutoCommit(false);
+
+            String insert = "INSERT INTO " + MessageSchema.TABLE + " (" +
+                    MessageSchema.CONTACT_JID + ", " + MessageSchema.BODY + ", " +
+                    MessageSchema.IS_SENT + ", " + MessageSchema.TIMESTAMP + ", " +
+                    MessageSchema.FILE_URL + ", " + MessageSchema.STANZA_ID + ", " +
+                    MessageSchema.IS_READ + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+            try (PreparedStatement statement = conn.prepareStatement(insert)) {
+                double meanGap = (double) SPAN / messages;
+                long timestamp = START;
+                StringBuilder sb = new StringBuilder(256);
+                for (int n = 0; n < messages; n++) {
+                    timestamp += 1 + (long) (-Math.log(1 - random.nextDouble()) * meanGap);
+                    int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                    String contact = contacts[index < 0 ? -index - 1 : index];
+                    boolean sent = random.nextInt(100) < 45;
+                    boolean media = random.nextInt(100) < 8;
+
+                    String body;
+                    String fileUrl = null;
+                    if (media) {
+                        fileUrl = "https://upload.localhost:5281/file_share/" + Long.toHexString(random.nextLong()) +
+                                "/" + String.format(MEDIA_NAMES[random.nextInt(MEDIA_NAMES.length)], n);
+                        body = fileUrl;
+                    } else {
+                        sb.setLength(0);
+                        int words = 1 + random.nextInt(random.nextInt(10) == 0 ? 60 : 12);
+                        for (int w = 0; w < words; w++) {
+                            if (w > 0) {
+                                sb.append(' ');
+                            }
+                            sb.append(WORDS[random.nextInt(WORDS.length)]);
+                        }
+                        body = sb.toString();
+                    }
+                    boolean read = sent || timestamp < START + SPAN - UNREAD_TAIL || random.nextInt(5) == 0;
+
+                    statement.setString(1, contact);
+                    statement.setString(2, body);
+                    statement.setInt(3, sent ? 1 : 0);
+                    statement.setLong(4, timestamp);
+                    if (fileUrl != null) {
+                        statement.setString(5, fileUrl);
+                    } else {
+                        statement.setNull(5, Types.VARCHAR);
+                    }
+                    if (random.nextInt(100) < 97) {
+                        statement.setString(6, Long.toHexString(random.nextLong()) + "-" + n);
+                    } else {
+                        statement.setNull(6, Types.VARCHAR); // Stored before stanza IDs were kept
+                    }
+                    statement.setInt(7, read ? 1 : 0);
+                    statement.addBatch();
+
+                    if (n % 10000 == 9999) {
+                        statement.executeBatch();
+                    }
+                }
+                statement.executeBatch();
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+            // No ANALYZE: the app never runs it, so the planner must work without statistics here too
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("PRAGMA user_version = " + fingerprint);
+            }
+        }
+    }
+
+    // Changes whenever the sizes, the seed, the generator or the schema change
+    private static int fingerprint(int messages, int contacts, long seed) {
+        int hash = GENERATOR_VERSION;
+        hash = 31 * hash + messages;
+        hash = 31 * hash + contacts;
+        hash = 31 * hash + Long.valueOf(seed).hashCode();
+        hash = 31 * hash + Arrays.hashCode(MessageSchema.createStatements());
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int readFingerprint(File file) {
+        try (Connection conn = connect(file);
+             Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            return 0;
+        }
+    }
+}
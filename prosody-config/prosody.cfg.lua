@@ -31,6 +31,8 @@ modules_enabled = {
     "admin_adhoc";   -- Allows administration via XMPP client
     "cloud_notify";  -- Push notifications (XEP-0357)
     "http_file_share"; -- File sharing (XEP-0363)
+    "mam";           -- Message archive (XEP-0313), clients catch up after being offline
+    "csi_simple";    -- Client State Indication (XEP-0352): hold back unimportant stanzas for idle clients
 }
 
 -- Modules to disable
@@ -135,8 +137,17 @@ Component "upload.localhost" "http_file_share"
 http_ports = { 5280 }
 http_interfaces = { "0.0.0.0" }
 
--- Archive settings (disable for performance)
+-- Archive settings
 archive_expires_after = "1w"  -- Keep messages for 1 week
+default_archive_policy = true  -- Archive every chat, the client syncs from it on reconnect
+max_archive_query_results = 250  -- Large pages: one round trip per 250 messages
+
+-- Client State Indication (mod_csi_simple)
+-- While the phone reports "inactive" (screen off / app in background) presence updates,
+-- chat states and other non-urgent stanzas are queued and delivered in one burst together
+-- with the next important stanza (a message with a body), instead of waking the radio
+-- for each of them. Presence is collapsed to the latest one per contact.
+csi_queue_size = 256  -- Flush early once this many stanzas are queued
 
 -- Limits
 limits = {
@@ -0,0 +1,364 @@
+#!/usr/bin/env node
+
+/**
+ * XMPP Load Generator for WhatsBerry
+ *
+ * Fires configurable bursts of chat messages, carbons, retractions and presence at the
+ * account a phone (or emulator) running WhatsBerry is logged into, through a local
+ * Prosody (docker-compose "prosody" service, port 5200, no gateway needed).
+ *
+ * This side only reports how fast the server accepted each burst. Client latency (p50/p99
+ * from stanza arrival to DB commit and to the UI callback) comes from the receive benchmark,
+ * which feeds these same chat stanzas through the app's ReceivePipeline on the JVM:
+ *   ./gradlew :benchmarks:receiveBenchmark -Preceive.messages=1000
+ * On a device the same numbers are in Menu > Performance Metrics (Reset before a run,
+ * Export after it).
+ *
+ * Usage:
+ *   node xmpp-loadgen.js --domain whatsberry.descarga.media \
+ *     --target alice --target-password secret \
+ *     --sender loadgen --sender-password loadgen --register \
+ *     --messages 1000 --rate 0 --carbons 200 --retractions 100 --presence 500
+ *
+ * --rate is stanzas per second per burst (0 = as fast as the socket takes them).
+ * --target-password is only needed for carbons (sent from a second resource of the target).
+ * No dependencies: plain TCP, SASL SCRAM-SHA-1 or PLAIN, in-band registration (XEP-0077).
+ */
+
+const net = require('net');
+const crypto = require('crypto');
+
+// Configuration (defaults, overridden by --flags)
+const CONFIG = {
+  host: '127.0.0.1',
+  port: 5200,
+  domain: 'localhost',
+  target: null,
+  targetPassword: null,
+  sender: 'loadgen',
+  senderPassword: 'loadgen',
+  register: false,
+  messages: 1000,
+  carbons: 0,
+  retractions: 0,
+  presence: 0,
+  rate: 0,
+  bodySize: 60,
+  timeoutMs: 30000
+};
+
+function parseArgs(argv) {
+  for (let i = 0; i < argv.length; i++) {
+    const arg = argv[i];
+    if (!arg.startsWith('--')) continue;
+    const key = arg.substring(2).replace(/-([a-z])/g, (m, c) => c.toUpperCase());
+    if (!(key in CONFIG)) {
+      console.error(`[FATAL] Unknown option ${arg}`);
+      process.exit(1);
+    }
+    if (typeof CONFIG[key] === 'boolean') {
+      CONFIG[key] = true;
+    } else {
+      const value = argv[++i];
+      CONFIG[key] = typeof CONFIG[key] === 'number' ? Number(value) : value;
+    }
+  }
+  if (!CONFIG.target) {
+    console.error('[FATAL] --target <user> is required (the account the app is logged into)');
+    process.exit(1);
+  }
+}
+
+function escapeXml(text) {
+  return String(text).replace(/&/g, '&amp;').replace(/</g, '&lt;').replace(/>/g, '&gt;')
+    .replace(/"/g, '&quot;').replace(/'/g, '&apos;');
+}
+
+function sleep(ms) {
+  return new Promise((resolve) => setTimeout(resolve, ms));
+}
+
+/**
+ * Minimal client stream: enough XML matching for auth, bind and IQ results
+ */
+class XmppClient {
+  constructor(name, user, password, resource) {
+    this.name = name;
+    this.user = user;
+    this.password = password;
+    this.resource = resource;
+    this.jid = null;
+    this.buffer = '';
+    this.waiters = [];
+    this.nextId = 0;
+  }
+
+  connect() {
+    return new Promise((resolve, reject) => {
+      this.socket = net.createConnection({ host: CONFIG.host, port: CONFIG.port }, resolve);
+      this.socket.setNoDelay(true);
+      this.socket.on('error', (err) => {
+        console.error(`[${this.name}] Socket error:`, err.message);
+        reject(err);
+        this.failWaiters(err);
+      });
+      this.socket.on('close', () => this.failWaiters(new Error('connection closed')));
+      this.socket.on('data', (data) => this.onData(data.toString('utf8')));
+    });
+  }
+
+  onData(text) {
+    this.buffer += text;
+    while (this.waiters.length > 0) {
+      const waiter = this.waiters[0];
+      const match = waiter.pattern.exec(this.buffer);
+      if (!match) break;
+      this.buffer = this.buffer.substring(match.index + match[0].length);
+      this.waiters.shift();
+      clearTimeout(waiter.timer);
+      waiter.resolve(match);
+    }
+    if (this.waiters.length === 0) {
+      // Nobody is waiting: everything else (echoes, carbons, presence) is dropped
+      this.buffer = '';
+    }
+  }
+
+  failWaiters(err) {
+    for (const waiter of this.waiters.splice(0)) {
+      clearTimeout(waiter.timer);
+      waiter.reject(err);
+    }
+  }
+
+  /**
+   * Send xml and wait for the first incoming match of pattern (registered before sending)
+   */
+  request(xml, pattern) {
+    const promise = new Promise((resolve, reject) => {
+      const waiter = { pattern, resolve, reject };
+      waiter.timer = setTimeout(() => {
+        this.waiters.splice(this.waiters.indexOf(waiter), 1);
+        reject(new Error(`timeout waiting for ${pattern}`));
+      }, CONFIG.timeoutMs);
+      this.waiters.push(waiter);
+    });
+    if (xml) this.write(xml);
+    return promise;
+  }
+
+  write(xml) {
+    return this.socket.write(xml);
+  }
+
+  id() {
+    return `${this.name}-${++this.nextId}`;
+  }
+
+  openStream() {
+    return this.request(
+      `<?xml version='1.0'?><stream:stream to='${CONFIG.domain}' version='1.0' ` +
+      `xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>`,
+      /<stream:features>([\s\S]*?)<\/stream:features>/);
+  }
+
+  async registerAccount() {
+    const id = this.id();
+    const result = await this.request(
+      `<iq type='set' id='${id}'><query xmlns='jabber:iq:register'>` +
+      `<username>${escapeXml(this.user)}</username><password>${escapeXml(this.password)}</password>` +
+      `</query></iq>`,
+      new RegExp(`<iq[^>]*id=['"]${id}['"][^>]*(?:/>|>[\\s\\S]*?</iq>)`));
+    if (/type=['"]error['"]/.test(result[0]) && !/conflict/.test(result[0])) {
+      throw new Error(`registration of ${this.user} failed: ${result[0]}`);
+    }
+    console.log(`[${this.name}] Account ${this.user} ${/conflict/.test(result[0]) ? 'already exists' : 'registered'}`);
+  }
+
+  async login(register) {
+    await this.connect();
+    let features = (await this.openStream())[1];
+
+    if (register) {
+      await this.registerAccount();
+    }
+
+    if (/SCRAM-SHA-1</.test(features)) {
+      await this.authScram();
+    } else if (/>PLAIN</.test(features)) {
+      const token = Buffer.from(`\0${this.user}\0${this.password}`, 'utf8').toString('base64');
+      await this.expectSuccess(this.request(
+        `<auth xmlns='urn:ietf:params:xml:ns:xmpp-sasl' mechanism='PLAIN'>${token}</auth>`,
+        /<(success|failure)[\s\S]*?(?:\/>|<\/\1>)/));
+    } else {
+      throw new Error(`no supported SASL mechanism in ${features}`);
+    }
+
+    features = (await this.openStream())[1];
+    const id = this.id();
+    const bound = await this.request(
+      `<iq type='set' id='${id}'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>` +
+      `<resource>${escapeXml(this.resource)}</resource></bind></iq>`,
+      new RegExp(`<iq[^>]*id=['"]${id}['"][\\s\\S]*?</iq>`));
+    const jid = /<jid>([^<]+)<\/jid>/.exec(bound[0]);
+    if (!jid) throw new Error(`bind failed: ${bound[0]}`);
+    this.jid = jid[1];
+    console.log(`[${this.name}] Logged in as ${this.jid}`);
+  }
+
+  async authScram() {
+    const clientNonce = crypto.randomBytes(18).toString('base64');
+    const clientFirstBare = `n=${this.user.replace(/=/g, '=3D').replace(/,/g, '=2C')},r=${clientNonce}`;
+    const challenge = await this.request(
+      `<auth xmlns='urn:ietf:params:xml:ns:xmpp-sasl' mechanism='SCRAM-SHA-1'>` +
+      `${Buffer.from('n,,' + clientFirstBare).toString('base64')}</auth>`,
+      /<(challenge|failure)[^>]*>([\s\S]*?)<\/\1>/);
+    if (challenge[1] === 'failure') throw new Error(`SASL failure: ${challenge[0]}`);
+
+    const serverFirst = Buffer.from(challenge[2], 'base64').toString('utf8');
+    const finalMessage = scramClientFinal(this.password, clientFirstBare, serverFirst, clientNonce);
+    await this.expectSuccess(this.request(
+      `<response xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>${Buffer.from(finalMessage).toString('base64')}</response>`,
+      /<(success|failure)[\s\S]*?(?:\/>|<\/\1>)/));
+  }
+
+  async expectSuccess(promise) {
+    const result = await promise;
+    if (result[1] !== 'success') throw new Error(`authentication failed for ${this.user}: ${result[0]}`);
+  }
+
+  /**
+   * Round trip through the server: once it answers, every stanza sent before was accepted
+   */
+  ping() {
+    const id = this.id();
+    return this.request(
+      `<iq type='get' id='${id}' to='${CONFIG.domain}'><ping xmlns='urn:xmpp:ping'/></iq>`,
+      new RegExp(`<iq[^>]*id=['"]${id}['"][^>]*(?:/>|>[\\s\\S]*?</iq>)`));
+  }
+
+  close() {
+    if (this.socket && !this.socket.destroyed) {
+      this.socket.end('</stream:stream>');
+    }
+  }
+}
+
+/**
+ * RFC 5802 client-final-message for the given server-first-message
+ */
+function scramClientFinal(password, clientFirstBare, serverFirst, clientNonce) {
+  const attrs = {};
+  for (const part of serverFirst.split(',')) {
+    attrs[part.substring(0, 1)] = part.substring(2);
+  }
+  if (!attrs.r || !attrs.r.startsWith(clientNonce)) throw new Error('SCRAM nonce mismatch');
+
+  const salted = crypto.pbkdf2Sync(password, Buffer.from(attrs.s, 'base64'), Number(attrs.i), 20, 'sha1');
+  const clientKey = crypto.createHmac('sha1', salted).update('Client Key').digest();
+  const storedKey = crypto.createHash('sha1').update(clientKey).digest();
+  const withoutProof = `c=biws,r=${attrs.r}`;
+  const authMessage = `${clientFirstBare},${serverFirst},${withoutProof}`;
+  const signature = crypto.createHmac('sha1', storedKey).update(authMessage).digest();
+  const proof = Buffer.alloc(clientKey.length);
+  for (let i = 0; i < clientKey.length; i++) {
+    proof[i] = clientKey[i] ^ signature[i];
+  }
+  return `${withoutProof},p=${proof.toString('base64')}`;
+}
+
+/**
+ * Write count stanzas from makeStanza(i), paced to CONFIG.rate, then wait for the server
+ */
+async function burst(name, client, count, makeStanza) {
+  if (count <= 0) return null;
+  console.log(`[LOAD] ${name}: ${count} stanzas${CONFIG.rate > 0 ? ` at ${CONFIG.rate}/s` : ''}`);
+  const started = process.hrtime.bigint();
+  for (let i = 0; i < count; i++) {
+    if (!client.write(makeStanza(i))) {
+      await new Promise((resolve) => client.socket.once('drain', resolve));
+    }
+    if (CONFIG.rate > 0) {
+      const due = Number(started) / 1e6 + ((i + 1) * 1000) / CONFIG.rate;
+      const wait = due - Number(process.hrtime.bigint()) / 1e6;
+      if (wait > 1) await sleep(wait);
+    }
+  }
+  await client.ping();
+  const seconds = Number(process.hrtime.bigint() - started) / 1e9;
+  return { name, count, seconds, rate: count / seconds };
+}
+
+function makeBody(seq) {
+  const prefix = `Load test #${seq} `;
+  let body = prefix;
+  while (body.length < CONFIG.bodySize) {
+    body += 'lorem ipsum dolor sit amet ';
+  }
+  return body.substring(0, Math.max(prefix.length, CONFIG.bodySize));
+}
+
+async function main() {
+  parseArgs(process.argv.slice(2));
+  const runId = Date.now().toString(36);
+  const targetJid = `${CONFIG.target}@${CONFIG.domain}`;
+  const results = [];
+
+  const sender = new XmppClient('sender', CONFIG.sender, CONFIG.senderPassword, `loadgen-${runId}`);
+  await sender.login(CONFIG.register);
+  const senderJid = sender.jid.split('/')[0];
+
+  // Chat messages: the main inbound path (listener -> dedup -> DB insert -> UI callback)
+  results.push(await burst('chat', sender, CONFIG.messages, (i) =>
+    `<message to='${targetJid}' type='chat' id='lg-${runId}-${i}'>` +
+    `<body>${escapeXml(makeBody(i))}</body><active xmlns='http://jabber.org/protocol/chatstates'/></message>`));
+
+  // Retractions of the messages just sent, newest first
+  const retractions = Math.min(CONFIG.retractions, CONFIG.messages);
+  results.push(await burst('retract', sender, retractions, (i) =>
+    `<message to='${targetJid}' type='chat' id='lg-${runId}-r${i}'>` +
+    `<retract id='lg-${runId}-${CONFIG.messages - 1 - i}' xmlns='urn:xmpp:message-retract:1'/></message>`));
+
+  // Directed presence flapping between show values (roster cache and coalescer)
+  const shows = ['away', 'chat', 'dnd', 'xa'];
+  results.push(await burst('presence', sender, CONFIG.presence, (i) =>
+    `<presence to='${targetJid}'><show>${shows[i % shows.length]}</show><status>load ${i}</status></presence>`));
+  sender.write(`<presence to='${targetJid}' type='unavailable'/>`);
+
+  // Sent carbons: a second resource of the target writes to the sender, the server copies
+  // every message to the app's resource (which enabled carbons)
+  if (CONFIG.carbons > 0) {
+    if (!CONFIG.targetPassword) {
+      console.warn('[LOAD] Skipping carbons: --target-password not given');
+    } else {
+      const twin = new XmppClient('carbons', CONFIG.target, CONFIG.targetPassword, `loadgen-${runId}`);
+      await twin.login(false);
+      results.push(await burst('carbon', twin, CONFIG.carbons, (i) =>
+        `<message to='${senderJid}' type='chat' id='lg-${runId}-c${i}'>` +
+        `<body>${escapeXml(makeBody(i))}</body></message>`));
+      twin.close();
+    }
+  }
+  sender.close();
+
+  console.log('='.repeat(60));
+  console.log(`Run ${runId} against ${targetJid} (server-accepted rate)`);
+  console.log('='.repeat(60));
+  for (const r of results.filter(Boolean)) {
+    console.log(`${r.name.padEnd(10)} ${String(r.count).padStart(7)} stanzas ` +
+      `${r.seconds.toFixed(2).padStart(8)} s ${r.rate.toFixed(0).padStart(8)}/s`);
+  }
+  console.log('='.repeat(60));
+  console.log('These are server-accepted rates, not client latency. For arrival -> DB commit and');
+  console.log(`arrival -> UI p50/p99: ./gradlew :benchmarks:receiveBenchmark -Preceive.messages=${CONFIG.messages}`);
+  console.log('or Menu > Performance Metrics > Export on the device (msg.*, retract.*, carbon.*)');
+}
+
+if (require.main === module) {
+  main().catch((err) => {
+    console.error('[FATAL]', err.message);
+    process.exit(1);
+  });
+}
+
+module.exports = { scramClientFinal };
@@ -24,7 +24,8 @@ const CONFIG = {
   prosodyHost: '127.0.0.1',
   prosodyPort: 5200,
   minTLSVersion: 'TLSv1',
-  maxTLSVersion: 'TLSv1.3'
+  maxTLSVersion: 'TLSv1.3',
+  sessionTimeout: 24 * 60 * 60 // Seconds a session ticket stays resumable
 };
 
 // Load TLS credentials
@@ -41,6 +42,13 @@ try {
     secureOptions: crypto.constants.SSL_OP_NO_SSLv2 | crypto.constants.SSL_OP_NO_SSLv3
   };
   console.log('[INIT] Loaded TLS certificate from:', CONFIG.certFile);
+
+  // One context for every connection: its session ticket keys must outlive a single
+  // socket, otherwise a reconnecting phone can never resume and pays a full handshake
+  tlsOptions.secureContext = tls.createSecureContext({
+    ...tlsOptions,
+    sessionTimeout: CONFIG.sessionTimeout
+  });
 } catch (err) {
   console.error('[FATAL] Failed to load TLS certificates:', err.message);
   process.exit(1);
@@ -117,14 +125,17 @@ const server = net.createServer((clientSocket) => {
       // Create TLS socket wrapping the existing socket
       const tlsSocket = new tls.TLSSocket(clientSocket, {
         isServer: true,
-        ...tlsOptions
+        secureContext: tlsOptions.secureContext,
+        requestCert: false,
+        rejectUnauthorized: false
       });
 
       tlsSocket.on('secure', () => {
         try {
           const protocol = tlsSocket.getProtocol();
           const cipher = tlsSocket.getCipher();
-          console.log(`[${connId}] ✓ TLS established: ${protocol}, Cipher: ${cipher.name}`);
+          const resumed = tlsSocket.isSessionReused() ? ' (resumed)' : '';
+          console.log(`[${connId}] ✓ TLS established: ${protocol}, Cipher: ${cipher.name}${resumed}`);
           tlsUpgraded = true;
 
           // Create NEW connection to Prosody for post-TLS communication